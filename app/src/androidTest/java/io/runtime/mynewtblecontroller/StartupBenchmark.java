@@ -0,0 +1,151 @@
+package io.runtime.mynewtblecontroller;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures time-to-interactive of DeviceControlActivity against the simulated peripheral.
+ * Each run launches the activity the way DeviceScanActivity does and waits for the
+ * StartupTrace to finish. The median of every phase is logged and reported as
+ * instrumentation status (key "phase.<mark>" in ms) so that CI can track regressions.
+ * Sessions are not kept alive while it runs, so that every run connects from scratch
+ * instead of taking over the previous run's session.
+ */
+public class StartupBenchmark extends InstrumentationTestCase {
+    private final static String TAG = StartupBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_RUNS = 2;
+    private static final int RUNS = 10;
+    private static final long RUN_TIMEOUT_MS = 10000;
+    /* Budget for the median total; the simulated link itself accounts for ~80 ms */
+    private static final long BUDGET_MS = 1000;
+
+    private final CountDownLatch mBound = new CountDownLatch(1);
+    private BluetoothLeService mService;
+    private long mSavedKeepAlive;
+
+    /* Bound like the scan screen, which is not a client of the session */
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mService = ((BluetoothLeService.LocalBinder) service).getService();
+            mBound.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context context = getInstrumentation().getTargetContext();
+        context.bindService(new Intent(context, BluetoothLeService.class)
+                        .setAction(BluetoothLeService.ACTION_BIND_SCAN), mServiceConnection,
+                Context.BIND_AUTO_CREATE);
+        assertTrue("Timed out binding the service",
+                mBound.await(RUN_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mSavedKeepAlive = mService.getKeepAlive();
+                mService.setKeepAlive(BluetoothLeService.KEEP_ALIVE_OFF);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mService.setKeepAlive(mSavedKeepAlive);
+            }
+        });
+        getInstrumentation().getTargetContext().unbindService(mServiceConnection);
+        super.tearDown();
+    }
+
+    public void testTimeToInteractive() throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            runOnce();
+        }
+
+        String[] names = null;
+        long[][] phases = null;
+        long[] totals = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            PhaseTimer timer = runOnce();
+            int marks = timer.getMarkCount();
+            if (names == null) {
+                names = new String[marks];
+                phases = new long[marks][RUNS];
+                for (int i = 0; i < marks; i++) {
+                    names[i] = timer.getMarkName(i);
+                }
+            }
+            assertEquals("Marks differ between runs", names.length, marks);
+            for (int i = 0; i < marks; i++) {
+                phases[i][run] = timer.getPhaseNanos(i);
+            }
+            totals[run] = timer.getTotalNanos();
+        }
+
+        Bundle results = new Bundle();
+        StringBuilder sb = new StringBuilder("Median time to interactive over ")
+                .append(RUNS).append(" runs:\n");
+        for (int i = 1; i < names.length; i++) {
+            double ms = median(phases[i]) / 1e6;
+            results.putDouble("phase." + names[i], ms);
+            sb.append(String.format("%-22s %7.1f ms%n", names[i], ms));
+        }
+        double totalMs = median(totals) / 1e6;
+        results.putDouble("total", totalMs);
+        sb.append(String.format("%-22s %7.1f ms%n", "total", totalMs));
+        Log.i(TAG, sb.toString());
+        getInstrumentation().sendStatus(0, results);
+
+        assertTrue("Median time to interactive " + totalMs + " ms exceeds " + BUDGET_MS + " ms",
+                totalMs < BUDGET_MS);
+    }
+
+    /* Launch DeviceControlActivity on the simulated peripheral and wait until interactive */
+    private PhaseTimer runOnce() throws InterruptedException {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, SimulatedGattLink.NAME);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, SimulatedGattLink.ADDRESS);
+
+        StartupTrace.start();
+        Activity activity = launchActivityWithIntent(
+                getInstrumentation().getTargetContext().getPackageName(),
+                DeviceControlActivity.class, intent);
+        PhaseTimer timer = StartupTrace.getTimer();
+        long deadline = SystemClock.uptimeMillis() + RUN_TIMEOUT_MS;
+        while (timer.isRunning()) {
+            assertTrue("Timed out waiting for interactive", SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        activity.finish();
+        getInstrumentation().waitForIdleSync();
+        return timer;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,105 @@
+package io.runtime.mynewtblecontroller;
+
+import java.util.HashMap;
+
+/**
+ * The last GPIO state each board advertised, keyed by device address, for watching many
+ * boards from the scan without connecting to any. Fed from the scan callback and read by
+ * the UI; a board repeating an unchanged state costs a map lookup and no allocation.
+ * Once the cache is full, a new board takes the place of the one heard from least recently.
+ */
+public class AdvertisedStateCache {
+    /* One board's state */
+    public static class Entry {
+        public final String address;
+        /* The sequence number of the state, -1 until one has been heard */
+        public int sequence = -1;
+        /* Bit n set for each port n advertised */
+        public int ports;
+        /* Input levels by port, valid for the ports advertised */
+        public final int[] levels = new int[GpioPortInstr.NUM_PORTS];
+        public int rssi;
+        public long lastSeenNanos;
+
+        Entry(String address) {
+            this.address = address;
+        }
+
+        public boolean hasPort(int port) {
+            return (ports & (1 << port)) != 0;
+        }
+    }
+
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private final int capacity;
+
+    /* Remembers up to capacity boards */
+    public AdvertisedStateCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Take in an advertisement.
+     *
+     * @param address The advertising device
+     * @param record Its advertising data
+     * @param rssi The signal strength it was received at
+     * @param nowNanos System.nanoTime() of reception
+     * @return true if it carried a state that differs from the one cached
+     */
+    public synchronized boolean update(String address, byte[] record, int rssi, long nowNanos) {
+        final int field = GpioAdvertisement.find(record);
+        if (field == GpioAdvertisement.NOT_FOUND) {
+            return false;
+        }
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            if (entries.size() >= capacity) {
+                evictOldest();
+            }
+            entry = new Entry(address);
+            entries.put(address, entry);
+        }
+        entry.rssi = rssi;
+        entry.lastSeenNanos = nowNanos;
+        final int sequence = GpioAdvertisement.getSequence(record, field);
+        if (sequence == entry.sequence) {
+            return false;
+        }
+        entry.sequence = sequence;
+        entry.ports = 0;
+        for (int i = 0, n = GpioAdvertisement.getPortCount(field); i < n; i++) {
+            final int port = GpioAdvertisement.getPort(record, field, i);
+            if (port >= GpioPortInstr.NUM_PORTS) {
+                continue;
+            }
+            entry.ports |= 1 << port;
+            entry.levels[port] = GpioAdvertisement.getLevels(record, field, i);
+        }
+        return true;
+    }
+
+    private void evictOldest() {
+        Entry oldest = null;
+        for (Entry e : entries.values()) {
+            if (oldest == null || e.lastSeenNanos - oldest.lastSeenNanos < 0) {
+                oldest = e;
+            }
+        }
+        entries.remove(oldest.address);
+    }
+
+    /* The board's cached state, or null if it has not advertised one. Read it holding the
+     * cache, which update() takes too. */
+    public synchronized Entry get(String address) {
+        return entries.get(address);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
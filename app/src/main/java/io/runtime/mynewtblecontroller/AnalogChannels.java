@@ -0,0 +1,125 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * The analog channels of a device and the samples they streamed, decoded from
+ * AnalogNotification payloads into a ring of shorts per channel. A channel's ring is
+ * allocated when it is first configured, so streaming allocates nothing per sample.
+ *
+ * Notifications are fed from one thread, the GATT callback's; readers on other threads
+ * (e.g. the UI rendering a trace) see every sample up to getWritten(), and may read back as
+ * far as getOldest() before the writer laps them.
+ */
+public class AnalogChannels {
+    public static final int MAX_CHANNELS = PinStateRegion.MAX_PINS;
+    /* Samples kept per channel, a power of two: 8 seconds at 1 kHz */
+    public static final int CAPACITY = 8192;
+    /* Samples behind the writer a reader keeps clear of, the most a notification carries */
+    private static final int GUARD = 512;
+    private static final int SEQUENCE_MASK = AnalogNotification.SEQUENCE_MODULUS - 1;
+
+    /* One channel's samples */
+    public static class Channel {
+        public final int pin;
+        private final short[] ring = new short[CAPACITY];
+        private volatile long written;
+        private volatile int rateHz;
+        /* The sequence number expected next, -1 before the first notification */
+        private int nextSequence = -1;
+        private volatile long dropped;
+
+        Channel(int pin) {
+            this.pin = pin;
+        }
+
+        /* Samples received since the channel was created */
+        public long getWritten() {
+            return written;
+        }
+
+        /* Index of the oldest sample that can still be read */
+        public long getOldest() {
+            return Math.max(0, written - CAPACITY + GUARD);
+        }
+
+        /* A sample by its index, from getOldest() up to getWritten() */
+        public int getSample(long index) {
+            return ring[(int) index & (CAPACITY - 1)];
+        }
+
+        /* The configured sample rate in Hz, 0 once stopped */
+        public int getRateHz() {
+            return rateHz;
+        }
+
+        /* Samples the sequence numbers show were lost on the way */
+        public long getDropped() {
+            return dropped;
+        }
+
+        void append(byte[] value) {
+            final int count = AnalogNotification.getSampleCount(value);
+            final int sequence = AnalogNotification.getSequence(value);
+            if (nextSequence >= 0) {
+                final int gap = (sequence - nextSequence) & SEQUENCE_MASK;
+                // A gap of more than half the sequence space is a repeat, not a loss
+                if (gap < AnalogNotification.SEQUENCE_MODULUS / 2) {
+                    dropped += gap;
+                }
+            }
+            nextSequence = (sequence + count) & SEQUENCE_MASK;
+            long w = written;
+            for (int i = 0; i < count; i++) {
+                ring[(int) w++ & (CAPACITY - 1)] = (short) AnalogNotification.getSample(value, i);
+            }
+            // Publishes the samples
+            written = w;
+        }
+    }
+
+    private final Channel[] channels = new Channel[MAX_CHANNELS];
+
+    /**
+     * Apply an analog instruction as written to the device, creating the channel's ring on
+     * first use.
+     *
+     * @param instr A GpioPin.DIR_ANALOG instruction
+     * @return The channel
+     */
+    public synchronized Channel configure(int instr) {
+        final int pin = GpioPin.getPin(instr);
+        Channel channel = channels[pin];
+        if (channel == null) {
+            channel = channels[pin] = new Channel(pin);
+        }
+        channel.rateHz = GpioPin.ANALOG_RATES_HZ[GpioPin.getAnalogRate(instr)];
+        // Restarted channels number their samples afresh
+        channel.nextSequence = -1;
+        return channel;
+    }
+
+    /**
+     * Take in an analog notification.
+     *
+     * @param value An AnalogNotification payload
+     * @return The channel, or null if it has not been configured
+     */
+    public Channel onNotification(byte[] value) {
+        final Channel channel = channels[AnalogNotification.getChannel(value)];
+        if (channel != null) {
+            channel.append(value);
+        }
+        return channel;
+    }
+
+    /* A configured channel, or null */
+    public synchronized Channel get(int pin) {
+        return pin >= 0 && pin < MAX_CHANNELS ? channels[pin] : null;
+    }
+
+    /* Forget all channels, as when connecting to another device */
+    public synchronized void clear() {
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            channels[i] = null;
+        }
+    }
+}
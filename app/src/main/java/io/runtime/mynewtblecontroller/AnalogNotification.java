@@ -0,0 +1,87 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Analog sample notifications on the notification characteristic, which carry a run of
+ * 12-bit ADC samples of one channel configured with a GpioPin.DIR_ANALOG instruction.
+ *
+ * Layout:
+ *   0: TAG
+ *   1: channel, i.e. the pin number
+ *   2-3: sequence number of the first sample, little endian, counting samples and
+ *        wrapping at 0x10000, so that lost notifications show as a gap
+ *   then the samples, two per 3 bytes: s0 bits 0-7, s0 bits 8-11 | s1 bits 0-3 << 4,
+ *        s1 bits 4-11; an odd last sample takes 2 bytes
+ *
+ * 20 samples fit a 34 byte payload, so a channel at 1 kHz needs 50 notifications a second.
+ * The tag is not the first byte of any valid pin record, so the formats can't be confused.
+ */
+public class AnalogNotification {
+    public static final int TAG = 0xad;
+    public static final int HEADER_LENGTH = 4;
+    public static final int MAX_SAMPLE = 0xfff;
+    /* Sequence numbers wrap at this */
+    public static final int SEQUENCE_MODULUS = 0x10000;
+
+    /* Whether a notification payload is in the analog format */
+    public static boolean isAnalog(byte[] value) {
+        return value != null && value.length >= HEADER_LENGTH + 2
+                && (value[0] & 0xff) == TAG && (value.length - HEADER_LENGTH) % 3 != 1;
+    }
+
+    public static int getChannel(byte[] value) {
+        return value[1] & 0xff;
+    }
+
+    public static int getSequence(byte[] value) {
+        return (value[2] & 0xff) | (value[3] & 0xff) << 8;
+    }
+
+    public static int getSampleCount(byte[] value) {
+        return (value.length - HEADER_LENGTH) * 2 / 3;
+    }
+
+    /* The i'th sample of the payload */
+    public static int getSample(byte[] value, int i) {
+        int off = HEADER_LENGTH + (i >> 1) * 3;
+        if ((i & 1) == 0) {
+            return (value[off] & 0xff) | (value[off + 1] & 0x0f) << 8;
+        }
+        return (value[off + 1] & 0xf0) >>> 4 | (value[off + 2] & 0xff) << 4;
+    }
+
+    /* Payload length of a notification of count samples */
+    public static int length(int count) {
+        return HEADER_LENGTH + (count * 3 + 1) / 2;
+    }
+
+    /**
+     * Encode an analog notification, as the device would.
+     *
+     * @param channel The channel
+     * @param sequence The sequence number of the first sample
+     * @param samples The samples, 12 bits each
+     * @param offset Index of the first sample to encode
+     * @param count Number of samples to encode, at least one
+     * @return The payload
+     */
+    public static byte[] encode(int channel, int sequence, short[] samples, int offset,
+                                int count) {
+        byte[] value = new byte[length(count)];
+        value[0] = (byte) TAG;
+        value[1] = (byte) channel;
+        value[2] = (byte) sequence;
+        value[3] = (byte) (sequence >>> 8);
+        for (int i = 0; i < count; i++) {
+            int sample = samples[offset + i] & MAX_SAMPLE;
+            int off = HEADER_LENGTH + (i >> 1) * 3;
+            if ((i & 1) == 0) {
+                value[off] = (byte) sample;
+                value[off + 1] = (byte) (sample >>> 8);
+            } else {
+                value[off + 1] |= (byte) (sample << 4);
+                value[off + 2] = (byte) (sample >>> 4);
+            }
+        }
+        return value;
+    }
+}
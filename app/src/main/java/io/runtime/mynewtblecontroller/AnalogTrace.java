@@ -0,0 +1,102 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * A scrolling trace of an analog channel downsampled to one min/max pair per display
+ * column, for drawing a channel streaming at 1 kHz into a view a few hundred pixels wide.
+ * Each {@link #update} folds in only the samples that arrived since the previous one, so a
+ * frame costs as much as the new samples, and nothing is allocated once the window is set.
+ *
+ * Used from one thread, the UI's.
+ */
+public class AnalogTrace {
+    private final AnalogChannels.Channel channel;
+    /* One slot per column, and one for the column being filled */
+    private short[] min = new short[1];
+    private short[] max = new short[1];
+    private int samplesPerColumn = 1;
+    /* The slot being filled, the complete columns are the slots before it */
+    private int head;
+    private int complete;
+    private int inColumn;
+    /* Index of the next sample to fold in */
+    private long next;
+
+    public AnalogTrace(AnalogChannels.Channel channel) {
+        this.channel = channel;
+    }
+
+    public AnalogChannels.Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Size the trace, starting it afresh from the channel's latest samples.
+     *
+     * @param columns Columns to keep, e.g. the width of the view in pixels
+     * @param samplesPerColumn Samples folded into each column
+     */
+    public void setWindow(int columns, int samplesPerColumn) {
+        if (columns + 1 != min.length) {
+            min = new short[columns + 1];
+            max = new short[columns + 1];
+        }
+        this.samplesPerColumn = Math.max(1, samplesPerColumn);
+        head = 0;
+        complete = 0;
+        inColumn = 0;
+        next = Math.max(channel.getOldest(),
+                channel.getWritten() - (long) columns * this.samplesPerColumn);
+    }
+
+    /**
+     * Fold in the samples that arrived since the last update.
+     *
+     * @return The number of columns completed
+     */
+    public int update() {
+        final int slots = min.length;
+        if (slots == 1) {
+            return 0;
+        }
+        final long written = channel.getWritten();
+        // Fell behind by more than the ring holds, e.g. while not showing
+        next = Math.max(next, channel.getOldest());
+        int completed = 0;
+        for (; next < written; next++) {
+            final short sample = (short) channel.getSample(next);
+            if (inColumn == 0 || sample < min[head]) {
+                min[head] = sample;
+            }
+            if (inColumn == 0 || sample > max[head]) {
+                max[head] = sample;
+            }
+            if (++inColumn == samplesPerColumn) {
+                inColumn = 0;
+                head = head + 1 == slots ? 0 : head + 1;
+                complete = Math.min(complete + 1, slots - 1);
+                completed++;
+            }
+        }
+        return completed;
+    }
+
+    /* Number of complete columns, at most the window's */
+    public int getColumnCount() {
+        return complete;
+    }
+
+    /* Lowest sample of a complete column, 0 being the oldest */
+    public int getMin(int column) {
+        return min[index(column)];
+    }
+
+    /* Highest sample of a complete column, 0 being the oldest */
+    public int getMax(int column) {
+        return max[index(column)];
+    }
+
+    private int index(int column) {
+        int i = head - complete + column;
+        return i < 0 ? i + min.length : i;
+    }
+}
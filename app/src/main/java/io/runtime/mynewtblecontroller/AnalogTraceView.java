@@ -0,0 +1,90 @@
+package io.runtime.mynewtblecontroller;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.View;
+
+/**
+ * Draws the last WINDOW_SECONDS of an analog channel, one min/max bar per pixel column,
+ * scrolling as samples arrive. Call {@link #onSamples()} when the channel was notified; the
+ * redraw is deferred to the next frame, which folds in every sample received by then, so
+ * the view redraws at most once a frame however fast the channel streams. Nothing is
+ * allocated per frame.
+ */
+public class AnalogTraceView extends View {
+    /* Seconds of samples across the width of the view */
+    private static final int WINDOW_SECONDS = 2;
+
+    private final Paint mTracePaint = new Paint();
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private AnalogTrace mTrace;
+    private int mRateHz;
+    private String mLabel = "";
+    /* Two points per column, as Canvas.drawLines() takes them */
+    private float[] mLines = new float[0];
+
+    public AnalogTraceView(Context context) {
+        super(context);
+        mTracePaint.setColor(Color.rgb(0x21, 0x96, 0xf3));
+        mTracePaint.setStrokeWidth(1);
+        mLabelPaint.setColor(Color.GRAY);
+        mLabelPaint.setTextSize(12 * context.getResources().getDisplayMetrics().scaledDensity);
+    }
+
+    /* Show a channel, or start over when its rate changed */
+    public void setChannel(AnalogChannels.Channel channel) {
+        if (mTrace == null || mTrace.getChannel() != channel) {
+            mTrace = new AnalogTrace(channel);
+        }
+        mRateHz = channel.getRateHz();
+        mLabel = getContext().getString(R.string.analog_label, channel.pin, mRateHz);
+        resize(getWidth());
+        invalidate();
+    }
+
+    /* The channel received samples */
+    public void onSamples() {
+        postInvalidateOnAnimation();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        resize(w);
+    }
+
+    private void resize(int width) {
+        if (mTrace == null || width <= 0) {
+            return;
+        }
+        mTrace.setWindow(width, mRateHz * WINDOW_SECONDS / width);
+        if (mLines.length != width * 4) {
+            mLines = new float[width * 4];
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mTrace == null) {
+            return;
+        }
+        mTrace.update();
+        final int width = getWidth();
+        final float scale = (getHeight() - 1) / (float) AnalogNotification.MAX_SAMPLE;
+        final int bottom = getHeight() - 1;
+        final int n = mTrace.getColumnCount();
+        for (int i = 0; i < n; i++) {
+            final float x = width - n + i;
+            mLines[i * 4] = x;
+            mLines[i * 4 + 1] = bottom - mTrace.getMax(i) * scale;
+            mLines[i * 4 + 2] = x;
+            // At least a pixel tall when the column is flat
+            mLines[i * 4 + 3] = bottom - mTrace.getMin(i) * scale + 1;
+        }
+        canvas.drawLines(mLines, 0, n * 4, mTracePaint);
+        canvas.drawText(mLabel, 0, -mLabelPaint.ascent(), mLabelPaint);
+    }
+}
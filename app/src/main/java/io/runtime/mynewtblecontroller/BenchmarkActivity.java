@@ -0,0 +1,284 @@
+package io.runtime.mynewtblecontroller;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Runs a ThroughputBenchmark against the device DeviceControlActivity is connected to, a
+ * real board or the simulated peripheral, and exports the results as JSON for qualifying
+ * phones and firmware builds. Started with the same extras as DeviceControlActivity.
+ *
+ * While a run is in progress this activity takes the service's pin updates; pausing it
+ * stops the run.
+ */
+public class BenchmarkActivity extends AppCompatActivity {
+    private final static String TAG = BenchmarkActivity.class.getSimpleName();
+
+    /* How often a run is checked for completion */
+    private static final long POLL_MS = 100;
+
+    private String mDeviceName;
+    private String mDeviceAddress;
+    private BluetoothLeService mBluetoothLeService;
+
+    private ThroughputBenchmark mBenchmark;
+    private ThroughputBenchmark.Result mResult;
+    private int mTimeoutsBefore;
+    private int mStallsBefore;
+
+    private Spinner mWorkload;
+    private EditText mOutputPins;
+    private EditText mInputPins;
+    private EditText mDuration;
+    private EditText mWindow;
+    private Button mStartButton;
+    private Button mExportButton;
+    private TextView mResultView;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                Log.e(TAG, "Unable to initialize Bluetooth");
+                finish();
+                return;
+            }
+            if (!mBluetoothLeService.isConnected()) {
+                mBluetoothLeService.connect(mDeviceAddress);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
+    /* Pin updates and timeouts, delivered as pooled messages like to DeviceControlActivity */
+    private final Handler mHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (mBenchmark == null) {
+                return false;
+            }
+            switch (msg.what) {
+                case BluetoothLeService.MSG_INSTR_WRITTEN:
+                case BluetoothLeService.MSG_DATA_READ:
+                    mBenchmark.onPinUpdate(msg.what, msg.arg1, msg.arg2, System.nanoTime());
+                    return true;
+                case BluetoothLeService.MSG_OP_TIMEOUT:
+                    mBenchmark.onOpTimeout(msg.arg1, msg.arg2, System.nanoTime());
+                    return true;
+            }
+            return false;
+        }
+    });
+
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            if (mBenchmark == null) {
+                return;
+            }
+            if (mBenchmark.isDone(System.nanoTime())) {
+                finishRun();
+            } else {
+                mHandler.postDelayed(this, POLL_MS);
+            }
+        }
+    };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_benchmark);
+
+        final Intent intent = getIntent();
+        mDeviceName = intent.getStringExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME);
+        mDeviceAddress = intent.getStringExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS);
+
+        ((TextView) findViewById(R.id.benchmark_device)).setText(mDeviceAddress);
+        mWorkload = (Spinner) findViewById(R.id.benchmark_workload);
+        mOutputPins = (EditText) findViewById(R.id.benchmark_output_pins);
+        mInputPins = (EditText) findViewById(R.id.benchmark_input_pins);
+        mDuration = (EditText) findViewById(R.id.benchmark_duration);
+        mWindow = (EditText) findViewById(R.id.benchmark_window);
+        mStartButton = (Button) findViewById(R.id.benchmark_start);
+        mExportButton = (Button) findViewById(R.id.benchmark_export);
+        mResultView = (TextView) findViewById(R.id.benchmark_result);
+
+        mStartButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if (mBenchmark == null) {
+                    startRun();
+                } else {
+                    finishRun();
+                }
+            }
+        });
+        mExportButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                exportResult();
+            }
+        });
+
+        getSupportActionBar().setTitle(mDeviceName);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        bindService(new Intent(this, BluetoothLeService.class), mServiceConnection,
+                BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mBenchmark != null) {
+            finishRun();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacksAndMessages(null);
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            onBackPressed();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void startRun() {
+        if (mBluetoothLeService == null || !mBluetoothLeService.isConnected()
+                || mBluetoothLeService.getGpioCharacteristics() == null) {
+            Toast.makeText(this, R.string.benchmark_not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final ThroughputBenchmark.Config config = new ThroughputBenchmark.Config();
+        try {
+            config.workload = mWorkload.getSelectedItemPosition();
+            config.outputPins = ThroughputBenchmark.parsePins(mOutputPins.getText().toString());
+            config.inputPins = ThroughputBenchmark.parsePins(mInputPins.getText().toString());
+            config.durationMs = Long.parseLong(mDuration.getText().toString()) * 1000;
+            config.window = Integer.parseInt(mWindow.getText().toString());
+            mBenchmark = new ThroughputBenchmark(config, new ThroughputBenchmark.Target() {
+                @Override
+                public boolean submit(int instr) {
+                    return mBluetoothLeService != null
+                            && mBluetoothLeService.writeInstruction(instr);
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        final GattWatchdog watchdog = mBluetoothLeService.getGattWatchdog();
+        mTimeoutsBefore = watchdog.getTimeoutCount();
+        mStallsBefore = watchdog.getStallCount();
+        mBluetoothLeService.setGpioHandler(mHandler);
+        mResult = null;
+        mExportButton.setEnabled(false);
+        mStartButton.setText(R.string.benchmark_stop);
+        mResultView.setText(R.string.benchmark_running);
+        mBenchmark.start(System.nanoTime());
+        mHandler.postDelayed(mPoll, POLL_MS);
+    }
+
+    private void finishRun() {
+        mHandler.removeCallbacks(mPoll);
+        mResult = mBenchmark.finish(System.nanoTime());
+        mBenchmark = null;
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setGpioHandler(null);
+            addLinkParameters(mResult);
+        }
+        mStartButton.setText(R.string.benchmark_start);
+        mExportButton.setEnabled(true);
+        mResultView.setText(mResult.toString());
+        Log.i(TAG, "Benchmark result:\n" + mResult.toJson());
+    }
+
+    /* What the results depend on besides the workload */
+    private void addLinkParameters(ThroughputBenchmark.Result result) {
+        final boolean simulated = SimulatedGattLink.ADDRESS.equals(mDeviceAddress);
+        result.link.put("address", mDeviceAddress);
+        result.link.put("name", String.valueOf(mDeviceName));
+        result.link.put("simulated", String.valueOf(simulated));
+        if (simulated) {
+            result.link.put("simulated_op_delay_ms",
+                    String.valueOf(mBluetoothLeService.getSimulatedPeripheral().opDelayMs));
+        }
+        final GattWatchdog watchdog = mBluetoothLeService.getGattWatchdog();
+        result.link.put("op_timeout_ms", String.valueOf(watchdog.opTimeoutMs));
+        result.link.put("op_timeouts", String.valueOf(watchdog.getTimeoutCount() - mTimeoutsBefore));
+        result.link.put("link_stalls", String.valueOf(watchdog.getStallCount() - mStallsBefore));
+        final ClockOffsetEstimator clock = mBluetoothLeService.getDeviceClock();
+        if (clock.hasEstimate()) {
+            result.link.put("min_read_rtt_ms",
+                    String.format("%.1f", clock.getUncertaintyNanos() * 2 / 1e6));
+        }
+        result.link.put("phone", Build.MANUFACTURER + " " + Build.MODEL);
+        result.link.put("android", Build.VERSION.RELEASE + " (API " + Build.VERSION.SDK_INT + ")");
+    }
+
+    /* Save the last result next to the GATT traces, in the app's external files directory */
+    private void exportResult() {
+        if (mResult == null) {
+            return;
+        }
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        final File file = new File(dir, "benchmark-" + mDeviceAddress.replace(':', '-') + "-"
+                + System.currentTimeMillis() + ".json");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(mResult.toJson().getBytes("UTF-8"));
+            Toast.makeText(this, getString(R.string.benchmark_exported, file.getPath()),
+                    Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save benchmark result", e);
+            Toast.makeText(this, R.string.benchmark_export_failed, Toast.LENGTH_SHORT).show();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
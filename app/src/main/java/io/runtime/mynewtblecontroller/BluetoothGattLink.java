@@ -0,0 +1,174 @@
+package io.runtime.mynewtblecontroller;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GattLink to a real device, forwarding every operation to its {@code BluetoothGatt}. The
+ * BluetoothGatt is only opened by the first {@link #connect()}, so the owner can publish the
+ * link before any callback for it arrives. Operations on a link that is not open yet or has
+ * been closed fail like they do on a closed BluetoothGatt.
+ */
+public class BluetoothGattLink implements GattLink {
+    private final static String TAG = BluetoothGattLink.class.getSimpleName();
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final BluetoothGattCallback mCallback;
+    private volatile BluetoothGatt mGatt;
+    private boolean mClosed;
+
+    /* BluetoothGatt.setPreferredPhy() and its constants, from API 26 */
+    private static final int SDK_PHY = 26;
+    private static final int PHY_OPTION_NO_PREFERRED = 0;
+    private static final int PHY_OPTION_S8 = 2;
+
+    public BluetoothGattLink(Context context, BluetoothDevice device,
+                             BluetoothGattCallback callback) {
+        mContext = context;
+        mDevice = device;
+        mCallback = callback;
+    }
+
+    /**
+     * This method is used to refresh the android's Cached GATT values. If the user
+     * adds/removes/changes GATT Characteristics or services on the device side, Android
+     * would continue to use old UUIDs and connection handles. This method refreshes the device
+     * cache every time we connect to a device. If you don't plan on changing your GATT
+     * characteristics or services you may remove this method for better performance.
+     *
+     * @return True if success
+     */
+    public boolean refreshDeviceCache() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            return false;
+        }
+        try {
+            Method localMethod = gatt.getClass().getMethod("refresh", new Class[0]);
+            if (localMethod != null) {
+                return ((Boolean) localMethod.invoke(gatt, new Object[0])).booleanValue();
+            }
+        }
+        catch (Exception localException) {
+            Log.e(TAG, "An exception occured while refreshing device");
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean connect() {
+        if (mClosed) {
+            return false;
+        }
+        if (mGatt == null) {
+            // We want to directly connect to the device, so we are setting the
+            // autoConnect parameter to false.
+            mGatt = mDevice.connectGatt(mContext, false, mCallback);
+            return mGatt != null;
+        }
+        return mGatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt != null) {
+            gatt.disconnect();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        if (mGatt != null) {
+            mGatt.close();
+            mGatt = null;
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            return Collections.emptyList();
+        }
+        return gatt.getServices();
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt == null ? null : gatt.getService(uuid);
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enable) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.setCharacteristicNotification(characteristic, enable);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.readRemoteRssi();
+    }
+
+    @Override
+    public boolean setPreferredPhy(int phy) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null || Build.VERSION.SDK_INT < SDK_PHY) {
+            return false;
+        }
+        // The PHY_LE_*_MASK for the PHY, and the longest range coding for Coded
+        final int mask = 1 << (phy - 1);
+        final int options = phy == LinkQualityMonitor.PHY_LE_CODED
+                ? PHY_OPTION_S8 : PHY_OPTION_NO_PREFERRED;
+        try {
+            Method setPreferredPhy = gatt.getClass().getMethod("setPreferredPhy",
+                    int.class, int.class, int.class);
+            setPreferredPhy.invoke(gatt, mask, mask, options);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to set the preferred PHY", e);
+            return false;
+        }
+    }
+}
@@ -16,6 +16,7 @@ package io.runtime.mynewtblecontroller;
  * limitations under the License.
  */
 
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -26,15 +27,29 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -45,14 +60,182 @@ public class BluetoothLeService extends Service {
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-    private int prevInstr;
+    /* State, link and device address, see ConnectionStateMachine for the threading rules */
+    private final ConnectionStateMachine<GattLink> mConnection =
+            new ConnectionStateMachine<GattLink>();
+    private SimulatedGpioPeripheral mSimulatedPeripheral;
+    /* Serves the connections to network gateways, created with the first one */
+    private GatewaySelector mGatewaySelector;
+    private volatile Handler mGpioHandler;
+    /* Pin updates dispatched so far, for correlating UI load with event rate */
+    private final AtomicInteger mEventCount = new AtomicInteger();
+    /* Samples of the device's analog channels, decoded by mEvents */
+    private final AnalogChannels mAnalog = new AnalogChannels();
+    /* Decodes characteristic values into pin updates, fed by the GATT callbacks */
+    private GpioEventHandler mEvents;
+    /* Records GATT traffic while set, see startTrace() */
+    private volatile GattTrace.Writer mTrace;
+    /* The GPIO characteristics of the current link, resolved once per service discovery */
+    private volatile GpioCharacteristics mGpioChrs;
+    /* Maps device timestamps onto the host clock, fed by the reads of input pins */
+    private final ClockOffsetEstimator mDeviceClock = new ClockOffsetEstimator();
+    private volatile long mReadIssuedNanos;
+    /* Edge to app and edge to pixel latencies of timestamped notifications */
+    private final LatencyTracker mLatency = new LatencyTracker();
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    /* Instructions issued while the link is down, replayed once it is back */
+    private static final String JOURNAL_FILE = "command_journal";
+    private CommandJournal mJournal;
+    /* Connects, closes and writes to the link of mConnection, created with the journal.
+     * mJournal is taken before mInstrQueue when both are needed. */
+    private LinkSession<GattLink> mSession;
+    private static final long AUTO_RECONNECT_DELAY_MS = 500;
+    private final Runnable mAutoReconnect = new Runnable() {
+        @Override
+        public void run() {
+            final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+            if (mSession.isUserDisconnect() || cur.link == null
+                    || cur.state != ConnectionStateMachine.STATE_DISCONNECTED) {
+                return;
+            }
+            if (mSession.isSpeculative()) {
+                // Not worth another try before anyone asked for it
+                cancelPreconnect();
+                return;
+            }
+            Log.i(TAG, "Link to " + cur.address + " dropped, reconnecting");
+            connect(cur.address, false);
+        }
+    };
+
+    /* Bulk transport over an L2CAP channel, null unless opened, see openBulkChannel() */
+    private static final int SDK_L2CAP_COC = 29;
+    private volatile BulkChannel mBulkChannel;
+    private BluetoothSocket mBulkSocket;
+    private static final long BULK_SEND_TIMEOUT_MS = 1000;
+
+    /* Instructions waiting to be written, only one GATT operation may be outstanding */
+    private final InstrQueue mInstrQueue = new InstrQueue(16);
+    private boolean mGattBusy;
+    /* A write the stack would not start is put back and tried again this much later. A link
+     * refusing MAX_WRITE_REJECTS writes in a row is reconnected, which journals the queue. */
+    private static final long WRITE_RETRY_MS = 100;
+    private static final int MAX_WRITE_REJECTS = 5;
+    private int mWriteRejects;
+    private final Runnable mWriteRetry = new Runnable() {
+        @Override
+        public void run() {
+            drainInstrQueue();
+        }
+    };
+    private final Runnable mRejectedReconnect = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+    /* Queue entries with this flag are port instructions (op << 8 | port), followed by
+     * an entry holding their mask */
+    private static final int PORT_INSTR_FLAG = LinkSession.PORT_INSTR_FLAG;
+    /* Values written to the instruction characteristic, reused to avoid allocating */
+    private final byte[] mPinInstrValue = new byte[2];
+    private final byte[] mPortInstrValue = new byte[GpioPortInstr.LENGTH];
+
+    /* The outstanding GATT operation, kept to re-issue it when its callback is lost */
+    private static final int OP_WRITE = 0;
+    private static final int OP_READ = 1;
+    private static final int OP_DESCRIPTOR = 2;
+    private int mCurrentOpKind;
+    private int mCurrentInstr;
+    private int mCurrentMask;
+    private BluetoothGattDescriptor mCurrentDescriptor;
+    /* Attempts at GATT operations the stack accepted, re-issues included, and the callbacks
+     * answering them. The stack answers in order, so a callback answers attempt
+     * mOpAnswered + 1, and only the answer to the latest attempt completes the outstanding
+     * operation; any other is ignored. A stack only accepts a re-issue once it is done with
+     * the first attempt, so that attempt's answer is written off then. Guarded by
+     * mInstrQueue, reset with each link; attempts are issued holding it, so that no callback
+     * is matched before it is known whether the stack accepted the attempt. */
+    private int mOpIssued;
+    private int mOpAnswered;
+    /* Descriptor write requested while another operation was outstanding, issued next */
+    private BluetoothGattDescriptor mPendingDescriptor;
+    private final GattWatchdog mWatchdog = new GattWatchdog();
+    private final Handler mWatchdogHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mWatchdogCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkWatchdog();
+        }
+    };
+
+    /* Input to output interlocks run on every notification, saved per device address */
+    private static final String RULES_PREFS = "pin_rules";
+    private final RulesEngine mRules = new RulesEngine();
+    /* Writes of the rule being applied, guarded by mJournal */
+    private final int[] mRuleInstrs = new int[RulesEngine.MAX_RULES];
+    /* When the notification being decoded arrived, the start of the rules' reaction time */
+    private volatile long mNotifyArrivalNanos;
+
+    /* Picks the PHY from the RSSI, sampled every RSSI_INTERVAL_MS, and failed operations */
+    private final LinkQualityMonitor mLinkQuality = new LinkQualityMonitor();
+    private static final long RSSI_INTERVAL_MS = 2000;
+    private final Runnable mRssiPoll = new Runnable() {
+        @Override
+        public void run() {
+            final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+            if (cur.link == null || cur.state != ConnectionStateMachine.STATE_CONNECTED
+                    || !cur.link.readRemoteRssi()) {
+                return;
+            }
+            mWatchdogHandler.postDelayed(this, RSSI_INTERVAL_MS);
+        }
+    };
+
+    /* Pin state shared with remote clients through IGpioControl */
+    private static final String PIN_STATE_FILE = "pin_state";
+    private PinStateRegion mPinState;
+    private boolean mPinStateShared;
+    private boolean mLocalBound;
+    private boolean mRemoteBound;
+
+    /* How long a session outlives its last client, see setKeepAlive() */
+    public static final long KEEP_ALIVE_OFF = 0;
+    public static final long KEEP_ALIVE_FOREVER = -1;
+    public static final long DEFAULT_KEEP_ALIVE_MS = 5 * 60 * 1000;
+    private static final String SERVICE_PREFS = "service";
+    private static final String PREF_KEEP_ALIVE_MS = "keep_alive_ms";
+    private long mKeepAliveMs = DEFAULT_KEEP_ALIVE_MS;
+    /* Unbound for longer than a rotation takes, the session is kept in the foreground */
+    private static final long FOREGROUND_DELAY_MS = 2000;
+    private static final int NOTIFICATION_ID = 1;
+    private boolean mForeground;
+    private final Runnable mGoForeground = new Runnable() {
+        @Override
+        public void run() {
+            goForeground();
+        }
+    };
+    private final Runnable mKeepAliveExpired = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "No client for " + mKeepAliveMs + "ms, closing the session");
+            endSession();
+        }
+    };
+
+    /* Connecting ahead of the user to the board they will likely open, see onScanResult() */
+    private static final String PREF_CONNECT_HISTORY = "connect_history";
+    private final ConnectPredictor mPredictor = new ConnectPredictor();
+    /* Unbound for longer than handing over between activities takes, a guess was wrong */
+    private static final long SPECULATIVE_GRACE_MS = 3000;
+    private final Runnable mDropSpeculative = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "No client took the link opened ahead of the user");
+            endSession();
+        }
+    };
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -66,41 +249,125 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_READ_DATA_AVAILABLE";
     public final static String ACTION_NOTIFICATION_DATA_AVAILABLE =
             "com.example.bluetooth.le.ACTION_NOTIFICATION_DATA_AVAILABLE";
+    public final static String ACTION_GATT_OP_TIMEOUT =
+            "com.example.bluetooth.le.ACTION_GATT_OP_TIMEOUT";
+    public final static String ACTION_PHY_UPDATE =
+            "com.example.bluetooth.le.ACTION_PHY_UPDATE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
     public final static String EXTRA_INSTR =
             "com.example.bluetooth.le.EXTRA_INSTR";
     public final static String EXTRA_NOTIFICATION =
             "com.example.bluetooth.le.EXTRA_NOTIFICATION";
+    public final static String EXTRA_PORT_INSTR =
+            "com.example.bluetooth.le.EXTRA_PORT_INSTR";
+    public final static String EXTRA_PORT_MASK =
+            "com.example.bluetooth.le.EXTRA_PORT_MASK";
+    public final static String EXTRA_TIMEOUT_ACTION =
+            "com.example.bluetooth.le.EXTRA_TIMEOUT_ACTION";
+    public final static String EXTRA_TX_PHY =
+            "com.example.bluetooth.le.EXTRA_TX_PHY";
+    public final static String EXTRA_RX_PHY =
+            "com.example.bluetooth.le.EXTRA_RX_PHY";
+
+    /* Intent action for binding to the exported IGpioControl interface */
+    public final static String ACTION_BIND_GPIO_CONTROL =
+            "io.runtime.mynewtblecontroller.action.BIND_GPIO_CONTROL";
+    /* Intent action for the scan screen's binding, which feeds onScanResult() but is not a
+     * client of the session */
+    public final static String ACTION_BIND_SCAN =
+            "io.runtime.mynewtblecontroller.action.BIND_SCAN";
+
+    /* Pin update messages sent to the handler set with setGpioHandler() */
+    public final static int MSG_INSTR_WRITTEN = GpioEventHandler.MSG_INSTR_WRITTEN;
+    public final static int MSG_DATA_READ = GpioEventHandler.MSG_DATA_READ;
+    public final static int MSG_NOTIFICATION = GpioEventHandler.MSG_NOTIFICATION;
+    public final static int MSG_PORT_WRITTEN = GpioEventHandler.MSG_PORT_WRITTEN;
+    public final static int MSG_PINS_CHANGED = GpioEventHandler.MSG_PINS_CHANGED;
+    public final static int MSG_OP_TIMEOUT = 6;     // arg1: instruction or -1, arg2: GattWatchdog action
+    public final static int MSG_ANALOG_CONFIGURED = GpioEventHandler.MSG_ANALOG_CONFIGURED;
+    public final static int MSG_ANALOG_SAMPLES = GpioEventHandler.MSG_ANALOG_SAMPLES;
 
     // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // connection change and services discovered.  One callback is created per link; events
+    // from a link that has since been replaced or closed are dropped.
+    private class GattCallback extends BluetoothGattCallback implements GattLink.PhyCallback {
+        private final int mGeneration;
+
+        GattCallback(int generation) {
+            mGeneration = generation;
+        }
+
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            EventTrace.record(EventTrace.CONNECTION_STATE, mGeneration, status, newState);
             String intentAction;
             if (newState == BluetoothProfile.STATE_CONNECTED) {
+                if (!mConnection.onStateChange(mGeneration,
+                        ConnectionStateMachine.STATE_CONNECTED)) {
+                    return;
+                }
+                trace(GattTrace.EV_CONNECTION_STATE, status, newState);
                 intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
+                StartupTrace.mark(StartupTrace.CONNECTED);
                 broadcastUpdate(intentAction);
                 Log.i(TAG, "Connected to GATT server.");
                 // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
+                final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+                if (cur.generation != mGeneration || cur.link == null) {
+                    return;
+                }
+                StartupTrace.beginSection("discoverServices");
+                final boolean discovering = cur.link.discoverServices();
+                StartupTrace.endSection();
+                Log.i(TAG, "Attempting to start service discovery:" + discovering);
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                if (!mConnection.onStateChange(mGeneration,
+                        ConnectionStateMachine.STATE_DISCONNECTED)) {
+                    return;
+                }
+                trace(GattTrace.EV_CONNECTION_STATE, status, newState);
                 intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
+                // Handles may not survive the reconnect, they are resolved again after discovery
+                mGpioChrs = null;
+                // Nor the device clock, should the device restart
+                mDeviceClock.reset();
+                mWatchdogHandler.removeCallbacks(mRssiPoll);
+                closeBulkChannel();
+                mSession.goOffline();
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(intentAction);
+                if (!mSession.isUserDisconnect()) {
+                    mWatchdogHandler.removeCallbacks(mAutoReconnect);
+                    mWatchdogHandler.postDelayed(mAutoReconnect, AUTO_RECONNECT_DELAY_MS);
+                }
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (!mConnection.isCurrent(mGeneration)) {
+                return;
+            }
+            trace(GattTrace.EV_SERVICES_DISCOVERED, status, null);
+            EventTrace.record(EventTrace.SERVICES_DISCOVERED, mGeneration, status);
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                StartupTrace.mark(StartupTrace.SERVICES_DISCOVERED);
+                final GattLink link = mConnection.getLink();
+                mGpioChrs = link == null ? null : GpioCharacteristics.resolve(link, mGeneration);
+                if (mGpioChrs == null) {
+                    Log.w(TAG, "GPIO service not found");
+                } else if (!mSession.isSpeculative()) {
+                    // Ahead of the broadcast, so that the UI's writes go after the replay
+                    replayJournal(mConnection.snapshot().address);
+                }
+                mLinkQuality.reset();
+                mWatchdogHandler.removeCallbacks(mRssiPoll);
+                mWatchdogHandler.post(mRssiPoll);
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
             } else {
+                mGpioChrs = null;
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
         }
@@ -109,87 +376,433 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, String.format("Characteristic Read Success: 0x%x", characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0)));
-                broadcastUpdate(ACTION_READ_DATA_AVAILABLE, characteristic);
+            if (!mConnection.isCurrent(mGeneration)) {
+                return;
+            }
+            final byte[] value = characteristic.getValue();
+            trace(GattTrace.EV_READ, status, value);
+            EventTrace.recordValue(EventTrace.READ, status, value);
+            if (status == BluetoothGatt.GATT_SUCCESS && DeviceTimestamp.inReadValue(value)) {
+                mDeviceClock.addSample(mReadIssuedNanos, DeviceTimestamp.get(value),
+                        System.nanoTime());
             }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onCharacteristicRead received: " + status);
+            }
+            mLinkQuality.onOpResult(status == BluetoothGatt.GATT_SUCCESS);
+            if (!isCurrentAnswer()) {
+                return;
+            }
+            mEvents.onRead(status, value);
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
                                           int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, String.format("Characteristic Write Success: 0x%x", characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0)));
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            if (!mConnection.isCurrent(mGeneration)) {
+                return;
+            }
+            final byte[] value = characteristic.getValue();
+            trace(GattTrace.EV_WRITE, status, value);
+            EventTrace.recordValue(EventTrace.WRITE, status, value);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onCharacteristicWrite received: " + status);
+            }
+            mLinkQuality.onOpResult(status == BluetoothGatt.GATT_SUCCESS);
+            if (!isCurrentAnswer()) {
+                return;
+            }
+            mEvents.onWrite(status, value);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            if (!mConnection.isCurrent(mGeneration)) {
+                return;
+            }
+            trace(GattTrace.EV_DESCRIPTOR_WRITE, status, null);
+            EventTrace.record(EventTrace.DESCRIPTOR_WRITE, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onDescriptorWrite received: " + status);
+            }
+            if (!isCurrentAnswer()) {
+                return;
             }
+            StartupTrace.finish(StartupTrace.INTERACTIVE);
+            onOpComplete();
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG, "Characteristic changed");
-            broadcastUpdate(ACTION_NOTIFICATION_DATA_AVAILABLE, characteristic);
+            if (!mConnection.isCurrent(mGeneration)) {
+                return;
+            }
+            final long arrival = System.nanoTime();
+            mNotifyArrivalNanos = arrival;
+            final byte[] value = characteristic.getValue();
+            trace(GattTrace.EV_CHANGED, 0, value);
+            EventTrace.recordValue(EventTrace.CHANGED, 0, value);
+            // Before the UI is told, so that it finds the edges pending
+            if (DeviceTimestamp.inNotification(value) && mDeviceClock.hasEstimate()) {
+                mLatency.onNotification(value,
+                        mDeviceClock.toHostNanos(DeviceTimestamp.get(value)), arrival);
+            }
+            mEvents.onChanged(value);
         }
-    };
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            if (!mConnection.isCurrent(mGeneration)) {
+                return;
+            }
+            EventTrace.record(EventTrace.RSSI, rssi, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                return;
+            }
+            mLinkQuality.onRssi(rssi);
+            adaptPhy();
+        }
+
+        /* From the stack on API 26 and later, see GattLink.PhyCallback */
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (!mConnection.isCurrent(mGeneration)) {
+                return;
+            }
+            EventTrace.record(EventTrace.PHY_UPDATE, txPhy, rxPhy, status);
+            // Reports the PHYs in use even when the request was turned down
+            final int prev = mLinkQuality.getPhy();
+            mLinkQuality.onPhyUpdate(txPhy, rxPhy);
+            if (mLinkQuality.getPhy() == prev) {
+                return;
+            }
+            Log.i(TAG, "PHY now " + txPhy + "/" + rxPhy + " at " + mLinkQuality.getRssi()
+                    + " dBm");
+            final Intent intent = new Intent(ACTION_PHY_UPDATE);
+            intent.putExtra(EXTRA_TX_PHY, txPhy);
+            intent.putExtra(EXTRA_RX_PHY, rxPhy);
+            EventTrace.recordAction(EventTrace.BROADCAST, ACTION_PHY_UPDATE);
+            sendBroadcast(intent);
+        }
+    }
+
+    /* Request the PHY the link quality calls for, if it calls for another */
+    private void adaptPhy() {
+        final int phy = mLinkQuality.evaluate(SystemClock.uptimeMillis());
+        final GattLink link = mConnection.getLink();
+        if (phy == 0 || link == null) {
+            return;
+        }
+        if (!link.setPreferredPhy(phy)) {
+            // Not supported, stay put until the next evaluation
+            mLinkQuality.onPhyUpdate(mLinkQuality.getPhy(), mLinkQuality.getPhy());
+        }
+    }
+
+    /**
+     * Start, re-rate or stop streaming an analog channel. The samples are decoded into the
+     * channel's ring in {@link #getAnalogChannels()}, and each notification of them is
+     * reported to the handler as MSG_ANALOG_SAMPLES.
+     *
+     * @param pin The pin to sample
+     * @param rate The sample rate, an index into GpioPin.ANALOG_RATES_HZ; 0 stops the channel
+     * @return false if there is no device to queue the instruction for.
+     */
+    public boolean writeAnalogInstruction(int pin, int rate) {
+        return writeInstruction(GpioPin.createAnalogInstr(pin, rate));
+    }
+
+    public AnalogChannels getAnalogChannels() {
+        return mAnalog;
+    }
+
+    /* RSSI, failed operations and PHY of the current link */
+    public LinkQualityMonitor getLinkQuality() {
+        return mLinkQuality;
+    }
+
+    /**
+     * Replace the rules run on the current device's notifications, and remember them for the
+     * next time it connects. See {@link RulesEngine}.
+     *
+     * @param rules The rules, at most RulesEngine.MAX_RULES
+     * @return false if there is no device to set the rules for
+     */
+    public boolean setRules(List<RulesEngine.Rule> rules) {
+        final String address = mConnection.snapshot().address;
+        if (address == null) {
+            return false;
+        }
+        mRules.setRules(rules);
+        getSharedPreferences(RULES_PREFS, Context.MODE_PRIVATE).edit()
+                .putString(address, RulesEngine.formatRules(rules)).apply();
+        return true;
+    }
+
+    /* The rules of the current device and their reaction times */
+    public RulesEngine getRulesEngine() {
+        return mRules;
+    }
+
+    /* Load the rules saved for a device, none if it has none or they no longer parse */
+    private void loadRules(String address) {
+        final String text = getSharedPreferences(RULES_PREFS, Context.MODE_PRIVATE)
+                .getString(address, "");
+        List<RulesEngine.Rule> rules;
+        try {
+            rules = RulesEngine.parseRules(text);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping the rules saved for " + address + ": " + e.getMessage());
+            rules = Collections.emptyList();
+        }
+        mRules.setRules(rules);
+        mRules.reset();
+    }
+
+    /**
+     * Run the rules on an input edge and put the writes they call for at the front of the
+     * queue, ahead of anything the UI queued.
+     *
+     * @return true if writes were queued
+     */
+    private boolean applyRules(int pin, boolean high) {
+        final long arrival = mNotifyArrivalNanos;
+        final int n;
+        synchronized (mJournal) {
+            if (!mSession.isLinkReady()) {
+                return false;
+            }
+            n = mRules.onInput(pin, high, arrival, mRuleInstrs);
+            if (n == 0) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                mJournal.supersede(GpioPin.getPin(mRuleInstrs[i]));
+            }
+            synchronized (mInstrQueue) {
+                // Backwards, so that they are written in rule order
+                for (int i = n - 1; i >= 0; i--) {
+                    mInstrQueue.addFirst(mRuleInstrs[i]);
+                }
+            }
+        }
+        mRules.onQueued(arrival, System.nanoTime());
+        EventTrace.record(EventTrace.RULE, pin, high ? 1 : 0, n);
+        return true;
+    }
 
     private void broadcastUpdate(final String action) {
+        EventTrace.recordAction(EventTrace.BROADCAST, action);
         final Intent intent = new Intent(action);
         sendBroadcast(intent);
     }
 
+    /* Connects the event handler to the GATT queue and the UI */
+    private final GpioEventHandler.Output mEventOutput = new GpioEventHandler.Output() {
+        @Override
+        public void dispatchPinUpdate(int what, int arg1, int arg2) {
+            if (what == MSG_INSTR_WRITTEN || what == MSG_DATA_READ
+                    || what == MSG_ANALOG_CONFIGURED) {
+                mJournal.confirm(arg1);
+            }
+            if (what == MSG_INSTR_WRITTEN) {
+                mRules.onWritten(arg1, System.nanoTime());
+            }
+            // The rules react before the UI is told
+            boolean queued = false;
+            if (what == MSG_NOTIFICATION) {
+                queued = applyRules(GpioPin.getPin(arg1), GpioPin.isHigh(arg1));
+            } else if (what == MSG_PINS_CHANGED) {
+                final int base = arg1 * GpioPortInstr.PINS_PER_PORT;
+                for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+                    if ((arg2 & (1 << bit)) != 0) {
+                        final boolean isHigh = (mPinState.getPinState(base + bit)
+                                & PinStateRegion.PIN_HIGH) != 0;
+                        queued |= applyRules(base + bit, isHigh);
+                    }
+                }
+            }
+            if (queued) {
+                drainInstrQueue();
+            }
+            BluetoothLeService.this.dispatchPinUpdate(what, arg1, arg2,
+                    what == MSG_NOTIFICATION || what == MSG_PINS_CHANGED
+                            ? ACTION_NOTIFICATION_DATA_AVAILABLE : ACTION_DATA_AVAILABLE);
+        }
+
+        @Override
+        public void readPin(int instr) {
+            EventTrace.record(EventTrace.READ_PIN, instr);
+            // The read continues the outstanding operation, with a deadline of its own
+            synchronized (mInstrQueue) {
+                mCurrentOpKind = OP_READ;
+            }
+            armWatchdog(false);
+            final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+            final GpioCharacteristics chrs = getGpioCharacteristics(cur);
+            trace(GattTrace.OP_READ, 0, null);
+            mReadIssuedNanos = System.nanoTime();
+            boolean issued = false;
+            if (chrs != null) {
+                synchronized (mInstrQueue) {
+                    issued = cur.link.readCharacteristic(chrs.instr);
+                    if (issued) {
+                        mOpIssued++;
+                    }
+                }
+            }
+            if (!issued) {
+                Log.w(TAG, "Unable to read pin " + GpioPin.getPin(instr));
+                onOpComplete();
+            }
+        }
+
+        @Override
+        public void opComplete() {
+            onOpComplete();
+        }
+    };
+
+    /**
+     * The current state of a pin as last reported by the device.
+     *
+     * @param pinNumber The pin number
+     * @return The PinStateRegion.PIN_* flags of the pin, 0 if it has not been configured
+     */
+    public int getPinState(int pinNumber) {
+        return mPinState.getPinState(pinNumber);
+    }
+
     /**
-     *  Called from onCharacteristicWrite and onCharacteristicRead. Sends Intent to
-     *  activity based on supplied action:
-     *    - ACTION_DATA_AVAILABLE: A characteristic write has completed.
-     *    - ACTION_READ_DATA_AVAILABLE: A characteristic read has completed.
-     * @param action The action: read/write
-     * @param characteristic The characteristic which was read/written
+     * Delivers a pin update to the UI. When a handler has been registered through
+     * {@link #setGpioHandler(Handler)} the update is sent as a pooled {@link Message} carrying
+     * the instruction and data in arg1/arg2, so nothing is allocated in steady state.
+     * Otherwise, fall back to broadcasting an Intent with the matching extras.
+     *
+     * @param what MSG_INSTR_WRITTEN, MSG_DATA_READ, MSG_NOTIFICATION, MSG_PORT_WRITTEN,
+     *             MSG_PINS_CHANGED or MSG_OP_TIMEOUT
+     * @param instr The instruction, pin record or port
+     * @param data The value read from the pin, the port mask or the timeout action, -1 if none
+     * @param action The broadcast action used when no handler is registered
      */
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        // Create intent with action
+    private void dispatchPinUpdate(int what, int instr, int data, String action) {
+        mEventCount.incrementAndGet();
+        final Handler handler = mGpioHandler;
+        if (handler != null) {
+            handler.obtainMessage(what, instr, data).sendToTarget();
+            return;
+        }
+        if (what == MSG_ANALOG_CONFIGURED || what == MSG_ANALOG_SAMPLES) {
+            // Too frequent to broadcast, receivers read the samples from getAnalogChannels()
+            return;
+        }
         final Intent intent = new Intent(action);
+        if (what == MSG_PINS_CHANGED) {
+            // Receivers only know the single-pin format, send one notification per pin
+            final int base = instr * GpioPortInstr.PINS_PER_PORT;
+            for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+                if ((data & (1 << bit)) != 0) {
+                    final boolean isHigh =
+                            (mPinState.getPinState(base + bit) & PinStateRegion.PIN_HIGH) != 0;
+                    dispatchPinUpdate(MSG_NOTIFICATION,
+                            GpioPin.createGpioInstr(base + bit, 2, isHigh ? 1 : 0), -1, action);
+                }
+            }
+            return;
+        } else if (what == MSG_NOTIFICATION) {
+            intent.putExtra(EXTRA_NOTIFICATION, instr);
+        } else if (what == MSG_PORT_WRITTEN) {
+            intent.putExtra(EXTRA_PORT_INSTR, instr);
+            intent.putExtra(EXTRA_PORT_MASK, data);
+        } else if (what == MSG_OP_TIMEOUT) {
+            intent.putExtra(EXTRA_INSTR, instr);
+            intent.putExtra(EXTRA_TIMEOUT_ACTION, data);
+        } else {
+            intent.putExtra(EXTRA_INSTR, instr);
+            if (data != -1) {
+                intent.putExtra(EXTRA_DATA, data);
+            }
+        }
+        EventTrace.recordAction(EventTrace.BROADCAST, action);
+        sendBroadcast(intent);
+    }
 
-        // Write has completed successfully
-        if (action.equals(ACTION_DATA_AVAILABLE)) {
+    /**
+     * Registers the handler that receives pin updates (MSG_INSTR_WRITTEN, MSG_DATA_READ,
+     * MSG_NOTIFICATION, MSG_PORT_WRITTEN and MSG_PINS_CHANGED) and operation timeouts
+     * (MSG_OP_TIMEOUT). Pass null to go back to broadcasting Intents.
+     *
+     * @param handler Handler to deliver pin updates to, or null
+     */
+    public void setGpioHandler(Handler handler) {
+        mGpioHandler = handler;
+    }
 
-            // Get instruction from characteristic
-            final int instr = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0);
+    /* Number of pin updates dispatched to the UI since the service was created */
+    public int getEventCount() {
+        return mEventCount.get();
+    }
 
-            // Create GpioPin from instruction
-            GpioPin currentPin = new GpioPin(instr);
-            if (currentPin.isOuput) {
-                // If current pin is output, send instruction to DeviceControlActivity
-                Log.d(TAG, "Write instrction found, putting instr...");
-                intent.putExtra(EXTRA_INSTR, instr);
-            } else {
-                // Set prevInstr field to be used if pin is input and we must read from
-                prevInstr = instr;
-                Log.d(TAG, "Read instrction found, reading...");
-                // If pin is input, read from pin and return before sending intent
-                readCharacteristic(characteristic);
-                return;
-            }
-        } else if (action.equals(ACTION_READ_DATA_AVAILABLE)) {
-            Log.d(TAG, "Read data available, putting data...");
-            // Read has completed successfully, get data from characteristic
-            final int data = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-            // Put instruction AND Data into intent
-            intent.putExtra(EXTRA_DATA, data);
-            intent.putExtra(EXTRA_INSTR, prevInstr);
-            intent.setAction(ACTION_DATA_AVAILABLE);
-        } else if (action.equals(ACTION_NOTIFICATION_DATA_AVAILABLE)) {
-            Log.d(TAG, "Notification data available, putting data...");
-            final int notif = characteristic.getIntValue(
-                    BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-            Log.d(TAG, "Notification data available: " + notif);
-            intent.putExtra(EXTRA_NOTIFICATION, notif);
+    /**
+     * Start recording the GATT callbacks and the operations issued to a GattTrace file,
+     * replacing any recording in progress.
+     *
+     * @param file The trace file to write
+     * @return false if the file could not be created
+     */
+    public boolean startTrace(File file) {
+        final GattTrace.Writer writer;
+        try {
+            writer = new GattTrace.Writer(new FileOutputStream(file));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create trace " + file, e);
+            return false;
         }
-        sendBroadcast(intent);
+        stopTrace();
+        mTrace = writer;
+        Log.i(TAG, "Recording GATT trace to " + file);
+        return true;
     }
 
+    /* Stop recording and close the trace file */
+    public void stopTrace() {
+        final GattTrace.Writer writer = mTrace;
+        mTrace = null;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close trace", e);
+        }
+    }
 
+    public boolean isTracing() {
+        return mTrace != null;
+    }
+
+    private void trace(int type, int status, byte[] value) {
+        final GattTrace.Writer writer = mTrace;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.record(type, status, value);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write trace, recording stopped", e);
+            stopTrace();
+        }
+    }
+
+    private void trace(int type, int status, int state) {
+        if (mTrace != null) {
+            trace(type, status, new byte[] { (byte) state });
+        }
+    }
 
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
@@ -197,18 +810,305 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    /**
+     * Binder handed to other apps binding with ACTION_BIND_GPIO_CONTROL. Calls arrive on
+     * binder threads. Bulk pin state is not returned per call; clients map the region from
+     * getPinStateRegion() and poll it directly.
+     */
+    private final IGpioControl.Stub mGpioControl = new IGpioControl.Stub() {
+        @Override
+        public boolean connect(String address) {
+            return initialize() && BluetoothLeService.this.connect(address);
+        }
+
+        @Override
+        public void disconnect() {
+            BluetoothLeService.this.disconnect();
+        }
+
+        @Override
+        public boolean submitInstructions(int[] instrs) {
+            if (instrs == null) {
+                throw new IllegalArgumentException("No instructions");
+            }
+            for (int instr : instrs) {
+                if (!GpioPin.isValidInstr(instr)) {
+                    throw new IllegalArgumentException(
+                            "Invalid instruction 0x" + Integer.toHexString(instr));
+                }
+            }
+            return writeInstructions(instrs);
+        }
+
+        @Override
+        public boolean submitPortInstruction(int op, int port, int mask) {
+            if (!GpioPortInstr.isValidOp(op) || port < 0 || port >= GpioPortInstr.NUM_PORTS) {
+                throw new IllegalArgumentException("Invalid port instruction");
+            }
+            return writePortInstruction(op, port, mask);
+        }
+
+        @Override
+        public int getPinState(int pinNumber) {
+            return mPinState.getPinState(pinNumber);
+        }
+
+        @Override
+        public ParcelFileDescriptor getPinStateRegion() {
+            if (!mPinStateShared) {
+                return null;
+            }
+            try {
+                return ParcelFileDescriptor.open(new File(getCacheDir(), PIN_STATE_FILE),
+                        ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "Unable to open pin state region", e);
+                return null;
+            }
+        }
+
+        @Override
+        public boolean isConnected() {
+            return BluetoothLeService.this.isConnected();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        try {
+            mPinState = PinStateRegion.create(new File(getCacheDir(), PIN_STATE_FILE));
+            mPinStateShared = true;
+        } catch (IOException e) {
+            // Keep track of pin state anyway, just without sharing it
+            Log.e(TAG, "Unable to create pin state region", e);
+            mPinState = PinStateRegion.createInMemory();
+        }
+        mEvents = new GpioEventHandler(mPinState, mAnalog, mEventOutput);
+        mKeepAliveMs = getSharedPreferences(SERVICE_PREFS, Context.MODE_PRIVATE)
+                .getLong(PREF_KEEP_ALIVE_MS, DEFAULT_KEEP_ALIVE_MS);
+        mPredictor.decode(getSharedPreferences(SERVICE_PREFS, Context.MODE_PRIVATE)
+                .getString(PREF_CONNECT_HISTORY, null));
+        try {
+            mJournal = CommandJournal.open(new File(getFilesDir(), JOURNAL_FILE));
+        } catch (IOException e) {
+            // Still bridge short drops, just not process restarts
+            Log.e(TAG, "Unable to open command journal", e);
+            mJournal = CommandJournal.createInMemory();
+        }
+        mSession = new LinkSession<GattLink>(mConnection, mJournal, mInstrQueue, mPinState,
+                mSessionHost);
+    }
+
+    /* Started by the UI so that the session outlives its activities, see onUnbind() */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mWatchdogHandler.removeCallbacks(mGoForeground);
+        mWatchdogHandler.removeCallbacks(mKeepAliveExpired);
+        mWatchdogHandler.removeCallbacks(mDropSpeculative);
+        close();
+        mJournal.close();
+        synchronized (this) {
+            if (mGatewaySelector != null) {
+                mGatewaySelector.shutdown();
+            }
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
-        return mBinder;
+        attach(intent);
+        return ACTION_BIND_GPIO_CONTROL.equals(intent.getAction()) ? mGpioControl : mBinder;
+    }
+
+    /* A client binds again to a session kept alive, e.g. the activity after a rotation */
+    @Override
+    public void onRebind(Intent intent) {
+        attach(intent);
+    }
+
+    private void attach(Intent intent) {
+        if (ACTION_BIND_SCAN.equals(intent.getAction())) {
+            return;
+        }
+        if (ACTION_BIND_GPIO_CONTROL.equals(intent.getAction())) {
+            mRemoteBound = true;
+        } else {
+            mLocalBound = true;
+        }
+        mWatchdogHandler.removeCallbacks(mGoForeground);
+        mWatchdogHandler.removeCallbacks(mKeepAliveExpired);
+        mWatchdogHandler.removeCallbacks(mDropSpeculative);
+        if (mForeground) {
+            stopForeground(true);
+            mForeground = false;
+        }
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
+        final boolean scan = ACTION_BIND_SCAN.equals(intent.getAction());
+        if (ACTION_BIND_GPIO_CONTROL.equals(intent.getAction())) {
+            mRemoteBound = false;
+        } else if (!scan) {
+            mLocalBound = false;
+        }
+        if (mLocalBound || mRemoteBound) {
+            return true;
+        }
+        if (mSession.isSpeculative()) {
+            // Unless the scan screen is handing the guessed board over to the next client
+            mWatchdogHandler.postDelayed(mDropSpeculative, SPECULATIVE_GRACE_MS);
+            return true;
+        }
+        final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+        if (scan && cur.link != null) {
+            // A kept session runs out as it would have without the scan screen
+            return true;
+        }
+        // Keep a live session for the next client, unless the user ended it or keeping
+        // sessions is off. Rotating the screen then costs a rebind instead of a reconnect.
+        if (mKeepAliveMs == KEEP_ALIVE_OFF || cur.link == null || mSession.isUserDisconnect()) {
+            // After using a given device, you should make sure that BluetoothGatt.close() is
+            // called such that resources are cleaned up properly.
+            endSession();
+            return true;
+        }
+        mWatchdogHandler.postDelayed(mGoForeground, FOREGROUND_DELAY_MS);
+        if (mKeepAliveMs != KEEP_ALIVE_FOREVER) {
+            mWatchdogHandler.postDelayed(mKeepAliveExpired, mKeepAliveMs);
+        }
+        return true;
+    }
+
+    /* Close the link and let the service stop once no client is bound */
+    private void endSession() {
+        mWatchdogHandler.removeCallbacks(mGoForeground);
+        mWatchdogHandler.removeCallbacks(mKeepAliveExpired);
+        mWatchdogHandler.removeCallbacks(mDropSpeculative);
         close();
-        return super.onUnbind(intent);
+        if (mForeground) {
+            stopForeground(true);
+            mForeground = false;
+        }
+        stopSelf();
+    }
+
+    /* Keep the process from being reclaimed while nothing of it is showing */
+    private void goForeground() {
+        final String address = mConnection.snapshot().address;
+        if (address == null) {
+            return;
+        }
+        // The service only knows the address, the activity shows an unknown device's title
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, address);
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.session_kept_alive))
+                .setContentText(address)
+                .setOngoing(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent,
+                        PendingIntent.FLAG_UPDATE_CURRENT));
+        startForeground(NOTIFICATION_ID, builder.build());
+        mForeground = true;
+    }
+
+    /**
+     * Set how long the session is kept once no client is bound to the service: the link,
+     * pin state, notifications and rules stay live, and the next client attaches to them.
+     * Takes effect from the next unbind.
+     *
+     * @param ms The time to keep the session in milliseconds, KEEP_ALIVE_OFF to close it
+     *           with the last client or KEEP_ALIVE_FOREVER to keep it until disconnected
+     */
+    public void setKeepAlive(long ms) {
+        mKeepAliveMs = ms;
+        getSharedPreferences(SERVICE_PREFS, Context.MODE_PRIVATE).edit()
+                .putLong(PREF_KEEP_ALIVE_MS, ms).apply();
+    }
+
+    public long getKeepAlive() {
+        return mKeepAliveMs;
+    }
+
+    /**
+     * Whether the service holds a live session with a device, connected and with its
+     * services discovered, so that a new client can use it without connecting.
+     */
+    public boolean hasLiveSession(String address) {
+        final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+        return address != null && address.equals(cur.address)
+                && cur.state == ConnectionStateMachine.STATE_CONNECTED
+                && getGpioCharacteristics(cur) != null;
+    }
+
+    /**
+     * Take over the live session with a device, see hasLiveSession().
+     *
+     * @return true if the link was opened on a guess by onScanResult(), and still has to be
+     *         set up like a fresh connection: notifications enabled and the profile written
+     */
+    public boolean takeSession(String address) {
+        if (!mSession.isSpeculative()) {
+            return false;
+        }
+        Log.i(TAG, "Guessed right, " + address + " is connected already");
+        recordUse(address);
+        // Held back from the guessed link, see onServicesDiscovered()
+        replayJournal(address);
+        return true;
+    }
+
+    /**
+     * Take in a scan result, and connect to the board the user will likely open before they
+     * pick it from the list, so that opening it finds the link up and its services
+     * discovered. Nothing is written to a guessed board, and its notifications stay off,
+     * until a client takes the session. A guessed link gives way to a better guess, to
+     * connect() to another board and to cancelPreconnect(), and is dropped if no client
+     * takes it shortly after the last one unbinds. A session a client opened is never
+     * replaced.
+     *
+     * @param address The advertising board
+     * @param rssi The signal strength it was received at
+     */
+    public void onScanResult(String address, int rssi) {
+        final long nowNanos = System.nanoTime();
+        mPredictor.onScanResult(address, rssi, nowNanos);
+        final String guess = mPredictor.predict(System.currentTimeMillis(), nowNanos);
+        if (guess == null) {
+            return;
+        }
+        final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+        if (cur.link != null && (guess.equals(cur.address) || !mSession.isSpeculative())) {
+            return;
+        }
+        Log.i(TAG, "Connecting to " + guess + " ahead of the user");
+        // Started, so that the link outlives the scan screen's binding until the next client's
+        startService(new Intent(this, BluetoothLeService.class));
+        connect(guess, true);
+    }
+
+    /* Drop a guessed link no client took, e.g. the user left the scan screen */
+    public void cancelPreconnect() {
+        if (mSession.isSpeculative()) {
+            Log.i(TAG, "Dropping the link opened ahead of the user");
+            close();
+        }
+    }
+
+    /* A client opened a board, the predictor learns from it */
+    private void recordUse(String address) {
+        mSession.takeOver();
+        mPredictor.recordUse(address, System.currentTimeMillis());
+        getSharedPreferences(SERVICE_PREFS, Context.MODE_PRIVATE).edit()
+                .putString(PREF_CONNECT_HISTORY, mPredictor.encode()).apply();
     }
 
     private final IBinder mBinder = new LocalBinder();
@@ -249,61 +1149,140 @@ public class BluetoothLeService extends Service {
      *         callback.
      */
     public boolean connect(final String address) {
+        final int result = connect(address, false);
+        // Clients call this again on every resume, only a session they open is a use
+        if (result == LinkSession.CONNECT_OPENED || result == LinkSession.CONNECT_ADOPTED) {
+            recordUse(address);
+        }
+        return result != LinkSession.CONNECT_FAILED;
+    }
+
+    /**
+     * Connect for a client, or speculatively, see onScanResult().
+     *
+     * @return One of the LinkSession.CONNECT_* results
+     */
+    private int connect(final String address, boolean speculative) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
-            return false;
+            return LinkSession.CONNECT_FAILED;
         }
+        mWatchdogHandler.removeCallbacks(mAutoReconnect);
+        return mSession.connect(address, speculative);
+    }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
+    /* Creates, connects and closes the session's links */
+    private final LinkSession.Host<GattLink> mSessionHost = new LinkSession.Host<GattLink>() {
+        @Override
+        public GattLink createLink(String address, int generation) {
+            final GattCallback callback = new GattCallback(generation);
+            if (SimulatedGattLink.ADDRESS.equals(address)) {
+                // Talk to the in-memory peripheral instead of a real device
+                Log.d(TAG, "Trying to connect to the simulated peripheral.");
+                return new SimulatedGattLink(getSimulatedPeripheral(), callback);
             }
+            if (GatewayGattLink.isGatewayAddress(address)) {
+                final GatewaySelector selector = getGatewaySelector();
+                if (selector == null) {
+                    return null;
+                }
+                Log.d(TAG, "Trying to connect through a gateway.");
+                return new GatewayGattLink(selector, address, callback);
+            }
+            final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            if (device == null) {
+                Log.w(TAG, "Device not found.  Unable to connect.");
+                return null;
+            }
+            Log.d(TAG, "Trying to create a new connection.");
+            return new BluetoothGattLink(BluetoothLeService.this, device, callback);
         }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
+        @Override
+        public boolean connectLink(GattLink link) {
+            StartupTrace.beginSection("connect");
+            try {
+                if (!link.connect()) {
+                    Log.w(TAG, "Unable to connect.");
+                    return false;
+                }
+                if (link instanceof BluetoothGattLink) {
+                    StartupTrace.beginSection("refreshDeviceCache");
+                    // Remove call for better performance
+                    ((BluetoothGattLink) link).refreshDeviceCache();
+                    StartupTrace.endSection();
+                }
+            } finally {
+                StartupTrace.endSection();
+            }
+            StartupTrace.mark(StartupTrace.CONNECT_ISSUED);
+            return true;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        refreshDeviceCache(mBluetoothGatt); // Remove call for better performance
-        mConnectionState = STATE_CONNECTING;
-        return true;
+
+        @Override
+        public boolean reconnectLink(GattLink link) {
+            Log.d(TAG, "Trying to use an existing GATT link for connection.");
+            return link.connect();
+        }
+
+        @Override
+        public void disconnectLink(GattLink link) {
+            link.disconnect();
+        }
+
+        @Override
+        public void closeLink(GattLink link) {
+            link.close();
+        }
+
+        @Override
+        public void onDeviceChanged(String address) {
+            mPinState.clear();
+            mAnalog.clear();
+            loadRules(address);
+        }
+
+        @Override
+        public void resetOps(String address) {
+            mWatchdog.complete();
+            mWatchdogHandler.removeCallbacks(mWriteRetry);
+            if (address != null && mGattBusy && mCurrentOpKind != OP_DESCRIPTOR) {
+                mSession.journalEntry(address, mCurrentInstr, mCurrentMask);
+            }
+            mWriteRejects = 0;
+            mOpIssued = 0;
+            mOpAnswered = 0;
+            mGattBusy = false;
+            mPendingDescriptor = null;
+        }
+    };
+
+    /* Whether the current link is connected, services may still be undiscovered */
+    public boolean isConnected() {
+        return mConnection.getState() == ConnectionStateMachine.STATE_CONNECTED;
     }
 
     /**
-     * This method is used to refresh the android's Cached GATT values. If the user
-     * adds/removes/changes GATT Characteristics or services on the device side, Android
-     * would continue to use old UUIDs and connection handles. This method refreshes the device
-     * cache every time we connect to a device. If you don't plan on changing your GATT
-     * characteristics or services you may remove this method for better performance.
-     *
-     * @param gatt The Bluetooth GATT Server
-     * @return True if success
+     * The peripheral behind {@link SimulatedGattLink#ADDRESS}. It is kept for the lifetime of
+     * the service so that its pin state survives reconnects, like a real board's would.
      */
-    private boolean refreshDeviceCache(BluetoothGatt gatt){
-        try {
-            BluetoothGatt localBluetoothGatt = gatt;
-            Method localMethod = localBluetoothGatt.getClass().getMethod("refresh", new Class[0]);
-            if (localMethod != null) {
-                boolean bool = ((Boolean) localMethod.invoke(localBluetoothGatt, new Object[0])).booleanValue();
-                return bool;
-            }
+    public synchronized SimulatedGpioPeripheral getSimulatedPeripheral() {
+        if (mSimulatedPeripheral == null) {
+            mSimulatedPeripheral = new SimulatedGpioPeripheral();
         }
-        catch (Exception localException) {
-            Log.e(TAG, "An exception occured while refreshing device");
+        return mSimulatedPeripheral;
+    }
+
+    /* The selector thread of the gateway connections, or null if it cannot be opened */
+    private synchronized GatewaySelector getGatewaySelector() {
+        if (mGatewaySelector == null) {
+            try {
+                mGatewaySelector = new GatewaySelector();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open a selector", e);
+            }
         }
-        return false;
+        return mGatewaySelector;
     }
 
     /**
@@ -313,11 +1292,9 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || !mSession.disconnect()) {
             Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
         }
-        mBluetoothGatt.disconnect();
     }
 
     /**
@@ -325,11 +1302,162 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        mWatchdogHandler.removeCallbacks(mAutoReconnect);
+        mWatchdogHandler.removeCallbacks(mRssiPoll);
+        mWatchdogHandler.removeCallbacks(mWriteRetry);
+        mWatchdogHandler.removeCallbacks(mRejectedReconnect);
+        final boolean closed = mSession.close();
+        mGpioChrs = null;
+        if (closed) {
+            closeBulkChannel();
+        }
+    }
+
+    /**
+     * Open the bulk transport to the connected device, an LE L2CAP connection-oriented
+     * channel carrying BulkChannel frames. It streams pin samples far faster than
+     * notifications of the GPIO characteristic, and takes batches of instructions.
+     * The channel is opened in the background and closes with the link; GATT keeps working
+     * alongside it.
+     *
+     * @param psm The protocol/service multiplexer the device listens on
+     * @param listener Receives samples and instructions from the device, and the end of the
+     *                 channel, on the channel's thread
+     * @return false if the channel cannot be opened: not connected, already open, or the
+     *         platform is older than Android 10, which introduced L2CAP channels
+     */
+    public boolean openBulkChannel(final int psm, final BulkChannel.Listener listener) {
+        final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+        if (mBluetoothAdapter == null || !(cur.link instanceof BluetoothGattLink)
+                || cur.state != ConnectionStateMachine.STATE_CONNECTED
+                || Build.VERSION.SDK_INT < SDK_L2CAP_COC) {
+            return false;
+        }
+        synchronized (this) {
+            if (mBulkSocket != null) {
+                return false;
+            }
+            final BluetoothSocket socket;
+            try {
+                // Compiled against an SDK without the L2CAP API
+                final Method create = BluetoothDevice.class.getMethod(
+                        "createInsecureL2capChannel", int.class);
+                socket = (BluetoothSocket) create.invoke(
+                        mBluetoothAdapter.getRemoteDevice(cur.address), psm);
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to create an L2CAP channel", e);
+                return false;
+            }
+            mBulkSocket = socket;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    startBulkChannel(socket, cur.generation, listener);
+                }
+            }, "BulkConnect").start();
+        }
+        return true;
+    }
+
+    /* Connect the socket and start the channel on it, off the main thread */
+    private void startBulkChannel(final BluetoothSocket socket, int generation,
+                                  final BulkChannel.Listener listener) {
+        try {
+            socket.connect();
+            final BulkChannel channel = new BulkChannel(socket.getInputStream(),
+                    socket.getOutputStream(), BulkChannel.DEFAULT_WINDOW,
+                    new BulkChannel.Listener() {
+                        @Override
+                        public void onSamples(int port, int timestampMicros, int intervalMicros,
+                                              int[] levels, int count) {
+                            listener.onSamples(port, timestampMicros, intervalMicros, levels,
+                                    count);
+                        }
+
+                        @Override
+                        public void onInstructions(int[] instrs, int count) {
+                            listener.onInstructions(instrs, count);
+                        }
+
+                        @Override
+                        public void onClosed(IOException e) {
+                            releaseBulkSocket(socket);
+                            EventTrace.record(EventTrace.BULK_CHANNEL, 0);
+                            listener.onClosed(e);
+                        }
+                    });
+            synchronized (this) {
+                // Closed, or the link replaced, while connecting
+                if (mBulkSocket != socket || !mConnection.isCurrent(generation)) {
+                    throw new IOException("Link closed while opening the bulk channel");
+                }
+                mBulkChannel = channel;
+            }
+            channel.start();
+            EventTrace.record(EventTrace.BULK_CHANNEL, 1);
+            Log.i(TAG, "Bulk channel open");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open the bulk channel", e);
+            releaseBulkSocket(socket);
+            listener.onClosed(e);
+        }
+    }
+
+    /* Forget the socket if it is still the current one, and close it */
+    private void releaseBulkSocket(BluetoothSocket socket) {
+        synchronized (this) {
+            if (mBulkSocket == socket) {
+                mBulkSocket = null;
+                mBulkChannel = null;
+            }
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+    }
+
+    /* Close the bulk transport, if open; the link stays up */
+    public void closeBulkChannel() {
+        final BluetoothSocket socket;
+        final BulkChannel channel;
+        synchronized (this) {
+            socket = mBulkSocket;
+            channel = mBulkChannel;
+        }
+        if (channel != null) {
+            channel.close();
+        } else if (socket != null) {
+            // Still connecting, this fails the connect
+            releaseBulkSocket(socket);
+        }
+    }
+
+    public boolean isBulkChannelOpen() {
+        final BulkChannel channel = mBulkChannel;
+        return channel != null && !channel.isClosed();
+    }
+
+    /**
+     * Send a batch of instructions over the bulk transport, which takes far more per second
+     * than writes of the instruction characteristic. They are neither queued nor journaled,
+     * and the device does not echo them.
+     *
+     * @param instrs The instructions
+     * @return false if the channel is not open, broke, or the device fell behind
+     */
+    public boolean writeBulkInstructions(int[] instrs) {
+        final BulkChannel channel = mBulkChannel;
+        if (channel == null) {
+            return false;
+        }
+        try {
+            return channel.sendInstructions(instrs, BULK_SEND_TIMEOUT_MS);
+        } catch (IOException e) {
+            Log.w(TAG, "Bulk write failed", e);
+            return false;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
@@ -338,26 +1466,377 @@ public class BluetoothLeService extends Service {
      * callback.
      *
      * @param characteristic The characteristic to read from.
+     * @return false if the read could not be started.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final GattLink link = mConnection.getLink();
+        if (mBluetoothAdapter == null || link == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+            return false;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        return link.readCharacteristic(characteristic);
     }
 
     /**
      * Request a write to a given {@code BluetoothGattCharacteristic}.
      *
      * @param characteristic The characteristic to write to.
+     * @return false if the write could not be started.
      */
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final GattLink link = mConnection.getLink();
+        if (mBluetoothAdapter == null || link == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        return link.writeCharacteristic(characteristic);
+    }
+
+    /**
+     * Queue a GPIO instruction to be written to the instruction characteristic. See
+     * {@link #writeInstructions(int[])}.
+     *
+     * @param instr The instruction to write.
+     * @return false if there is no connection to queue the instruction on.
+     */
+    public boolean writeInstruction(int instr) {
+        return writeInstructions(new int[] { instr });
+    }
+
+    /**
+     * Queue a batch of GPIO instructions to be written to the instruction characteristic in
+     * order. Each write is issued as soon as the previous one (and, for input pins, the read
+     * that follows it) has completed, so a batch is pipelined without waiting on the caller.
+     *
+     * While the link to the device is down unexpectedly the instructions are journaled
+     * instead, and replayed once its services have been discovered again. See
+     * {@link CommandJournal}. Nothing is journaled once disconnect() or close() ended the
+     * link on purpose.
+     *
+     * @param instrs The instructions to write.
+     * @return false if there is no device to queue the instructions for: none was
+     *         connected, or the link was ended on purpose.
+     */
+    public boolean writeInstructions(int[] instrs) {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        return onWritten(mSession.write(instrs));
+    }
+
+    /**
+     * Queue a port instruction, which applies an op to many output pins of a port at once.
+     * See {@link GpioPortInstr}.
+     *
+     * @param op GpioPortInstr.OP_SET_MASK, OP_CLEAR_MASK or OP_TOGGLE_MASK
+     * @param port The port, i.e. pin number / 32
+     * @param mask The pins of the port to apply the op to
+     * @return false if there is no device to queue the instruction for, as for
+     *         writeInstructions().
+     */
+    public boolean writePortInstruction(int op, int port, int mask) {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        return onWritten(mSession.writePort(op, port, mask));
+    }
+
+    /* Issue what a write queued, false if it was refused */
+    private boolean onWritten(int result) {
+        if (result == LinkSession.WRITE_REFUSED) {
+            Log.w(TAG, "No device to journal instructions for");
+            return false;
+        }
+        if (result == LinkSession.WRITE_QUEUED) {
+            drainInstrQueue();
+        }
+        return true;
+    }
+
+    /**
+     * Apply an op to a group of output pins with as few writes as possible, one port
+     * instruction per port the pins are on.
+     *
+     * @param op GpioPortInstr.OP_SET_MASK, OP_CLEAR_MASK or OP_TOGGLE_MASK
+     * @param pinNumbers The pins to apply the op to
+     * @return false if there is no connection to queue the instructions on.
+     */
+    public boolean writePinGroup(int op, int[] pinNumbers) {
+        int[] masks = GpioPortInstr.masksForPins(pinNumbers);
+        for (int port = 0; port < masks.length; port++) {
+            if (masks[port] != 0 && !writePortInstruction(op, port, masks[port])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Issue the next queued instruction if no GATT operation is outstanding */
+    private void drainInstrQueue() {
+        while (true) {
+            final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+            final GattLink gatt = cur.link;
+            final int instr;
+            int mask = 0;
+            final BluetoothGattDescriptor descriptor;
+            synchronized (mInstrQueue) {
+                if (mGattBusy || gatt == null) {
+                    return;
+                }
+                // A descriptor write requested while busy goes ahead of the instructions
+                descriptor = mPendingDescriptor;
+                mPendingDescriptor = null;
+                if (descriptor != null) {
+                    instr = InstrQueue.EMPTY;
+                    mCurrentOpKind = OP_DESCRIPTOR;
+                    mCurrentDescriptor = descriptor;
+                } else {
+                    instr = mInstrQueue.poll();
+                    if (instr == InstrQueue.EMPTY) {
+                        return;
+                    }
+                    if ((instr & PORT_INSTR_FLAG) != 0) {
+                        mask = mInstrQueue.poll();
+                    }
+                    mCurrentOpKind = OP_WRITE;
+                    mCurrentInstr = instr;
+                    mCurrentMask = mask;
+                }
+                mGattBusy = true;
+            }
+            if (descriptor != null) {
+                startDescriptorWrite(gatt, descriptor);
+                return;
+            }
+
+            final GpioCharacteristics chrs = getGpioCharacteristics(cur);
+            if (chrs == null) {
+                Log.w(TAG, "GPIO service not discovered, journaling queued instructions");
+                mSession.goOffline();
+                return;
+            }
+            final BluetoothGattCharacteristic chr = chrs.instr;
+            setInstrValue(chr, instr, mask);
+            trace(GattTrace.OP_WRITE, 0, chr.getValue());
+            // Arm before writing, the callback may complete the write on another thread
+            armWatchdog(true);
+            synchronized (mInstrQueue) {
+                if (gatt.writeCharacteristic(chr)) {
+                    mOpIssued++;
+                    mWriteRejects = 0;
+                    return;
+                }
+            }
+            // Could not start the write, e.g. the stack is still busy. The caller was told
+            // it is queued, so put it back in front for the next completion or retry.
+            Log.w(TAG, "Unable to write instruction 0x" + Integer.toHexString(instr));
+            mWatchdog.complete();
+            final boolean stalled;
+            synchronized (mInstrQueue) {
+                if ((instr & PORT_INSTR_FLAG) != 0) {
+                    mInstrQueue.addFirst(mask);
+                }
+                mInstrQueue.addFirst(instr);
+                mGattBusy = false;
+                stalled = ++mWriteRejects >= MAX_WRITE_REJECTS;
+                if (stalled) {
+                    mWriteRejects = 0;
+                }
+            }
+            if (stalled) {
+                // Journaled by close() and replayed on the new link
+                mWatchdogHandler.post(mRejectedReconnect);
+            } else {
+                mWatchdogHandler.removeCallbacks(mWriteRetry);
+                mWatchdogHandler.postDelayed(mWriteRetry, WRITE_RETRY_MS);
+            }
             return;
         }
-        mBluetoothGatt.writeCharacteristic(characteristic);
+    }
+
+    /* Put a queued instruction (and its mask, for a port instruction) into the characteristic */
+    private void setInstrValue(BluetoothGattCharacteristic chr, int instr, int mask) {
+        // Always set one of our own arrays; setValue(int, ...) would keep a longer
+        // array around and write a port instruction's trailing bytes with a pin instruction
+        if ((instr & PORT_INSTR_FLAG) != 0) {
+            GpioPortInstr.encode((instr >>> 8) & 0xff, instr & 0xff, mask, mPortInstrValue);
+            chr.setValue(mPortInstrValue);
+        } else {
+            mPinInstrValue[0] = (byte) instr;
+            mPinInstrValue[1] = (byte) (instr >>> 8);
+            chr.setValue(mPinInstrValue);
+        }
+    }
+
+    /**
+     * Match a GATT callback to the attempt it answers.
+     *
+     * @return true if it answers the latest attempt, and so completes the outstanding
+     *         operation; false if it answers an attempt a retry superseded, or none
+     */
+    private boolean isCurrentAnswer() {
+        synchronized (mInstrQueue) {
+            if (mOpAnswered != mOpIssued && ++mOpAnswered == mOpIssued) {
+                return true;
+            }
+        }
+        Log.w(TAG, "GATT callback answers no outstanding attempt, ignored");
+        // The stack is free again, e.g. for a write it turned down meanwhile
+        drainInstrQueue();
+        return false;
+    }
+
+    /* The outstanding GATT operation has finished, move on to the next queued one */
+    private void onOpComplete() {
+        mWatchdog.complete();
+        synchronized (mInstrQueue) {
+            mGattBusy = false;
+        }
+        drainInstrQueue();
+    }
+
+    /* The link is usable again: replay the journal as one batch, ahead of new instructions */
+    private void replayJournal(String address) {
+        final int replayed = mSession.replay(address);
+        if (replayed > 0) {
+            Log.i(TAG, "Replaying " + replayed + " journaled instructions");
+        }
+        drainInstrQueue();
+    }
+
+    /**
+     * The watchdog guarding the outstanding GATT operation. Its timeout and recovery steps
+     * may be adjusted, e.g. for a stack known to be slow.
+     */
+    public GattWatchdog getGattWatchdog() {
+        return mWatchdog;
+    }
+
+    /* Give the outstanding operation a deadline, newOp unless re-issuing or continuing it */
+    private void armWatchdog(boolean newOp) {
+        final long now = SystemClock.uptimeMillis();
+        if (newOp) {
+            mWatchdog.start(now);
+        } else {
+            mWatchdog.restart(now);
+        }
+        mWatchdogHandler.removeCallbacks(mWatchdogCheck);
+        mWatchdogHandler.postAtTime(mWatchdogCheck, mWatchdog.getDeadline());
+    }
+
+    /**
+     * Runs on the main thread when the outstanding operation's deadline passes. Each timeout
+     * is reported as MSG_OP_TIMEOUT / ACTION_GATT_OP_TIMEOUT with the action taken: the
+     * operation is re-issued, then the link is torn down and reconnected, or the operation
+     * is dropped, depending on the watchdog's settings. Either way the queue moves on.
+     */
+    private void checkWatchdog() {
+        final int action = mWatchdog.check(SystemClock.uptimeMillis());
+        if (action == GattWatchdog.ACTION_NONE) {
+            if (mWatchdog.isArmed()) {
+                // A later operation moved the deadline
+                mWatchdogHandler.postAtTime(mWatchdogCheck, mWatchdog.getDeadline());
+            }
+            return;
+        }
+        final int kind;
+        final int instr;
+        synchronized (mInstrQueue) {
+            kind = mCurrentOpKind;
+            instr = kind == OP_DESCRIPTOR || (mCurrentInstr & PORT_INSTR_FLAG) != 0
+                    ? -1 : mCurrentInstr;
+        }
+        Log.w(TAG, "GATT operation " + kind + " timed out, instruction 0x"
+                + Integer.toHexString(instr) + ", action " + action);
+        dispatchPinUpdate(MSG_OP_TIMEOUT, instr, action, ACTION_GATT_OP_TIMEOUT);
+        mLinkQuality.onOpResult(false);
+
+        switch (action) {
+            case GattWatchdog.ACTION_RETRY:
+                mWatchdogHandler.postAtTime(mWatchdogCheck, mWatchdog.getDeadline());
+                // Only the retry's answer completes the operation, see isCurrentAnswer().
+                // A stack that turns the retry down is still busy with the first attempt,
+                // whose answer then completes it; if none comes, the next deadline moves
+                // on to reconnecting, which journals the operation.
+                if (!retryCurrentOp()) {
+                    Log.w(TAG, "Unable to re-issue the operation, waiting for the first");
+                }
+                break;
+            case GattWatchdog.ACTION_RECONNECT:
+                reconnect();
+                break;
+            case GattWatchdog.ACTION_GIVE_UP:
+                // Whatever is still outstanding is written off
+                synchronized (mInstrQueue) {
+                    mOpAnswered = mOpIssued;
+                }
+                onOpComplete();
+                break;
+        }
+    }
+
+    /* Re-issue the outstanding operation on the current link, as a new attempt */
+    private boolean retryCurrentOp() {
+        synchronized (mInstrQueue) {
+            if (!issueCurrentOp()) {
+                return false;
+            }
+            mOpIssued++;
+            mOpAnswered = mOpIssued - 1;
+            return true;
+        }
+    }
+
+    private boolean issueCurrentOp() {
+        final ConnectionStateMachine.Snapshot<GattLink> cur = mConnection.snapshot();
+        final GattLink link = cur.link;
+        final int kind;
+        final int instr;
+        final int mask;
+        final BluetoothGattDescriptor descriptor;
+        synchronized (mInstrQueue) {
+            kind = mCurrentOpKind;
+            instr = mCurrentInstr;
+            mask = mCurrentMask;
+            descriptor = mCurrentDescriptor;
+        }
+        if (kind == OP_DESCRIPTOR) {
+            trace(GattTrace.OP_DESCRIPTOR_WRITE, 0, descriptor == null ? null : descriptor.getValue());
+            return link != null && descriptor != null && link.writeDescriptor(descriptor);
+        }
+        final GpioCharacteristics chrs = getGpioCharacteristics(cur);
+        if (chrs == null) {
+            return false;
+        }
+        final BluetoothGattCharacteristic chr = chrs.instr;
+        if (kind == OP_READ) {
+            trace(GattTrace.OP_READ, 0, null);
+            mReadIssuedNanos = System.nanoTime();
+            return link.readCharacteristic(chr);
+        }
+        setInstrValue(chr, instr, mask);
+        trace(GattTrace.OP_WRITE, 0, chr.getValue());
+        return link.writeCharacteristic(chr);
+    }
+
+    /**
+     * Recover from a stalled link by closing it and connecting to the same device again.
+     * Callbacks still pending on the old link are ignored, queued instructions are journaled
+     * and replayed on the new link. A link opened on a guess stays one: recovering it is not
+     * the user opening the board.
+     */
+    private void reconnect() {
+        final String address = mConnection.snapshot().address;
+        // close() forgets it
+        final boolean speculative = mSession.isSpeculative();
+        Log.w(TAG, "GATT link stalled, reconnecting to " + address);
+        close();
+        broadcastUpdate(ACTION_GATT_DISCONNECTED);
+        if (address != null) {
+            connect(address, speculative);
+        }
     }
 
     /**
@@ -368,12 +1847,13 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattLink link = mConnection.getLink();
+        if (mBluetoothAdapter == null || link == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
 
-        if(mBluetoothGatt.setCharacteristicNotification(characteristic, enabled)) {
+        if(link.setCharacteristicNotification(characteristic, enabled)) {
             UUID uuid = characteristic.getUuid();
             Log.d(TAG, "UUID: " + uuid.toString());
             BluetoothGattDescriptor descriptor = null;
@@ -381,8 +1861,42 @@ public class BluetoothLeService extends Service {
                 Log.d(TAG, "descriptor: " + desc.getUuid());
                 descriptor = desc;
             }
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            if (descriptor == null) {
+                Log.w(TAG, "No descriptor to enable notifications on " + uuid);
+                return;
+            }
+            descriptor.setValue(enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            // The descriptor write occupies the GATT queue like an instruction write, so
+            // instructions queued right after it (e.g. a restored profile) wait for it.
+            synchronized (mInstrQueue) {
+                if (mGattBusy) {
+                    // E.g. replaying the journal, drainInstrQueue() issues it next
+                    mPendingDescriptor = descriptor;
+                    return;
+                }
+                mGattBusy = true;
+                mCurrentOpKind = OP_DESCRIPTOR;
+                mCurrentDescriptor = descriptor;
+            }
+            startDescriptorWrite(link, descriptor);
+        }
+    }
+
+    /* Write a descriptor as the outstanding operation, which the caller has set up */
+    private void startDescriptorWrite(GattLink link, BluetoothGattDescriptor descriptor) {
+        armWatchdog(true);
+        trace(GattTrace.OP_DESCRIPTOR_WRITE, 0, descriptor.getValue());
+        final boolean issued;
+        synchronized (mInstrQueue) {
+            issued = link.writeDescriptor(descriptor);
+            if (issued) {
+                mOpIssued++;
+            }
+        }
+        if (!issued) {
+            Log.w(TAG, "Unable to write descriptor " + descriptor.getUuid());
+            onOpComplete();
         }
     }
 
@@ -393,8 +1907,40 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
-        return mBluetoothGatt.getServices();
+        final GattLink link = mConnection.getLink();
+        if (link == null) return null;
+        return link.getServices();
+    }
+
+    /* The device clock estimate, valid once the device has answered timestamped reads */
+    public ClockOffsetEstimator getDeviceClock() {
+        return mDeviceClock;
+    }
+
+    /* Latencies of timestamped notifications, see LatencyTracker for what feeds it */
+    public LatencyTracker getLatencyTracker() {
+        return mLatency;
+    }
+
+    /**
+     * The GPIO service and characteristics of the connected device, resolved when its
+     * services were discovered. Prefer these to the UUID lookups below, which parse the UUIDs
+     * and walk the services on every call.
+     *
+     * @return The characteristics, or null until services have been discovered on the current
+     *         link, or if the device has no GPIO service.
+     */
+    public GpioCharacteristics getGpioCharacteristics() {
+        return getGpioCharacteristics(mConnection.snapshot());
+    }
+
+    /* The resolved characteristics if they belong to the link of cur */
+    private GpioCharacteristics getGpioCharacteristics(ConnectionStateMachine.Snapshot<GattLink> cur) {
+        final GpioCharacteristics chrs = mGpioChrs;
+        if (chrs == null || cur.link == null || chrs.generation != cur.generation) {
+            return null;
+        }
+        return chrs;
     }
 
     /**
@@ -404,8 +1950,9 @@ public class BluetoothLeService extends Service {
      * @return The Gatt Service or null if not found.
      */
     public BluetoothGattService getGattService(String uuid) {
-        if (mBluetoothGatt == null) return null;
-        return mBluetoothGatt.getService(UUID.fromString(uuid));
+        final GattLink link = mConnection.getLink();
+        if (link == null) return null;
+        return link.getService(UUID.fromString(uuid));
     }
 
     /**
@@ -417,8 +1964,9 @@ public class BluetoothLeService extends Service {
      * @return The GATT Characteristic or null if failed.
      */
     public BluetoothGattCharacteristic getGattCharacteristic(String svcUuid, String chrUuid) {
-        if (mBluetoothGatt == null) return null;
-        BluetoothGattService gattSvc = getGattService(svcUuid);
+        final GattLink link = mConnection.getLink();
+        if (link == null) return null;
+        BluetoothGattService gattSvc = link.getService(UUID.fromString(svcUuid));
         if (gattSvc == null) return null;
         return gattSvc.getCharacteristic(UUID.fromString(chrUuid));
     }
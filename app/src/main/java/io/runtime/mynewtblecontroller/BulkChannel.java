@@ -0,0 +1,364 @@
+package io.runtime.mynewtblecontroller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Framed bulk transport between the app and the board, for streaming pin samples and
+ * batches of instructions faster than GATT notifications and writes allow.
+ * BluetoothLeService runs it over an LE L2CAP connection-oriented channel; it only needs a
+ * pair of streams, so tests run the same code over a local socket pair.
+ *
+ * Frames are a 3 byte header, the type and the little-endian payload length, followed by
+ * the payload (all little-endian):
+ *   TYPE_CREDITS: u16 frames the receiver grants the sender
+ *   TYPE_SAMPLES: u8 port, u32 device time of the first sample in microseconds,
+ *                 u16 sample interval in microseconds, then one u32 of port levels per sample
+ *   TYPE_INSTRS:  one u16 instruction after another
+ * Frames of unknown types are skipped.
+ *
+ * Data frames are flow controlled with credits, on top of whatever the link does: each side
+ * starts by granting the other its window, a sender spends a credit per data frame and
+ * waits when it has none, and a receiver grants credits back as it delivers frames. The
+ * receiver thus never buffers more than window frames, however fast the sender is.
+ * Both sides are symmetric; the board streams samples and the app sends instructions.
+ */
+public class BulkChannel {
+    public static final int TYPE_CREDITS = 1;
+    public static final int TYPE_SAMPLES = 2;
+    public static final int TYPE_INSTRS = 3;
+
+    public static final int HEADER_LENGTH = 3;
+    public static final int MAX_PAYLOAD = 4096;
+    private static final int SAMPLES_HEADER_LENGTH = 7;
+    public static final int MAX_SAMPLES_PER_FRAME = (MAX_PAYLOAD - SAMPLES_HEADER_LENGTH) / 4;
+    public static final int MAX_INSTRS_PER_FRAME = MAX_PAYLOAD / 2;
+    public static final int DEFAULT_WINDOW = 8;
+
+    /* Receives what the other side sends, on the channel's reader thread */
+    public interface Listener {
+        /* levels is reused for the next frame, copy what should be kept */
+        void onSamples(int port, int timestampMicros, int intervalMicros, int[] levels, int count);
+
+        /* instrs is reused for the next frame, copy what should be kept */
+        void onInstructions(int[] instrs, int count);
+
+        /* The channel closed, e is null if close() was called */
+        void onClosed(IOException e);
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final int window;
+    private final Listener listener;
+
+    /* Guards the output stream and its buffer */
+    private final Object writeLock = new Object();
+    private final byte[] txFrame = new byte[HEADER_LENGTH + MAX_PAYLOAD];
+
+    /* Guards credits and closed */
+    private final Object creditLock = new Object();
+    private int credits;
+    private boolean closed;
+
+    private Thread reader;
+    /* Delivered frames not yet granted back, reader thread only */
+    private int consumed;
+
+    private volatile long framesSent;
+    private volatile long framesReceived;
+    private volatile long bytesSent;
+    private volatile long bytesReceived;
+
+    /**
+     * @param in The stream from the other side
+     * @param out The stream to the other side
+     * @param window Data frames the other side may send before waiting for credits
+     * @param listener Receives frames and the end of the channel
+     */
+    public BulkChannel(InputStream in, OutputStream out, int window, Listener listener) {
+        if (window < 2) {
+            throw new IllegalArgumentException("Window must be at least 2");
+        }
+        this.in = in;
+        this.out = out;
+        this.window = window;
+        this.listener = listener;
+    }
+
+    /**
+     * Grant the other side its window and start delivering frames.
+     *
+     * @throws IOException If the grant could not be sent
+     */
+    public void start() throws IOException {
+        sendCredits(window);
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readFrames();
+            }
+        }, "BulkChannel");
+        reader.start();
+    }
+
+    /* Close both streams; the listener hears about it once */
+    public void close() {
+        shutDown(null);
+    }
+
+    public boolean isClosed() {
+        synchronized (creditLock) {
+            return closed;
+        }
+    }
+
+    /* Data frames that may be sent without waiting */
+    public int getCredits() {
+        synchronized (creditLock) {
+            return credits;
+        }
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /* Bytes sent and received, including frame headers and credit frames */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Send samples of one port, as many frames as they take.
+     *
+     * @param port The port
+     * @param timestampMicros Device time of the first sample
+     * @param intervalMicros Time between samples
+     * @param levels The port levels, one per sample
+     * @param offset The first sample in levels
+     * @param count The number of samples
+     * @param timeoutMs How long to wait for credits
+     * @return false if the other side granted no credits in time; the samples before the
+     *         frame that timed out have been sent
+     * @throws IOException If the channel is closed or broke
+     */
+    public boolean sendSamples(int port, int timestampMicros, int intervalMicros, int[] levels,
+                               int offset, int count, long timeoutMs) throws IOException {
+        while (count > 0) {
+            final int n = Math.min(count, MAX_SAMPLES_PER_FRAME);
+            if (!takeCredit(timeoutMs)) {
+                return false;
+            }
+            synchronized (writeLock) {
+                int p = putHeader(TYPE_SAMPLES, SAMPLES_HEADER_LENGTH + n * 4);
+                txFrame[p++] = (byte) port;
+                p = putInt(p, timestampMicros);
+                p = putShort(p, intervalMicros);
+                for (int i = 0; i < n; i++) {
+                    p = putInt(p, levels[offset + i]);
+                }
+                writeFrame(p);
+            }
+            offset += n;
+            count -= n;
+            timestampMicros += n * intervalMicros;
+        }
+        return true;
+    }
+
+    /**
+     * Send a batch of instructions, as many frames as they take.
+     *
+     * @param instrs The instructions
+     * @param timeoutMs How long to wait for credits
+     * @return false if the other side granted no credits in time; the instructions before
+     *         the frame that timed out have been sent
+     * @throws IOException If the channel is closed or broke
+     */
+    public boolean sendInstructions(int[] instrs, long timeoutMs) throws IOException {
+        int offset = 0;
+        while (offset < instrs.length) {
+            final int n = Math.min(instrs.length - offset, MAX_INSTRS_PER_FRAME);
+            if (!takeCredit(timeoutMs)) {
+                return false;
+            }
+            synchronized (writeLock) {
+                int p = putHeader(TYPE_INSTRS, n * 2);
+                for (int i = 0; i < n; i++) {
+                    p = putShort(p, instrs[offset + i]);
+                }
+                writeFrame(p);
+            }
+            offset += n;
+        }
+        return true;
+    }
+
+    private boolean takeCredit(long timeoutMs) throws IOException {
+        final long deadline = System.nanoTime() + timeoutMs * 1000000;
+        synchronized (creditLock) {
+            while (credits == 0 && !closed) {
+                final long waitNanos = deadline - System.nanoTime();
+                if (waitNanos <= 0) {
+                    return false;
+                }
+                try {
+                    creditLock.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (closed) {
+                throw new IOException("Bulk channel closed");
+            }
+            credits--;
+            return true;
+        }
+    }
+
+    private void sendCredits(int count) throws IOException {
+        synchronized (writeLock) {
+            writeFrame(putShort(putHeader(TYPE_CREDITS, 2), count));
+        }
+    }
+
+    /* Holding writeLock */
+    private int putHeader(int type, int length) {
+        txFrame[0] = (byte) type;
+        return putShort(1, length);
+    }
+
+    private int putShort(int p, int v) {
+        txFrame[p] = (byte) v;
+        txFrame[p + 1] = (byte) (v >>> 8);
+        return p + 2;
+    }
+
+    private int putInt(int p, int v) {
+        return putShort(putShort(p, v), v >>> 16);
+    }
+
+    /* Holding writeLock */
+    private void writeFrame(int length) throws IOException {
+        try {
+            out.write(txFrame, 0, length);
+            out.flush();
+        } catch (IOException e) {
+            shutDown(e);
+            throw e;
+        }
+        if (txFrame[0] != TYPE_CREDITS) {
+            framesSent++;
+        }
+        bytesSent += length;
+    }
+
+    private void readFrames() {
+        final byte[] rx = new byte[MAX_PAYLOAD];
+        final int[] values = new int[MAX_INSTRS_PER_FRAME];
+        try {
+            while (true) {
+                readFully(rx, HEADER_LENGTH);
+                final int type = rx[0] & 0xff;
+                final int length = getShort(rx, 1);
+                if (length > MAX_PAYLOAD) {
+                    throw new IOException("Bulk frame too long: " + length);
+                }
+                readFully(rx, length);
+                bytesReceived += HEADER_LENGTH + length;
+                if (type != TYPE_CREDITS) {
+                    framesReceived++;
+                }
+                switch (type) {
+                    case TYPE_CREDITS:
+                        if (length < 2) {
+                            throw new IOException("Short credit frame");
+                        }
+                        synchronized (creditLock) {
+                            credits += getShort(rx, 0);
+                            creditLock.notifyAll();
+                        }
+                        continue;
+                    case TYPE_SAMPLES:
+                        if (length < SAMPLES_HEADER_LENGTH) {
+                            throw new IOException("Short sample frame");
+                        }
+                        final int count = (length - SAMPLES_HEADER_LENGTH) / 4;
+                        for (int i = 0; i < count; i++) {
+                            values[i] = getInt(rx, SAMPLES_HEADER_LENGTH + i * 4);
+                        }
+                        listener.onSamples(rx[0] & 0xff, getInt(rx, 1), getShort(rx, 5),
+                                values, count);
+                        break;
+                    case TYPE_INSTRS:
+                        for (int i = 0; i < length / 2; i++) {
+                            values[i] = getShort(rx, i * 2);
+                        }
+                        listener.onInstructions(values, length / 2);
+                        break;
+                    default:
+                        // From a newer board, it still used a credit
+                        break;
+                }
+                // Grant credits back in batches, half a window at a time
+                if (++consumed >= window / 2) {
+                    sendCredits(consumed);
+                    consumed = 0;
+                }
+            }
+        } catch (IOException e) {
+            shutDown(e);
+        }
+    }
+
+    private void readFully(byte[] buf, int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            final int n = in.read(buf, off, length - off);
+            if (n < 0) {
+                throw new IOException("Bulk channel closed by the other side");
+            }
+            off += n;
+        }
+    }
+
+    private static int getShort(byte[] b, int p) {
+        return (b[p] & 0xff) | ((b[p + 1] & 0xff) << 8);
+    }
+
+    private static int getInt(byte[] b, int p) {
+        return getShort(b, p) | (getShort(b, p + 2) << 16);
+    }
+
+    private void shutDown(IOException e) {
+        synchronized (creditLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            creditLock.notifyAll();
+        }
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        listener.onClosed(e);
+    }
+}
@@ -0,0 +1,186 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Estimates the offset and drift of the device clock (see DeviceTimestamp) relative to the
+ * host's System.nanoTime() clock, so that device timestamps can be placed on the host
+ * timeline.
+ *
+ * Each sample is a round trip: the host sends a request at sendNanos, the device stamps its
+ * answer, and the host receives it at receiveNanos. The device is assumed to have stamped
+ * it halfway, so a sample's error is at most half its round trip time. Samples delayed by
+ * queueing carry little information, so only the fastest round trip of every BUCKET_NANOS
+ * is kept, WINDOW of them, and of those only the ones within FILTER_FACTOR of the fastest.
+ * The offset is fitted as a line over them, its slope being the drift, once they span at
+ * least MIN_DRIFT_SPAN_NANOS.
+ *
+ * Thread safe: samples come from the GATT callbacks, conversions from anywhere.
+ */
+public class ClockOffsetEstimator {
+    /* Number of samples kept, one per bucket */
+    public static final int WINDOW = 64;
+    public static final long BUCKET_NANOS = 5000000000L;
+    /* Samples with a round trip this much longer than the fastest one are ignored */
+    public static final double FILTER_FACTOR = 1.5;
+    /* Samples must span this long before the drift is estimated */
+    public static final long MIN_DRIFT_SPAN_NANOS = 30000000000L;
+
+    /* Per sample: host midpoint, device minus host time, round trip time, all nanoseconds */
+    private final long[] hostMid = new long[WINDOW];
+    private final long[] offset = new long[WINDOW];
+    private final long[] rtt = new long[WINDOW];
+    private int count;
+    private int next;
+    private long bucketStart;
+    /* Last unwrapped device time, in microseconds */
+    private long lastDeviceMicros;
+
+    /* The fitted line: offset = fitOffset + fitDrift * (host - fitRef) */
+    private boolean dirty;
+    private long fitRef;
+    private double fitOffset;
+    private double fitDrift;
+    private long fitRtt;
+
+    /**
+     * Add a round trip sample.
+     *
+     * @param sendNanos Host time the request was sent
+     * @param deviceMicros Device timestamp of the answer
+     * @param receiveNanos Host time the answer arrived
+     */
+    public synchronized void addSample(long sendNanos, int deviceMicros, long receiveNanos) {
+        if (receiveNanos < sendNanos) {
+            return;
+        }
+        long device = unwrap(deviceMicros);
+        lastDeviceMicros = device;
+        long mid = sendNanos + (receiveNanos - sendNanos) / 2;
+        if (count > 0 && mid - bucketStart < BUCKET_NANOS) {
+            // Keep the faster of this and the bucket's sample so far
+            int newest = (next + WINDOW - 1) % WINDOW;
+            if (receiveNanos - sendNanos < rtt[newest]) {
+                hostMid[newest] = mid;
+                offset[newest] = device * 1000 - mid;
+                rtt[newest] = receiveNanos - sendNanos;
+                dirty = true;
+            }
+            return;
+        }
+        bucketStart = mid;
+        hostMid[next] = mid;
+        offset[next] = device * 1000 - mid;
+        rtt[next] = receiveNanos - sendNanos;
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) {
+            count++;
+        }
+        dirty = true;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return count > 0;
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /* Device minus host time at the most recent sample, in microseconds */
+    public synchronized double getOffsetMicros() {
+        fit();
+        return fitOffset / 1000;
+    }
+
+    /* How much faster the device clock runs, in parts per million */
+    public synchronized double getDriftPpm() {
+        fit();
+        return fitDrift * 1e6;
+    }
+
+    /* Worst case error of a conversion, half the fastest round trip in the window */
+    public synchronized long getUncertaintyNanos() {
+        fit();
+        return fitRtt / 2;
+    }
+
+    /**
+     * Map a device timestamp onto the host clock.
+     *
+     * @param deviceMicros The device timestamp, within half a wrap of the latest sample
+     * @return The host time in System.nanoTime() terms, or 0 if there are no samples yet
+     */
+    public synchronized long toHostNanos(int deviceMicros) {
+        if (count == 0) {
+            return 0;
+        }
+        fit();
+        // Solve device = host + fitOffset + fitDrift * (host - fitRef) for host
+        double device = unwrap(deviceMicros) * 1000.0 - fitRef;
+        return fitRef + Math.round((device - fitOffset) / (1 + fitDrift));
+    }
+
+    /* Forget all samples, e.g. when the device may have restarted its clock */
+    public synchronized void reset() {
+        count = 0;
+        next = 0;
+        lastDeviceMicros = 0;
+        dirty = true;
+    }
+
+    /* Extend a wrapping 32 bit timestamp to the value closest to the last one seen */
+    private long unwrap(int deviceMicros) {
+        if (count == 0) {
+            return deviceMicros & 0xffffffffL;
+        }
+        return lastDeviceMicros + (deviceMicros - (int) lastDeviceMicros);
+    }
+
+    private void fit() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        fitOffset = 0;
+        fitDrift = 0;
+        fitRtt = 0;
+        if (count == 0) {
+            return;
+        }
+        int newest = (next + WINDOW - 1) % WINDOW;
+        fitRef = hostMid[newest];
+        int best = newest;
+        for (int i = 0; i < count; i++) {
+            if (rtt[i] < rtt[best]) {
+                best = i;
+            }
+        }
+        fitRtt = rtt[best];
+        long limit = (long) (rtt[best] * FILTER_FACTOR);
+
+        // Least squares over the fast samples, relative to fitRef to keep the precision
+        int n = 0;
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        long first = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (rtt[i] > limit) {
+                continue;
+            }
+            double x = hostMid[i] - fitRef;
+            double y = offset[i] - offset[best];
+            n++;
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+            first = Math.min(first, hostMid[i]);
+        }
+        double denom = n * sxx - sx * sx;
+        if (fitRef - first < MIN_DRIFT_SPAN_NANOS || denom == 0) {
+            // Too short to tell drift from jitter, use the fastest sample alone
+            fitOffset = offset[best];
+            return;
+        }
+        fitDrift = (n * sxy - sx * sy) / denom;
+        fitOffset = offset[best] + (sy - fitDrift * sx) / n;
+    }
+}
@@ -0,0 +1,295 @@
+package io.runtime.mynewtblecontroller;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Pin instructions issued while the link to a device is down, kept until the device has
+ * confirmed them. BluetoothLeService appends to it instead of dropping instructions and
+ * replays it as one batch once the device is reachable again.
+ *
+ * Only the latest instruction per pin matters, so the journal is compacted per pin: port
+ * instructions are expanded into the pin instructions they amount to, and replaying yields
+ * at most one instruction per pin. The journal belongs to one device; adding instructions
+ * for another device discards the previous device's.
+ *
+ * File layout: the magic "GJRN", a version int and the device address (writeUTF), then
+ * int records, appended as they happen:
+ *   0x0000xxxx: the pin instruction xxxx is pending
+ *   REMOVE_FLAG | pin: the pin has nothing pending any more
+ * The file is rewritten from the compacted state once the records outnumber it by
+ * COMPACT_FACTOR. A torn record at the end (e.g. from a crash) is ignored on load.
+ */
+public class CommandJournal {
+    public static final int MAGIC = 0x474a524e; // "GJRN"
+    public static final int VERSION = 1;
+    public static final int MAX_PINS = PinStateRegion.MAX_PINS;
+
+    private static final int REMOVE_FLAG = 0x10000;
+    private static final int COMPACT_FACTOR = 4;
+    private static final int NONE = -1;
+
+    private final File file;
+    private DataOutputStream out;
+    private String address = "";
+    /* Latest pending instruction per pin, NONE if nothing is pending */
+    private final int[] latest = new int[MAX_PINS];
+    private int size;
+    private int records;
+
+    private CommandJournal(File file) {
+        this.file = file;
+        for (int i = 0; i < MAX_PINS; i++) {
+            latest[i] = NONE;
+        }
+    }
+
+    /* A journal that does not survive the process, e.g. when storage is unavailable */
+    public static CommandJournal createInMemory() {
+        return new CommandJournal(null);
+    }
+
+    /**
+     * Open the journal in a file, loading what it holds.
+     *
+     * @param file The file, created if it does not exist
+     * @return The journal
+     * @throws IOException If the file can't be written
+     */
+    public static CommandJournal open(File file) throws IOException {
+        CommandJournal journal = new CommandJournal(file);
+        if (file.exists()) {
+            journal.load();
+        }
+        journal.rewrite();
+        return journal;
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                // Not ours, or from an incompatible version; start over
+                return;
+            }
+            address = in.readUTF();
+            while (true) {
+                apply(in.readInt());
+            }
+        } catch (EOFException e) {
+            // End of the records, or a torn one
+        } finally {
+            in.close();
+        }
+    }
+
+    /* Apply a record to the compacted state */
+    private void apply(int record) {
+        if ((record & REMOVE_FLAG) != 0) {
+            int pin = record & 0xff;
+            if (latest[pin] != NONE) {
+                latest[pin] = NONE;
+                size--;
+            }
+            return;
+        }
+        int pin = GpioPin.getPin(record);
+        if (pin >= MAX_PINS || !GpioPin.isValidInstr(record)) {
+            return;
+        }
+        if (latest[pin] == NONE) {
+            size++;
+        }
+        latest[pin] = record;
+    }
+
+    /* Apply a record and append it to the file */
+    private void append(int record) {
+        apply(record);
+        if (out == null) {
+            return;
+        }
+        try {
+            records++;
+            if (records > COMPACT_FACTOR * Math.max(size, MAX_PINS / COMPACT_FACTOR)) {
+                rewrite();
+            } else {
+                out.writeInt(record);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Carry on in memory
+            closeFile();
+        }
+    }
+
+    /* Write the compacted state to a new file and continue appending to that */
+    private void rewrite() throws IOException {
+        if (file == null) {
+            return;
+        }
+        closeFile();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream tmpOut = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            tmpOut.writeInt(MAGIC);
+            tmpOut.writeInt(VERSION);
+            tmpOut.writeUTF(address);
+            records = 0;
+            for (int pin = 0; pin < MAX_PINS; pin++) {
+                if (latest[pin] != NONE) {
+                    tmpOut.writeInt(latest[pin]);
+                    records++;
+                }
+            }
+        } finally {
+            tmpOut.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+        out = new DataOutputStream(new FileOutputStream(file, true));
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Nothing more to lose
+            }
+            out = null;
+        }
+    }
+
+    /* Switch to another device, forgetting the previous one's instructions */
+    private void setAddress(String address) {
+        if (this.address.equals(address)) {
+            return;
+        }
+        this.address = address;
+        for (int i = 0; i < MAX_PINS; i++) {
+            latest[i] = NONE;
+        }
+        size = 0;
+        try {
+            rewrite();
+        } catch (IOException e) {
+            closeFile();
+        }
+    }
+
+    /* Number of pins with a pending instruction */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized String getAddress() {
+        return address;
+    }
+
+    /* Whether the journal is still backed by its file */
+    public synchronized boolean isDurable() {
+        return out != null;
+    }
+
+    /**
+     * Journal a pin instruction.
+     *
+     * @param address The device it is for
+     * @param instr The instruction
+     */
+    public synchronized void add(String address, int instr) {
+        setAddress(address);
+        append(instr);
+    }
+
+    /**
+     * Journal a port instruction as the pin instructions it amounts to. It applies to the
+     * pins that are outputs, according to the journal or else the last known pin state.
+     *
+     * @param address The device it is for
+     * @param op GpioPortInstr.OP_SET_MASK, OP_CLEAR_MASK or OP_TOGGLE_MASK
+     * @param port The port
+     * @param mask The pins of the port
+     * @param pinState The last known pin state
+     */
+    public synchronized void addPort(String address, int op, int port, int mask,
+                                     PinStateRegion pinState) {
+        setAddress(address);
+        int base = port * GpioPortInstr.PINS_PER_PORT;
+        for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+            int pin = base + bit;
+            if ((mask & (1 << bit)) == 0 || pin >= MAX_PINS) {
+                continue;
+            }
+            boolean isHigh;
+            if (latest[pin] != NONE) {
+                if (!GpioPin.isOutput(latest[pin])) {
+                    continue;
+                }
+                isHigh = GpioPin.isHigh(latest[pin]);
+            } else {
+                int state = pinState.getPinState(pin);
+                if ((state & PinStateRegion.PIN_OUTPUT) == 0) {
+                    continue;
+                }
+                isHigh = (state & PinStateRegion.PIN_HIGH) != 0;
+            }
+            isHigh = GpioPortInstr.apply(op, 1, isHigh ? 1 : 0) != 0;
+            append(GpioPin.createGpioInstr(pin, 1, isHigh ? 1 : 0));
+        }
+    }
+
+    /**
+     * The pending instructions for a device, one per pin in pin order. They stay in the
+     * journal until confirmed. Instructions for any other device are discarded.
+     *
+     * @param address The device
+     * @return The instructions, empty if none
+     */
+    public synchronized int[] pending(String address) {
+        setAddress(address);
+        int[] instrs = new int[size];
+        int n = 0;
+        for (int pin = 0; pin < MAX_PINS; pin++) {
+            if (latest[pin] != NONE) {
+                instrs[n++] = latest[pin];
+            }
+        }
+        return instrs;
+    }
+
+    /* The device has applied an instruction; its pin is done unless it changed since */
+    public synchronized void confirm(int instr) {
+        int pin = GpioPin.getPin(instr);
+        if (size > 0 && pin < MAX_PINS && latest[pin] == instr) {
+            append(REMOVE_FLAG | pin);
+        }
+    }
+
+    /* A newer instruction for a pin went out directly, the journaled one is stale */
+    public synchronized void supersede(int pin) {
+        if (size > 0 && pin < MAX_PINS && latest[pin] != NONE) {
+            append(REMOVE_FLAG | pin);
+        }
+    }
+
+    public synchronized void clear() {
+        for (int pin = 0; pin < MAX_PINS; pin++) {
+            if (latest[pin] != NONE) {
+                append(REMOVE_FLAG | pin);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        closeFile();
+    }
+}
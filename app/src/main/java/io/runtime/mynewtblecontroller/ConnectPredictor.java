@@ -0,0 +1,193 @@
+package io.runtime.mynewtblecontroller;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Guesses which of the boards in range the user is about to open, from how often and how
+ * recently each was used and how strongly the scan hears it, so that the service can connect
+ * to it while the scan list is still showing. A use counts for less the older it is, halving
+ * every HALF_LIFE_MS, so the board an operator opens every morning outweighs one tried once
+ * last month.
+ *
+ * Only a clear favourite is predicted: a board used at least about twice lately, heard well,
+ * and scoring MARGIN times any other board in range. A wrong guess costs a connection that is
+ * dropped again, so guessing nothing is better than guessing between two boards.
+ *
+ * Used from one thread, the UI's.
+ */
+public class ConnectPredictor {
+    /* A use this old counts half */
+    public static final long HALF_LIFE_MS = 7L * 24 * 60 * 60 * 1000;
+    /* Least decayed use count of a board to be predicted */
+    public static final double MIN_USES = 1.5;
+    /* The favourite's score must be this many times the runner-up's */
+    public static final double MARGIN = 2;
+    /* Boards heard below this are too far to be the one at hand, or to connect quickly */
+    public static final int MIN_RSSI = -85;
+    /* Boards not heard for this long are out of range */
+    public static final long STALE_NANOS = 5000000000L;
+    /* Boards remembered, the least used are forgotten first */
+    public static final int MAX_HISTORY = 32;
+    /* Weight of a new scan result in the smoothed RSSI */
+    private static final double RSSI_ALPHA = 0.3;
+    /* Scan results of a board before it is predicted, one may be a fluke */
+    private static final int MIN_SIGHTINGS = 2;
+
+    /* How much a board was used */
+    private static class Usage {
+        /* Decayed use count as of lastUsedMs */
+        double uses;
+        long lastUsedMs;
+    }
+
+    /* How a board in range is heard */
+    private static class Sighting {
+        double rssi;
+        int count;
+        long lastSeenNanos;
+    }
+
+    private final HashMap<String, Usage> history = new HashMap<String, Usage>();
+    private final HashMap<String, Sighting> inRange = new HashMap<String, Sighting>();
+
+    /**
+     * Record that the user opened a board.
+     *
+     * @param address The board
+     * @param nowMs System.currentTimeMillis(), uses are remembered across restarts
+     */
+    public void recordUse(String address, long nowMs) {
+        Usage usage = history.get(address);
+        if (usage == null) {
+            if (history.size() >= MAX_HISTORY) {
+                forgetLeastUsed(nowMs);
+            }
+            usage = new Usage();
+            history.put(address, usage);
+        }
+        usage.uses = decayed(usage, nowMs) + 1;
+        usage.lastUsedMs = nowMs;
+    }
+
+    /**
+     * Take in a scan result.
+     *
+     * @param address The advertising board
+     * @param rssi The signal strength it was received at
+     * @param nowNanos System.nanoTime() of reception
+     */
+    public void onScanResult(String address, int rssi, long nowNanos) {
+        if (!history.containsKey(address)) {
+            // Never used, never predicted
+            return;
+        }
+        Sighting sighting = inRange.get(address);
+        if (sighting == null || nowNanos - sighting.lastSeenNanos > STALE_NANOS) {
+            if (sighting == null) {
+                sighting = new Sighting();
+                inRange.put(address, sighting);
+            }
+            sighting.rssi = rssi;
+            sighting.count = 0;
+        } else {
+            sighting.rssi += (rssi - sighting.rssi) * RSSI_ALPHA;
+        }
+        sighting.count++;
+        sighting.lastSeenNanos = nowNanos;
+    }
+
+    /**
+     * The board the user is likely to open next.
+     *
+     * @param nowMs System.currentTimeMillis()
+     * @param nowNanos System.nanoTime()
+     * @return Its address, or null if no board in range is a clear favourite
+     */
+    public String predict(long nowMs, long nowNanos) {
+        String best = null;
+        double bestScore = 0;
+        double runnerUp = 0;
+        for (Map.Entry<String, Sighting> e : inRange.entrySet()) {
+            final Sighting sighting = e.getValue();
+            if (nowNanos - sighting.lastSeenNanos > STALE_NANOS) {
+                continue;
+            }
+            final double score = score(e.getKey(), sighting, nowMs);
+            if (score > bestScore) {
+                runnerUp = bestScore;
+                bestScore = score;
+                best = e.getKey();
+            } else if (score > runnerUp) {
+                runnerUp = score;
+            }
+        }
+        if (best == null || bestScore < runnerUp * MARGIN) {
+            return null;
+        }
+        final Sighting sighting = inRange.get(best);
+        if (sighting.count < MIN_SIGHTINGS || sighting.rssi < MIN_RSSI
+                || decayed(history.get(best), nowMs) < MIN_USES) {
+            return null;
+        }
+        return best;
+    }
+
+    /* Decayed uses, weighed up to twice for a strong signal */
+    private double score(String address, Sighting sighting, long nowMs) {
+        final double signal = Math.min(Math.max((sighting.rssi - MIN_RSSI) / 40, 0), 1);
+        return decayed(history.get(address), nowMs) * (1 + signal);
+    }
+
+    private static double decayed(Usage usage, long nowMs) {
+        final long age = Math.max(0, nowMs - usage.lastUsedMs);
+        return usage.uses * Math.pow(0.5, (double) age / HALF_LIFE_MS);
+    }
+
+    private void forgetLeastUsed(long nowMs) {
+        String least = null;
+        double leastUses = Double.MAX_VALUE;
+        for (Map.Entry<String, Usage> e : history.entrySet()) {
+            final double uses = decayed(e.getValue(), nowMs);
+            if (uses < leastUses) {
+                leastUses = uses;
+                least = e.getKey();
+            }
+        }
+        history.remove(least);
+        inRange.remove(least);
+    }
+
+    /* The history as decode() reads it: a line of address, uses and time of last use each */
+    public String encode() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Usage> e : history.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue().uses).append(' ')
+                    .append(e.getValue().lastUsedMs).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /* Replace the history with one encoded by encode(), skipping anything malformed */
+    public void decode(String text) {
+        history.clear();
+        inRange.clear();
+        if (text == null) {
+            return;
+        }
+        for (String line : text.split("\n")) {
+            final String[] fields = line.split(" ");
+            if (fields.length != 3 || history.size() >= MAX_HISTORY) {
+                continue;
+            }
+            final Usage usage = new Usage();
+            try {
+                usage.uses = Double.parseDouble(fields[1]);
+                usage.lastUsedMs = Long.parseLong(fields[2]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            history.put(fields[0], usage);
+        }
+    }
+}
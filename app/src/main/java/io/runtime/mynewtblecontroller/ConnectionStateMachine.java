@@ -0,0 +1,158 @@
+package io.runtime.mynewtblecontroller;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connection state of BluetoothLeService, shared between the threads calling into the
+ * service (UI, binder) and the thread the GATT callbacks arrive on.
+ *
+ * The state, the link and the device address are kept together in an immutable
+ * {@link Snapshot} which is only ever replaced with compare-and-set, so a thread always sees
+ * all three from the same transition. Anything written before a transition is visible to a
+ * thread that reads the resulting snapshot (AtomicReference gives the usual volatile
+ * happens-before edge).
+ *
+ * Every link gets a new generation. Callbacks are created for a generation and must call
+ * {@link #onStateChange(int, int)} or {@link #isCurrent(int)} before acting, so callbacks
+ * still arriving from a link that has been replaced or closed are ignored. Links are only
+ * handed back out of the state machine once ({@link #install}, {@link #close}), whoever gets
+ * them back is responsible for closing them.
+ *
+ * @param <L> The link type (GattLink in the service)
+ */
+public class ConnectionStateMachine<L> {
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    /* One consistent view of the connection */
+    public static final class Snapshot<L> {
+        /* Generation of the link, 0 before the first one */
+        public final int generation;
+        /* Incremented on every transition */
+        public final int version;
+        public final int state;
+        /* The current link, null when none is open */
+        public final L link;
+        /* Address of the current or last device */
+        public final String address;
+
+        Snapshot(int generation, int version, int state, L link, String address) {
+            this.generation = generation;
+            this.version = version;
+            this.state = state;
+            this.link = link;
+            this.address = address;
+        }
+    }
+
+    private final AtomicReference<Snapshot<L>> mSnapshot =
+            new AtomicReference<Snapshot<L>>(new Snapshot<L>(0, 0, STATE_DISCONNECTED, null, null));
+    private final AtomicInteger mGenerations = new AtomicInteger();
+
+    public Snapshot<L> snapshot() {
+        return mSnapshot.get();
+    }
+
+    public int getState() {
+        return mSnapshot.get().state;
+    }
+
+    public L getLink() {
+        return mSnapshot.get().link;
+    }
+
+    /* Reserve the generation of a new link, before creating the link's callback */
+    public int newGeneration() {
+        return mGenerations.incrementAndGet();
+    }
+
+    /* Whether callbacks of a generation still belong to the open link */
+    public boolean isCurrent(int generation) {
+        Snapshot<L> cur = mSnapshot.get();
+        return cur.generation == generation && cur.link != null;
+    }
+
+    /**
+     * Make a newly created link the current one, in STATE_CONNECTING.
+     *
+     * @param generation The generation reserved for the link
+     * @param link The link
+     * @param address The device address
+     * @return The snapshot that was replaced, whose link (if any) the caller must close, or
+     *         null if a newer link was installed concurrently, in which case the caller
+     *         must close this one
+     */
+    public Snapshot<L> install(int generation, L link, String address) {
+        while (true) {
+            Snapshot<L> cur = mSnapshot.get();
+            if (cur.generation > generation) {
+                return null;
+            }
+            Snapshot<L> next = new Snapshot<L>(generation, cur.version + 1, STATE_CONNECTING,
+                    link, address);
+            if (mSnapshot.compareAndSet(cur, next)) {
+                return cur;
+            }
+        }
+    }
+
+    /**
+     * Move back to STATE_CONNECTING to reconnect the link of a snapshot.
+     *
+     * @param expected The snapshot the caller decided to reconnect from
+     * @return false if the connection changed in the meantime
+     */
+    public boolean reconnect(Snapshot<L> expected) {
+        if (expected.link == null) {
+            return false;
+        }
+        return mSnapshot.compareAndSet(expected, new Snapshot<L>(expected.generation,
+                expected.version + 1, STATE_CONNECTING, expected.link, expected.address));
+    }
+
+    /**
+     * Apply a connection state reported by the callback of a link.
+     *
+     * @param generation The generation of the link the callback belongs to
+     * @param state STATE_CONNECTED or STATE_DISCONNECTED
+     * @return false if the link is no longer current and the callback must be ignored
+     */
+    public boolean onStateChange(int generation, int state) {
+        while (true) {
+            Snapshot<L> cur = mSnapshot.get();
+            if (cur.generation != generation || cur.link == null) {
+                return false;
+            }
+            if (cur.state == state) {
+                return true;
+            }
+            Snapshot<L> next = new Snapshot<L>(generation, cur.version + 1, state, cur.link,
+                    cur.address);
+            if (mSnapshot.compareAndSet(cur, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop the current link and move to STATE_DISCONNECTED.
+     *
+     * @return The snapshot that was replaced; its link, if any, is handed to exactly one
+     *         caller, which must close it
+     */
+    public Snapshot<L> close() {
+        while (true) {
+            Snapshot<L> cur = mSnapshot.get();
+            if (cur.link == null && cur.state == STATE_DISCONNECTED) {
+                return cur;
+            }
+            Snapshot<L> next = new Snapshot<L>(cur.generation, cur.version + 1,
+                    STATE_DISCONNECTED, null, cur.address);
+            if (mSnapshot.compareAndSet(cur, next)) {
+                return cur;
+            }
+        }
+    }
+}
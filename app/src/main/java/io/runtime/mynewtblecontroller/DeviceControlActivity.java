@@ -18,7 +18,6 @@ package io.runtime.mynewtblecontroller;
 
 import android.app.DialogFragment;
 import android.app.ProgressDialog;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -27,24 +26,34 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -70,8 +79,6 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
 
     /* GPIO Gatt Service/Characteristic */
     private BluetoothGattService mGpioService;
-    private BluetoothGattCharacteristic mGpioInstrChr;
-    private BluetoothGattCharacteristic mGpioNotifChr;
 
     /* Connection Information Display */
     private TextView mConnectionState;
@@ -83,8 +90,26 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
     private ListView mGpioList;
     private GpioListAdapter mGpioListAdapter;
     private ArrayList<GpioPin> gpioPins = new ArrayList<GpioPin>();
+    private PinProfileStore mPinProfileStore;
+    private File mTraceFile;
+    private FrameMonitor mFrameMonitor;
+    private TextView mFrameStats;
     private Button mNewGpioButton;
 
+    /* A trace per streaming analog channel, by pin */
+    private LinearLayout mAnalogTraces;
+    private final SparseArray<AnalogTraceView> mAnalogViews = new SparseArray<AnalogTraceView>();
+
+    /* Reused buffer for displaying the last instruction */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private final char[] mInstrChars = new char[10];
+
+    /* Keep-alive choices, as R.array.keep_alive_times */
+    private static final long[] KEEP_ALIVE_MS = {
+            BluetoothLeService.KEEP_ALIVE_OFF, 60 * 1000, 5 * 60 * 1000, 30 * 60 * 1000,
+            BluetoothLeService.KEEP_ALIVE_FOREVER
+    };
+
     /* Loading Gatt Services dialog */
     private ProgressDialog mProgressDialog;
 
@@ -94,18 +119,33 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
-            if (!mBluetoothLeService.initialize()) {
+            StartupTrace.mark(StartupTrace.SERVICE_BOUND);
+            StartupTrace.beginSection("initialize");
+            final boolean initialized = mBluetoothLeService.initialize();
+            StartupTrace.endSection();
+            if (!initialized) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
-            // Automatically connects to the device upon successful start-up initialization.
-            mBluetoothLeService.connect(mDeviceAddress);
+            StartupTrace.mark(StartupTrace.INITIALIZED);
             // Set the BLE service for our GPIO List Adapter
             mGpioListAdapter.setBleService(mBluetoothLeService);
+            // Receive pin updates as pooled messages instead of broadcasts
+            mBluetoothLeService.setGpioHandler(mGpioHandler);
+            mFrameMonitor.setLatencyTracker(mBluetoothLeService.getLatencyTracker());
+            if (mBluetoothLeService.hasLiveSession(mDeviceAddress)) {
+                // E.g. recreated by a rotation, the service kept the connection, or the scan
+                // guessed the device and the service connected to it ahead of the tap
+                attachSession(mBluetoothLeService.takeSession(mDeviceAddress));
+                return;
+            }
+            // Automatically connects to the device upon successful start-up initialization.
+            mBluetoothLeService.connect(mDeviceAddress);
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mFrameMonitor.setLatencyTracker(null);
             mBluetoothLeService = null;
         }
     };
@@ -123,57 +163,368 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
-            Log.d(TAG, "Broadcast received, action=" + action);
+            EventTrace.recordAction(EventTrace.RECEIVED, action);
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 mConnected = true;
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
+                mFrameMonitor.start();
             } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
                 mConnected = false;
                 updateConnectionState(R.string.disconnected);
                 invalidateOptionsMenu();
+                mFrameMonitor.stop();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
                 Log.d(TAG, "Gatt services discovered.");
-                // Init our GPIO Service and Characteristic
-                mGpioInstrChr = mBluetoothLeService.getGattCharacteristic(UUID_GPIO_SVC,
-                        UUID_GPIO_CHR_INSTR);
-                mGpioNotifChr = mBluetoothLeService.getGattCharacteristic(UUID_GPIO_SVC,
-                        UUID_GPIO_CHR_NOTIFY);
+                // The service resolved our GPIO Service and Characteristics
+                final GpioCharacteristics chrs = mBluetoothLeService.getGpioCharacteristics();
 
-                mBluetoothLeService.setCharacteristicNotification(mGpioNotifChr, true);
+                StartupTrace.beginSection("enableNotification");
+                if (chrs != null) {
+                    mBluetoothLeService.setCharacteristicNotification(chrs.notify, true);
+                } else {
+                    Log.w(TAG, "Device has no GPIO service");
+                }
+                StartupTrace.endSection();
+                StartupTrace.mark(StartupTrace.NOTIFY_REQUESTED);
+                StartupTrace.beginSection("dismiss");
                 mProgressDialog.dismiss();
+                StartupTrace.endSection();
+                StartupTrace.mark(StartupTrace.DIALOG_DISMISSED);
+                restoreProfile();
+            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)
+                    && intent.hasExtra(BluetoothLeService.EXTRA_PORT_INSTR)) {
+                onPortData(intent.getIntExtra(BluetoothLeService.EXTRA_PORT_INSTR, 0),
+                        intent.getIntExtra(BluetoothLeService.EXTRA_PORT_MASK, 0));
             } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
                 // Get instrction and data from intent
                 int instr = intent.getIntExtra(BluetoothLeService.EXTRA_INSTR, 0);
                 int data = intent.getIntExtra(BluetoothLeService.EXTRA_DATA, -1);
-                Log.d(TAG, String.format("Instruction received: 0x%x", instr));
-                Log.d(TAG, (data == -1 ?
-                        "No data received" :
-                        "Data received: " + (data == 0 ? "Low" : "High")));
-                displayData(String.format("0x%x", instr));
-
-                // Make new GpioPin from instruction
-                GpioPin pin = new GpioPin(instr);
-                // Check if there is data available
-                if(data != -1) {
-                    // There is data available (i.e. read instruction)
-                    pin.isHigh = (data != 0);
-                }
-                // Find and update pin in gpioPins
-                if(!findAndUpdatePin(pin)) {
-                    // Add pin if we cannot find pin
-                    addPin(pin);
-                }
+                onPinData(instr, data);
             } else if (BluetoothLeService.ACTION_NOTIFICATION_DATA_AVAILABLE.equals(action)) {
                 // Get pin info and update gpio list
                 int pinInfo = intent.getIntExtra(BluetoothLeService.EXTRA_NOTIFICATION, 0);
-                GpioPin pin = new GpioPin(pinInfo);
-                findAndUpdatePin(pin);
+                findAndUpdatePin(GpioPin.getPin(pinInfo), GpioPin.isHigh(pinInfo));
+            } else if (BluetoothLeService.ACTION_GATT_OP_TIMEOUT.equals(action)) {
+                onOpTimeout(intent.getIntExtra(BluetoothLeService.EXTRA_INSTR, -1),
+                        intent.getIntExtra(BluetoothLeService.EXTRA_TIMEOUT_ACTION, 0));
             }
         }
     };
 
+    /**
+     * Handles pin updates sent by the Service as pooled Messages. Unlike the broadcast path
+     * this does not allocate an Intent or box any extras per event.
+     *
+     * MSG_INSTR_WRITTEN: An output instruction has been written (arg1).
+     * MSG_DATA_READ: An input instruction (arg1) has been written and its pin read (arg2).
+     * MSG_NOTIFICATION: An input pin changed, arg1 holds the pin record.
+     * MSG_PORT_WRITTEN: A port instruction (arg1: port << 8 | op, arg2: mask) was written.
+     * MSG_PINS_CHANGED: Input pins of port arg1 changed together, arg2 holds their mask.
+     * MSG_OP_TIMEOUT: The device did not answer instruction arg1 (-1 if none) in time, arg2
+     *                 holds the GattWatchdog action taken.
+     * MSG_ANALOG_CONFIGURED: An analog instruction (arg1) has been written.
+     * MSG_ANALOG_SAMPLES: Analog channel arg1 received arg2 samples.
+     */
+    private final Handler mGpioHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            EventTrace.record(EventTrace.PIN_UPDATE, msg.what, msg.arg1, msg.arg2);
+            switch (msg.what) {
+                case BluetoothLeService.MSG_INSTR_WRITTEN:
+                case BluetoothLeService.MSG_DATA_READ:
+                    onPinData(msg.arg1, msg.arg2);
+                    return true;
+                case BluetoothLeService.MSG_NOTIFICATION:
+                    findAndUpdatePin(GpioPin.getPin(msg.arg1), GpioPin.isHigh(msg.arg1));
+                    if (mBluetoothLeService != null) {
+                        mBluetoothLeService.getLatencyTracker().markApplied(GpioPin.getPin(msg.arg1));
+                    }
+                    return true;
+                case BluetoothLeService.MSG_PORT_WRITTEN:
+                    onPortData(msg.arg1, msg.arg2);
+                    return true;
+                case BluetoothLeService.MSG_PINS_CHANGED:
+                    onPinsChanged(msg.arg1, msg.arg2);
+                    if (mBluetoothLeService != null) {
+                        mBluetoothLeService.getLatencyTracker().markAppliedPort(msg.arg1, msg.arg2);
+                    }
+                    return true;
+                case BluetoothLeService.MSG_OP_TIMEOUT:
+                    onOpTimeout(msg.arg1, msg.arg2);
+                    return true;
+                case BluetoothLeService.MSG_ANALOG_CONFIGURED:
+                    displayInstr(msg.arg1);
+                    showAnalogChannel(GpioPin.getPin(msg.arg1));
+                    return true;
+                case BluetoothLeService.MSG_ANALOG_SAMPLES:
+                    final AnalogTraceView view = mAnalogViews.get(msg.arg1);
+                    if (view != null) {
+                        view.onSamples();
+                    }
+                    return true;
+            }
+            return false;
+        }
+    });
+
+    /* Add, update or remove the trace of an analog channel after it was configured */
+    private void showAnalogChannel(int pin) {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final AnalogChannels.Channel channel = mBluetoothLeService.getAnalogChannels().get(pin);
+        AnalogTraceView view = mAnalogViews.get(pin);
+        if (channel == null || channel.getRateHz() == 0) {
+            if (view != null) {
+                mAnalogTraces.removeView(view);
+                mAnalogViews.remove(pin);
+            }
+            return;
+        }
+        if (view == null) {
+            view = new AnalogTraceView(this);
+            final int height = (int) (64 * getResources().getDisplayMetrics().density);
+            mAnalogTraces.addView(view, new ViewGroup.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, height));
+            mAnalogViews.put(pin, view);
+        }
+        view.setChannel(channel);
+    }
+
+    /**
+     * Apply a completed write (and optional read) to the GPIO list, adding the pin if
+     * it is not in the list yet.
+     *
+     * @param instr The instruction that was written
+     * @param data The value read from the pin, or -1 if this was not a read
+     */
+    private void onPinData(int instr, int data) {
+        displayInstr(instr);
+
+        int pinNumber = GpioPin.getPin(instr);
+        boolean isOutput = GpioPin.isOutput(instr);
+        // Check if there is data available (i.e. read instruction)
+        boolean isHigh = (data != -1) ? (data != 0) : GpioPin.isHigh(instr);
+        int edges = GpioPin.getEdges(instr);
+        int debounce = GpioPin.getDebounce(instr);
+        // Find and update pin in gpioPins
+        GpioPin pin = findPin(pinNumber);
+        if (pin == null) {
+            // Add pin if we cannot find pin, with its edge and debounce configuration
+            pin = new GpioPin(instr);
+            pin.isHigh = isHigh;
+            addPin(pin);
+            saveProfile();
+            return;
+        }
+        // The device has confirmed the pin, including pins restored from the profile
+        if (pin.isPending || pin.isHigh != isHigh || pin.isOuput != isOutput
+                || (!isOutput && (pin.edges != edges || pin.debounce != debounce))) {
+            pin.isPending = false;
+            pin.isHigh = isHigh;
+            pin.isOuput = isOutput;
+            if (!isOutput) {
+                pin.edges = edges;
+                pin.debounce = debounce;
+            }
+            mGpioListAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * The device did not answer an operation in time. Retries are left to the service; once
+     * it gives up on the operation, the affected pin stops showing as pending since no
+     * confirmation will arrive for it. Pins stay pending across a reconnect, the service
+     * journals their instructions and replays them on the new link.
+     *
+     * @param instr The pin instruction that timed out, -1 if it was not a pin instruction
+     * @param action The GattWatchdog action the service took
+     */
+    private void onOpTimeout(int instr, int action) {
+        Log.w(TAG, "Operation timed out: instr " + instr + ", action " + action);
+        if (action == GattWatchdog.ACTION_RETRY) {
+            return;
+        }
+        boolean changed = false;
+        for (int i = 0, n = gpioPins.size(); i < n; i++) {
+            GpioPin p = gpioPins.get(i);
+            if (p.isPending && action == GattWatchdog.ACTION_GIVE_UP
+                    && instr != -1 && p.pinNumber == GpioPin.getPin(instr)) {
+                p.isPending = false;
+                changed = true;
+            }
+        }
+        if (changed) {
+            mGpioListAdapter.notifyDataSetChanged();
+        }
+        Toast.makeText(this, action == GattWatchdog.ACTION_RECONNECT
+                ? R.string.gatt_reconnecting : R.string.gatt_op_timeout,
+                Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Apply a completed port instruction to the output pins in the GPIO list.
+     *
+     * @param portInstr The port (high byte) and op (low byte)
+     * @param mask The pins of the port the op was applied to
+     */
+    private void onPortData(int portInstr, int mask) {
+        int op = portInstr & 0xff;
+        int port = portInstr >>> 8;
+        boolean changed = false;
+        for (int i = 0, n = gpioPins.size(); i < n; i++) {
+            GpioPin p = gpioPins.get(i);
+            if (!p.isOuput || GpioPortInstr.getPort(p.pinNumber) != port
+                    || (mask & GpioPortInstr.getBit(p.pinNumber)) == 0) {
+                continue;
+            }
+            boolean isHigh = GpioPortInstr.apply(op, 1, p.isHigh ? 1 : 0) != 0;
+            if (p.isHigh != isHigh) {
+                p.isHigh = isHigh;
+                changed = true;
+            }
+        }
+        if (changed) {
+            mGpioListAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Apply a delta notification to the GPIO list, reading the new levels of the changed
+     * pins from the service's pin state.
+     *
+     * @param port The port whose pins changed
+     * @param changed The pins of the port that changed
+     */
+    private void onPinsChanged(int port, int changed) {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        boolean updated = false;
+        for (int i = 0, n = gpioPins.size(); i < n; i++) {
+            GpioPin p = gpioPins.get(i);
+            if (GpioPortInstr.getPort(p.pinNumber) != port
+                    || (changed & GpioPortInstr.getBit(p.pinNumber)) == 0) {
+                continue;
+            }
+            boolean isHigh = (mBluetoothLeService.getPinState(p.pinNumber)
+                    & PinStateRegion.PIN_HIGH) != 0;
+            if (p.isHigh != isHigh) {
+                p.isHigh = isHigh;
+                updated = true;
+            }
+        }
+        if (updated) {
+            mGpioListAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Set, clear or toggle every output pin in the list at once, with one port instruction
+     * per port rather than one write per pin.
+     *
+     * @param op GpioPortInstr.OP_SET_MASK, OP_CLEAR_MASK or OP_TOGGLE_MASK
+     */
+    private void writeAllOutputs(int op) {
+        int count = 0;
+        for (GpioPin pin : gpioPins) {
+            if (pin.isOuput) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            Toast.makeText(this, R.string.no_output_pins, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        int[] pinNumbers = new int[count];
+        int i = 0;
+        for (GpioPin pin : gpioPins) {
+            if (pin.isOuput) {
+                pinNumbers[i++] = pin.pinNumber;
+            }
+        }
+        mBluetoothLeService.writePinGroup(op, pinNumbers);
+    }
+
+    /**
+     * Fill the GPIO list from the device's saved profile. The pins are shown as pending
+     * until the device echoes their instructions back after restoreProfile().
+     */
+    private void loadProfile() {
+        ArrayList<GpioPin> pins = mPinProfileStore.load(mDeviceAddress);
+        for (GpioPin pin : pins) {
+            pin.isPending = true;
+            if (findPin(pin.pinNumber) == null) {
+                gpioPins.add(pin);
+            }
+        }
+        sortPins();
+    }
+
+    /**
+     * Take over the service's live session instead of connecting. A session kept alive has
+     * its notifications enabled, so the pins only need their levels from the service's pin
+     * state rather than writing the profile again. A session the service opened on a guess
+     * has its services discovered but is otherwise set up as a fresh connection would be.
+     *
+     * @param guessed Whether the session was opened on a guess, see
+     *                BluetoothLeService#onScanResult
+     */
+    private void attachSession(boolean guessed) {
+        mConnected = true;
+        updateConnectionState(R.string.connected);
+        invalidateOptionsMenu();
+        mFrameMonitor.start();
+        mProgressDialog.dismiss();
+        if (guessed) {
+            mBluetoothLeService.setCharacteristicNotification(
+                    mBluetoothLeService.getGpioCharacteristics().notify, true);
+            StartupTrace.mark(StartupTrace.NOTIFY_REQUESTED);
+            StartupTrace.mark(StartupTrace.DIALOG_DISMISSED);
+            restoreProfile();
+            return;
+        }
+        for (GpioPin pin : gpioPins) {
+            final int state = mBluetoothLeService.getPinState(pin.pinNumber);
+            if ((state & PinStateRegion.PIN_CONFIGURED) != 0) {
+                pin.isOuput = (state & PinStateRegion.PIN_OUTPUT) != 0;
+                pin.isHigh = (state & PinStateRegion.PIN_HIGH) != 0;
+                pin.isPending = false;
+            }
+        }
+        mGpioListAdapter.notifyDataSetChanged();
+        // And the analog channels still streaming
+        for (int pin = 0; pin < AnalogChannels.MAX_CHANNELS; pin++) {
+            showAnalogChannel(pin);
+        }
+        StartupTrace.mark(StartupTrace.DIALOG_DISMISSED);
+        StartupTrace.finish(StartupTrace.REATTACHED);
+    }
+
+    /**
+     * Write the instructions of every pin in the list (i.e. the restored profile) to the
+     * device as a single batch, which the service pipelines back to back.
+     */
+    private void restoreProfile() {
+        if (gpioPins.isEmpty()) {
+            return;
+        }
+        int[] instrs = new int[gpioPins.size()];
+        for (int i = 0; i < instrs.length; i++) {
+            GpioPin pin = gpioPins.get(i);
+            pin.isPending = true;
+            instrs[i] = GpioPin.createGpioInstr(pin);
+        }
+        mGpioListAdapter.notifyDataSetChanged();
+        mBluetoothLeService.writeInstructions(instrs);
+    }
+
+    private void saveProfile() {
+        mPinProfileStore.save(mDeviceAddress, gpioPins);
+    }
+
     /**
      * Add a pin to the list of gpio pins and sort the list. After sorting, notify
      * the adapter that the data set has been updated.
@@ -182,6 +533,11 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
      */
     private void addPin(GpioPin pin) {
         gpioPins.add(pin);
+        sortPins();
+    }
+
+    /* Sort gpioPins by pin number and notify the adapter */
+    private void sortPins() {
         Collections.sort(gpioPins, new Comparator<GpioPin>() {
             @Override
             public int compare(GpioPin p1, GpioPin p2) {
@@ -198,19 +554,38 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
 
     /**
      * Look for a pin with matching pin number in gpioPins. If found update the isHigh
-     * value and return true, otherwise return false.
-     * @param pin: the pin to find and update
+     * value and return true, otherwise return false. The list is only redrawn if the
+     * value actually changed.
+     * @param pinNumber: the number of the pin to find and update
+     * @param isHigh: the new value of the pin
      * @return true if found, false otherwise
      */
-    public boolean findAndUpdatePin(GpioPin pin) {
-        for (GpioPin p : gpioPins) {
-            if(p.pinNumber == pin.pinNumber) {
-                p.isHigh = pin.isHigh;
-                mGpioListAdapter.notifyDataSetChanged();
-                return true;
+    public boolean findAndUpdatePin(int pinNumber, boolean isHigh) {
+        GpioPin p = findPin(pinNumber);
+        if (p == null) {
+            return false;
+        }
+        if (p.isHigh != isHigh) {
+            p.isHigh = isHigh;
+            mGpioListAdapter.notifyDataSetChanged();
+        }
+        return true;
+    }
+
+    /**
+     * Look for a pin with matching pin number in gpioPins.
+     * @param pinNumber: the number of the pin to find
+     * @return the pin, or null if not found
+     */
+    private GpioPin findPin(int pinNumber) {
+        // Indexed loop so that no Iterator is allocated per update
+        for (int i = 0, n = gpioPins.size(); i < n; i++) {
+            GpioPin p = gpioPins.get(i);
+            if(p.pinNumber == pinNumber) {
+                return p;
             }
         }
-        return false;
+        return null;
     }
 
     @Override
@@ -221,6 +596,10 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
         // Get the device name and address
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
+        if (mDeviceName == null) {
+            // Not advertised, or opened from the kept session's notification
+            mDeviceName = getString(R.string.unknown_device);
+        }
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
 
         // Sets up UI references.
@@ -229,11 +608,25 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
         mDataField = (TextView) findViewById(R.id.data_value);
         mNewGpioButton = (Button) findViewById(R.id.new_gpio_btn);
         mGpioList = (ListView) findViewById(R.id.gpio_list);
+        mFrameStats = (TextView) findViewById(R.id.frame_stats);
+        mAnalogTraces = (LinearLayout) findViewById(R.id.analog_traces);
+
+        // Frame times are recorded while connected, against the service's event count
+        mFrameMonitor = new FrameMonitor(new FrameMonitor.EventSource() {
+            @Override
+            public int getEventCount() {
+                return mBluetoothLeService == null ? 0 : mBluetoothLeService.getEventCount();
+            }
+        });
 
         // Set up and set the GPIO List Adapter
         mGpioListAdapter = new GpioListAdapter(this, R.layout.list_item_gpio, gpioPins);
         mGpioList.setAdapter(mGpioListAdapter);
 
+        // Show the pins saved for this device straight away
+        mPinProfileStore = new PinProfileStore(this);
+        loadProfile();
+
         // Set up progress dialog
         mProgressDialog = new ProgressDialog(this);
         mProgressDialog.setMessage("Discovering Gatt Services...");
@@ -260,14 +653,23 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
         getSupportActionBar().setTitle(mDeviceName);
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        StartupTrace.beginSection("bindService");
+        // Started as well as bound, so that the session can outlive this activity
+        startService(gattServiceIntent);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+        StartupTrace.endSection();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        if (mConnected) {
+            mFrameMonitor.start();
+        }
         if (mBluetoothLeService != null) {
+            // Take pin updates back from e.g. the benchmark screen
+            mBluetoothLeService.setGpioHandler(mGpioHandler);
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
@@ -277,11 +679,18 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        mFrameMonitor.stop();
+        // Save the last output levels
+        saveProfile();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setGpioHandler(null);
+        }
+        mGpioHandler.removeCallbacksAndMessages(null);
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -296,6 +705,11 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        if (mBluetoothLeService != null && mBluetoothLeService.isTracing()) {
+            menu.findItem(R.id.menu_record_trace).setTitle(R.string.menu_stop_trace);
+        }
+        menu.findItem(R.id.menu_frame_overlay).setChecked(
+                mFrameStats.getVisibility() == View.VISIBLE);
         return true;
     }
 
@@ -308,6 +722,53 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_outputs_high:
+                writeAllOutputs(GpioPortInstr.OP_SET_MASK);
+                return true;
+            case R.id.menu_outputs_low:
+                writeAllOutputs(GpioPortInstr.OP_CLEAR_MASK);
+                return true;
+            case R.id.menu_outputs_toggle:
+                writeAllOutputs(GpioPortInstr.OP_TOGGLE_MASK);
+                return true;
+            case R.id.menu_startup_timing:
+                showStartupTiming();
+                return true;
+            case R.id.menu_record_trace:
+                toggleTrace();
+                return true;
+            case R.id.menu_frame_overlay:
+                boolean show = mFrameStats.getVisibility() != View.VISIBLE;
+                mFrameStats.setVisibility(show ? View.VISIBLE : View.GONE);
+                mFrameMonitor.setOverlay(show ? mFrameStats : null);
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_frame_stats:
+                showFrameStats();
+                return true;
+            case R.id.menu_latency_stats:
+                showLatencyStats();
+                return true;
+            case R.id.menu_rules:
+                showRules();
+                return true;
+            case R.id.menu_share_event_trace:
+                shareEventTrace();
+                return true;
+            case R.id.menu_benchmark:
+                final Intent intent = new Intent(this, BenchmarkActivity.class);
+                intent.putExtra(EXTRAS_DEVICE_NAME, mDeviceName);
+                intent.putExtra(EXTRAS_DEVICE_ADDRESS, mDeviceAddress);
+                startActivity(intent);
+                return true;
+            case R.id.menu_keep_alive:
+                showKeepAliveDialog();
+                return true;
+            case R.id.menu_forget_pins:
+                mPinProfileStore.remove(mDeviceAddress);
+                gpioPins.clear();
+                mGpioListAdapter.notifyDataSetChanged();
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -315,6 +776,180 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Start or stop recording the connection's GATT traffic. Traces are written to the
+     * app's external files directory so they can be pulled off the device and replayed
+     * with GattTraceReplay.
+     */
+    private void toggleTrace() {
+        if (mBluetoothLeService.isTracing()) {
+            mBluetoothLeService.stopTrace();
+            Toast.makeText(this, getString(R.string.trace_saved, mTraceFile.getPath()),
+                    Toast.LENGTH_LONG).show();
+        } else {
+            File dir = getExternalFilesDir(null);
+            if (dir == null) {
+                dir = getFilesDir();
+            }
+            mTraceFile = new File(dir, "gatt-" + mDeviceAddress.replace(':', '-') + "-"
+                    + System.currentTimeMillis() + ".gtrace");
+            if (!mBluetoothLeService.startTrace(mTraceFile)) {
+                Toast.makeText(this, R.string.trace_failed, Toast.LENGTH_SHORT).show();
+            }
+        }
+        invalidateOptionsMenu();
+    }
+
+    /* Decode the event trace and hand it to whatever the user picks, e.g. mail or a bug report */
+    private void shareEventTrace() {
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.event_trace_subject, mDeviceAddress));
+        intent.putExtra(Intent.EXTRA_TEXT, EventTrace.dump());
+        startActivity(Intent.createChooser(intent, getString(R.string.menu_share_event_trace)));
+    }
+
+    /* Show and log the frame time histogram recorded while connected */
+    private void showFrameStats() {
+        FrameTimeHistogram histogram = mFrameMonitor.getHistogram();
+        String dump = histogram.getFrameCount() == 0 ?
+                getString(R.string.no_frame_stats) : histogram.dump();
+        Log.i(TAG, "Frame times:\n" + dump);
+        TextView view = new TextView(this);
+        view.setTypeface(Typeface.MONOSPACE);
+        view.setPadding(32, 32, 32, 32);
+        view.setText(dump);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_frame_stats)
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.reset, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mFrameMonitor.getHistogram().reset();
+                    }
+                })
+                .show();
+    }
+
+    /* Show and log the edge latencies of timestamped notifications and the clock estimate */
+    private void showLatencyStats() {
+        final LatencyTracker latency = mBluetoothLeService.getLatencyTracker();
+        ClockOffsetEstimator clock = mBluetoothLeService.getDeviceClock();
+        String dump;
+        if (latency.getAll(LatencyTracker.EDGE_TO_APP).getCount() == 0) {
+            dump = getString(R.string.no_latency_stats);
+        } else {
+            dump = String.format("clock offset %.0fus  drift %.1fppm  +/-%.1fms  (%d samples)\n",
+                    clock.getOffsetMicros(), clock.getDriftPpm(),
+                    clock.getUncertaintyNanos() / 1e6, clock.getSampleCount())
+                    + latency.dump();
+        }
+        Log.i(TAG, "Latencies:\n" + dump);
+        TextView view = new TextView(this);
+        view.setTypeface(Typeface.MONOSPACE);
+        view.setPadding(32, 32, 32, 32);
+        view.setText(dump);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_latency_stats)
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.reset, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        latency.reset();
+                    }
+                })
+                .show();
+    }
+
+    /* Edit the device's rules, with how fast they have been reacting */
+    private void showRules() {
+        final RulesEngine rules = mBluetoothLeService.getRulesEngine();
+        final EditText input = new EditText(this);
+        input.setTypeface(Typeface.MONOSPACE);
+        input.setHint(R.string.rules_hint);
+        input.setText(RulesEngine.formatRules(rules.getRules()));
+        final TextView stats = new TextView(this);
+        stats.setTypeface(Typeface.MONOSPACE);
+        final String dump = rules.dump();
+        Log.i(TAG, "Rules:\n" + dump);
+        stats.setText(dump);
+        final LinearLayout view = new LinearLayout(this);
+        view.setOrientation(LinearLayout.VERTICAL);
+        view.setPadding(32, 32, 32, 32);
+        view.addView(input);
+        view.addView(stats);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_rules)
+                .setView(view)
+                .setPositiveButton(R.string.save, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final List<RulesEngine.Rule> parsed;
+                        try {
+                            parsed = RulesEngine.parseRules(input.getText().toString());
+                            if (mBluetoothLeService.setRules(parsed)) {
+                                return;
+                            }
+                        } catch (IllegalArgumentException e) {
+                            Toast.makeText(DeviceControlActivity.this,
+                                    getString(R.string.rules_invalid, e.getMessage()),
+                                    Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        Toast.makeText(DeviceControlActivity.this, R.string.rules_no_device,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .setNeutralButton(R.string.reset, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        rules.reset();
+                    }
+                })
+                .show();
+    }
+
+    /* Let the user pick how long the connection outlives this screen */
+    private void showKeepAliveDialog() {
+        final long current = mBluetoothLeService.getKeepAlive();
+        int checked = -1;
+        for (int i = 0; i < KEEP_ALIVE_MS.length; i++) {
+            if (KEEP_ALIVE_MS[i] == current) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_keep_alive)
+                .setSingleChoiceItems(R.array.keep_alive_times, checked,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                dialog.dismiss();
+                                mBluetoothLeService.setKeepAlive(KEEP_ALIVE_MS[which]);
+                            }
+                        })
+                .show();
+    }
+
+    /* Show the time-to-interactive breakdown of the last connection */
+    private void showStartupTiming() {
+        PhaseTimer timer = StartupTrace.getTimer();
+        String breakdown = timer.getMarkCount() == 0 ?
+                getString(R.string.no_startup_timing) : timer.breakdown();
+        TextView view = new TextView(this);
+        view.setTypeface(Typeface.MONOSPACE);
+        view.setPadding(32, 32, 32, 32);
+        view.setText(breakdown);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_startup_timing)
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -324,10 +959,19 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
         });
     }
 
-    private void displayData(String data) {
-        if (data != null) {
-            mDataField.setText(data);
-        }
+    /**
+     * Display an instruction as "0x..." hex. Formats into a reused char buffer since
+     * TextView.setText(char[], int, int) does not copy it into a new String.
+     */
+    private void displayInstr(int instr) {
+        int pos = mInstrChars.length;
+        do {
+            mInstrChars[--pos] = HEX_DIGITS[instr & 0xf];
+            instr >>>= 4;
+        } while (instr != 0);
+        mInstrChars[--pos] = 'x';
+        mInstrChars[--pos] = '0';
+        mDataField.setText(mInstrChars, pos, mInstrChars.length - pos);
     }
 
     private static IntentFilter makeGattUpdateIntentFilter() {
@@ -337,6 +981,7 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         intentFilter.addAction(BluetoothLeService.ACTION_NOTIFICATION_DATA_AVAILABLE);
+        intentFilter.addAction(BluetoothLeService.ACTION_GATT_OP_TIMEOUT);
         return intentFilter;
     }
 
@@ -363,15 +1008,25 @@ public class DeviceControlActivity extends AppCompatActivity implements InitGpio
 
         // Create instruction
         int pinNumber = Integer.parseInt(pinNumberStr);
+        if (ioSpinner.getSelectedItemPosition() == InitGpioDialogFragment.IO_ANALOG) {
+            int rate = ((Spinner) dialog.getDialog().findViewById(R.id.rate_spinner))
+                    .getSelectedItemPosition();
+            mBluetoothLeService.writeAnalogInstruction(pinNumber, rate);
+            return;
+        }
         boolean isOutput = (ioSpinner.getSelectedItemPosition() + 1) == 1;
         boolean isHigh = initValSwitch.isChecked();
-        int instr = GpioPin.createGpioInstr(new GpioPin(pinNumber, isOutput, isHigh));
-
-        // Get the GPIO characteristic from BluetoothLeService
-        mGpioInstrChr = mBluetoothLeService.getGattCharacteristic(UUID_GPIO_SVC,
-                UUID_GPIO_CHR_INSTR);
-        // Set the characteristic value and write to device
-        mGpioInstrChr.setValue(instr, BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-        mBluetoothLeService.writeCharacteristic(mGpioInstrChr);
+        GpioPin pin = new GpioPin(pinNumber, isOutput, isHigh);
+        if (!isOutput) {
+            // Edge filtering and debounce happen on the device, before anything is sent
+            pin.edges = ((Spinner) dialog.getDialog().findViewById(R.id.edges_spinner))
+                    .getSelectedItemPosition();
+            pin.debounce = ((Spinner) dialog.getDialog().findViewById(R.id.debounce_spinner))
+                    .getSelectedItemPosition();
+        }
+        int instr = GpioPin.createGpioInstr(pin);
+
+        // Queue the instruction to be written to the device
+        mBluetoothLeService.writeInstruction(instr);
     }
 }
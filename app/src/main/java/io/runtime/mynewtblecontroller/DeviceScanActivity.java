@@ -20,11 +20,17 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -33,6 +39,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -50,15 +57,49 @@ public class DeviceScanActivity extends AppCompatActivity {
     private ListView mDeviceList;
 
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 10 seconds.
+    // Restarts scanning every 10 seconds, see mRestartScan.
     private static final long SCAN_PERIOD = 10000;
 
+    /* Scan modes, indexes into R.array.scan_modes. The filtered modes map to
+     * ScanSettings.SCAN_MODE_LOW_POWER, SCAN_MODE_BALANCED and SCAN_MODE_LOW_LATENCY. */
+    private static final int SCAN_MODE_LEGACY = 0;
+    private static final int SCAN_MODE_BALANCED = 2;
+    private static final String PREF_SCAN_MODE = "scan_mode";
+    private int mScanMode;
+    private FilteredLeScanner mFilteredScanner;
+    private boolean mFilteredScanActive;
+    /* Input levels advertised by the boards in range, shown without connecting */
+    private static final int MAX_ADVERTISED_BOARDS = 256;
+    private final AdvertisedStateCache mAdvertisedState =
+            new AdvertisedStateCache(MAX_ADVERTISED_BOARDS);
+    /* Fed the scan results while showing, to connect to the likely board ahead of the tap */
+    private BluetoothLeService mBluetoothLeService;
+    /* Whether a board was tapped, so that the link opened to it is kept on pausing */
+    private boolean mOpening;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            final BluetoothLeService bleService =
+                    ((BluetoothLeService.LocalBinder) service).getService();
+            if (bleService.initialize()) {
+                mBluetoothLeService = bleService;
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.device_scan_layout);
         getSupportActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
+        mScanMode = getPreferences(MODE_PRIVATE).getInt(PREF_SCAN_MODE, SCAN_MODE_BALANCED);
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -89,9 +130,12 @@ public class DeviceScanActivity extends AppCompatActivity {
                 intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
                 intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
                 if (mScanning) {
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                    stopScan();
                     mScanning = false;
                 }
+                // Time-to-interactive is measured from here
+                StartupTrace.start();
+                mOpening = true;
                 startActivity(intent);
             }
         });
@@ -118,11 +162,18 @@ public class DeviceScanActivity extends AppCompatActivity {
         switch (item.getItemId()) {
             case R.id.menu_scan:
                 mLeDeviceListAdapter.clear();
+                mAdvertisedState.clear();
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
                 scanLeDevice(false);
                 break;
+            case R.id.menu_scan_mode:
+                showScanModeDialog();
+                break;
+            case R.id.menu_gateway:
+                showGatewayDialog();
+                break;
         }
         return true;
     }
@@ -144,6 +195,10 @@ public class DeviceScanActivity extends AppCompatActivity {
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         //setListAdapter(mLeDeviceListAdapter);
         mDeviceList.setAdapter(mLeDeviceListAdapter);
+        mOpening = false;
+        bindService(new Intent(this, BluetoothLeService.class)
+                .setAction(BluetoothLeService.ACTION_BIND_SCAN), mServiceConnection,
+                BIND_AUTO_CREATE);
         scanLeDevice(true);
     }
 
@@ -162,6 +217,13 @@ public class DeviceScanActivity extends AppCompatActivity {
         super.onPause();
         scanLeDevice(false);
         mLeDeviceListAdapter.clear();
+        mAdvertisedState.clear();
+        if (mBluetoothLeService != null && !mOpening) {
+            // Left without opening the board guessed
+            mBluetoothLeService.cancelPreconnect();
+        }
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
     }
 
 //    @Override
@@ -178,27 +240,139 @@ public class DeviceScanActivity extends AppCompatActivity {
 //        startActivity(intent);
 //    }
 
+    /**
+     * Keeps the scan going while the list shows, so that the advertised input levels stay
+     * live. The scan is restarted rather than left running: Android turns scans running for
+     * half an hour into opportunistic ones, and some controllers report each device only
+     * once per scan. One restart every SCAN_PERIOD stays well below the starts per 30
+     * seconds that Android allows.
+     */
+    private final Runnable mRestartScan = new Runnable() {
+        @Override
+        public void run() {
+            if (!mScanning) {
+                return;
+            }
+            stopScan();
+            startScan();
+            mHandler.postDelayed(this, SCAN_PERIOD);
+        }
+    };
+
     private void scanLeDevice(final boolean enable) {
+        mHandler.removeCallbacks(mRestartScan);
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
+            if (mScanning) {
+                stopScan();
+            }
             mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            startScan();
+            mHandler.postDelayed(mRestartScan, SCAN_PERIOD);
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            stopScan();
         }
         invalidateOptionsMenu();
     }
 
+    /**
+     * Start scanning with the configured scan mode. Unless the legacy mode is selected, scan
+     * with a hardware filter on the GPIO service through FilteredLeScanner where available
+     * (API 21+), otherwise fall back to the unfiltered BluetoothAdapter.startLeScan.
+     */
+    private void startScan() {
+        if (mScanMode != SCAN_MODE_LEGACY && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (mFilteredScanner == null) {
+                mFilteredScanner = new FilteredLeScanner(mBluetoothAdapter, mLeScanCallback,
+                        new FilteredLeScanner.FailureListener() {
+                            @Override
+                            public void onScanFailed(int errorCode) {
+                                // Fall back to the legacy scan
+                                mFilteredScanActive = false;
+                                if (mScanning) {
+                                    mBluetoothAdapter.startLeScan(mLeScanCallback);
+                                }
+                            }
+                        });
+            }
+            // Our scan modes are offset by one from ScanSettings.SCAN_MODE_*
+            if (mFilteredScanner.start(mScanMode - 1)) {
+                mFilteredScanActive = true;
+                return;
+            }
+        }
+        mBluetoothAdapter.startLeScan(mLeScanCallback);
+    }
+
+    private void stopScan() {
+        if (mFilteredScanActive) {
+            mFilteredScanner.stop();
+            mFilteredScanActive = false;
+        } else {
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        }
+    }
+
+    /* Let the user pick the scan mode, restarting a running scan with the new mode */
+    private void showScanModeDialog() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_scan_mode)
+                .setSingleChoiceItems(R.array.scan_modes, mScanMode,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                dialog.dismiss();
+                                if (which == mScanMode) {
+                                    return;
+                                }
+                                boolean wasScanning = mScanning;
+                                if (wasScanning) {
+                                    stopScan();
+                                }
+                                mScanMode = which;
+                                getPreferences(MODE_PRIVATE).edit()
+                                        .putInt(PREF_SCAN_MODE, mScanMode).apply();
+                                if (wasScanning) {
+                                    startScan();
+                                }
+                            }
+                        })
+                .show();
+    }
+
+    /* Let the user enter a network gateway to control a board through, in place of a scan */
+    private void showGatewayDialog() {
+        final EditText input = new EditText(this);
+        input.setHint(R.string.gateway_address_hint);
+        input.setSingleLine();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_gateway)
+                .setView(input)
+                .setPositiveButton(R.string.menu_connect, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final String hostPort = input.getText().toString().trim();
+                        if (hostPort.isEmpty()) {
+                            return;
+                        }
+                        final Intent intent = new Intent(getApplicationContext(),
+                                DeviceControlActivity.class);
+                        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME,
+                                getString(R.string.gateway_name, hostPort));
+                        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS,
+                                GatewayGattLink.ADDRESS_PREFIX + hostPort);
+                        if (mScanning) {
+                            stopScan();
+                            mScanning = false;
+                        }
+                        StartupTrace.start();
+                        startActivity(intent);
+                    }
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
         private ArrayList<BluetoothDevice> mLeDevices;
@@ -210,10 +384,13 @@ public class DeviceScanActivity extends AppCompatActivity {
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
+        /* Returns false if the device is listed already */
+        public boolean addDevice(BluetoothDevice device) {
             if(!mLeDevices.contains(device)) {
                 mLeDevices.add(device);
+                return true;
             }
+            return false;
         }
 
         public BluetoothDevice getDevice(int position) {
@@ -250,6 +427,7 @@ public class DeviceScanActivity extends AppCompatActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.gpioState = (TextView) view.findViewById(R.id.device_gpio_state);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
@@ -262,22 +440,51 @@ public class DeviceScanActivity extends AppCompatActivity {
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
             viewHolder.deviceAddress.setText(device.getAddress());
+            bindAdvertisedState(viewHolder.gpioState, device.getAddress());
 
             return view;
         }
     }
 
+    /* Show the input levels a board advertises, one port after another */
+    private void bindAdvertisedState(TextView view, String address) {
+        final StringBuilder sb = new StringBuilder();
+        synchronized (mAdvertisedState) {
+            final AdvertisedStateCache.Entry entry = mAdvertisedState.get(address);
+            if (entry == null) {
+                view.setVisibility(View.GONE);
+                return;
+            }
+            for (int port = 0; port < GpioPortInstr.NUM_PORTS; port++) {
+                if (entry.hasPort(port)) {
+                    sb.append(getString(R.string.advertised_port, port, entry.levels[port]));
+                }
+            }
+            sb.append(getString(R.string.advertised_rssi, entry.rssi));
+        }
+        view.setText(sb);
+        view.setVisibility(View.VISIBLE);
+    }
+
     // Device scan callback.
     private BluetoothAdapter.LeScanCallback mLeScanCallback =
             new BluetoothAdapter.LeScanCallback() {
 
                 @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+                public void onLeScan(final BluetoothDevice device, final int rssi,
+                                     byte[] scanRecord) {
+                    // Parsed here, the record is not kept
+                    final boolean stateChanged = mAdvertisedState.update(device.getAddress(),
+                            scanRecord, rssi, System.nanoTime());
                     runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
-                            mLeDeviceListAdapter.addDevice(device);
-                            mLeDeviceListAdapter.notifyDataSetChanged();
+                            if (mLeDeviceListAdapter.addDevice(device) || stateChanged) {
+                                mLeDeviceListAdapter.notifyDataSetChanged();
+                            }
+                            if (mBluetoothLeService != null && mScanning) {
+                                mBluetoothLeService.onScanResult(device.getAddress(), rssi);
+                            }
                         }
                     });
                 }
@@ -286,5 +493,6 @@ public class DeviceScanActivity extends AppCompatActivity {
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView gpioState;
     }
 }
\ No newline at end of file
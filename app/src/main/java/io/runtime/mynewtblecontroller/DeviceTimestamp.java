@@ -0,0 +1,53 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Optional device timestamp trailer on GPIO characteristic values. Firmware that supports it
+ * appends the time the value was produced (the edge, for a notification) to:
+ *   - notifications, after a 2 byte pin record or a whole delta notification
+ *   - reads of the instruction characteristic, after the 2 byte pin level
+ *
+ * The timestamp is the device's free-running microsecond clock, 4 bytes little endian. It
+ * wraps about every 71 minutes; ClockOffsetEstimator unwraps it and maps it onto the host
+ * clock. Values without the trailer are handled as before.
+ */
+public class DeviceTimestamp {
+    public static final int LENGTH = 4;
+
+    /* Length of a pin record or a pin level without the trailer */
+    private static final int PIN_VALUE_LENGTH = 2;
+
+    /* Whether a notification payload carries a timestamp */
+    public static boolean inNotification(byte[] value) {
+        if (AnalogNotification.isAnalog(value)) {
+            return false;
+        }
+        if (GpioDeltaNotification.isDelta(value)) {
+            return GpioDeltaNotification.hasTimestamp(value);
+        }
+        return value != null && value.length == PIN_VALUE_LENGTH + LENGTH;
+    }
+
+    /* Whether a value read from the instruction characteristic carries a timestamp */
+    public static boolean inReadValue(byte[] value) {
+        return value != null && value.length == PIN_VALUE_LENGTH + LENGTH;
+    }
+
+    /* The timestamp of a value that has one, in device microseconds */
+    public static int get(byte[] value) {
+        int off = value.length - LENGTH;
+        return (value[off] & 0xff) | ((value[off + 1] & 0xff) << 8)
+                | ((value[off + 2] & 0xff) << 16) | ((value[off + 3] & 0xff) << 24);
+    }
+
+    /* Append a timestamp to a value, as the device would */
+    public static byte[] append(byte[] value, int deviceMicros) {
+        byte[] stamped = new byte[value.length + LENGTH];
+        System.arraycopy(value, 0, stamped, 0, value.length);
+        int off = value.length;
+        stamped[off] = (byte) deviceMicros;
+        stamped[off + 1] = (byte) (deviceMicros >>> 8);
+        stamped[off + 2] = (byte) (deviceMicros >>> 16);
+        stamped[off + 3] = (byte) (deviceMicros >>> 24);
+        return stamped;
+    }
+}
@@ -0,0 +1,169 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Always-on trace of the GATT callbacks, broadcasts and UI updates, kept in a TraceRing in
+ * place of logging them. Recording costs a few stores; the records are only decoded when
+ * the trace is dumped, e.g. by the share action of DeviceControlActivity.
+ */
+public final class EventTrace {
+    /* Events and their arguments */
+    public static final int CONNECTION_STATE = 1;     // generation, status, new state
+    public static final int SERVICES_DISCOVERED = 2;  // generation, status
+    public static final int READ = 3;                 // status, value length, first bytes
+    public static final int WRITE = 4;                // status, value length, first bytes
+    public static final int CHANGED = 5;              // value length, first bytes
+    public static final int DESCRIPTOR_WRITE = 6;     // status
+    public static final int READ_PIN = 7;             // instruction
+    public static final int BROADCAST = 8;            // action
+    public static final int RECEIVED = 9;             // action
+    public static final int PIN_UPDATE = 10;          // MSG_*, arg1, arg2
+    public static final int LIST_BIND = 11;           // pin, high, pending
+    public static final int BULK_CHANNEL = 12;        // open
+    public static final int RSSI = 13;                // rssi, status
+    public static final int PHY_UPDATE = 14;          // tx PHY, rx PHY, status
+    public static final int RULE = 15;                // input pin, high, writes queued
+
+    private static final String[] NAMES = {
+            "?", "connection state", "services discovered", "read", "write", "changed",
+            "descriptor write", "read pin", "broadcast", "received", "pin update", "list bind",
+            "bulk channel", "rssi", "phy update", "rule"
+    };
+
+    /* Broadcast actions, recorded as their index */
+    private static final String[] ACTIONS = {
+            BluetoothLeService.ACTION_GATT_CONNECTED,
+            BluetoothLeService.ACTION_GATT_DISCONNECTED,
+            BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED,
+            BluetoothLeService.ACTION_DATA_AVAILABLE,
+            BluetoothLeService.ACTION_READ_DATA_AVAILABLE,
+            BluetoothLeService.ACTION_NOTIFICATION_DATA_AVAILABLE,
+            BluetoothLeService.ACTION_GATT_OP_TIMEOUT,
+            BluetoothLeService.ACTION_PHY_UPDATE,
+    };
+
+    /* About a minute of busy traffic, 128 KB */
+    private static final int CAPACITY = 4096;
+
+    private static final TraceRing sRing = new TraceRing(CAPACITY, new TraceRing.Decoder() {
+        @Override
+        public void decode(StringBuilder sb, int event, int a, int b, int c) {
+            sb.append(event < NAMES.length ? NAMES[event] : "event " + event);
+            switch (event) {
+                case CONNECTION_STATE:
+                    sb.append(" gen=").append(a).append(" status=").append(b)
+                            .append(" state=").append(c);
+                    break;
+                case SERVICES_DISCOVERED:
+                    sb.append(" gen=").append(a).append(" status=").append(b);
+                    break;
+                case READ:
+                case WRITE:
+                    sb.append(" status=").append(a);
+                    appendValue(sb, b, c);
+                    break;
+                case CHANGED:
+                    appendValue(sb, a, b);
+                    break;
+                case DESCRIPTOR_WRITE:
+                    sb.append(" status=").append(a);
+                    break;
+                case READ_PIN:
+                    sb.append(" instr=0x").append(Integer.toHexString(a));
+                    break;
+                case BROADCAST:
+                case RECEIVED:
+                    sb.append(' ').append(a >= 0 && a < ACTIONS.length
+                            ? ACTIONS[a].substring(ACTIONS[a].lastIndexOf('.') + 1) : "?");
+                    break;
+                case PIN_UPDATE:
+                    sb.append(" msg=").append(a).append(" arg1=0x").append(Integer.toHexString(b))
+                            .append(" arg2=").append(c);
+                    break;
+                case LIST_BIND:
+                    sb.append(" pin=").append(a).append(b != 0 ? " high" : " low")
+                            .append(c != 0 ? " pending" : "");
+                    break;
+                case BULK_CHANNEL:
+                    sb.append(a != 0 ? " open" : " closed");
+                    break;
+                case RSSI:
+                    sb.append(' ').append(a).append(" dBm status=").append(b);
+                    break;
+                case PHY_UPDATE:
+                    sb.append(" tx=").append(a).append(" rx=").append(b).append(" status=")
+                            .append(c);
+                    break;
+                case RULE:
+                    sb.append(" pin=").append(a).append(b != 0 ? " high" : " low")
+                            .append(" writes=").append(c);
+                    break;
+                default:
+                    sb.append(' ').append(a).append(' ').append(b).append(' ').append(c);
+                    break;
+            }
+        }
+    });
+
+    private EventTrace() {
+    }
+
+    /* Length and the first (up to four) bytes of a value, as recorded */
+    private static void appendValue(StringBuilder sb, int length, int head) {
+        sb.append(" len=").append(length);
+        if (length > 0) {
+            sb.append(" value=");
+            for (int i = 0; i < Math.min(length, 4); i++) {
+                sb.append(String.format("%02x", (head >>> (i * 8)) & 0xff));
+            }
+            if (length > 4) {
+                sb.append("..");
+            }
+        }
+    }
+
+    public static TraceRing getRing() {
+        return sRing;
+    }
+
+    public static void record(int event, int a) {
+        sRing.record(event, a, 0, 0);
+    }
+
+    public static void record(int event, int a, int b) {
+        sRing.record(event, a, b, 0);
+    }
+
+    public static void record(int event, int a, int b, int c) {
+        sRing.record(event, a, b, c);
+    }
+
+    /* Record a READ, WRITE or CHANGED event for a characteristic value */
+    public static void recordValue(int event, int status, byte[] value) {
+        final int length = value == null ? 0 : value.length;
+        int head = 0;
+        for (int i = Math.min(length, 4) - 1; i >= 0; i--) {
+            head = (head << 8) | (value[i] & 0xff);
+        }
+        if (event == CHANGED) {
+            sRing.record(event, length, head, 0);
+        } else {
+            sRing.record(event, status, length, head);
+        }
+    }
+
+    /* Record a BROADCAST or RECEIVED event for a broadcast action */
+    public static void recordAction(int event, String action) {
+        int index = -1;
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i] == action || ACTIONS[i].equals(action)) {
+                index = i;
+                break;
+            }
+        }
+        sRing.record(event, index, 0, 0);
+    }
+
+    public static String dump() {
+        return sRing.dump();
+    }
+}
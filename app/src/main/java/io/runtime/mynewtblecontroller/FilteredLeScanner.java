@@ -0,0 +1,120 @@
+package io.runtime.mynewtblecontroller;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans with BluetoothLeScanner (API 21+) for devices advertising the GPIO service only,
+ * by its UUID or the GPIO state field in service or manufacturer data. The filters are
+ * applied by the controller, so other advertisers never wake the app, and where the
+ * controller supports batching, results are delivered in batches every REPORT_DELAY_MS
+ * rather than one by one. Results are reported through the same callback as
+ * {@code BluetoothAdapter.startLeScan}, so the legacy path can be used as a fallback.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class FilteredLeScanner {
+    private final static String TAG = FilteredLeScanner.class.getSimpleName();
+
+    /* Batch interval used when the controller supports offloaded batching */
+    public static final long REPORT_DELAY_MS = 1000;
+    /* Matches all of the marker in manufacturer data */
+    private static final byte[] MARKER_MASK = { (byte) 0xff, (byte) 0xff };
+
+    /* Called when the scan could not be started, e.g. to fall back to the legacy scan */
+    public interface FailureListener {
+        void onScanFailed(int errorCode);
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothAdapter.LeScanCallback mCallback;
+    private final FailureListener mFailureListener;
+    private BluetoothLeScanner mScanner;
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            report(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0, n = results.size(); i < n; i++) {
+                report(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed: " + errorCode);
+            mScanner = null;
+            mFailureListener.onScanFailed(errorCode);
+        }
+    };
+
+    public FilteredLeScanner(BluetoothAdapter adapter, BluetoothAdapter.LeScanCallback callback,
+                             FailureListener failureListener) {
+        mAdapter = adapter;
+        mCallback = callback;
+        mFailureListener = failureListener;
+    }
+
+    /**
+     * Start scanning for GPIO boards.
+     *
+     * @param scanMode One of the ScanSettings.SCAN_MODE_* constants
+     * @return false if the scanner is not available (e.g. Bluetooth is off)
+     */
+    public boolean start(int scanMode) {
+        mScanner = mAdapter.getBluetoothLeScanner();
+        if (mScanner == null) {
+            return false;
+        }
+        // Any of the filters matching is enough. Boards advertising their levels may leave
+        // the service UUID out to make room for them, see GpioAdvertisement.
+        final ParcelUuid service = new ParcelUuid(GpioCharacteristics.SERVICE_UUID);
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        filters.add(new ScanFilter.Builder().setServiceUuid(service).build());
+        filters.add(new ScanFilter.Builder().setServiceData(service, new byte[0]).build());
+        filters.add(new ScanFilter.Builder()
+                .setManufacturerData(GpioAdvertisement.COMPANY_ID,
+                        GpioAdvertisement.getManufacturerMarker(), MARKER_MASK)
+                .build());
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(scanMode);
+        if (mAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(REPORT_DELAY_MS);
+        }
+        mScanner.startScan(filters, settings.build(), mScanCallback);
+        return true;
+    }
+
+    public void stop() {
+        if (mScanner == null) {
+            return;
+        }
+        // Stopping throws if Bluetooth has been turned off in the meantime
+        if (mAdapter.isEnabled()) {
+            mScanner.flushPendingScanResults(mScanCallback);
+            mScanner.stopScan(mScanCallback);
+        }
+        mScanner = null;
+    }
+
+    private void report(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        mCallback.onLeScan(result.getDevice(), result.getRssi(),
+                record == null ? null : record.getBytes());
+    }
+}
@@ -0,0 +1,108 @@
+package io.runtime.mynewtblecontroller;
+
+import android.util.Log;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+/**
+ * Measures the frame times of the UI thread with Choreographer callbacks and records them,
+ * together with the number of service events delivered meanwhile, in a FrameTimeHistogram.
+ * While running it requests every vsync, so it should only run while it is wanted (e.g.
+ * while connected). Create, start and stop it on the main thread.
+ */
+public class FrameMonitor implements Choreographer.FrameCallback {
+    private final static String TAG = FrameMonitor.class.getSimpleName();
+
+    /* How often the overlay is refreshed */
+    private static final long OVERLAY_INTERVAL_NANOS = 500000000L;
+
+    /* Running count of the events that cause UI updates */
+    public interface EventSource {
+        int getEventCount();
+    }
+
+    private final FrameTimeHistogram mHistogram = new FrameTimeHistogram();
+    private final EventSource mEventSource;
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private boolean mRunning;
+    private long mLastFrameNanos;
+    private int mLastEventCount;
+
+    /* Told about each frame to time edge to pixel latencies, may be null */
+    private volatile LatencyTracker mLatency;
+
+    private TextView mOverlay;
+    private long mOverlayFrameNanos;
+    private int mOverlayEventCount;
+
+    public FrameMonitor(EventSource eventSource) {
+        mEventSource = eventSource;
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mLastFrameNanos = 0;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mChoreographer.removeFrameCallback(this);
+        Log.i(TAG, "Frame times: " + mHistogram.summary());
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public FrameTimeHistogram getHistogram() {
+        return mHistogram;
+    }
+
+    public void setLatencyTracker(LatencyTracker latency) {
+        mLatency = latency;
+    }
+
+    /* Show a one line summary and the current event rate in view, null to stop */
+    public void setOverlay(TextView view) {
+        mOverlay = view;
+        mOverlayFrameNanos = 0;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        final int eventCount = mEventSource.getEventCount();
+        if (mLastFrameNanos != 0) {
+            mHistogram.record(frameTimeNanos - mLastFrameNanos, eventCount - mLastEventCount);
+        }
+        mLastFrameNanos = frameTimeNanos;
+        mLastEventCount = eventCount;
+        final LatencyTracker latency = mLatency;
+        if (latency != null) {
+            latency.onFrame(frameTimeNanos);
+        }
+
+        if (mOverlay != null) {
+            if (mOverlayFrameNanos == 0) {
+                mOverlayFrameNanos = frameTimeNanos;
+                mOverlayEventCount = eventCount;
+            } else if (frameTimeNanos - mOverlayFrameNanos >= OVERLAY_INTERVAL_NANOS) {
+                double rate = (eventCount - mOverlayEventCount) * 1e9
+                        / (frameTimeNanos - mOverlayFrameNanos);
+                mOverlay.setText(String.format("%s  %.0f ev/s", mHistogram.summary(), rate));
+                mOverlayFrameNanos = frameTimeNanos;
+                mOverlayEventCount = eventCount;
+            }
+        }
+        mChoreographer.postFrameCallback(this);
+    }
+}
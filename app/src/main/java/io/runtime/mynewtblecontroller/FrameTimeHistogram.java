@@ -0,0 +1,134 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Histogram of frame durations, with the number of service events that arrived during each
+ * frame so that slow frames can be correlated with event load. Fed by FrameMonitor, on the
+ * main thread only.
+ *
+ * Durations are bucketed by millisecond up to MAX_MS, longer frames share the last bucket.
+ * A frame is janky when it took longer than JANK_FRAMES frame intervals, i.e. at least one
+ * vsync was missed.
+ */
+public class FrameTimeHistogram {
+    /* Nominal frame interval at 60 Hz */
+    public static final long FRAME_NANOS = 16666667;
+    public static final double JANK_FRAMES = 1.5;
+    public static final int MAX_MS = 100;
+
+    private final int[] buckets = new int[MAX_MS + 1];
+    private int frames;
+    private int jankFrames;
+    private long totalNanos;
+    private long jankNanos;
+    private long maxNanos;
+    private long events;
+    private long jankEvents;
+
+    /**
+     * Record one frame.
+     *
+     * @param durationNanos Time since the previous frame
+     * @param eventCount Service events that arrived during the frame
+     */
+    public void record(long durationNanos, int eventCount) {
+        int ms = (int) Math.min(durationNanos / 1000000, MAX_MS);
+        buckets[ms]++;
+        frames++;
+        totalNanos += durationNanos;
+        events += eventCount;
+        if (durationNanos > maxNanos) {
+            maxNanos = durationNanos;
+        }
+        if (isJank(durationNanos)) {
+            jankFrames++;
+            jankNanos += durationNanos;
+            jankEvents += eventCount;
+        }
+    }
+
+    public static boolean isJank(long durationNanos) {
+        return durationNanos > FRAME_NANOS * JANK_FRAMES;
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = 0;
+        }
+        frames = 0;
+        jankFrames = 0;
+        totalNanos = 0;
+        jankNanos = 0;
+        maxNanos = 0;
+        events = 0;
+        jankEvents = 0;
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    public int getJankCount() {
+        return jankFrames;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /* Number of frames that took ms milliseconds (MAX_MS: that long or longer) */
+    public int getBucket(int ms) {
+        return buckets[ms];
+    }
+
+    /**
+     * The frame duration below which a fraction of the frames fall.
+     *
+     * @param fraction E.g. 0.95 for the 95th percentile
+     * @return The duration in milliseconds, rounded up to the bucket, 0 if there are no frames
+     */
+    public int getPercentileMs(double fraction) {
+        int target = (int) Math.ceil(frames * fraction);
+        int seen = 0;
+        for (int ms = 0; ms <= MAX_MS; ms++) {
+            seen += buckets[ms];
+            if (seen >= target && seen > 0) {
+                return ms + 1;
+            }
+        }
+        return 0;
+    }
+
+    /* Service events per second during janky frames */
+    public double getJankEventRate() {
+        return jankNanos == 0 ? 0 : jankEvents * 1e9 / jankNanos;
+    }
+
+    /* Service events per second during the other frames */
+    public double getSmoothEventRate() {
+        long smoothNanos = totalNanos - jankNanos;
+        return smoothNanos == 0 ? 0 : (events - jankEvents) * 1e9 / smoothNanos;
+    }
+
+    /* One line summary, e.g. for an overlay */
+    public String summary() {
+        return String.format("%d frames  jank %d (%.1f%%)  p50 %dms  p95 %dms  max %dms",
+                frames, jankFrames, frames == 0 ? 0 : jankFrames * 100.0 / frames,
+                getPercentileMs(0.5), getPercentileMs(0.95), maxNanos / 1000000);
+    }
+
+    /* Multi-line dump of the summary, the event correlation and the non-empty buckets */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(summary()).append('\n');
+        sb.append(String.format("p99 %dms\n", getPercentileMs(0.99)));
+        sb.append(String.format("events/s  jank frames %.0f  other frames %.0f\n",
+                getJankEventRate(), getSmoothEventRate()));
+        for (int ms = 0; ms <= MAX_MS; ms++) {
+            if (buckets[ms] == 0) {
+                continue;
+            }
+            sb.append(String.format("%s%3d ms %6d\n", ms == MAX_MS ? ">=" : "  ", ms, buckets[ms]));
+        }
+        return sb.toString();
+    }
+}
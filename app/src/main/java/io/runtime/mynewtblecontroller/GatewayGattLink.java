@@ -0,0 +1,366 @@
+package io.runtime.mynewtblecontroller;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GattLink to a board behind a network gateway, over a {@link GatewaySelector} connection.
+ * Exposes the GPIO service like {@link SimulatedGattLink} and turns the gateway's
+ * responses and notifications into BluetoothGattCallback calls, on the selector thread.
+ * Connect to an address of the form {@code tcp://host:port} to use it, with the host an IP
+ * address so that connecting never waits for a name lookup. Host names are refused, as the
+ * link is connected on the UI thread.
+ */
+public class GatewayGattLink implements GattLink {
+    public static final String ADDRESS_PREFIX = "tcp://";
+    public static final int DEFAULT_PORT = 6540;
+
+    private static final UUID UUID_CCC = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final GatewaySelector mSelector;
+    /* The gateway, null if its address is not an IP address and port */
+    private final InetSocketAddress mAddress;
+    private final BluetoothGattCallback mCallback;
+
+    private final BluetoothGattService mGpioService;
+    private final BluetoothGattCharacteristic mInstrChr;
+    private final BluetoothGattCharacteristic mNotifyChr;
+    private volatile GatewaySelector.Connection mConnection;
+    /* Events of the current connection, those of earlier ones are dropped */
+    private volatile Events mEvents;
+    private volatile boolean mConnected;
+    private volatile boolean mNotifying;
+    private volatile boolean mClosed;
+
+    /* Whether connect() should go through a gateway for this address */
+    public static boolean isGatewayAddress(String address) {
+        return address != null && address.startsWith(ADDRESS_PREFIX);
+    }
+
+    /**
+     * @param selector The selector thread serving the gateway connections
+     * @param address The gateway, {@code tcp://host[:port]}, host an IPv4 address or a
+     *                bracketed IPv6 one
+     * @param callback Receives the results
+     */
+    public GatewayGattLink(GatewaySelector selector, String address,
+                           BluetoothGattCallback callback) {
+        mSelector = selector;
+        mCallback = callback;
+        final String hostPort = address.substring(ADDRESS_PREFIX.length());
+        final int colon = hostPort.lastIndexOf(':');
+        if (colon < 0 || colon < hostPort.lastIndexOf(']')) {
+            mAddress = toSocketAddress(hostPort, DEFAULT_PORT);
+        } else {
+            mAddress = toSocketAddress(hostPort.substring(0, colon),
+                    parsePort(hostPort.substring(colon + 1)));
+        }
+
+        mGpioService = new BluetoothGattService(
+                GpioCharacteristics.SERVICE_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mInstrChr = new BluetoothGattCharacteristic(
+                GpioCharacteristics.INSTR_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        mNotifyChr = new BluetoothGattCharacteristic(
+                GpioCharacteristics.NOTIFY_UUID,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+        mNotifyChr.addDescriptor(new BluetoothGattDescriptor(UUID_CCC,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        mGpioService.addCharacteristic(mInstrChr);
+        mGpioService.addCharacteristic(mNotifyChr);
+    }
+
+    /* The port, or -1 if it is not one */
+    private static int parsePort(String port) {
+        try {
+            final int p = Integer.parseInt(port);
+            return p > 0 && p <= 0xffff ? p : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /* The address of a literal IP host, or null for a host name or a bad port */
+    private static InetSocketAddress toSocketAddress(String host, int port) {
+        if (port < 0) {
+            return null;
+        }
+        // Parsed here, as InetAddress would look up anything it cannot parse
+        final byte[] ip;
+        if (host.startsWith("[") && host.endsWith("]")) {
+            ip = parseIpv6(host.substring(1, host.length() - 1));
+        } else {
+            ip = parseIpv4(host);
+        }
+        if (ip == null) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /* The 4 bytes of a dotted quad, or null if it is not one */
+    private static byte[] parseIpv4(String host) {
+        final String[] parts = host.split("\\.", -1);
+        if (parts.length != 4) {
+            return null;
+        }
+        final byte[] ip = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            final int b = parseNumber(parts[i], 10, 3);
+            if (b < 0 || b > 0xff) {
+                return null;
+            }
+            ip[i] = (byte) b;
+        }
+        return ip;
+    }
+
+    /* The 16 bytes of an IPv6 address, or null if it is not one */
+    private static byte[] parseIpv6(String host) {
+        final int gap = host.indexOf("::");
+        if (gap >= 0 && host.indexOf("::", gap + 1) >= 0) {
+            return null;
+        }
+        final byte[] head = parseIpv6Groups(gap < 0 ? host : host.substring(0, gap), gap < 0);
+        final byte[] tail = gap < 0 ? new byte[0] : parseIpv6Groups(host.substring(gap + 2), true);
+        if (head == null || tail == null) {
+            return null;
+        }
+        // Without a gap all 8 groups are given, a gap stands for at least one
+        final int given = head.length + tail.length;
+        if (gap < 0 ? given != 16 : given > 14) {
+            return null;
+        }
+        final byte[] ip = new byte[16];
+        System.arraycopy(head, 0, ip, 0, head.length);
+        System.arraycopy(tail, 0, ip, 16 - tail.length, tail.length);
+        return ip;
+    }
+
+    /* Colon separated hex groups, the last may be a dotted quad if it ends the address */
+    private static byte[] parseIpv6Groups(String groups, boolean last) {
+        if (groups.isEmpty()) {
+            return new byte[0];
+        }
+        final String[] parts = groups.split(":", -1);
+        final byte[] bytes = new byte[parts.length * 2 + 2];
+        int len = 0;
+        for (int i = 0; i < parts.length; i++) {
+            if (last && i == parts.length - 1 && parts[i].indexOf('.') >= 0) {
+                final byte[] ipv4 = parseIpv4(parts[i]);
+                if (ipv4 == null) {
+                    return null;
+                }
+                System.arraycopy(ipv4, 0, bytes, len, 4);
+                len += 4;
+                break;
+            }
+            final int group = parseNumber(parts[i], 16, 4);
+            if (group < 0) {
+                return null;
+            }
+            bytes[len++] = (byte) (group >> 8);
+            bytes[len++] = (byte) group;
+        }
+        final byte[] result = new byte[len];
+        System.arraycopy(bytes, 0, result, 0, len);
+        return result;
+    }
+
+    /* A number of 1 to maxDigits digits, no sign, or -1 */
+    private static int parseNumber(String digits, int radix, int maxDigits) {
+        if (digits.isEmpty() || digits.length() > maxDigits) {
+            return -1;
+        }
+        int n = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            final int d = Character.digit(digits.charAt(i), radix);
+            if (d < 0) {
+                return -1;
+            }
+            n = n * radix + d;
+        }
+        return n;
+    }
+
+    private class Events implements GatewaySelector.Listener {
+        @Override
+        public void onConnected(GatewaySelector.Connection connection) {
+            if (this != mEvents || mClosed) {
+                return;
+            }
+            mConnected = true;
+            mCallback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS,
+                    BluetoothProfile.STATE_CONNECTED);
+        }
+
+        @Override
+        public void onClosed(GatewaySelector.Connection connection, IOException e) {
+            if (this != mEvents || mClosed) {
+                return;
+            }
+            mConnected = false;
+            mNotifying = false;
+            mCallback.onConnectionStateChange(null,
+                    e == null ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE,
+                    BluetoothProfile.STATE_DISCONNECTED);
+        }
+
+        @Override
+        public void onWriteResponse(GatewaySelector.Connection connection, int status) {
+            if (this != mEvents) {
+                return;
+            }
+            mCallback.onCharacteristicWrite(null, mInstrChr, status == GatewaySelector.STATUS_OK
+                    ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+        }
+
+        @Override
+        public void onReadResponse(GatewaySelector.Connection connection, int status,
+                                   byte[] value) {
+            if (this != mEvents) {
+                return;
+            }
+            if (status != GatewaySelector.STATUS_OK) {
+                mCallback.onCharacteristicRead(null, mInstrChr, BluetoothGatt.GATT_FAILURE);
+                return;
+            }
+            mInstrChr.setValue(value);
+            mCallback.onCharacteristicRead(null, mInstrChr, BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onNotification(GatewaySelector.Connection connection, byte[] value) {
+            if (this != mEvents || !mNotifying) {
+                return;
+            }
+            mNotifyChr.setValue(value);
+            mCallback.onCharacteristicChanged(null, mNotifyChr);
+        }
+    }
+
+    @Override
+    public boolean connect() {
+        final GatewaySelector.Connection cur = mConnection;
+        if (mClosed || mAddress == null || (cur != null && !cur.isClosed())) {
+            return false;
+        }
+        // Current before the connection can report anything
+        final Events events = new Events();
+        mEvents = events;
+        try {
+            mConnection = mSelector.connect(mAddress, events);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        final GatewaySelector.Connection cur = mConnection;
+        if (cur != null) {
+            cur.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mConnected = false;
+        disconnect();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!mConnected) {
+            return false;
+        }
+        // The gateway only carries the GPIO service
+        mSelector.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onServicesDiscovered(null, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return Collections.singletonList(mGpioService);
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        return mGpioService.getUuid().equals(uuid) ? mGpioService : null;
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final GatewaySelector.Connection cur = mConnection;
+        return mConnected && cur != null && characteristic == mInstrChr
+                && cur.read();
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final GatewaySelector.Connection cur = mConnection;
+        return mConnected && cur != null && characteristic == mInstrChr
+                && cur.write(characteristic.getValue());
+    }
+
+    @Override
+    public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+        if (!mConnected) {
+            return false;
+        }
+        // The gateway always forwards notifications, they are filtered here
+        mSelector.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onDescriptorWrite(null, descriptor, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enable) {
+        if (characteristic != mNotifyChr) {
+            return false;
+        }
+        mNotifying = enable;
+        return true;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        // The radio link is the gateway's
+        return false;
+    }
+
+    @Override
+    public boolean setPreferredPhy(int phy) {
+        return false;
+    }
+}
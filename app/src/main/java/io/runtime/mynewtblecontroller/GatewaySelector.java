@@ -0,0 +1,402 @@
+package io.runtime.mynewtblecontroller;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connections to network-attached GPIO gateways, all served by one selector thread over
+ * non-blocking socket channels. A gateway speaks the instruction protocol of the GPIO
+ * service, carried in frames of a 3 byte header, the type and the little-endian payload
+ * length, followed by the payload:
+ *   TYPE_WRITE:     value to write to the instruction characteristic, a GpioPin
+ *                   instruction or a GpioPortInstr
+ *   TYPE_WRITE_RSP: u8 status
+ *   TYPE_READ:      empty, reads the instruction characteristic
+ *   TYPE_READ_RSP:  u8 status, then the value read
+ *   TYPE_NOTIFY:    value of a notification of the notify characteristic
+ * Responses come in the order of the requests.
+ *
+ * Frames are appended to a direct buffer per connection from any thread and flushed by the
+ * selector thread, so frames queued between two turns of the selector go out in one write.
+ * Listeners are called on the selector thread and must not block. A listener throwing only
+ * closes its own connection.
+ */
+public class GatewaySelector {
+    public static final int TYPE_WRITE = 1;
+    public static final int TYPE_WRITE_RSP = 2;
+    public static final int TYPE_READ = 3;
+    public static final int TYPE_READ_RSP = 4;
+    public static final int TYPE_NOTIFY = 5;
+
+    public static final int STATUS_OK = 0;
+    public static final int HEADER_LENGTH = 3;
+    public static final int MAX_PAYLOAD = 512;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /* Events of one connection, on the selector thread */
+    public interface Listener {
+        void onConnected(Connection connection);
+
+        /* e is null if close() was called */
+        void onClosed(Connection connection, IOException e);
+
+        void onWriteResponse(Connection connection, int status);
+
+        void onReadResponse(Connection connection, int status, byte[] value);
+
+        void onNotification(Connection connection, byte[] value);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    /* Work handed to the selector thread: registrations, flushes and closes */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+    private volatile int connectionCount;
+
+    public GatewaySelector() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "GatewaySelector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start connecting to a gateway; the listener hears onConnected() or onClosed().
+     *
+     * @param address The gateway
+     * @param listener Receives the connection's events
+     * @return The connection, which takes writes and reads right away
+     * @throws IOException If the connection could not be started
+     */
+    public Connection connect(SocketAddress address, Listener listener) throws IOException {
+        if (!running) {
+            throw new ClosedChannelException();
+        }
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        final Connection connection = new Connection(channel, listener);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                connection.register();
+            }
+        });
+        return connection;
+    }
+
+    /* Run a task on the selector thread, a task throwing is dropped */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /* Connections registered and not yet closed */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /* Close every connection and stop the selector thread */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                runTasks();
+                selector.select();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Connection) key.attachment()).onReady(key);
+                }
+            }
+        } catch (IOException e) {
+            // The selector itself failed, nothing more can be served
+        }
+        running = false;
+        // Connections still waiting to be registered are closed by their registration
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((Connection) key.attachment()).fail(null);
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // Stopping anyway
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // A bug in the task, the selector keeps serving the others
+            }
+        }
+    }
+
+    /* One gateway connection */
+    public final class Connection {
+        private final SocketChannel channel;
+        private final Listener listener;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        /* Frames not yet written, guarded by this */
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private boolean flushQueued;
+        private volatile boolean closed;
+        private volatile long framesSent;
+        private volatile long writeCalls;
+
+        private final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        private Connection(SocketChannel channel, Listener listener) {
+            this.channel = channel;
+            this.listener = listener;
+        }
+
+        /**
+         * Queue a write of the instruction characteristic, answered by onWriteResponse().
+         *
+         * @return false if the connection is closed or too far behind
+         */
+        public boolean write(byte[] value) {
+            return send(TYPE_WRITE, value);
+        }
+
+        /**
+         * Queue a read of the instruction characteristic, answered by onReadResponse().
+         *
+         * @return false if the connection is closed or too far behind
+         */
+        public boolean read() {
+            return send(TYPE_READ, null);
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /* Frames queued so far, and the writes to the socket it took to send them */
+        public long getFramesSent() {
+            return framesSent;
+        }
+
+        public long getWriteCalls() {
+            return writeCalls;
+        }
+
+        /* Close the connection, the listener hears onClosed() */
+        public void close() {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    fail(null);
+                }
+            });
+        }
+
+        private boolean send(int type, byte[] value) {
+            final int length = value == null ? 0 : value.length;
+            if (length > MAX_PAYLOAD) {
+                throw new IllegalArgumentException("Value too long: " + length);
+            }
+            synchronized (this) {
+                if (closed || out.remaining() < HEADER_LENGTH + length) {
+                    return false;
+                }
+                out.put((byte) type).putShort((short) length);
+                if (value != null) {
+                    out.put(value);
+                }
+                framesSent++;
+                if (flushQueued) {
+                    // Goes out with the frames already waiting
+                    return true;
+                }
+                flushQueued = true;
+            }
+            execute(flush);
+            return true;
+        }
+
+        /* On the selector thread from here on */
+
+        private void register() {
+            if (!running) {
+                // Connected while shutting down
+                fail(null);
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            try {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                connectionCount++;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void onReady(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (!channel.finishConnect()) {
+                        return;
+                    }
+                    listener.onConnected(this);
+                    updateInterest();
+                    return;
+                }
+                if (key.isReadable()) {
+                    receive();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(new IOException("Listener failed", e));
+            }
+        }
+
+        private void receive() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("Gateway closed the connection");
+            }
+            in.flip();
+            while (in.remaining() >= HEADER_LENGTH) {
+                final int type = in.get(in.position()) & 0xff;
+                final int length = in.getShort(in.position() + 1) & 0xffff;
+                if (length > MAX_PAYLOAD) {
+                    throw new IOException("Gateway frame too long: " + length);
+                }
+                if (in.remaining() < HEADER_LENGTH + length) {
+                    break;
+                }
+                in.position(in.position() + HEADER_LENGTH);
+                dispatch(type, length);
+            }
+            in.compact();
+        }
+
+        private void dispatch(int type, int length) throws IOException {
+            switch (type) {
+                case TYPE_WRITE_RSP:
+                case TYPE_READ_RSP:
+                    if (length < 1) {
+                        throw new IOException("Gateway response without status");
+                    }
+                    final int status = in.get() & 0xff;
+                    if (type == TYPE_WRITE_RSP) {
+                        in.position(in.position() + length - 1);
+                        listener.onWriteResponse(this, status);
+                    } else {
+                        listener.onReadResponse(this, status, take(length - 1));
+                    }
+                    break;
+                case TYPE_NOTIFY:
+                    listener.onNotification(this, take(length));
+                    break;
+                default:
+                    // From a newer gateway
+                    in.position(in.position() + length);
+                    break;
+            }
+        }
+
+        private byte[] take(int length) {
+            final byte[] value = new byte[length];
+            in.get(value);
+            return value;
+        }
+
+        private void flush() {
+            if (closed || key == null || !channel.isConnected()) {
+                // Sent once connected
+                return;
+            }
+            try {
+                synchronized (this) {
+                    out.flip();
+                    if (out.hasRemaining()) {
+                        channel.write(out);
+                        writeCalls++;
+                    }
+                    out.compact();
+                    // A full socket leaves the rest for OP_WRITE
+                    flushQueued = out.position() > 0;
+                }
+                updateInterest();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void updateInterest() {
+            final boolean pending;
+            synchronized (this) {
+                pending = out.position() > 0;
+            }
+            key.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+        }
+
+        private void fail(IOException e) {
+            if (closed) {
+                return;
+            }
+            synchronized (this) {
+                closed = true;
+            }
+            if (key != null) {
+                key.cancel();
+                connectionCount--;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+            try {
+                listener.onClosed(this, e);
+            } catch (RuntimeException ignored) {
+                // Closed either way
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.runtime.mynewtblecontroller;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The GATT client operations BluetoothLeService issues on a connection. Results are
+ * reported asynchronously through the service's BluetoothGattCallback, exactly as
+ * {@code BluetoothGatt} does. Implemented by {@link BluetoothGattLink} for real devices and
+ * {@link SimulatedGattLink} for the simulated peripheral.
+ */
+public interface GattLink {
+    /**
+     * Implemented by callbacks that take PHY updates. BluetoothGattCallback only has
+     * onPhyUpdate() from API 26, which the app does not compile against; a callback
+     * declaring it still receives it from the stack on those versions.
+     */
+    interface PhyCallback {
+        void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status);
+    }
+
+    boolean connect();
+
+    void disconnect();
+
+    void close();
+
+    boolean discoverServices();
+
+    List<BluetoothGattService> getServices();
+
+    BluetoothGattService getService(UUID uuid);
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                          boolean enable);
+
+    /* Answered by onReadRemoteRssi() */
+    boolean readRemoteRssi();
+
+    /**
+     * Ask for a PHY, in both directions, answered by PhyCallback.onPhyUpdate().
+     *
+     * @param phy One of the LinkQualityMonitor.PHY_LE_* constants
+     * @return false if the link cannot change PHY
+     */
+    boolean setPreferredPhy(int phy);
+}
@@ -0,0 +1,165 @@
+package io.runtime.mynewtblecontroller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary trace of the GATT traffic of a connection: the callbacks BluetoothLeService
+ * receives and the operations it issues, with their timing, so that a capture from the
+ * field can be replayed offline (see GattTraceReplay).
+ *
+ * File layout: the magic "GTRC" and a version byte, followed by records of
+ *   type (1 byte), time since the previous record in microseconds (unsigned varint),
+ *   status (1 byte), value length (unsigned varint), value bytes.
+ * A connection state record carries the new state as its one byte value.
+ */
+public class GattTrace {
+    public static final int MAGIC = 0x47545243; // "GTRC"
+    public static final int VERSION = 1;
+
+    /* Callbacks received */
+    public static final int EV_CONNECTION_STATE = 1;
+    public static final int EV_SERVICES_DISCOVERED = 2;
+    public static final int EV_READ = 3;
+    public static final int EV_WRITE = 4;
+    public static final int EV_DESCRIPTOR_WRITE = 5;
+    public static final int EV_CHANGED = 6;
+    /* Operations issued */
+    public static final int OP_WRITE = 0x81;
+    public static final int OP_READ = 0x82;
+    public static final int OP_DESCRIPTOR_WRITE = 0x83;
+
+    /* Whether a record type is an operation issued rather than a callback received */
+    public static boolean isOutbound(int type) {
+        return (type & 0x80) != 0;
+    }
+
+    /**
+     * Appends records to a trace. Records may come from several threads; they are written
+     * in the order record() is called.
+     */
+    public static class Writer {
+        private final OutputStream out;
+        private long lastNanos;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new BufferedOutputStream(out);
+            writeInt(MAGIC);
+            this.out.write(VERSION);
+            lastNanos = System.nanoTime();
+        }
+
+        /**
+         * Record an event, timestamped now.
+         *
+         * @param type EV_* or OP_*
+         * @param status The GATT status, 0 if the type has none
+         * @param value The characteristic or descriptor value, null if none
+         */
+        public synchronized void record(int type, int status, byte[] value) throws IOException {
+            long now = System.nanoTime();
+            out.write(type);
+            writeVarint((now - lastNanos) / 1000);
+            lastNanos = now;
+            out.write(status);
+            int length = value == null ? 0 : value.length;
+            writeVarint(length);
+            if (length > 0) {
+                out.write(value, 0, length);
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+
+        private void writeInt(int v) throws IOException {
+            out.write(v >>> 24);
+            out.write(v >>> 16);
+            out.write(v >>> 8);
+            out.write(v);
+        }
+
+        private void writeVarint(long v) throws IOException {
+            while ((v & ~0x7fL) != 0) {
+                out.write((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+    }
+
+    /**
+     * Reads a trace one record at a time. After next() returns true the fields describe the
+     * record; value is a new array per record.
+     */
+    public static class Reader {
+        private final InputStream in;
+
+        public int type;
+        /* Microseconds since the start of the trace */
+        public long timeMicros;
+        public int status;
+        public byte[] value;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new BufferedInputStream(in);
+            int magic = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+            if (magic != MAGIC) {
+                throw new IOException("Not a GATT trace");
+            }
+            int version = readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported GATT trace version " + version);
+            }
+        }
+
+        /* Read the next record, false at the end of the trace */
+        public boolean next() throws IOException {
+            int t = in.read();
+            if (t < 0) {
+                return false;
+            }
+            type = t;
+            timeMicros += readVarint();
+            status = readByte();
+            value = new byte[(int) readVarint()];
+            int off = 0;
+            while (off < value.length) {
+                int n = in.read(value, off, value.length - off);
+                if (n < 0) {
+                    throw new EOFException("Truncated GATT trace record");
+                }
+                off += n;
+            }
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated GATT trace");
+            }
+            return b;
+        }
+
+        private long readVarint() throws IOException {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package io.runtime.mynewtblecontroller;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Replays a recorded GattTrace through GpioEventHandler, the event handling
+ * BluetoothLeService uses, on a plain JVM. The trace is loaded up front so that only the
+ * handling is timed. It can be replayed at the recorded speed, a multiple of it, or as fast
+ * as possible to measure throughput, e.g. from a unit test or from the command line:
+ *
+ *   java io.runtime.mynewtblecontroller.GattTraceReplay capture.gtrace [speed]
+ */
+public class GattTraceReplay {
+    /* Replay speed that ignores the recorded timing */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /* What a replay did and how long it took */
+    public static class Result {
+        /* Callbacks replayed, and those of them fed through the event handler */
+        public int events;
+        public int handledEvents;
+        /* Operations the service issued while recording */
+        public int recordedOps;
+        /* Pin updates delivered to the UI, in total and by message */
+        public int uiUpdates;
+        public final int[] uiUpdatesByMsg = new int[GpioEventHandler.MSG_ANALOG_SAMPLES + 1];
+        /* Reads requested and operations completed by the handler */
+        public int pinReads;
+        public int opCompletes;
+        /* Values the handler dropped as too short to decode */
+        public long malformed;
+        /* Time spent in the handler, and in the whole replay including waits */
+        public long handlingNanos;
+        public long wallNanos;
+        /* Duration of the recording */
+        public long recordedMicros;
+
+        public double getEventsPerSecond() {
+            return handlingNanos == 0 ? 0 : handledEvents * 1e9 / handlingNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d events (%d handled) in %.3f ms, %.0f events/s, "
+                            + "%d UI updates, %d reads, %d ops completed (%d recorded), "
+                            + "recorded %.3f s, replayed %.3f s",
+                    events, handledEvents, handlingNanos / 1e6, getEventsPerSecond(),
+                    uiUpdates, pinReads, opCompletes, recordedOps,
+                    recordedMicros / 1e6, wallNanos / 1e9);
+        }
+    }
+
+    private int[] types = new int[64];
+    private long[] times = new long[64];
+    private int[] statuses = new int[64];
+    private byte[][] values = new byte[64][];
+    private int count;
+    private PinStateRegion pinState;
+
+    private GattTraceReplay() {
+    }
+
+    /* Load a whole trace into memory */
+    public static GattTraceReplay load(InputStream in) throws IOException {
+        GattTraceReplay replay = new GattTraceReplay();
+        GattTrace.Reader reader = new GattTrace.Reader(in);
+        try {
+            while (reader.next()) {
+                replay.add(reader.type, reader.timeMicros, reader.status, reader.value);
+            }
+        } finally {
+            reader.close();
+        }
+        return replay;
+    }
+
+    private void add(int type, long timeMicros, int status, byte[] value) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            times = Arrays.copyOf(times, capacity);
+            statuses = Arrays.copyOf(statuses, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        types[count] = type;
+        times[count] = timeMicros;
+        statuses[count] = status;
+        values[count] = value;
+        count++;
+    }
+
+    /* Number of records in the trace */
+    public int size() {
+        return count;
+    }
+
+    /* The pin state left by the last replay */
+    public PinStateRegion getPinState() {
+        return pinState;
+    }
+
+    /**
+     * Replay the trace into a fresh pin state.
+     *
+     * @param speed 1 for the recorded timing, 2 for twice as fast, etc., or
+     *              AS_FAST_AS_POSSIBLE
+     * @return What the replay did
+     */
+    public Result run(double speed) throws InterruptedException {
+        final Result result = new Result();
+        pinState = PinStateRegion.createInMemory();
+        GpioEventHandler handler = new GpioEventHandler(pinState, new GpioEventHandler.Output() {
+            @Override
+            public void dispatchPinUpdate(int what, int arg1, int arg2) {
+                result.uiUpdates++;
+                result.uiUpdatesByMsg[what]++;
+            }
+
+            @Override
+            public void readPin(int instr) {
+                // The read's completion is the trace's next EV_READ
+                result.pinReads++;
+            }
+
+            @Override
+            public void opComplete() {
+                result.opCompletes++;
+            }
+        });
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (speed > 0) {
+                waitUntil(start + (long) (times[i] * 1000 / speed));
+            }
+            int type = types[i];
+            if (GattTrace.isOutbound(type)) {
+                result.recordedOps++;
+                continue;
+            }
+            result.events++;
+            long t0 = System.nanoTime();
+            switch (type) {
+                case GattTrace.EV_WRITE:
+                    handler.onWrite(statuses[i], values[i]);
+                    break;
+                case GattTrace.EV_READ:
+                    handler.onRead(statuses[i], values[i]);
+                    break;
+                case GattTrace.EV_CHANGED:
+                    handler.onChanged(values[i]);
+                    break;
+                default:
+                    // Connection and discovery events only drive the UI flow
+                    continue;
+            }
+            result.handlingNanos += System.nanoTime() - t0;
+            result.handledEvents++;
+        }
+        result.malformed = handler.getMalformedCount();
+        result.wallNanos = System.nanoTime() - start;
+        result.recordedMicros = count == 0 ? 0 : times[count - 1];
+        return result;
+    }
+
+    private static void waitUntil(long deadlineNanos) throws InterruptedException {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining > 2000000) {
+            // Sleep most of the way, then spin for accuracy
+            Thread.sleep((remaining - 1000000) / 1000000);
+        }
+        while (System.nanoTime() < deadlineNanos) {
+            Thread.yield();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: GattTraceReplay <trace> [speed, 0 = as fast as possible]");
+            System.exit(2);
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : AS_FAST_AS_POSSIBLE;
+        GattTraceReplay replay = load(new FileInputStream(args[0]));
+        System.out.println(replay.run(speed));
+    }
+}
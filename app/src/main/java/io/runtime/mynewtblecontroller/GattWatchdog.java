@@ -0,0 +1,97 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Deadline bookkeeping for the one GATT operation BluetoothLeService has outstanding. Some
+ * stacks occasionally never deliver the completion callback of a read or write, which would
+ * otherwise leave the instruction queue blocked for good.
+ *
+ * The service calls {@link #start(long)} when it issues an operation, {@link #restart(long)}
+ * when it re-issues it or follows a write up with a read, and {@link #complete()} when the
+ * callback arrives. When the deadline passes, {@link #check(long)} says how to recover:
+ * retry the operation up to maxRetries times, then either reconnect or give up on the
+ * operation and move on. Times are in milliseconds on any monotonic clock.
+ */
+public class GattWatchdog {
+    /* Recovery actions returned by check() */
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_RETRY = 1;
+    public static final int ACTION_RECONNECT = 2;
+    public static final int ACTION_GIVE_UP = 3;
+
+    /* How long an operation may take before it is considered lost */
+    public long opTimeoutMs = 2000;
+    /* How many times a timed out operation is re-issued before escalating */
+    public int maxRetries = 1;
+    /* Whether to reconnect after the retries, rather than drop the operation */
+    public boolean reconnectOnStall = true;
+
+    private boolean armed;
+    private long deadline;
+    private int attempts;
+    private int timeouts;
+    private int stalls;
+
+    /* A new operation has been issued */
+    public synchronized void start(long now) {
+        armed = true;
+        attempts = 0;
+        deadline = now + opTimeoutMs;
+    }
+
+    /* The outstanding operation was re-issued or continued, e.g. by its follow-up read */
+    public synchronized void restart(long now) {
+        armed = true;
+        deadline = now + opTimeoutMs;
+    }
+
+    /* The outstanding operation has completed, successfully or not */
+    public synchronized void complete() {
+        armed = false;
+    }
+
+    public synchronized boolean isArmed() {
+        return armed;
+    }
+
+    /* When the outstanding operation times out */
+    public synchronized long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Check the outstanding operation against its deadline.
+     *
+     * @param now The current time
+     * @return ACTION_NONE if nothing is outstanding or the deadline has not passed yet,
+     *         otherwise the recovery action to take
+     */
+    public synchronized int check(long now) {
+        if (!armed || now < deadline) {
+            return ACTION_NONE;
+        }
+        timeouts++;
+        if (attempts < maxRetries) {
+            attempts++;
+            deadline = now + opTimeoutMs;
+            return ACTION_RETRY;
+        }
+        armed = false;
+        stalls++;
+        return reconnectOnStall ? ACTION_RECONNECT : ACTION_GIVE_UP;
+    }
+
+    /* Retries of the outstanding operation so far */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /* Timeouts seen so far, including those recovered by a retry */
+    public synchronized int getTimeoutCount() {
+        return timeouts;
+    }
+
+    /* Operations whose retries all timed out */
+    public synchronized int getStallCount() {
+        return stalls;
+    }
+}
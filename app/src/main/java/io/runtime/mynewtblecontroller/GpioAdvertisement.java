@@ -0,0 +1,127 @@
+package io.runtime.mynewtblecontroller;
+
+import java.util.UUID;
+
+/**
+ * Finds the GPIO state field in advertising data, so that input levels can be watched
+ * without connecting. Boards put the field in service data of the GPIO service (AD type
+ * 0x21, 128-bit UUID), or in manufacturer specific data (AD type 0xFF) after the company ID
+ * and the "GP" marker. The field is little-endian:
+ *   u8  sequence, bumped by the board whenever a level changes
+ *   then for each advertised port: u8 port, u32 input levels
+ *
+ * Nothing is copied or allocated: find() returns where the field lies in the scan record,
+ * packed into an int, and the getters read from the record in place.
+ */
+public final class GpioAdvertisement {
+    public static final int AD_MANUFACTURER_DATA = 0xff;
+    public static final int AD_SERVICE_DATA_128 = 0x21;
+    /* Reserved by the Bluetooth SIG for testing, until boards have an ID of their own */
+    public static final int COMPANY_ID = 0xffff;
+    private static final int MARKER_G = 'G';
+    private static final int MARKER_P = 'P';
+
+    /* The GPIO service UUID as it appears in advertising data, least significant byte first */
+    private static final byte[] SERVICE_UUID_LE = new byte[16];
+
+    static {
+        final UUID uuid = GpioCharacteristics.SERVICE_UUID;
+        long lsb = uuid.getLeastSignificantBits();
+        long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            SERVICE_UUID_LE[i] = (byte) (lsb >>> (i * 8));
+            SERVICE_UUID_LE[i + 8] = (byte) (msb >>> (i * 8));
+        }
+    }
+
+    public static final int NOT_FOUND = -1;
+    private static final int PORT_ENTRY_LENGTH = 5;
+
+    private GpioAdvertisement() {
+    }
+
+    /**
+     * Look for the GPIO state field in a scan record.
+     *
+     * @param record The advertising data, as passed to LeScanCallback.onLeScan()
+     * @return The field's offset in the record shifted left by 8, or'ed with its length, or
+     *         NOT_FOUND if the record has none or is malformed
+     */
+    public static int find(byte[] record) {
+        if (record == null) {
+            return NOT_FOUND;
+        }
+        int p = 0;
+        while (p < record.length) {
+            final int length = record[p] & 0xff;
+            if (length == 0) {
+                // Zero padding fills the rest of the record
+                break;
+            }
+            final int end = p + 1 + length;
+            if (end > record.length) {
+                return NOT_FOUND;
+            }
+            final int type = record[p + 1] & 0xff;
+            final int data = p + 2;
+            if (type == AD_SERVICE_DATA_128 && length - 1 >= 16
+                    && regionMatches(record, data, SERVICE_UUID_LE)) {
+                return checkField(data + 16, end);
+            }
+            if (type == AD_MANUFACTURER_DATA && length - 1 >= 4
+                    && getShort(record, data) == COMPANY_ID
+                    && record[data + 2] == MARKER_G && record[data + 3] == MARKER_P) {
+                return checkField(data + 4, end);
+            }
+            p = end;
+        }
+        return NOT_FOUND;
+    }
+
+    /* The marker following the company ID in manufacturer data, to filter scans with */
+    public static byte[] getManufacturerMarker() {
+        return new byte[] { MARKER_G, MARKER_P };
+    }
+
+    private static int checkField(int offset, int end) {
+        final int length = end - offset;
+        if (length < 1 + PORT_ENTRY_LENGTH || (length - 1) % PORT_ENTRY_LENGTH != 0) {
+            return NOT_FOUND;
+        }
+        return offset << 8 | length;
+    }
+
+    private static boolean regionMatches(byte[] record, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (record[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* The board's sequence number of the state */
+    public static int getSequence(byte[] record, int field) {
+        return record[field >>> 8] & 0xff;
+    }
+
+    /* The number of ports advertised */
+    public static int getPortCount(int field) {
+        return ((field & 0xff) - 1) / PORT_ENTRY_LENGTH;
+    }
+
+    /* The number of the index'th port advertised */
+    public static int getPort(byte[] record, int field, int index) {
+        return record[(field >>> 8) + 1 + index * PORT_ENTRY_LENGTH] & 0xff;
+    }
+
+    /* The input levels of the index'th port advertised, bit n for pin n of the port */
+    public static int getLevels(byte[] record, int field, int index) {
+        final int p = (field >>> 8) + 2 + index * PORT_ENTRY_LENGTH;
+        return getShort(record, p) | getShort(record, p + 2) << 16;
+    }
+
+    private static int getShort(byte[] b, int p) {
+        return (b[p] & 0xff) | ((b[p + 1] & 0xff) << 8);
+    }
+}
@@ -0,0 +1,56 @@
+package io.runtime.mynewtblecontroller;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.UUID;
+
+/**
+ * The GPIO service and its characteristics on one link, resolved once after service
+ * discovery so that writes never parse UUIDs or walk the service list. BluetoothLeService
+ * hands these out through getGpioCharacteristics() and drops them when the link
+ * disconnects, is replaced, or its services are discovered again.
+ */
+public class GpioCharacteristics {
+    public static final UUID SERVICE_UUID = UUID.fromString(DeviceControlActivity.UUID_GPIO_SVC);
+    public static final UUID INSTR_UUID = UUID.fromString(DeviceControlActivity.UUID_GPIO_CHR_INSTR);
+    public static final UUID NOTIFY_UUID = UUID.fromString(DeviceControlActivity.UUID_GPIO_CHR_NOTIFY);
+
+    /* The link generation (see ConnectionStateMachine) these were resolved on */
+    public final int generation;
+    public final BluetoothGattService service;
+    /* Written with GPIO instructions, read for input pin levels */
+    public final BluetoothGattCharacteristic instr;
+    /* Notifies input pin changes */
+    public final BluetoothGattCharacteristic notify;
+
+    private GpioCharacteristics(int generation, BluetoothGattService service,
+                                BluetoothGattCharacteristic instr,
+                                BluetoothGattCharacteristic notify) {
+        this.generation = generation;
+        this.service = service;
+        this.instr = instr;
+        this.notify = notify;
+    }
+
+    /**
+     * Look up the GPIO service and characteristics on a link whose services have been
+     * discovered.
+     *
+     * @param link The link
+     * @param generation The link's generation
+     * @return The resolved characteristics, or null if the device lacks any of them
+     */
+    public static GpioCharacteristics resolve(GattLink link, int generation) {
+        BluetoothGattService service = link.getService(SERVICE_UUID);
+        if (service == null) {
+            return null;
+        }
+        BluetoothGattCharacteristic instr = service.getCharacteristic(INSTR_UUID);
+        BluetoothGattCharacteristic notify = service.getCharacteristic(NOTIFY_UUID);
+        if (instr == null || notify == null) {
+            return null;
+        }
+        return new GpioCharacteristics(generation, service, instr, notify);
+    }
+}
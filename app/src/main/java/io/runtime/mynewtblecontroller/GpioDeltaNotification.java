@@ -0,0 +1,101 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Delta notifications on the notification characteristic, which report every input pin
+ * that changed since the previous notification in one payload instead of one single-pin
+ * notification (a 2 byte pin record, see GpioPin) per change.
+ *
+ * Layout:
+ *   0: TAG
+ *   then one 9 byte block per port with changes:
+ *     0: port, i.e. pin number / 32
+ *     1-4: changed pin mask, little endian, bit n is pin (port * 32 + n)
+ *     5-8: new levels of the port's pins, little endian, only valid for changed pins
+ *   then optionally a DeviceTimestamp of the changes
+ *
+ * The legacy single-pin format is 2 bytes long, so the two can't be confused.
+ */
+public class GpioDeltaNotification {
+    public static final int TAG = 0xd1;
+    public static final int HEADER_LENGTH = 1;
+    public static final int BLOCK_LENGTH = 9;
+
+    /* Whether a notification payload is in the delta format */
+    public static boolean isDelta(byte[] value) {
+        if (value == null || value.length < HEADER_LENGTH + BLOCK_LENGTH
+                || (value[0] & 0xff) != TAG) {
+            return false;
+        }
+        int trailer = (value.length - HEADER_LENGTH) % BLOCK_LENGTH;
+        return trailer == 0 || trailer == DeviceTimestamp.LENGTH;
+    }
+
+    /* Whether a delta notification ends with a DeviceTimestamp */
+    public static boolean hasTimestamp(byte[] value) {
+        return (value.length - HEADER_LENGTH) % BLOCK_LENGTH == DeviceTimestamp.LENGTH;
+    }
+
+    public static int getBlockCount(byte[] value) {
+        return (value.length - HEADER_LENGTH) / BLOCK_LENGTH;
+    }
+
+    public static int getPort(byte[] value, int block) {
+        return value[offset(block)] & 0xff;
+    }
+
+    public static int getChanged(byte[] value, int block) {
+        return getInt(value, offset(block) + 1);
+    }
+
+    public static int getLevels(byte[] value, int block) {
+        return getInt(value, offset(block) + 5);
+    }
+
+    /**
+     * Encode a delta notification, as the device would.
+     *
+     * @param changed Changed pin mask per port, NUM_PORTS entries; ports with no changes are
+     *                left out of the payload
+     * @param levels Levels per port
+     * @return The payload, or null if nothing changed
+     */
+    public static byte[] encode(int[] changed, int[] levels) {
+        int blocks = 0;
+        for (int mask : changed) {
+            if (mask != 0) {
+                blocks++;
+            }
+        }
+        if (blocks == 0) {
+            return null;
+        }
+        byte[] value = new byte[HEADER_LENGTH + blocks * BLOCK_LENGTH];
+        value[0] = (byte) TAG;
+        int block = 0;
+        for (int port = 0; port < changed.length; port++) {
+            if (changed[port] == 0) {
+                continue;
+            }
+            int off = offset(block++);
+            value[off] = (byte) port;
+            putInt(value, off + 1, changed[port]);
+            putInt(value, off + 5, levels[port]);
+        }
+        return value;
+    }
+
+    /* Helpers */
+    private static int offset(int block) {
+        return HEADER_LENGTH + block * BLOCK_LENGTH;
+    }
+    private static int getInt(byte[] value, int off) {
+        return (value[off] & 0xff) | ((value[off + 1] & 0xff) << 8)
+                | ((value[off + 2] & 0xff) << 16) | ((value[off + 3] & 0xff) << 24);
+    }
+    private static void putInt(byte[] value, int off, int v) {
+        value[off] = (byte) v;
+        value[off + 1] = (byte) (v >>> 8);
+        value[off + 2] = (byte) (v >>> 16);
+        value[off + 3] = (byte) (v >>> 24);
+    }
+}
@@ -0,0 +1,177 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Turns the values the GPIO characteristics report through the GATT callbacks into pin
+ * state updates. BluetoothLeService feeds it from its BluetoothGattCallback; it has no
+ * Android dependencies so that recorded GATT traces can be replayed through the same code
+ * on a JVM (see GattTraceReplay).
+ *
+ * Callbacks must be fed from one thread at a time, as the Bluetooth stack delivers them.
+ */
+public class GpioEventHandler {
+    /* Pin updates, see BluetoothLeService.setGpioHandler() */
+    public final static int MSG_INSTR_WRITTEN = 1;  // arg1: instruction
+    public final static int MSG_DATA_READ = 2;      // arg1: instruction, arg2: data
+    public final static int MSG_NOTIFICATION = 3;   // arg1: pin record
+    public final static int MSG_PORT_WRITTEN = 4;   // arg1: port << 8 | op, arg2: mask
+    public final static int MSG_PINS_CHANGED = 5;   // arg1: port, arg2: changed pin mask
+    /* 6 is BluetoothLeService.MSG_OP_TIMEOUT */
+    public final static int MSG_ANALOG_CONFIGURED = 7;  // arg1: analog instruction
+    public final static int MSG_ANALOG_SAMPLES = 8;     // arg1: channel, arg2: sample count
+
+    /* BluetoothGatt.GATT_SUCCESS */
+    public final static int GATT_SUCCESS = 0;
+
+    /* Where the results go */
+    public interface Output {
+        /* Deliver a pin update to the UI, data is -1 if the update has none */
+        void dispatchPinUpdate(int what, int arg1, int arg2);
+
+        /* An input pin's instruction was written, read its level to finish the operation */
+        void readPin(int instr);
+
+        /* The outstanding GATT operation has finished */
+        void opComplete();
+    }
+
+    private final PinStateRegion pinState;
+    private final AnalogChannels analog;
+    private final Output output;
+    /* The input instruction whose level is being read */
+    private int prevInstr;
+    /* Values too short to decode, dropped rather than reported */
+    private volatile long malformed;
+
+    public GpioEventHandler(PinStateRegion pinState, Output output) {
+        this(pinState, new AnalogChannels(), output);
+    }
+
+    public GpioEventHandler(PinStateRegion pinState, AnalogChannels analog, Output output) {
+        this.pinState = pinState;
+        this.analog = analog;
+        this.output = output;
+    }
+
+    /* Values dropped for being too short to hold an instruction or level */
+    public long getMalformedCount() {
+        return malformed;
+    }
+
+    /* Whether a value holds the UINT16 of a pin record, counting it if not */
+    private boolean isWellFormed(byte[] value) {
+        if (value == null || value.length < 2) {
+            malformed++;
+            return false;
+        }
+        return true;
+    }
+
+    /* Where analog samples are decoded to */
+    public AnalogChannels getAnalogChannels() {
+        return analog;
+    }
+
+    /**
+     * onCharacteristicWrite on the instruction characteristic. Output pins and port
+     * instructions are reported straight away, input pins are followed up with a read of
+     * the pin value.
+     *
+     * @param status The GATT status
+     * @param value The value that was written
+     */
+    public void onWrite(int status, byte[] value) {
+        if (status != GATT_SUCCESS) {
+            output.opComplete();
+            return;
+        }
+        if (GpioPortInstr.isPortInstr(value)) {
+            int op = GpioPortInstr.getOp(value);
+            int port = GpioPortInstr.getPort(value);
+            int mask = GpioPortInstr.getMask(value);
+            // Apply it to the output pins of the port in one update
+            pinState.applyPort(op, port, mask);
+            output.dispatchPinUpdate(MSG_PORT_WRITTEN, (port << 8) | op, mask);
+            output.opComplete();
+            return;
+        }
+        if (!isWellFormed(value)) {
+            output.opComplete();
+            return;
+        }
+        int instr = GpioPin.decodeUint16(value, 0);
+        if (GpioPin.isAnalog(instr)) {
+            // Nothing to read back, the samples follow as notifications
+            analog.configure(instr);
+            output.dispatchPinUpdate(MSG_ANALOG_CONFIGURED, instr, -1);
+            output.opComplete();
+        } else if (GpioPin.isOutput(instr)) {
+            updatePinState(instr, GpioPin.isHigh(instr));
+            output.dispatchPinUpdate(MSG_INSTR_WRITTEN, instr, -1);
+            output.opComplete();
+        } else {
+            // Remember the instruction to pair it with the value read
+            prevInstr = instr;
+            output.readPin(instr);
+        }
+    }
+
+    /**
+     * onCharacteristicRead on the instruction characteristic, following the write of an
+     * input pin's instruction.
+     *
+     * @param status The GATT status
+     * @param value The value read, the pin level
+     */
+    public void onRead(int status, byte[] value) {
+        if (status != GATT_SUCCESS) {
+            output.opComplete();
+            return;
+        }
+        if (!isWellFormed(value)) {
+            output.opComplete();
+            return;
+        }
+        int data = GpioPin.decodeUint16(value, 0);
+        updatePinState(prevInstr, data != 0);
+        output.dispatchPinUpdate(MSG_DATA_READ, prevInstr, data);
+        output.opComplete();
+    }
+
+    /**
+     * onCharacteristicChanged on the notification characteristic. A delta notification is
+     * applied to the pin state in one update and reported once per port, the UI reading the
+     * new levels from the pin state. Analog samples go to their channel's ring, the UI
+     * reading them from there. Anything else is a single pin record.
+     *
+     * @param value The notification payload
+     */
+    public void onChanged(byte[] value) {
+        if (GpioDeltaNotification.isDelta(value)) {
+            pinState.applyDelta(value);
+            for (int i = 0, n = GpioDeltaNotification.getBlockCount(value); i < n; i++) {
+                output.dispatchPinUpdate(MSG_PINS_CHANGED, GpioDeltaNotification.getPort(value, i),
+                        GpioDeltaNotification.getChanged(value, i));
+            }
+            return;
+        }
+        if (AnalogNotification.isAnalog(value)) {
+            if (analog.onNotification(value) != null) {
+                output.dispatchPinUpdate(MSG_ANALOG_SAMPLES, AnalogNotification.getChannel(value),
+                        AnalogNotification.getSampleCount(value));
+            }
+            return;
+        }
+        // Fall back to the single-pin format
+        if (!isWellFormed(value)) {
+            return;
+        }
+        int notif = GpioPin.decodeUint16(value, 0);
+        updatePinState(notif, GpioPin.isHigh(notif));
+        output.dispatchPinUpdate(MSG_NOTIFICATION, notif, -1);
+    }
+
+    /* Mirror a pin update into the pin state region */
+    private void updatePinState(int instr, boolean isHigh) {
+        pinState.update(GpioPin.getPin(instr), GpioPin.isOutput(instr), isHigh);
+    }
+}
@@ -1,8 +1,6 @@
 package io.runtime.mynewtblecontroller;
 
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -17,6 +15,9 @@ import java.util.ArrayList;
  * Created by briangiori on 7/12/16.
  */
 public class GpioListAdapter extends ArrayAdapter<GpioPin> {
+    /* Indexed by GpioPin.EDGE_* */
+    private static final String[] EDGE_LABELS = { "no edges", "rising", "falling", "both" };
+
     private final Context context;
     private ArrayList<GpioPin> pins;
     private int resource;
@@ -47,9 +48,21 @@ public class GpioListAdapter extends ArrayAdapter<GpioPin> {
         // Get pin from position
         final GpioPin pin = pins.get(position);
 
+        EventTrace.record(EventTrace.LIST_BIND, pin.pinNumber, pin.isHigh ? 1 : 0,
+                pin.isPending ? 1 : 0);
         // Set up views based on pin
         pinNumber.setText(String.valueOf(pin.pinNumber));
-        direction.setText(String.valueOf(pin.isOuput ? "Output" : "Input"));
+        if (pin.isOuput) {
+            direction.setText("Output");
+        } else if (pin.edges != GpioPin.EDGE_BOTH || pin.debounce != 0) {
+            direction.setText("Input " + EDGE_LABELS[pin.edges]
+                    + (pin.debounce != 0 ? " " + GpioPin.DEBOUNCE_MS[pin.debounce] + "ms" : ""));
+        } else {
+            direction.setText("Input");
+        }
+        // Dim pins until the device confirms them, e.g. restored from the profile or
+        // flipped while the link was down
+        rowView.setAlpha(pin.isPending ? 0.5f : 1f);
         if(pin.isOuput) {
             writeSwitch.setVisibility(View.VISIBLE);
             writeSwitch.setChecked(pin.isHigh);
@@ -57,18 +70,18 @@ public class GpioListAdapter extends ArrayAdapter<GpioPin> {
                 @Override
                 public void onCheckedChanged(CompoundButton compoundButton, boolean b) {
                     compoundButton.setChecked(b);
-                    BluetoothGattCharacteristic gpioChr = bleService.getGattCharacteristic(
-                            DeviceControlActivity.UUID_GPIO_SVC,
-                            DeviceControlActivity.UUID_GPIO_CHR_INSTR);
                     GpioPin tmpPin = new GpioPin(pin.pinNumber, pin.isOuput, b);
                     int instr = GpioPin.createGpioInstr(tmpPin);
-                    gpioChr.setValue(instr, BluetoothGattCharacteristic.FORMAT_UINT16, 0);
-                    bleService.writeCharacteristic(gpioChr);
+                    if (bleService.writeInstruction(instr)) {
+                        // Queued or journaled, pending until the device echoes it back
+                        pin.isHigh = b;
+                        pin.isPending = true;
+                        notifyDataSetChanged();
+                    }
                 }
             });
         } else {
             readValue.setVisibility(View.VISIBLE);
-            Log.i(getClass().toString(), "Setting text value...isHigh=" + pin.isHigh);
             readValue.setText(pin.isHigh ? "High" : "Low");
         }
 
@@ -3,11 +3,41 @@ package io.runtime.mynewtblecontroller;
 /**
  * Used to abstract the GPIO pin's number, direction (Input/Output), and value (High/Low).
  * Also used to convert between instruction and GpioPin and visa versa.
+ *
+ * Instructions are 16 bits, pin << 8 | dir << 4 | val:
+ *   - DIR_OUTPUT: drive the pin, val is the level
+ *   - DIR_INPUT: configure an input notifying on both edges, then read it
+ *   - DIR_INPUT_IRQ: configure an input with the edges to notify in bits 0-1 of val and the
+ *     debounce window in bits 2-3 (an index into DEBOUNCE_MS), then read it. The device
+ *     only notifies an edge once the level has been stable for the window.
+ *   - DIR_ANALOG: sample the pin's ADC at ANALOG_RATES_HZ[val] (0 stops it). Samples are
+ *     12 bits and arrive packed in AnalogNotification payloads rather than as pin records.
  */
 public class GpioPin {
+    public static final int DIR_OUTPUT = 1;
+    public static final int DIR_INPUT = 2;
+    public static final int DIR_INPUT_IRQ = 3;
+    public static final int DIR_ANALOG = 4;
+
+    /* Edges an input pin notifies on */
+    public static final int EDGE_NONE = 0;
+    public static final int EDGE_RISING = 1;
+    public static final int EDGE_FALLING = 2;
+    public static final int EDGE_BOTH = EDGE_RISING | EDGE_FALLING;
+
+    /* Debounce windows that fit the instruction */
+    public static final int[] DEBOUNCE_MS = { 0, 5, 20, 50 };
+    /* Sample rates an analog channel can be configured with, in Hz, 0 being off */
+    public static final int[] ANALOG_RATES_HZ = { 0, 10, 50, 100, 250, 500, 1000, 2000 };
+
     public int pinNumber;
     public boolean isHigh;
     public boolean isOuput;
+    /* Restored from a saved profile but not yet confirmed by the device */
+    public boolean isPending;
+    /* For input pins, the edges notified and the debounce window (an index into DEBOUNCE_MS) */
+    public int edges = EDGE_BOTH;
+    public int debounce;
 
     /* Instatiate GpioPin from number, direction, and value */
     public GpioPin(int pinNumber, boolean isOuput, boolean isHigh) {
@@ -20,7 +50,12 @@ public class GpioPin {
     public GpioPin(int instr) {
         this.isOuput = (getDir(instr) == 1);
         this.pinNumber = getPin(instr);
-        this.isHigh = (getVal(instr) != 0);
+        if (getDir(instr) == DIR_INPUT_IRQ) {
+            this.edges = getEdges(instr);
+            this.debounce = getDebounce(instr);
+        } else {
+            this.isHigh = (getVal(instr) != 0);
+        }
     }
 
     /* Create device readable instruction from number, direction and value */
@@ -34,24 +69,86 @@ public class GpioPin {
 
     /* Create device readable instruction from GpioPin object */
     public static int createGpioInstr(GpioPin gPin) {
+        if (!gPin.isOuput && (gPin.edges != EDGE_BOTH || gPin.debounce != 0)) {
+            return createInputInstr(gPin.pinNumber, gPin.edges, gPin.debounce);
+        }
         int dir = gPin.isOuput ? 1 : 2;
         int val = gPin.isHigh ? 1 : 0;
         return createGpioInstr(gPin.pinNumber, dir, val);
     }
 
+    /**
+     * Create an instruction configuring an input pin's notifications.
+     *
+     * @param pin The pin number
+     * @param edges EDGE_NONE, EDGE_RISING, EDGE_FALLING or EDGE_BOTH
+     * @param debounce The debounce window, an index into DEBOUNCE_MS
+     * @return The instruction
+     */
+    public static int createInputInstr(int pin, int edges, int debounce) {
+        return createGpioInstr(pin, DIR_INPUT_IRQ, (debounce & 3) << 2 | (edges & 3));
+    }
+
+    /**
+     * Create an instruction configuring an analog channel.
+     *
+     * @param pin The pin number
+     * @param rate The sample rate, an index into ANALOG_RATES_HZ; 0 stops the channel
+     * @return The instruction
+     */
+    public static int createAnalogInstr(int pin, int rate) {
+        return createGpioInstr(pin, DIR_ANALOG, rate & 7);
+    }
+
+    /*
+     * Decode a little-endian UINT16 straight out of a characteristic value. Equivalent to
+     * getIntValue(FORMAT_UINT16, offset) without boxing the result into an Integer.
+     * Returns -1 if the value is too short.
+     */
+    public static int decodeUint16(byte[] value, int offset) {
+        if (value == null || value.length < offset + 2) {
+            return -1;
+        }
+        return (value[offset] & 0xff) | ((value[offset + 1] & 0xff) << 8);
+    }
+
+    /* Check that an instruction fits in 16 bits and has a known direction */
+    public static boolean isValidInstr(int instr) {
+        int dir = getDir(instr);
+        return (instr & ~0xffff) == 0 && (dir == DIR_OUTPUT || dir == DIR_INPUT
+                || dir == DIR_INPUT_IRQ || (dir == DIR_ANALOG && getVal(instr) < 8));
+    }
+
     /* Helpers */
-    private static int getPin(int instr) {
+    public static int getPin(int instr) {
         return (instr >>> 8);
     }
-    private static int getDir(int instr) {
+    public static int getDir(int instr) {
         return ((instr & 0x00f0) >>> 4);
     }
-    private static int getVal(int instr) {
+    public static int getVal(int instr) {
         return (instr & 0x000f);
     }
-
-
-
-
+    public static boolean isOutput(int instr) {
+        return getDir(instr) == 1;
+    }
+    public static boolean isHigh(int instr) {
+        return getVal(instr) != 0;
+    }
+    /* The edges an input instruction notifies on, EDGE_BOTH for a plain input */
+    public static int getEdges(int instr) {
+        return getDir(instr) == DIR_INPUT_IRQ ? getVal(instr) & 3 : EDGE_BOTH;
+    }
+    /* The debounce window of an input instruction, an index into DEBOUNCE_MS */
+    public static int getDebounce(int instr) {
+        return getDir(instr) == DIR_INPUT_IRQ ? (getVal(instr) >>> 2) & 3 : 0;
+    }
+    public static boolean isAnalog(int instr) {
+        return getDir(instr) == DIR_ANALOG;
+    }
+    /* The sample rate of an analog instruction, an index into ANALOG_RATES_HZ */
+    public static int getAnalogRate(int instr) {
+        return getDir(instr) == DIR_ANALOG ? getVal(instr) & 7 : 0;
+    }
 }
 
@@ -0,0 +1,103 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Port-level GPIO instructions, which set, clear or toggle any number of output pins of a
+ * 32 pin port in a single write. The device applies the whole mask at once, so the pins
+ * switch together rather than one connection event apart.
+ *
+ * A port instruction is written to the instruction characteristic as 6 bytes, which the
+ * device tells apart from the 2 byte pin instruction (see GpioPin) by its length:
+ *   0: op (OP_SET_MASK, OP_CLEAR_MASK or OP_TOGGLE_MASK)
+ *   1: port, i.e. pin number / 32
+ *   2-5: pin mask, little endian, bit n is pin (port * 32 + n)
+ * Pins in the mask that are not configured as outputs are left alone.
+ */
+public class GpioPortInstr {
+    public static final int OP_SET_MASK = 1;
+    public static final int OP_CLEAR_MASK = 2;
+    public static final int OP_TOGGLE_MASK = 3;
+
+    public static final int LENGTH = 6;
+    public static final int PINS_PER_PORT = 32;
+    public static final int NUM_PORTS = 256 / PINS_PER_PORT;
+
+    /* Encode a port instruction into dst, which must hold at least LENGTH bytes */
+    public static void encode(int op, int port, int mask, byte[] dst) {
+        dst[0] = (byte) op;
+        dst[1] = (byte) port;
+        dst[2] = (byte) mask;
+        dst[3] = (byte) (mask >>> 8);
+        dst[4] = (byte) (mask >>> 16);
+        dst[5] = (byte) (mask >>> 24);
+    }
+
+    public static byte[] encode(int op, int port, int mask) {
+        byte[] value = new byte[LENGTH];
+        encode(op, port, mask, value);
+        return value;
+    }
+
+    /* Whether a characteristic value holds a port instruction */
+    public static boolean isPortInstr(byte[] value) {
+        return value != null && value.length == LENGTH && isValidOp(value[0]);
+    }
+
+    public static boolean isValidOp(int op) {
+        return op == OP_SET_MASK || op == OP_CLEAR_MASK || op == OP_TOGGLE_MASK;
+    }
+
+    public static int getOp(byte[] value) {
+        return value[0] & 0xff;
+    }
+
+    public static int getPort(byte[] value) {
+        return value[1] & 0xff;
+    }
+
+    public static int getMask(byte[] value) {
+        return (value[2] & 0xff) | ((value[3] & 0xff) << 8)
+                | ((value[4] & 0xff) << 16) | ((value[5] & 0xff) << 24);
+    }
+
+    /* Helpers */
+    public static int getPort(int pinNumber) {
+        return pinNumber / PINS_PER_PORT;
+    }
+    public static int getBit(int pinNumber) {
+        return 1 << (pinNumber % PINS_PER_PORT);
+    }
+
+    /**
+     * Apply an op to the levels of a port.
+     *
+     * @param op The port op
+     * @param mask The pins to apply it to
+     * @param levels The current levels, bit n being pin n of the port
+     * @return The new levels
+     */
+    public static int apply(int op, int mask, int levels) {
+        switch (op) {
+            case OP_SET_MASK:
+                return levels | mask;
+            case OP_CLEAR_MASK:
+                return levels & ~mask;
+            case OP_TOGGLE_MASK:
+                return levels ^ mask;
+        }
+        return levels;
+    }
+
+    /**
+     * Group pins into one mask per port.
+     *
+     * @param pinNumbers The pins
+     * @return NUM_PORTS masks, indexed by port
+     */
+    public static int[] masksForPins(int[] pinNumbers) {
+        int[] masks = new int[NUM_PORTS];
+        for (int pin : pinNumbers) {
+            masks[getPort(pin)] |= getBit(pin);
+        }
+        return masks;
+    }
+}
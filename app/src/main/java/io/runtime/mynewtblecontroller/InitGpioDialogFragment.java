@@ -6,12 +6,19 @@ import android.app.Dialog;
 import android.app.DialogFragment;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.Spinner;
 
 /**
  * Created by briangiori on 7/12/16.
  */
 public class InitGpioDialogFragment extends DialogFragment {
     private static final String TAG = "InitGpioDialogFragment";
+    /* Position of "Analog" in the direction spinner */
+    public static final int IO_ANALOG = 2;
+    /* Index of 1 kHz in GpioPin.ANALOG_RATES_HZ */
+    private static final int ANALOG_RATE_1KHZ = 6;
     // Use this instance of the interface to deliver action events
     InitGpioDialogListener mListener;
     DialogFragment mNewGpioDialogFragment = this;
@@ -33,11 +40,43 @@ public class InitGpioDialogFragment extends DialogFragment {
                     }
                 });
         // Create the AlertDialog object and return it
-        AlertDialog dialog = builder.create();
+        final AlertDialog dialog = builder.create();
+        // The views exist once the dialog is shown
+        dialog.setOnShowListener(new DialogInterface.OnShowListener() {
+            @Override
+            public void onShow(DialogInterface d) {
+                setUpInputConfig(dialog);
+            }
+        });
 
         return dialog;
     }
 
+    /* Show the edge and debounce settings for input pins only, defaulting to both edges, and
+     * the sample rate for analog channels only, defaulting to 1 kHz */
+    private void setUpInputConfig(AlertDialog dialog) {
+        final Spinner ioSpinner = (Spinner) dialog.findViewById(R.id.io_spinner);
+        final View inputConfig = dialog.findViewById(R.id.input_config);
+        final View analogConfig = dialog.findViewById(R.id.analog_config);
+        final View initValSwitch = dialog.findViewById(R.id.initial_value_switch);
+        ((Spinner) dialog.findViewById(R.id.edges_spinner)).setSelection(GpioPin.EDGE_BOTH);
+        ((Spinner) dialog.findViewById(R.id.rate_spinner)).setSelection(ANALOG_RATE_1KHZ);
+        ioSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                boolean isInput = position == 1;
+                boolean isAnalog = position == IO_ANALOG;
+                inputConfig.setVisibility(isInput ? View.VISIBLE : View.GONE);
+                analogConfig.setVisibility(isAnalog ? View.VISIBLE : View.GONE);
+                initValSwitch.setVisibility(isInput || isAnalog ? View.INVISIBLE : View.VISIBLE);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+    }
+
     /* The activity that creates an instance of this dialog fragment must
          * implement this interface in order to receive event callbacks.
          * Each method passes the DialogFragment in case the host needs to query it. */
@@ -0,0 +1,78 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Growable FIFO of GPIO instructions backed by an int ring buffer. Used by
+ * BluetoothLeService to queue instruction writes, since only one GATT operation may be
+ * outstanding at a time. Instructions are stored as primitives so queueing does not box.
+ *
+ * Not thread safe, callers synchronize on the queue.
+ */
+public class InstrQueue {
+    public static final int EMPTY = -1;
+
+    private int[] instrs;
+    private int head;
+    private int size;
+
+    public InstrQueue(int capacity) {
+        instrs = new int[Math.max(capacity, 4)];
+    }
+
+    /* Append an instruction to the back of the queue */
+    public void add(int instr) {
+        ensureCapacity();
+        instrs[(head + size) % instrs.length] = instr;
+        size++;
+    }
+
+    /* Append a batch of instructions to the back of the queue, in order */
+    public void addAll(int[] batch) {
+        for (int instr : batch) {
+            add(instr);
+        }
+    }
+
+    /* Push an instruction to the front of the queue, it will be polled next */
+    public void addFirst(int instr) {
+        ensureCapacity();
+        head = (head - 1 + instrs.length) % instrs.length;
+        instrs[head] = instr;
+        size++;
+    }
+
+    /* Remove and return the instruction at the front of the queue, or EMPTY */
+    public int poll() {
+        if (size == 0) {
+            return EMPTY;
+        }
+        int instr = instrs[head];
+        head = (head + 1) % instrs.length;
+        size--;
+        return instr;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private void ensureCapacity() {
+        if (size < instrs.length) {
+            return;
+        }
+        int[] grown = new int[instrs.length * 2];
+        for (int i = 0; i < size; i++) {
+            grown[i] = instrs[(head + i) % instrs.length];
+        }
+        instrs = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,223 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Latency distributions, per input pin, from an edge on the device to:
+ *   - EDGE_TO_APP: the notification reaching the service
+ *   - EDGE_TO_PIXEL: the updated pin reaching the display
+ *
+ * Edge times come from timestamped notifications (see DeviceTimestamp), mapped onto the host
+ * clock by ClockOffsetEstimator. The service reports each notification with onNotification().
+ * The UI reports the pins it has applied with markApplied(), and FrameMonitor reports each
+ * frame with onFrame(). Edges applied before a frame are drawn by it and shown at the next
+ * vsync at the earliest, which is taken as their pixel time; deeper buffering makes the
+ * real time a frame or two later.
+ *
+ * Thread safe.
+ */
+public class LatencyTracker {
+    public static final int EDGE_TO_APP = 0;
+    public static final int EDGE_TO_PIXEL = 1;
+
+    public static final int MAX_PINS = SimulatedGpioPeripheral.MAX_PINS;
+    /* Edges not drawn within this long are dropped, e.g. when the UI is not showing */
+    public static final long STALE_NANOS = 1000000000L;
+
+    /* Millisecond buckets up to MAX_MS, longer latencies share the last bucket */
+    public static class Histogram {
+        public static final int MAX_MS = 250;
+
+        private final int[] buckets = new int[MAX_MS + 1];
+        private int count;
+        private long totalNanos;
+        private long maxNanos;
+
+        /* Negative latencies, within the clock estimate's error, count as zero */
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets[(int) Math.min(nanos / 1000000, MAX_MS)]++;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public double getMeanMs() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        /* Latency below which a fraction of the edges fall, rounded up to the bucket */
+        public int getPercentileMs(double fraction) {
+            int target = (int) Math.ceil(count * fraction);
+            int seen = 0;
+            for (int ms = 0; ms <= MAX_MS; ms++) {
+                seen += buckets[ms];
+                if (seen >= target && seen > 0) {
+                    return ms + 1;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%5d  p50 %3dms  p95 %3dms  max %3dms", count,
+                    getPercentileMs(0.5), getPercentileMs(0.95), maxNanos / 1000000);
+        }
+    }
+
+    private static final int PENDING = 128;
+
+    /* [kind][pin], allocated on a pin's first edge */
+    private final Histogram[][] pins = new Histogram[2][MAX_PINS];
+    private final Histogram[] all = { new Histogram(), new Histogram() };
+
+    /* Edges waiting to be drawn, oldest first */
+    private final int[] pendingPin = new int[PENDING];
+    private final long[] pendingEdge = new long[PENDING];
+    private final boolean[] pendingApplied = new boolean[PENDING];
+    private int pendingCount;
+
+    /**
+     * Record the edges reported by a notification.
+     *
+     * @param value The notification payload, a pin record or a delta notification
+     * @param edgeNanos Host time of the edges
+     * @param arrivalNanos Host time the notification arrived
+     */
+    public synchronized void onNotification(byte[] value, long edgeNanos, long arrivalNanos) {
+        if (GpioDeltaNotification.isDelta(value)) {
+            for (int i = 0, n = GpioDeltaNotification.getBlockCount(value); i < n; i++) {
+                int base = GpioDeltaNotification.getPort(value, i) * GpioPortInstr.PINS_PER_PORT;
+                int changed = GpioDeltaNotification.getChanged(value, i);
+                for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+                    if ((changed & (1 << bit)) != 0) {
+                        onEdge(base + bit, edgeNanos, arrivalNanos);
+                    }
+                }
+            }
+            return;
+        }
+        int record = GpioPin.decodeUint16(value, 0);
+        if (record >= 0) {
+            onEdge(GpioPin.getPin(record), edgeNanos, arrivalNanos);
+        }
+    }
+
+    private void onEdge(int pin, long edgeNanos, long arrivalNanos) {
+        if (pin >= MAX_PINS) {
+            return;
+        }
+        record(EDGE_TO_APP, pin, arrivalNanos - edgeNanos);
+        if (pendingCount == PENDING) {
+            removePending(0);
+        }
+        pendingPin[pendingCount] = pin;
+        pendingEdge[pendingCount] = edgeNanos;
+        pendingApplied[pendingCount] = false;
+        pendingCount++;
+    }
+
+    /* The UI has applied the oldest pending edge of a pin */
+    public synchronized void markApplied(int pin) {
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingPin[i] == pin && !pendingApplied[i]) {
+                pendingApplied[i] = true;
+                return;
+            }
+        }
+    }
+
+    /* The UI has applied the oldest pending edges of the pins of a port */
+    public synchronized void markAppliedPort(int port, int mask) {
+        int base = port * GpioPortInstr.PINS_PER_PORT;
+        for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+            if ((mask & (1 << bit)) != 0) {
+                markApplied(base + bit);
+            }
+        }
+    }
+
+    /**
+     * A frame has started; the edges applied so far are drawn by it.
+     *
+     * @param frameTimeNanos The frame's vsync time, as passed to Choreographer callbacks
+     */
+    public synchronized void onFrame(long frameTimeNanos) {
+        long pixelNanos = frameTimeNanos + FrameTimeHistogram.FRAME_NANOS;
+        int i = 0;
+        while (i < pendingCount) {
+            if (pendingApplied[i]) {
+                record(EDGE_TO_PIXEL, pendingPin[i], pixelNanos - pendingEdge[i]);
+                removePending(i);
+            } else if (frameTimeNanos - pendingEdge[i] > STALE_NANOS) {
+                removePending(i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private void removePending(int i) {
+        int tail = pendingCount - i - 1;
+        System.arraycopy(pendingPin, i + 1, pendingPin, i, tail);
+        System.arraycopy(pendingEdge, i + 1, pendingEdge, i, tail);
+        System.arraycopy(pendingApplied, i + 1, pendingApplied, i, tail);
+        pendingCount--;
+    }
+
+    private void record(int kind, int pin, long nanos) {
+        Histogram h = pins[kind][pin];
+        if (h == null) {
+            h = pins[kind][pin] = new Histogram();
+        }
+        h.record(nanos);
+        all[kind].record(nanos);
+    }
+
+    /* The distribution of a pin, null if it has none */
+    public synchronized Histogram get(int kind, int pin) {
+        return pins[kind][pin];
+    }
+
+    /* The distribution over all pins */
+    public synchronized Histogram getAll(int kind) {
+        return all[kind];
+    }
+
+    public synchronized void reset() {
+        for (int kind = 0; kind < pins.length; kind++) {
+            for (int pin = 0; pin < MAX_PINS; pin++) {
+                pins[kind][pin] = null;
+            }
+            all[kind] = new Histogram();
+        }
+        pendingCount = 0;
+    }
+
+    /* Multi-line dump of the distributions over all pins and per pin */
+    public synchronized String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("edge to app   ").append(all[EDGE_TO_APP]).append('\n');
+        sb.append("edge to pixel ").append(all[EDGE_TO_PIXEL]).append('\n');
+        for (int pin = 0; pin < MAX_PINS; pin++) {
+            if (pins[EDGE_TO_APP][pin] == null) {
+                continue;
+            }
+            sb.append(String.format("pin %d\n", pin));
+            sb.append("  app   ").append(pins[EDGE_TO_APP][pin]).append('\n');
+            if (pins[EDGE_TO_PIXEL][pin] != null) {
+                sb.append("  pixel ").append(pins[EDGE_TO_PIXEL][pin]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
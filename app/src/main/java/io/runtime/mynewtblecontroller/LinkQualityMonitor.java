@@ -0,0 +1,151 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Picks the LE PHY for a connection from how the link is doing. BluetoothLeService feeds it
+ * the RSSI it samples periodically and the outcome of every GATT operation, then asks
+ * {@link #evaluate(long)} whether to request another PHY: 2M for throughput while the
+ * board is close and operations go through, Coded for range once the signal fades or
+ * operations start failing, and 1M in between.
+ *
+ * Each step has separate thresholds up and down, and requests are spaced by holdMs, so a
+ * link sitting at a threshold does not flap between PHYs. Times are in milliseconds on any
+ * monotonic clock.
+ */
+public class LinkQualityMonitor {
+    /* The PHYs, as BluetoothDevice.PHY_LE_* */
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+    public static final int PHY_LE_CODED = 3;
+
+    /* Smoothed RSSI, in dBm, at or above which 1M moves up to 2M */
+    public int strongRssi = -60;
+    /* Below which 2M falls back to 1M */
+    public int fadingRssi = -70;
+    /* Above which Coded moves back up to 1M */
+    public int recoveredRssi = -75;
+    /* At or below which any PHY falls back to Coded */
+    public int weakRssi = -85;
+    /* Failed operations, of the last HISTORY, that send the link to Coded */
+    public int maxFailures = 4;
+    /* Failed operations, of the last HISTORY, tolerated on 2M or to leave Coded */
+    public int maxFailuresFast = 1;
+    /* Minimum time between two requests */
+    public long holdMs = 5000;
+    /* RSSI samples needed before the first request */
+    public int minSamples = 3;
+
+    /* Operations whose outcome is remembered */
+    public static final int HISTORY = 32;
+    /* Weight of a new RSSI sample in the smoothed RSSI */
+    private static final double RSSI_WEIGHT = 0.25;
+
+    private double rssi;
+    private int samples;
+    /* Bit n set if the n'th most recent operation failed */
+    private int failed;
+    private int phy = PHY_LE_1M;
+    private int requested = PHY_LE_1M;
+    private boolean hasRequested;
+    private long lastRequest;
+    private int phyChanges;
+
+    /* A new connection, starting on 1M */
+    public synchronized void reset() {
+        samples = 0;
+        failed = 0;
+        phy = PHY_LE_1M;
+        requested = PHY_LE_1M;
+        hasRequested = false;
+    }
+
+    public synchronized void onRssi(int rssi) {
+        this.rssi = samples == 0 ? rssi : this.rssi + RSSI_WEIGHT * (rssi - this.rssi);
+        samples++;
+    }
+
+    /* A GATT operation completed, or timed out */
+    public synchronized void onOpResult(boolean ok) {
+        failed = failed << 1 | (ok ? 0 : 1);
+    }
+
+    /* The controller reported the PHY in use */
+    public synchronized void onPhyUpdate(int txPhy, int rxPhy) {
+        // The board may keep the other direction slower, go by the slower one
+        final int slower = rank(txPhy) < rank(rxPhy) ? txPhy : rxPhy;
+        if (slower != phy) {
+            phy = slower;
+            phyChanges++;
+        }
+        requested = slower;
+    }
+
+    /**
+     * Decide whether the link should change PHY.
+     *
+     * @param now The current time
+     * @return The PHY to request, or 0 to stay
+     */
+    public synchronized int evaluate(long now) {
+        if (samples < minSamples) {
+            return 0;
+        }
+        final int failures = Integer.bitCount(failed);
+        final boolean weak = rssi <= weakRssi || failures >= maxFailures;
+        int target = requested;
+        switch (requested) {
+            case PHY_LE_2M:
+                if (weak) {
+                    target = PHY_LE_CODED;
+                } else if (rssi < fadingRssi || failures > maxFailuresFast) {
+                    target = PHY_LE_1M;
+                }
+                break;
+            case PHY_LE_CODED:
+                if (rssi > recoveredRssi && failures <= maxFailuresFast) {
+                    target = PHY_LE_1M;
+                }
+                break;
+            default:
+                if (weak) {
+                    target = PHY_LE_CODED;
+                } else if (rssi >= strongRssi && failures <= maxFailuresFast) {
+                    target = PHY_LE_2M;
+                }
+                break;
+        }
+        if (target == requested || (hasRequested && now - lastRequest < holdMs)) {
+            return 0;
+        }
+        requested = target;
+        hasRequested = true;
+        lastRequest = now;
+        // Judge the new PHY on its own operations
+        failed = 0;
+        return target;
+    }
+
+    /* Coded is the slowest, then 1M, then 2M */
+    private static int rank(int phy) {
+        return phy == PHY_LE_CODED ? 0 : phy == PHY_LE_1M ? 1 : 2;
+    }
+
+    /* The smoothed RSSI in dBm, meaningless before the first sample */
+    public synchronized int getRssi() {
+        return (int) Math.round(rssi);
+    }
+
+    /* Failed operations among the last HISTORY */
+    public synchronized int getFailures() {
+        return Integer.bitCount(failed);
+    }
+
+    /* The PHY the controller last reported */
+    public synchronized int getPhy() {
+        return phy;
+    }
+
+    /* PHY changes reported since the monitor was created */
+    public synchronized int getPhyChanges() {
+        return phyChanges;
+    }
+}
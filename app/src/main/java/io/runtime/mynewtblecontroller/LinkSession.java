@@ -0,0 +1,340 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * The session BluetoothLeService holds with one device: which link is current (see
+ * {@link ConnectionStateMachine}), whether instructions go to its queue or to the
+ * {@link CommandJournal}, and the flags deciding whether a link that went down is brought
+ * back. Connecting, closing, writing and the link going up and down are called from the UI,
+ * binder and callback threads alike.
+ *
+ * Whether the link is ready is guarded by the journal, which is taken before the queue
+ * when both are needed. Instructions are only queued while the link is ready, so the queue
+ * is empty whenever it is not. Queue entries with PORT_INSTR_FLAG are port instructions
+ * (op << 8 | port), followed by an entry holding their mask.
+ *
+ * @param <L> The link type (GattLink in the service)
+ */
+public class LinkSession<L> {
+    public static final int PORT_INSTR_FLAG = 0x40000000;
+
+    /* Results of connect() */
+    public static final int CONNECT_FAILED = 0;
+    /* The link to the device was already up or coming up, nothing was done */
+    public static final int CONNECT_UNCHANGED = 1;
+    /* The link to the device had gone down and is reconnecting */
+    public static final int CONNECT_RESUMED = 2;
+    /* A new link was opened */
+    public static final int CONNECT_OPENED = 3;
+    /* The link to the device had been opened on a guess, and a client took it over */
+    public static final int CONNECT_ADOPTED = 4;
+
+    /* Results of the writes */
+    public static final int WRITE_REFUSED = 0;
+    public static final int WRITE_JOURNALED = 1;
+    public static final int WRITE_QUEUED = 2;
+
+    /**
+     * What the session needs from the service. Called without the session's locks held,
+     * except for resetOps().
+     */
+    public interface Host<L> {
+        /* A link to a device, not yet connected, whose callbacks carry generation; null if
+         * none can be created */
+        L createLink(String address, int generation);
+
+        /* Start connecting a new link */
+        boolean connectLink(L link);
+
+        /* Start reconnecting a link that went down */
+        boolean reconnectLink(L link);
+
+        void disconnectLink(L link);
+
+        void closeLink(L link);
+
+        /* A link to another device than the last one was installed */
+        void onDeviceChanged(String address);
+
+        /**
+         * The queue was dropped or journaled: forget the outstanding operation. Called holding
+         * the queue and, if address is not null, the journal.
+         *
+         * @param address The device to journal an outstanding write for with
+         *                {@link #journalEntry}, or null to drop it
+         */
+        void resetOps(String address);
+    }
+
+    private final ConnectionStateMachine<L> connection;
+    private final CommandJournal journal;
+    private final InstrQueue queue;
+    private final PinStateRegion pinState;
+    private final Host<L> host;
+    /* Whether instructions are queued rather than journaled, guarded by journal */
+    private boolean linkReady;
+    /* Set by disconnect() and close(), the link is only brought back after unexpected drops */
+    private volatile boolean userDisconnect;
+    /* Whether the current link was opened on a guess and no client has taken it yet */
+    private volatile boolean speculative;
+
+    /**
+     * @param connection The state of the links
+     * @param journal Journals instructions while the link is down, also the lock guarding
+     *                whether it is ready
+     * @param queue The instructions waiting to be written, also the lock guarding it
+     * @param pinState The last known pin state, to journal port instructions
+     * @param host The service
+     */
+    public LinkSession(ConnectionStateMachine<L> connection, CommandJournal journal,
+                       InstrQueue queue, PinStateRegion pinState, Host<L> host) {
+        this.connection = connection;
+        this.journal = journal;
+        this.queue = queue;
+        this.pinState = pinState;
+        this.host = host;
+    }
+
+    public boolean isUserDisconnect() {
+        return userDisconnect;
+    }
+
+    public boolean isSpeculative() {
+        return speculative;
+    }
+
+    /* A client took over a link opened on a guess */
+    public void takeOver() {
+        speculative = false;
+    }
+
+    /* Whether instructions are queued rather than journaled, read holding the journal */
+    public boolean isLinkReady() {
+        return linkReady;
+    }
+
+    /**
+     * Connect to a device, reusing its link if there is one.
+     *
+     * @param address The device
+     * @param speculative Whether the link is opened on a guess, see
+     *                    BluetoothLeService#onScanResult; a client connecting to a guessed
+     *                    link takes it over
+     * @return One of the CONNECT_* results, CONNECT_OPENED or CONNECT_ADOPTED only the first
+     *         time a client gets the link
+     */
+    public int connect(String address, boolean speculative) {
+        userDisconnect = false;
+        ConnectionStateMachine.Snapshot<L> cur = connection.snapshot();
+        if (address.equals(cur.address) && cur.link != null
+                && cur.state != ConnectionStateMachine.STATE_DISCONNECTED) {
+            // Already connected, e.g. a new activity attaching to a kept session, or still
+            // connecting, e.g. to a board opened while its guessed link comes up
+            return adopt(speculative) ? CONNECT_ADOPTED : CONNECT_UNCHANGED;
+        }
+        while (address.equals(cur.address) && cur.link != null) {
+            if (connection.reconnect(cur)) {
+                if (!host.reconnectLink(cur.link)) {
+                    return CONNECT_FAILED;
+                }
+                return adopt(speculative) ? CONNECT_ADOPTED : CONNECT_RESUMED;
+            }
+            // Raced with a callback or another caller, look again
+            cur = connection.snapshot();
+        }
+
+        // Create the link without connecting and install it first, so that it is current
+        // by the time its callback reports anything.
+        final int generation = connection.newGeneration();
+        final L link = host.createLink(address, generation);
+        if (link == null) {
+            return CONNECT_FAILED;
+        }
+        final ConnectionStateMachine.Snapshot<L> prev =
+                connection.install(generation, link, address);
+        if (prev == null) {
+            // A newer link went in concurrently
+            host.closeLink(link);
+            return CONNECT_FAILED;
+        }
+        if (prev.link != null) {
+            host.closeLink(prev.link);
+            // Only a link to another device is replaced, its instructions are not replayed
+            synchronized (journal) {
+                linkReady = false;
+                clearQueue();
+            }
+        }
+        this.speculative = speculative;
+        if (!address.equals(prev.address)) {
+            host.onDeviceChanged(address);
+        }
+        return host.connectLink(link) ? CONNECT_OPENED : CONNECT_FAILED;
+    }
+
+    /* Whether a client connecting takes over the guessed link, only one of them does */
+    private synchronized boolean adopt(boolean speculative) {
+        if (speculative || !this.speculative) {
+            return false;
+        }
+        this.speculative = false;
+        return true;
+    }
+
+    /* Disconnect the current link on purpose, false if there is none */
+    public boolean disconnect() {
+        final L link = connection.getLink();
+        if (link == null) {
+            return false;
+        }
+        userDisconnect = true;
+        host.disconnectLink(link);
+        return true;
+    }
+
+    /**
+     * End the session on purpose: close the link and journal what was queued for it.
+     *
+     * @return false if there was no link to close
+     */
+    public boolean close() {
+        userDisconnect = true;
+        speculative = false;
+        // Only one caller gets the link back, so it is closed exactly once
+        final L link = connection.close().link;
+        if (link == null) {
+            return false;
+        }
+        host.closeLink(link);
+        goOffline();
+        return true;
+    }
+
+    /**
+     * Queue instructions for the device, or journal them while its link is down.
+     *
+     * @param instrs The instructions
+     * @return WRITE_QUEUED if they are to be written now, WRITE_JOURNALED if they wait for
+     *         the link, WRITE_REFUSED if there is no device or the link was ended on purpose
+     */
+    public int write(int[] instrs) {
+        synchronized (journal) {
+            if (!linkReady) {
+                final String address = getJournalAddress();
+                if (address == null) {
+                    return WRITE_REFUSED;
+                }
+                for (int instr : instrs) {
+                    journal.add(address, instr);
+                }
+                return WRITE_JOURNALED;
+            }
+            // Newer than anything journaled for the pins
+            for (int instr : instrs) {
+                journal.supersede(GpioPin.getPin(instr));
+            }
+            synchronized (queue) {
+                queue.addAll(instrs);
+            }
+        }
+        return WRITE_QUEUED;
+    }
+
+    /* Queue or journal a port instruction, see write() and GpioPortInstr */
+    public int writePort(int op, int port, int mask) {
+        synchronized (journal) {
+            if (!linkReady) {
+                final String address = getJournalAddress();
+                if (address == null) {
+                    return WRITE_REFUSED;
+                }
+                journal.addPort(address, op, port, mask, pinState);
+                return WRITE_JOURNALED;
+            }
+            for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+                if ((mask & (1 << bit)) != 0) {
+                    journal.supersede(port * GpioPortInstr.PINS_PER_PORT + bit);
+                }
+            }
+            synchronized (queue) {
+                queue.add(PORT_INSTR_FLAG | (op << 8) | port);
+                queue.add(mask);
+            }
+        }
+        return WRITE_QUEUED;
+    }
+
+    /* The device to journal instructions for while its link is down, null if there is none
+     * or the link was ended on purpose, the address outliving it */
+    private String getJournalAddress() {
+        final String address = connection.snapshot().address;
+        return userDisconnect ? null : address;
+    }
+
+    /**
+     * The link is usable: queue the journal for the device as one batch, ahead of new
+     * instructions, and queue instructions from now on.
+     *
+     * @return The number of instructions replayed
+     */
+    public int replay(String address) {
+        synchronized (journal) {
+            final int[] instrs = journal.pending(address);
+            synchronized (queue) {
+                queue.addAll(instrs);
+            }
+            linkReady = true;
+            return instrs.length;
+        }
+    }
+
+    /**
+     * The link is gone: journal the outstanding write and everything queued behind it, so
+     * that replay() issues them once the link is back, and journal new instructions until
+     * then. A write that did reach the device is replayed too, which is harmless as the
+     * journal only holds absolute pin levels.
+     */
+    public void goOffline() {
+        final String address = connection.snapshot().address;
+        synchronized (journal) {
+            linkReady = false;
+            synchronized (queue) {
+                if (address != null) {
+                    host.resetOps(address);
+                    while (!queue.isEmpty()) {
+                        final int entry = queue.poll();
+                        journalEntry(address, entry,
+                                (entry & PORT_INSTR_FLAG) != 0 ? queue.poll() : 0);
+                    }
+                } else {
+                    host.resetOps(null);
+                }
+                queue.clear();
+            }
+        }
+    }
+
+    /* Drop everything queued and the outstanding operation */
+    public void clearQueue() {
+        synchronized (queue) {
+            queue.clear();
+            host.resetOps(null);
+        }
+    }
+
+    /**
+     * Journal a queue entry.
+     *
+     * @param address The device
+     * @param entry The entry, a pin instruction or a port instruction with PORT_INSTR_FLAG
+     * @param mask The mask of a port instruction
+     */
+    public void journalEntry(String address, int entry, int mask) {
+        synchronized (journal) {
+            if ((entry & PORT_INSTR_FLAG) != 0) {
+                journal.addPort(address, (entry >>> 8) & 0xff, entry & 0xff, mask, pinState);
+            } else {
+                journal.add(address, entry);
+            }
+        }
+    }
+}
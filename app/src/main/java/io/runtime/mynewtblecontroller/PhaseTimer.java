@@ -0,0 +1,103 @@
+package io.runtime.mynewtblecontroller;
+
+/**
+ * Records named timestamps (marks) between a start and a finish, and breaks the elapsed
+ * time down into the phases between consecutive marks. Marks may come from any thread.
+ * Marks outside of a running trace, or beyond MAX_MARKS, are ignored.
+ */
+public class PhaseTimer {
+    public static final int MAX_MARKS = 16;
+
+    private final String[] names = new String[MAX_MARKS];
+    private final long[] times = new long[MAX_MARKS];
+    private int count;
+    private boolean running;
+
+    /* Start a new trace, discarding the previous one */
+    public synchronized void start(String name) {
+        count = 0;
+        running = true;
+        record(name);
+    }
+
+    /* Mark the end of a phase, if a trace is running */
+    public synchronized void mark(String name) {
+        if (running) {
+            record(name);
+        }
+    }
+
+    /**
+     * Mark the end of the last phase and stop the trace.
+     *
+     * @return true if a trace was running
+     */
+    public synchronized boolean finish(String name) {
+        if (!running) {
+            return false;
+        }
+        record(name);
+        running = false;
+        return true;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /* Number of marks, including the start */
+    public synchronized int getMarkCount() {
+        return count;
+    }
+
+    public synchronized String getMarkName(int i) {
+        return names[i];
+    }
+
+    /* Time from the previous mark to mark i, in nanoseconds (0 for the start) */
+    public synchronized long getPhaseNanos(int i) {
+        return i == 0 ? 0 : times[i] - times[i - 1];
+    }
+
+    /* Time from the start to the last mark, in nanoseconds */
+    public synchronized long getTotalNanos() {
+        return count == 0 ? 0 : times[count - 1] - times[0];
+    }
+
+    /**
+     * Time from the start to the first mark with the given name, in nanoseconds.
+     *
+     * @return the elapsed time, or -1 if there is no such mark
+     */
+    public synchronized long getElapsedNanos(String name) {
+        for (int i = 0; i < count; i++) {
+            if (names[i].equals(name)) {
+                return times[i] - times[0];
+            }
+        }
+        return -1;
+    }
+
+    /* One line per mark: name, phase duration and elapsed time in milliseconds */
+    public synchronized String breakdown() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(String.format("%-22s %7.1f ms %8.1f ms%n", names[i],
+                    getPhaseNanos(i) / 1e6, (times[i] - times[0]) / 1e6));
+        }
+        return sb.toString();
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private void record(String name) {
+        if (count == MAX_MARKS) {
+            return;
+        }
+        names[count] = name;
+        times[count] = nanoTime();
+        count++;
+    }
+}
@@ -0,0 +1,85 @@
+package io.runtime.mynewtblecontroller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers which pins have been configured on each device. A profile is stored in
+ * SharedPreferences under the device address as the concatenated 4 digit hex instructions
+ * of its pins, so it carries each pin's number, direction and last output level.
+ */
+public class PinProfileStore {
+    private static final String PREFS_NAME = "pin_profiles";
+    private static final int INSTR_DIGITS = 4;
+
+    private final SharedPreferences mPrefs;
+
+    public PinProfileStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Load the pins configured on a device.
+     *
+     * @param address The device address
+     * @return The pins in the profile, empty if there is none
+     */
+    public ArrayList<GpioPin> load(String address) {
+        return decode(mPrefs.getString(address, null));
+    }
+
+    /**
+     * Save the pins configured on a device, replacing its previous profile.
+     *
+     * @param address The device address
+     * @param pins The pins to save
+     */
+    public void save(String address, List<GpioPin> pins) {
+        if (pins.isEmpty()) {
+            remove(address);
+            return;
+        }
+        mPrefs.edit().putString(address, encode(pins)).apply();
+    }
+
+    /* Forget the profile of a device */
+    public void remove(String address) {
+        mPrefs.edit().remove(address).apply();
+    }
+
+    /* Encode pins as concatenated 4 digit hex instructions */
+    static String encode(List<GpioPin> pins) {
+        StringBuilder sb = new StringBuilder(pins.size() * INSTR_DIGITS);
+        for (GpioPin pin : pins) {
+            String instr = Integer.toHexString(GpioPin.createGpioInstr(pin));
+            for (int i = instr.length(); i < INSTR_DIGITS; i++) {
+                sb.append('0');
+            }
+            sb.append(instr);
+        }
+        return sb.toString();
+    }
+
+    /* Decode pins encoded by encode(), skipping anything malformed */
+    static ArrayList<GpioPin> decode(String profile) {
+        ArrayList<GpioPin> pins = new ArrayList<GpioPin>();
+        if (profile == null) {
+            return pins;
+        }
+        for (int i = 0; i + INSTR_DIGITS <= profile.length(); i += INSTR_DIGITS) {
+            int instr;
+            try {
+                instr = Integer.parseInt(profile.substring(i, i + INSTR_DIGITS), 16);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (GpioPin.isValidInstr(instr)) {
+                pins.add(new GpioPin(instr));
+            }
+        }
+        return pins;
+    }
+}
@@ -0,0 +1,310 @@
+package io.runtime.mynewtblecontroller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Packed GPIO pin state kept in a memory mapped region so that other processes can poll it
+ * without a binder call per read. BluetoothLeService owns the writable mapping, remote
+ * clients map the file descriptor returned by IGpioControl.getPinStateRegion() read-only
+ * through {@link #map(FileChannel)}.
+ *
+ * Layout (little endian):
+ *   0: magic 'GPIO'
+ *   4: layout version
+ *   8: sequence number, incremented before and after every update (odd while writing)
+ *  12: writer word, locked exclusively by a file backed region's writer while it lives
+ *  16: one state byte per pin number (0-255), see PIN_* flags
+ *
+ * A reader that sees the same even sequence number before and after copying the pin bytes
+ * has a consistent snapshot. The sequence number also serves as a change counter, so a
+ * poller only needs to read the pin bytes when it has moved.
+ *
+ * Plain accesses to a mapping are not ordered, so both sides put a volatile access between
+ * the sequence number and the pin bytes; its barriers order the mapped accesses around it.
+ * The writer never waits for a reader. A writer killed mid-update leaves an odd sequence
+ * number; readers tell it from a live one by the writer word, whose lock dies with the
+ * writer's process.
+ */
+public class PinStateRegion {
+    public static final int MAGIC = 0x4f495047; // "GPIO"
+    public static final int LAYOUT_VERSION = 1;
+    public static final int MAX_PINS = 256;
+
+    /* Pin state flags */
+    public static final int PIN_CONFIGURED = 0x01;
+    public static final int PIN_OUTPUT = 0x02;
+    public static final int PIN_HIGH = 0x04;
+
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_LAYOUT = 4;
+    private static final int OFF_SEQ = 8;
+    private static final int OFF_WRITER = 12;
+    private static final int OFF_PINS = 16;
+    public static final int SIZE = OFF_PINS + MAX_PINS;
+    /* Returned by snapshot() when it could not copy a consistent snapshot. Odd, so it is
+     * never the sequence number of one. */
+    public static final int TORN = -1;
+    /* Attempts snapshot() makes before settling for a torn copy */
+    private static final int MAX_SNAPSHOT_TRIES = 100;
+
+    private final ByteBuffer buf;
+    private final boolean writable;
+    /* The channel of a file backed region, for the writer word; null if in memory */
+    private final FileChannel channel;
+    /* Written and read only for the barriers around the accesses, see the class comment */
+    private volatile int fence;
+
+    private PinStateRegion(ByteBuffer buf, boolean writable, FileChannel channel) {
+        this.buf = buf;
+        this.writable = writable;
+        this.channel = channel;
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (writable) {
+            buf.putInt(OFF_MAGIC, MAGIC);
+            buf.putInt(OFF_LAYOUT, LAYOUT_VERSION);
+        }
+    }
+
+    /* Create a region that is not backed by a file and so cannot be shared */
+    public static PinStateRegion createInMemory() {
+        return new PinStateRegion(ByteBuffer.allocateDirect(SIZE), true, null);
+    }
+
+    /**
+     * Create (or truncate) the backing file and map it writable. All pins start out
+     * unconfigured.
+     *
+     * @param file The file backing the region
+     * @return The writable region
+     */
+    public static PinStateRegion create(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(SIZE);
+            // Held for the region's lifetime, the file stays open with it. Never waited for:
+            // a stale reader may hold a shared lock, readers then just cannot tell a dead
+            // writer from a slow one.
+            final FileChannel channel = raf.getChannel();
+            try {
+                channel.tryLock(OFF_WRITER, 4, false);
+            } catch (OverlappingFileLockException e) {
+                // An earlier region on the file in this process still holds it
+            }
+            return new PinStateRegion(channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE),
+                    true, channel);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Map an existing region read-only, e.g. from the ParcelFileDescriptor handed out by the
+     * service: {@code map(new FileInputStream(pfd.getFileDescriptor()).getChannel())}.
+     *
+     * @param channel Channel on the region's file, kept open while the region is used
+     * @return The read-only region
+     */
+    public static PinStateRegion map(FileChannel channel) throws IOException {
+        PinStateRegion region = new PinStateRegion(
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, SIZE), false, channel);
+        if (region.buf.getInt(OFF_MAGIC) != MAGIC
+                || region.buf.getInt(OFF_LAYOUT) != LAYOUT_VERSION) {
+            throw new IOException("Not a pin state region");
+        }
+        return region;
+    }
+
+    /**
+     * Record the state of one pin.
+     *
+     * @param pinNumber The pin number (0-255)
+     * @param isOutput The pin's direction
+     * @param isHigh The pin's value
+     */
+    public synchronized void update(int pinNumber, boolean isOutput, boolean isHigh) {
+        if (pinNumber < 0 || pinNumber >= MAX_PINS) {
+            return;
+        }
+        int state = PIN_CONFIGURED | (isOutput ? PIN_OUTPUT : 0) | (isHigh ? PIN_HIGH : 0);
+        if (buf.get(OFF_PINS + pinNumber) == state) {
+            return;
+        }
+        beginWrite();
+        buf.put(OFF_PINS + pinNumber, (byte) state);
+        endWrite();
+    }
+
+    /**
+     * Apply a port instruction to the output pins of a port in a single update.
+     *
+     * @param op The GpioPortInstr op
+     * @param port The port
+     * @param mask The pins of the port the op applies to
+     */
+    public synchronized void applyPort(int op, int port, int mask) {
+        beginWrite();
+        int base = port * GpioPortInstr.PINS_PER_PORT;
+        for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+            int pin = base + bit;
+            if ((mask & (1 << bit)) == 0 || pin >= MAX_PINS) {
+                continue;
+            }
+            int state = buf.get(OFF_PINS + pin);
+            if ((state & PIN_OUTPUT) == 0) {
+                continue;
+            }
+            int level = (state & PIN_HIGH) != 0 ? 1 : 0;
+            if ((GpioPortInstr.apply(op, 1, level) & 1) != 0) {
+                state |= PIN_HIGH;
+            } else {
+                state &= ~PIN_HIGH;
+            }
+            buf.put(OFF_PINS + pin, (byte) state);
+        }
+        endWrite();
+    }
+
+    /**
+     * Apply the input level changes of a delta notification (see GpioDeltaNotification) in
+     * a single update.
+     *
+     * @param value The notification payload
+     */
+    public synchronized void applyDelta(byte[] value) {
+        beginWrite();
+        for (int i = 0, n = GpioDeltaNotification.getBlockCount(value); i < n; i++) {
+            int base = GpioDeltaNotification.getPort(value, i) * GpioPortInstr.PINS_PER_PORT;
+            int changed = GpioDeltaNotification.getChanged(value, i);
+            int levels = GpioDeltaNotification.getLevels(value, i);
+            for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT && changed != 0; bit++) {
+                int pin = base + bit;
+                if ((changed & (1 << bit)) == 0 || pin >= MAX_PINS) {
+                    continue;
+                }
+                changed &= ~(1 << bit);
+                int state = buf.get(OFF_PINS + pin) | PIN_CONFIGURED;
+                if ((levels & (1 << bit)) != 0) {
+                    state |= PIN_HIGH;
+                } else {
+                    state &= ~PIN_HIGH;
+                }
+                buf.put(OFF_PINS + pin, (byte) state);
+            }
+        }
+        endWrite();
+    }
+
+    /* Mark every pin as unconfigured, e.g. when connecting to another device */
+    public synchronized void clear() {
+        beginWrite();
+        for (int i = 0; i < MAX_PINS; i++) {
+            buf.put(OFF_PINS + i, (byte) 0);
+        }
+        endWrite();
+    }
+
+    /* The current sequence number, odd while an update is in progress */
+    public int getSequence() {
+        return buf.getInt(OFF_SEQ);
+    }
+
+    /* The PIN_* flags of one pin, 0 if the pin has not been configured */
+    public int getPinState(int pinNumber) {
+        if (pinNumber < 0 || pinNumber >= MAX_PINS) {
+            return 0;
+        }
+        return buf.get(OFF_PINS + pinNumber) & 0xff;
+    }
+
+    /**
+     * Copy a consistent snapshot of all pin states into dst, retrying a bounded number of
+     * times while an update is in progress.
+     *
+     * @param dst Array of at least MAX_PINS bytes
+     * @return The sequence number of the snapshot, or TORN if no consistent one could be
+     *         taken, e.g. because a writer died mid-update; dst then holds the latest copy,
+     *         each pin's byte valid on its own
+     */
+    public int snapshot(byte[] dst) {
+        if (writable) {
+            synchronized (this) {
+                // Updates hold the same monitor
+                copyPins(dst);
+                return buf.getInt(OFF_SEQ);
+            }
+        }
+        for (int tries = 0; tries < MAX_SNAPSHOT_TRIES; tries++) {
+            final int seq = buf.getInt(OFF_SEQ);
+            loadFence();
+            if ((seq & 1) == 0) {
+                copyPins(dst);
+                loadFence();
+                if (buf.getInt(OFF_SEQ) == seq) {
+                    return seq;
+                }
+            } else if (tries == 0 && isWriterGone()) {
+                break;
+            }
+            Thread.yield();
+        }
+        copyPins(dst);
+        return TORN;
+    }
+
+    /* Only the barrier of the volatile read matters, not the value */
+    private int loadFence() {
+        return fence;
+    }
+
+    /* Whether no writer holds the writer word, only known for a file backed region */
+    private boolean isWriterGone() {
+        if (channel == null) {
+            return false;
+        }
+        try {
+            final FileLock lock = channel.tryLock(OFF_WRITER, 4, true);
+            if (lock == null) {
+                return false;
+            }
+            lock.release();
+            return true;
+        } catch (OverlappingFileLockException e) {
+            // Held by the writer in this process
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void copyPins(byte[] dst) {
+        for (int i = 0; i < MAX_PINS; i++) {
+            dst[i] = buf.get(OFF_PINS + i);
+        }
+    }
+
+    private void beginWrite() {
+        if (!writable) {
+            throw new IllegalStateException("Pin state region is read-only");
+        }
+        final int seq = buf.getInt(OFF_SEQ) + 1;
+        buf.putInt(OFF_SEQ, seq);
+        // The odd sequence number before any pin byte
+        fence = seq;
+    }
+
+    private void endWrite() {
+        final int seq = buf.getInt(OFF_SEQ) + 1;
+        // Every pin byte before the even sequence number
+        fence = seq;
+        buf.putInt(OFF_SEQ, seq);
+    }
+}
@@ -0,0 +1,294 @@
+package io.runtime.mynewtblecontroller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Input to output interlocks evaluated in the service, e.g. "5 rising -> 12 low": when
+ * input 5 goes high, drive output 12 low. BluetoothLeService runs each decoded notification
+ * through {@link #onInput} and puts the resulting writes at the front of the GATT queue, so
+ * a rule reacts within a connection interval or two, whether or not any UI is showing.
+ *
+ * Rules are compiled into a table indexed by input pin, swapped in whole when the rules
+ * change, so evaluating an edge is an array lookup and a short scan without locks or
+ * allocation. The engine also measures how long rules take to react: from the notification
+ * reaching the service to the rule's write being queued (processing), and to the device
+ * acknowledging it (reaction).
+ *
+ * Rules are written one per line as "input edge -> output action", with edge one of
+ * rising, falling or both and action one of low, high, follow (the input's level) or
+ * invert (the opposite level). Text after '#' is a comment.
+ */
+public class RulesEngine {
+    public static final int ACTION_LOW = 0;
+    public static final int ACTION_HIGH = 1;
+    public static final int ACTION_FOLLOW = 2;
+    public static final int ACTION_INVERT = 3;
+
+    public static final int MAX_PINS = PinStateRegion.MAX_PINS;
+    /* Writes a single edge can cause at most, the size of onInput()'s buffer */
+    public static final int MAX_RULES = 64;
+
+    private static final String[] EDGE_NAMES = {"none", "rising", "falling", "both"};
+    private static final String[] ACTION_NAMES = {"low", "high", "follow", "invert"};
+
+    /* One interlock */
+    public static class Rule {
+        public final int inputPin;
+        /* GpioPin.EDGE_* */
+        public final int edges;
+        public final int outputPin;
+        /* ACTION_* */
+        public final int action;
+
+        public Rule(int inputPin, int edges, int outputPin, int action) {
+            if (inputPin < 0 || inputPin >= MAX_PINS || outputPin < 0 || outputPin >= MAX_PINS) {
+                throw new IllegalArgumentException("Pin out of range");
+            }
+            if (inputPin == outputPin) {
+                throw new IllegalArgumentException("Pin " + inputPin + " drives itself");
+            }
+            if (edges < GpioPin.EDGE_RISING || edges > GpioPin.EDGE_BOTH
+                    || action < ACTION_LOW || action > ACTION_INVERT) {
+                throw new IllegalArgumentException("Unknown edge or action");
+            }
+            this.inputPin = inputPin;
+            this.edges = edges;
+            this.outputPin = outputPin;
+            this.action = action;
+        }
+
+        /**
+         * Parse a rule from its text form.
+         *
+         * @throws IllegalArgumentException If the text is not a rule
+         */
+        public static Rule parse(String text) {
+            final String[] words = text.trim().toLowerCase(Locale.US).split("\\s+");
+            if (words.length != 5 || !words[2].equals("->")) {
+                throw new IllegalArgumentException("Expected \"input edge -> output action\"");
+            }
+            final int edges = indexOf(EDGE_NAMES, words[1]);
+            final int action = indexOf(ACTION_NAMES, words[4]);
+            if (edges <= 0) {
+                throw new IllegalArgumentException("Unknown edge \"" + words[1] + "\"");
+            }
+            if (action < 0) {
+                throw new IllegalArgumentException("Unknown action \"" + words[4] + "\"");
+            }
+            try {
+                return new Rule(Integer.parseInt(words[0]), edges, Integer.parseInt(words[3]),
+                        action);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Pins are numbers");
+            }
+        }
+
+        private static int indexOf(String[] names, String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /* The level the output is driven to on an edge to the given input level */
+        int outputLevel(boolean inputHigh) {
+            switch (action) {
+                case ACTION_LOW:
+                    return 0;
+                case ACTION_HIGH:
+                    return 1;
+                case ACTION_FOLLOW:
+                    return inputHigh ? 1 : 0;
+                default:
+                    return inputHigh ? 0 : 1;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return inputPin + " " + EDGE_NAMES[edges] + " -> " + outputPin + " "
+                    + ACTION_NAMES[action];
+        }
+    }
+
+    /* The compiled rules: those of input pin p are rules[start[p]] up to rules[start[p + 1]] */
+    private static final class Table {
+        final Rule[] rules;
+        final int[] start = new int[MAX_PINS + 1];
+
+        Table(List<Rule> list) {
+            rules = new Rule[list.size()];
+            int n = 0;
+            for (int pin = 0; pin < MAX_PINS; pin++) {
+                start[pin] = n;
+                for (Rule rule : list) {
+                    if (rule.inputPin == pin) {
+                        rules[n++] = rule;
+                    }
+                }
+            }
+            start[MAX_PINS] = n;
+        }
+    }
+
+    private volatile Table table = new Table(Collections.<Rule>emptyList());
+
+    /* Rule writes waiting for the device to acknowledge them, oldest first */
+    private static final int PENDING = 32;
+    private final int[] pendingInstr = new int[PENDING];
+    private final long[] pendingSince = new long[PENDING];
+    private int pendingCount;
+
+    private LatencyTracker.Histogram processing = new LatencyTracker.Histogram();
+    private LatencyTracker.Histogram reaction = new LatencyTracker.Histogram();
+    private int fired;
+
+    /**
+     * Replace the rules.
+     *
+     * @throws IllegalArgumentException If there are more than MAX_RULES
+     */
+    public void setRules(List<Rule> rules) {
+        if (rules.size() > MAX_RULES) {
+            throw new IllegalArgumentException("At most " + MAX_RULES + " rules");
+        }
+        table = new Table(rules);
+    }
+
+    public List<Rule> getRules() {
+        return Collections.unmodifiableList(Arrays.asList(table.rules));
+    }
+
+    /**
+     * Parse rules, one per line.
+     *
+     * @throws IllegalArgumentException If a line is not a rule, naming the line
+     */
+    public static List<Rule> parseRules(String text) {
+        final List<Rule> rules = new ArrayList<Rule>();
+        final String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            final int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                rules.add(Rule.parse(line));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return rules;
+    }
+
+    /* The rules as parseRules() reads them */
+    public static String formatRules(List<Rule> rules) {
+        final StringBuilder sb = new StringBuilder();
+        for (Rule rule : rules) {
+            sb.append(rule).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Evaluate the rules of an input pin that changed level.
+     *
+     * @param pin The input pin
+     * @param high Its new level
+     * @param arrivalNanos System.nanoTime() the notification reached the service
+     * @param out Receives the output instructions to write, in rule order; MAX_RULES long
+     * @return The number of instructions in out
+     */
+    public int onInput(int pin, boolean high, long arrivalNanos, int[] out) {
+        if (pin < 0 || pin >= MAX_PINS) {
+            return 0;
+        }
+        final Table t = table;
+        final int edge = high ? GpioPin.EDGE_RISING : GpioPin.EDGE_FALLING;
+        int n = 0;
+        for (int i = t.start[pin], end = t.start[pin + 1]; i < end; i++) {
+            final Rule rule = t.rules[i];
+            if ((rule.edges & edge) != 0) {
+                out[n++] = GpioPin.createGpioInstr(rule.outputPin, GpioPin.DIR_OUTPUT,
+                        rule.outputLevel(high));
+            }
+        }
+        if (n > 0) {
+            synchronized (this) {
+                fired += n;
+                for (int i = 0; i < n; i++) {
+                    addPending(out[i], arrivalNanos);
+                }
+            }
+        }
+        return n;
+    }
+
+    private void addPending(int instr, long since) {
+        if (pendingCount == PENDING) {
+            // The oldest was never acknowledged, e.g. dropped by the watchdog
+            System.arraycopy(pendingInstr, 1, pendingInstr, 0, PENDING - 1);
+            System.arraycopy(pendingSince, 1, pendingSince, 0, PENDING - 1);
+            pendingCount--;
+        }
+        pendingInstr[pendingCount] = instr;
+        pendingSince[pendingCount] = since;
+        pendingCount++;
+    }
+
+    /* The writes of an edge have been queued, arrivalNanos as passed to onInput() */
+    public synchronized void onQueued(long arrivalNanos, long nowNanos) {
+        processing.record(nowNanos - arrivalNanos);
+    }
+
+    /* The device acknowledged writing an instruction, a rule's or any other */
+    public synchronized void onWritten(int instr, long nowNanos) {
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingInstr[i] == instr) {
+                reaction.record(nowNanos - pendingSince[i]);
+                pendingCount--;
+                System.arraycopy(pendingInstr, i + 1, pendingInstr, i, pendingCount - i);
+                System.arraycopy(pendingSince, i + 1, pendingSince, i, pendingCount - i);
+                return;
+            }
+        }
+    }
+
+    /* Rule writes made so far */
+    public synchronized int getFiredCount() {
+        return fired;
+    }
+
+    /* From the notification to the rule's write being queued */
+    public synchronized LatencyTracker.Histogram getProcessing() {
+        return processing;
+    }
+
+    /* From the notification to the device acknowledging the rule's write */
+    public synchronized LatencyTracker.Histogram getReaction() {
+        return reaction;
+    }
+
+    public synchronized String dump() {
+        return "fired      " + fired + "\n"
+                + "processing " + processing + "\n"
+                + "reaction   " + reaction + "\n";
+    }
+
+    public synchronized void reset() {
+        processing = new LatencyTracker.Histogram();
+        reaction = new LatencyTracker.Histogram();
+        fired = 0;
+        pendingCount = 0;
+    }
+}
@@ -0,0 +1,250 @@
+package io.runtime.mynewtblecontroller;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GattLink to a {@link SimulatedGpioPeripheral}. Exposes the GPIO service with its
+ * instruction and notification characteristics and answers every operation through the
+ * BluetoothGattCallback after the peripheral's configured delay, on a dedicated thread
+ * just as the Bluetooth stack calls back on a binder thread. Connect to
+ * {@link #ADDRESS} to use it.
+ */
+public class SimulatedGattLink implements GattLink {
+    /* Device address that BluetoothLeService.connect() maps to the simulated peripheral */
+    public static final String ADDRESS = "00:00:00:00:5E:40";
+    public static final String NAME = "Simulated GPIO";
+
+    private static final UUID UUID_CCC = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final SimulatedGpioPeripheral mPeripheral;
+    private final BluetoothGattCallback mCallback;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final BluetoothGattService mGpioService;
+    private final BluetoothGattCharacteristic mInstrChr;
+    private final BluetoothGattCharacteristic mNotifyChr;
+    private volatile boolean mConnected;
+    private volatile boolean mNotifying;
+
+    public SimulatedGattLink(SimulatedGpioPeripheral peripheral, BluetoothGattCallback callback) {
+        mPeripheral = peripheral;
+        mCallback = callback;
+        mThread = new HandlerThread("SimulatedGatt");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        mGpioService = new BluetoothGattService(
+                GpioCharacteristics.SERVICE_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mInstrChr = new BluetoothGattCharacteristic(
+                GpioCharacteristics.INSTR_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        mNotifyChr = new BluetoothGattCharacteristic(
+                GpioCharacteristics.NOTIFY_UUID,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+        mNotifyChr.addDescriptor(new BluetoothGattDescriptor(UUID_CCC,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        mGpioService.addCharacteristic(mInstrChr);
+        mGpioService.addCharacteristic(mNotifyChr);
+
+        mPeripheral.setListener(new SimulatedGpioPeripheral.Listener() {
+            @Override
+            public void onNotification(final byte[] value) {
+                if (!mConnected || !mNotifying) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mNotifyChr.setValue(value);
+                        mCallback.onCharacteristicChanged(null, mNotifyChr);
+                    }
+                });
+            }
+        });
+        // Debounced inputs settle on the link's thread, like the board's timer would
+        mPeripheral.setScheduler(new SimulatedGpioPeripheral.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                mHandler.postDelayed(task, delayMs);
+            }
+        });
+    }
+
+    public SimulatedGpioPeripheral getPeripheral() {
+        return mPeripheral;
+    }
+
+    @Override
+    public boolean connect() {
+        // Fails once closed, as the looper no longer accepts messages
+        return mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mConnected = true;
+                mCallback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_CONNECTED);
+            }
+        }, mPeripheral.connectDelayMs);
+    }
+
+    @Override
+    public void disconnect() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mConnected = false;
+                mNotifying = false;
+                mCallback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        mConnected = false;
+        mPeripheral.setListener(null);
+        mPeripheral.setScheduler(null);
+        mThread.quit();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!mConnected) {
+            return false;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onServicesDiscovered(null, BluetoothGatt.GATT_SUCCESS);
+            }
+        }, mPeripheral.discoveryDelayMs);
+        return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return Collections.singletonList(mGpioService);
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        return mGpioService.getUuid().equals(uuid) ? mGpioService : null;
+    }
+
+    @Override
+    public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (!mConnected || characteristic != mInstrChr) {
+            return false;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                byte[] value = mPeripheral.readValue();
+                if (mPeripheral.loseCallback()) {
+                    return;
+                }
+                if (value == null) {
+                    mCallback.onCharacteristicRead(null, characteristic, BluetoothGatt.GATT_FAILURE);
+                    return;
+                }
+                characteristic.setValue(value);
+                mCallback.onCharacteristicRead(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+            }
+        }, mPeripheral.opDelayMs);
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (!mConnected || characteristic != mInstrChr) {
+            return false;
+        }
+        final byte[] value = characteristic.getValue();
+        final boolean isPortInstr = GpioPortInstr.isPortInstr(value);
+        final int instr = isPortInstr ? 0 : GpioPin.decodeUint16(value, 0);
+        final int op = isPortInstr ? GpioPortInstr.getOp(value) : 0;
+        final int port = isPortInstr ? GpioPortInstr.getPort(value) : 0;
+        final int mask = isPortInstr ? GpioPortInstr.getMask(value) : 0;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                boolean ok = isPortInstr ? mPeripheral.writePort(op, port, mask)
+                        : mPeripheral.write(instr) >= 0;
+                if (mPeripheral.loseCallback()) {
+                    return;
+                }
+                mCallback.onCharacteristicWrite(null, characteristic,
+                        ok ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+            }
+        }, mPeripheral.opDelayMs);
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+        if (!mConnected) {
+            return false;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onDescriptorWrite(null, descriptor, BluetoothGatt.GATT_SUCCESS);
+            }
+        }, mPeripheral.opDelayMs);
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enable) {
+        if (characteristic != mNotifyChr) {
+            return false;
+        }
+        mNotifying = enable;
+        return true;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        if (!mConnected) {
+            return false;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onReadRemoteRssi(null, mPeripheral.rssi, BluetoothGatt.GATT_SUCCESS);
+            }
+        }, mPeripheral.opDelayMs);
+        return true;
+    }
+
+    @Override
+    public boolean setPreferredPhy(final int phy) {
+        if (!mConnected || !(mCallback instanceof PhyCallback)) {
+            return false;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mPeripheral.phy = phy;
+                ((PhyCallback) mCallback).onPhyUpdate(null, phy, phy, BluetoothGatt.GATT_SUCCESS);
+            }
+        }, mPeripheral.opDelayMs);
+        return true;
+    }
+}
@@ -0,0 +1,465 @@
+package io.runtime.mynewtblecontroller;
+
+import java.util.ArrayList;
+
+/**
+ * In-memory model of the GPIO firmware on a mynewt board, used for benchmarks and tests
+ * in place of a real device. It understands the same instructions as the board:
+ *   - Writing an output instruction drives the pin and echoes the instruction back.
+ *   - Writing an input instruction configures the pin and selects it for the next read.
+ *     GpioPin.DIR_INPUT_IRQ instructions also set the edges it notifies and its debounce.
+ *   - Changing the level of an input pin produces a notification with its pin record,
+ *     unless the edge is filtered out. A debounced pin notifies once its level has been
+ *     stable for the window, see settle().
+ *   - Writing an analog instruction starts sampling the pin at the rate it selects. The
+ *     samples, a sawtooth per channel (see analogSample()), are flushed every
+ *     ANALOG_TICK_MS as AnalogNotification payloads, see sampleAnalog().
+ *
+ * The delays describe how long the simulated link takes to answer; they are applied by
+ * whoever drives the peripheral (e.g. SimulatedGattLink), not by this class.
+ */
+public class SimulatedGpioPeripheral {
+    public static final int MAX_PINS = 256;
+
+    private static final int DIR_NONE = 0;
+    private static final int DIR_OUTPUT = 1;
+    private static final int DIR_INPUT = 2;
+    private static final int DIR_ANALOG = 3;
+
+    /* How often the board flushes analog samples */
+    public static final long ANALOG_TICK_MS = 20;
+
+    /* Receives notification payloads produced by the peripheral */
+    public interface Listener {
+        void onNotification(byte[] value);
+    }
+
+    /* Runs settle() once a debounce window has passed */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMs);
+    }
+
+    private final int[] dirs = new int[MAX_PINS];
+    private final boolean[] levels = new boolean[MAX_PINS];
+    private final int[] edges = new int[MAX_PINS];
+    private final long[] debounceNanos = new long[MAX_PINS];
+    /* The level last notified, and when a debounced pin's pending change is stable (0: none) */
+    private final boolean[] reported = new boolean[MAX_PINS];
+    private final long[] settleAt = new long[MAX_PINS];
+    private int notifications;
+    private Scheduler scheduler;
+    private final Runnable settleTask = new Runnable() {
+        @Override
+        public void run() {
+            settle(System.nanoTime());
+        }
+    };
+    private int selectedPin = -1;
+    private int portWrites;
+    private Listener listener;
+    /* Per analog channel: the rate in Hz (0: off), samples taken and when the next is due */
+    private final int[] analogRateHz = new int[MAX_PINS];
+    private final int[] analogTaken = new int[MAX_PINS];
+    private final long[] analogNextNanos = new long[MAX_PINS];
+    private boolean analogTicking;
+    private final Runnable analogTask = new Runnable() {
+        @Override
+        public void run() {
+            sampleAnalog(System.nanoTime());
+        }
+    };
+
+    /* Simulated link timings, in milliseconds */
+    public long connectDelayMs = 20;
+    public long discoveryDelayMs = 40;
+    public long opDelayMs = 8;
+    /* Signal strength the link reports, in dBm, and the PHY it was last switched to */
+    public volatile int rssi = -50;
+    public volatile int phy = LinkQualityMonitor.PHY_LE_1M;
+
+    /* Report input changes as delta notifications rather than one per pin */
+    public boolean deltaNotifications;
+
+    /* Analog samples packed into one notification at most, 20 fill a 34 byte payload */
+    public int analogSamplesPerNotification = 20;
+
+    /* Number of upcoming read/write completions the link swallows, as some stacks do */
+    public int lostCallbacks;
+
+    /* Append a DeviceTimestamp to notifications and reads */
+    public boolean deviceTimestamps;
+    /* The device clock's offset from the host clock and how much faster it runs */
+    public long clockOffsetMicros;
+    public double clockSkewPpm;
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void setScheduler(Scheduler scheduler) {
+        this.scheduler = scheduler;
+        analogTicking = false;
+    }
+
+    /**
+     * Apply an instruction as written to the instruction characteristic.
+     *
+     * @param instr The instruction
+     * @return The instruction echoed back on write, or -1 if it was rejected
+     */
+    public int write(int instr) {
+        Scheduler s = null;
+        synchronized (this) {
+            if (!GpioPin.isValidInstr(instr)) {
+                return -1;
+            }
+            if (GpioPin.isAnalog(instr)) {
+                int pin = GpioPin.getPin(instr);
+                dirs[pin] = DIR_ANALOG;
+                analogRateHz[pin] = GpioPin.ANALOG_RATES_HZ[GpioPin.getAnalogRate(instr)];
+                analogTaken[pin] = 0;
+                analogNextNanos[pin] = 0;
+                if (analogRateHz[pin] > 0 && !analogTicking && scheduler != null) {
+                    analogTicking = true;
+                    s = scheduler;
+                }
+            } else {
+                writePin(instr);
+            }
+        }
+        if (s != null) {
+            s.schedule(analogTask, ANALOG_TICK_MS);
+        }
+        return instr;
+    }
+
+    /* Apply an output or input instruction, holding the lock */
+    private void writePin(int instr) {
+        int pin = GpioPin.getPin(instr);
+        if (GpioPin.isOutput(instr)) {
+            dirs[pin] = DIR_OUTPUT;
+            levels[pin] = GpioPin.isHigh(instr);
+        } else {
+            dirs[pin] = DIR_INPUT;
+            edges[pin] = GpioPin.getEdges(instr);
+            debounceNanos[pin] = GpioPin.DEBOUNCE_MS[GpioPin.getDebounce(instr)] * 1000000L;
+            reported[pin] = levels[pin];
+            settleAt[pin] = 0;
+            selectedPin = pin;
+        }
+    }
+
+    /**
+     * Apply a port instruction to the output pins of a port, all at once.
+     *
+     * @param op The GpioPortInstr op
+     * @param port The port
+     * @param mask The pins of the port to apply the op to
+     * @return false if the instruction was rejected
+     */
+    public synchronized boolean writePort(int op, int port, int mask) {
+        if (!GpioPortInstr.isValidOp(op) || port < 0 || port >= GpioPortInstr.NUM_PORTS) {
+            return false;
+        }
+        int base = port * GpioPortInstr.PINS_PER_PORT;
+        for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+            int pin = base + bit;
+            if ((mask & (1 << bit)) != 0 && dirs[pin] == DIR_OUTPUT) {
+                levels[pin] = GpioPortInstr.apply(op, 1, levels[pin] ? 1 : 0) != 0;
+            }
+        }
+        portWrites++;
+        return true;
+    }
+
+    /**
+     * Whether the completion of an operation is lost on the way back, using up one of
+     * lostCallbacks. The operation itself still takes effect on the peripheral.
+     */
+    public synchronized boolean loseCallback() {
+        if (lostCallbacks <= 0) {
+            return false;
+        }
+        lostCallbacks--;
+        return true;
+    }
+
+    /* The device clock at a host System.nanoTime() */
+    public long toDeviceMicros(long hostNanos) {
+        return (long) (hostNanos / 1000.0 * (1 + clockSkewPpm / 1e6)) + clockOffsetMicros;
+    }
+
+    /* Number of notifications sent so far, a delta notification counting once */
+    public synchronized int getNotificationCount() {
+        return notifications;
+    }
+
+    /* Number of port instructions applied so far */
+    public synchronized int getPortWriteCount() {
+        return portWrites;
+    }
+
+    /**
+     * Read the instruction characteristic, i.e. the level of the last configured input pin.
+     *
+     * @return 1 if high, 0 if low, -1 if no input pin has been configured
+     */
+    public synchronized int read() {
+        if (selectedPin < 0) {
+            return -1;
+        }
+        return levels[selectedPin] ? 1 : 0;
+    }
+
+    /**
+     * Read the instruction characteristic as the link sees it: the level as a UINT16,
+     * followed by the time of the read if deviceTimestamps is set.
+     *
+     * @return The value, or null if no input pin has been configured
+     */
+    public byte[] readValue() {
+        long now = System.nanoTime();
+        int data = read();
+        if (data < 0) {
+            return null;
+        }
+        byte[] value = new byte[] { (byte) data, 0 };
+        return deviceTimestamps ? DeviceTimestamp.append(value, (int) toDeviceMicros(now)) : value;
+    }
+
+    /**
+     * Drive the level of an input pin from the outside, notifying the listener if the pin
+     * is configured as an input and its level changed.
+     *
+     * @param pin The pin number
+     * @param isHigh The new level
+     */
+    public void setInputLevel(int pin, boolean isHigh) {
+        int port = GpioPortInstr.getPort(pin);
+        int bit = GpioPortInstr.getBit(pin);
+        setInputLevels(port, bit, isHigh ? bit : 0);
+    }
+
+    /**
+     * Drive the levels of several pins of a port at once, as when an input bank changes
+     * together. Changed input pins are notified with one delta notification if
+     * deltaNotifications is set, otherwise with one single-pin notification each.
+     *
+     * @param port The port
+     * @param mask The pins of the port to drive
+     * @param newLevels The new levels, bit n being pin n of the port
+     */
+    public void setInputLevels(int port, int mask, int newLevels) {
+        setInputLevels(port, mask, newLevels, System.nanoTime());
+    }
+
+    /* setInputLevels() at a given System.nanoTime(), for driving the peripheral in tests */
+    public void setInputLevels(int port, int mask, int newLevels, long nowNanos) {
+        settle(nowNanos);
+        Listener l;
+        Scheduler s = null;
+        long delayNanos = 0;
+        int changed = 0;
+        int base = port * GpioPortInstr.PINS_PER_PORT;
+        synchronized (this) {
+            for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+                int pin = base + bit;
+                boolean isHigh = (newLevels & (1 << bit)) != 0;
+                if ((mask & (1 << bit)) == 0 || levels[pin] == isHigh) {
+                    continue;
+                }
+                levels[pin] = isHigh;
+                if (dirs[pin] != DIR_INPUT) {
+                    continue;
+                }
+                if (debounceNanos[pin] == 0) {
+                    if (report(pin)) {
+                        changed |= 1 << bit;
+                    }
+                } else {
+                    // Each bounce restarts the window
+                    settleAt[pin] = nowNanos + debounceNanos[pin];
+                    s = scheduler;
+                    delayNanos = Math.max(delayNanos, debounceNanos[pin]);
+                }
+            }
+            l = listener;
+        }
+        if (s != null) {
+            s.schedule(settleTask, (delayNanos + 999999) / 1000000);
+        }
+        sendNotifications(l, port, changed, newLevels, nowNanos);
+    }
+
+    /**
+     * Notify the debounced pins whose level has been stable for their window by now, if
+     * it differs from the level last notified and the edge is not filtered out.
+     *
+     * @param nowNanos The current System.nanoTime()
+     */
+    public void settle(long nowNanos) {
+        Listener l;
+        int[] changed = null;
+        int[] portLevels = null;
+        synchronized (this) {
+            for (int pin = 0; pin < MAX_PINS; pin++) {
+                if (settleAt[pin] == 0 || nowNanos < settleAt[pin]) {
+                    continue;
+                }
+                settleAt[pin] = 0;
+                if (report(pin)) {
+                    if (changed == null) {
+                        changed = new int[GpioPortInstr.NUM_PORTS];
+                        portLevels = new int[GpioPortInstr.NUM_PORTS];
+                    }
+                    int bit = GpioPortInstr.getBit(pin);
+                    changed[GpioPortInstr.getPort(pin)] |= bit;
+                    portLevels[GpioPortInstr.getPort(pin)] |= levels[pin] ? bit : 0;
+                }
+            }
+            l = listener;
+        }
+        if (changed == null) {
+            return;
+        }
+        for (int port = 0; port < changed.length; port++) {
+            sendNotifications(l, port, changed[port], portLevels[port], nowNanos);
+        }
+    }
+
+    /* Whether a pin's new level is to be notified, holding the lock */
+    private boolean report(int pin) {
+        boolean isHigh = levels[pin];
+        if (reported[pin] == isHigh) {
+            // Bounced back before settling
+            return false;
+        }
+        reported[pin] = isHigh;
+        return (edges[pin] & (isHigh ? GpioPin.EDGE_RISING : GpioPin.EDGE_FALLING)) != 0;
+    }
+
+    /* Notify changed input pins of a port */
+    private void sendNotifications(Listener l, int port, int changedInputs, int newLevels,
+                                   long edgeNanos) {
+        if (changedInputs == 0 || l == null) {
+            return;
+        }
+        synchronized (this) {
+            notifications += deltaNotifications ? 1 : Integer.bitCount(changedInputs);
+        }
+        int base = port * GpioPortInstr.PINS_PER_PORT;
+        if (deltaNotifications) {
+            int[] changed = new int[GpioPortInstr.NUM_PORTS];
+            int[] portLevels = new int[GpioPortInstr.NUM_PORTS];
+            changed[port] = changedInputs;
+            portLevels[port] = newLevels & changedInputs;
+            l.onNotification(stamp(GpioDeltaNotification.encode(changed, portLevels), edgeNanos));
+            return;
+        }
+        for (int bit = 0; bit < GpioPortInstr.PINS_PER_PORT; bit++) {
+            if ((changedInputs & (1 << bit)) != 0) {
+                int record = GpioPin.createGpioInstr(base + bit, DIR_INPUT,
+                        (newLevels & (1 << bit)) != 0 ? 1 : 0);
+                l.onNotification(stamp(new byte[] { (byte) record, (byte) (record >>> 8) },
+                        edgeNanos));
+            }
+        }
+    }
+
+    private byte[] stamp(byte[] value, long hostNanos) {
+        return deviceTimestamps ? DeviceTimestamp.append(value, (int) toDeviceMicros(hostNanos))
+                : value;
+    }
+
+    /**
+     * Take the analog samples due by now on every running channel and notify them, at most
+     * analogSamplesPerNotification to a notification. A channel takes its first sample the
+     * first time it is sampled after being started.
+     *
+     * @param nowNanos The current System.nanoTime()
+     */
+    public void sampleAnalog(long nowNanos) {
+        Listener l;
+        Scheduler s = null;
+        ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+        synchronized (this) {
+            boolean running = false;
+            short[] samples = new short[Math.max(1, analogSamplesPerNotification)];
+            for (int pin = 0; pin < MAX_PINS; pin++) {
+                int rate = analogRateHz[pin];
+                if (dirs[pin] != DIR_ANALOG || rate == 0) {
+                    continue;
+                }
+                running = true;
+                long periodNanos = 1000000000L / rate;
+                if (analogNextNanos[pin] == 0) {
+                    analogNextNanos[pin] = nowNanos;
+                }
+                while (analogNextNanos[pin] <= nowNanos) {
+                    int first = analogTaken[pin];
+                    int n = 0;
+                    while (n < samples.length && analogNextNanos[pin] <= nowNanos) {
+                        samples[n++] = (short) analogSample(pin, analogTaken[pin]++);
+                        analogNextNanos[pin] += periodNanos;
+                    }
+                    payloads.add(AnalogNotification.encode(pin, first, samples, 0, n));
+                }
+            }
+            notifications += payloads.size();
+            l = listener;
+            if (running && analogTicking) {
+                s = scheduler;
+            } else {
+                analogTicking = false;
+            }
+        }
+        if (l != null) {
+            for (byte[] value : payloads) {
+                l.onNotification(value);
+            }
+        }
+        if (s != null) {
+            s.schedule(analogTask, ANALOG_TICK_MS);
+        }
+    }
+
+    /* The n'th sample of an analog channel: a sawtooth, offset by the pin */
+    public static int analogSample(int pin, int n) {
+        return (n * 8 + pin * 256) & AnalogNotification.MAX_SAMPLE;
+    }
+
+    /* Whether a pin has been configured as an analog channel */
+    public synchronized boolean isAnalog(int pin) {
+        return dirs[pin] == DIR_ANALOG;
+    }
+
+    /* The level of a pin, whatever its direction */
+    public synchronized boolean isHigh(int pin) {
+        return levels[pin];
+    }
+
+    /* Whether a pin has been configured as an output */
+    public synchronized boolean isOutput(int pin) {
+        return dirs[pin] == DIR_OUTPUT;
+    }
+
+    /* Whether a pin has been configured as an input */
+    public synchronized boolean isInput(int pin) {
+        return dirs[pin] == DIR_INPUT;
+    }
+
+    /* Forget all pin configuration, as after a reset of the board */
+    public synchronized void reset() {
+        for (int i = 0; i < MAX_PINS; i++) {
+            dirs[i] = DIR_NONE;
+            levels[i] = false;
+            edges[i] = GpioPin.EDGE_NONE;
+            debounceNanos[i] = 0;
+            reported[i] = false;
+            settleAt[i] = 0;
+            analogRateHz[i] = 0;
+        }
+        selectedPin = -1;
+        portWrites = 0;
+    }
+}
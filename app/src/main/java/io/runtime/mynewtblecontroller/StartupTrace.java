@@ -0,0 +1,63 @@
+package io.runtime.mynewtblecontroller;
+
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * Traces time-to-interactive, from tapping a device in DeviceScanActivity until its pins can
+ * be used in DeviceControlActivity. Synchronous steps are emitted as android.os.Trace
+ * sections so they show up in systrace. The asynchronous waits between them (connection,
+ * discovery, descriptor write) are captured as marks and reported as an in-app breakdown,
+ * see {@link #getTimer()}.
+ */
+public final class StartupTrace {
+    private final static String TAG = StartupTrace.class.getSimpleName();
+
+    /* Marks, in the order they are normally reached */
+    public static final String TAP = "tap";
+    public static final String SERVICE_BOUND = "service bound";
+    public static final String INITIALIZED = "initialized";
+    public static final String CONNECT_ISSUED = "connect issued";
+    public static final String CONNECTED = "connected";
+    public static final String SERVICES_DISCOVERED = "services discovered";
+    public static final String NOTIFY_REQUESTED = "notify requested";
+    public static final String DIALOG_DISMISSED = "dialog dismissed";
+    /* Notifications are enabled and the GATT queue is free, a switch toggle goes out at once */
+    public static final String INTERACTIVE = "interactive";
+    /* A session the service kept alive was taken over, its pins are usable at once */
+    public static final String REATTACHED = "reattached";
+
+    private static final PhaseTimer sTimer = new PhaseTimer();
+
+    private StartupTrace() {
+    }
+
+    public static PhaseTimer getTimer() {
+        return sTimer;
+    }
+
+    /* A device has been tapped, start a new trace */
+    public static void start() {
+        sTimer.start(TAP);
+    }
+
+    public static void mark(String name) {
+        sTimer.mark(name);
+    }
+
+    /* The connection is usable, stop the trace and log the breakdown */
+    public static void finish(String name) {
+        if (sTimer.finish(name)) {
+            Log.i(TAG, "Time to interactive:\n" + sTimer.breakdown());
+        }
+    }
+
+    /* Begin a synchronous section, must be ended on the same thread */
+    public static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    public static void endSection() {
+        Trace.endSection();
+    }
+}
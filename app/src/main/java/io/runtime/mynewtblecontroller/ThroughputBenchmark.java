@@ -0,0 +1,336 @@
+package io.runtime.mynewtblecontroller;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Drives a GPIO workload through BluetoothLeService and measures it. BenchmarkActivity owns
+ * the Android side: it submits the instructions this class hands out and feeds back the pin
+ * updates and timeouts the service reports. Nothing here touches Android so that the
+ * bookkeeping can be tested on a JVM.
+ *
+ * Workloads:
+ *   - WORKLOAD_TOGGLE_STORM: toggle the output pins round robin
+ *   - WORKLOAD_READ_SWEEP: read the input pins round robin (a write and a read each)
+ *   - WORKLOAD_MIXED: alternate between the two
+ *
+ * Up to Config.window instructions are kept queued in the service so that the link never
+ * idles waiting for the app. The service completes instructions in order, so completions
+ * are matched against the oldest outstanding instruction; instructions that are skipped
+ * over completed without an update, i.e. failed. Not thread safe, use from one thread.
+ */
+public class ThroughputBenchmark {
+    public static final int WORKLOAD_TOGGLE_STORM = 0;
+    public static final int WORKLOAD_READ_SWEEP = 1;
+    public static final int WORKLOAD_MIXED = 2;
+
+    private static final String[] WORKLOAD_NAMES = { "toggle_storm", "read_sweep", "mixed" };
+
+    /* Where instructions go, BluetoothLeService.writeInstruction() */
+    public interface Target {
+        boolean submit(int instr);
+    }
+
+    public static class Config {
+        public int workload = WORKLOAD_TOGGLE_STORM;
+        public int[] outputPins = new int[0];
+        public int[] inputPins = new int[0];
+        public long durationMs = 10000;
+        /* Instructions kept outstanding */
+        public int window = 4;
+        /* How long to wait for outstanding instructions once the duration is up */
+        public long drainTimeoutMs = 5000;
+    }
+
+    public static class Result {
+        public String workload;
+        public long elapsedNanos;
+        public int submitted;
+        public int completed;
+        /* Refused by the service, e.g. for lack of a connection */
+        public int dropped;
+        /* Completed without an update, timed out, or lost to a reconnect */
+        public int failed;
+        /* Still outstanding when the drain timeout ran out */
+        public int unanswered;
+        /* From submission to the pin update */
+        public final LatencyTracker.Histogram latency = new LatencyTracker.Histogram();
+        /* Link and phone parameters, added by the caller */
+        public final Map<String, String> link = new LinkedHashMap<String, String>();
+
+        public double getOpsPerSecond() {
+            return elapsedNanos == 0 ? 0 : completed * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d ops in %.1f s, %.1f ops/s\n"
+                            + "latency p50 %dms  p95 %dms  p99 %dms  max %dms\n"
+                            + "submitted %d  dropped %d  failed %d  unanswered %d",
+                    workload, completed, elapsedNanos / 1e9, getOpsPerSecond(),
+                    latency.getPercentileMs(0.5), latency.getPercentileMs(0.95),
+                    latency.getPercentileMs(0.99), latency.getMaxNanos() / 1000000,
+                    submitted, dropped, failed, unanswered);
+        }
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("{\n");
+            sb.append("  \"workload\": \"").append(workload).append("\",\n");
+            sb.append("  \"elapsed_ms\": ").append(elapsedNanos / 1000000).append(",\n");
+            sb.append("  \"submitted\": ").append(submitted).append(",\n");
+            sb.append("  \"completed\": ").append(completed).append(",\n");
+            sb.append("  \"dropped\": ").append(dropped).append(",\n");
+            sb.append("  \"failed\": ").append(failed).append(",\n");
+            sb.append("  \"unanswered\": ").append(unanswered).append(",\n");
+            sb.append("  \"ops_per_sec\": ").append(String.format("%.2f", getOpsPerSecond()))
+                    .append(",\n");
+            sb.append("  \"latency_ms\": {")
+                    .append("\"p50\": ").append(latency.getPercentileMs(0.5))
+                    .append(", \"p95\": ").append(latency.getPercentileMs(0.95))
+                    .append(", \"p99\": ").append(latency.getPercentileMs(0.99))
+                    .append(", \"max\": ").append(latency.getMaxNanos() / 1000000)
+                    .append(", \"mean\": ").append(String.format("%.2f", latency.getMeanMs()))
+                    .append("},\n");
+            sb.append("  \"link\": {");
+            boolean first = true;
+            for (Map.Entry<String, String> e : link.entrySet()) {
+                sb.append(first ? "" : ", ");
+                appendString(sb, e.getKey());
+                sb.append(": ");
+                appendString(sb, e.getValue());
+                first = false;
+            }
+            sb.append("}\n}\n");
+            return sb.toString();
+        }
+
+        private static void appendString(StringBuilder sb, String s) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+    }
+
+    /**
+     * Parse a pin list as typed by the user, e.g. "1, 2, 3" or "16-31".
+     *
+     * @param text Comma separated pins and inclusive ranges, may be empty
+     * @return The pins in the order given
+     * @throws IllegalArgumentException If the list is malformed or a pin is out of range
+     */
+    public static int[] parsePins(String text) {
+        int[] pins = new int[SimulatedGpioPeripheral.MAX_PINS];
+        int count = 0;
+        for (String part : text.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            int dash = part.indexOf('-', 1);
+            int first;
+            int last;
+            try {
+                first = Integer.parseInt(part.substring(0, dash < 0 ? part.length() : dash).trim());
+                last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a pin: " + part);
+            }
+            if (first < 0 || last >= SimulatedGpioPeripheral.MAX_PINS || first > last) {
+                throw new IllegalArgumentException("Pins out of range: " + part);
+            }
+            for (int pin = first; pin <= last; pin++) {
+                if (count == pins.length) {
+                    throw new IllegalArgumentException("Too many pins");
+                }
+                pins[count++] = pin;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(pins, 0, result, 0, count);
+        return result;
+    }
+
+    private final Config config;
+    private final Target target;
+    private final Result result = new Result();
+
+    /* Outstanding instructions and when they were submitted, oldest first */
+    private int[] outstanding;
+    private long[] submittedAt;
+    private int outstandingCount;
+
+    private final boolean[] outputLevels;
+    private int nextOutput;
+    private int nextInput;
+    private int opIndex;
+    private long startNanos;
+    private boolean submitting;
+
+    public ThroughputBenchmark(Config config, Target target) {
+        if (config.window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1");
+        }
+        if (config.workload != WORKLOAD_READ_SWEEP && config.outputPins.length == 0) {
+            throw new IllegalArgumentException("No output pins");
+        }
+        if (config.workload != WORKLOAD_TOGGLE_STORM && config.inputPins.length == 0) {
+            throw new IllegalArgumentException("No input pins");
+        }
+        this.config = config;
+        this.target = target;
+        outstanding = new int[config.window];
+        submittedAt = new long[config.window];
+        outputLevels = new boolean[config.outputPins.length];
+        result.workload = WORKLOAD_NAMES[config.workload];
+    }
+
+    /* Start submitting, filling the window */
+    public void start(long nowNanos) {
+        startNanos = nowNanos;
+        submitting = true;
+        fill(nowNanos);
+    }
+
+    /* Whether the duration is up and nothing is outstanding, or the drain timed out */
+    public boolean isDone(long nowNanos) {
+        if (submitting && nowNanos - startNanos >= config.durationMs * 1000000) {
+            submitting = false;
+        }
+        if (submitting) {
+            return false;
+        }
+        return outstandingCount == 0
+                || nowNanos - startNanos >= (config.durationMs + config.drainTimeoutMs) * 1000000;
+    }
+
+    public int getOutstandingCount() {
+        return outstandingCount;
+    }
+
+    /**
+     * A pin update from the service.
+     *
+     * @param what The BluetoothLeService MSG_* of the update
+     * @param arg1 The instruction
+     * @param arg2 The data
+     * @param nowNanos When it arrived
+     */
+    public void onPinUpdate(int what, int arg1, int arg2, long nowNanos) {
+        if (what != GpioEventHandler.MSG_INSTR_WRITTEN && what != GpioEventHandler.MSG_DATA_READ) {
+            return;
+        }
+        int i = indexOf(arg1);
+        if (i < 0) {
+            // Not ours, e.g. another client's instruction
+            return;
+        }
+        result.failed += i;
+        result.latency.record(nowNanos - submittedAt[i]);
+        result.completed++;
+        removeFirst(i + 1);
+        fill(nowNanos);
+    }
+
+    /**
+     * The service timed out an instruction.
+     *
+     * @param instr The instruction, -1 if unknown
+     * @param action The GattWatchdog action the service took
+     * @param nowNanos When it happened
+     */
+    public void onOpTimeout(int instr, int action, long nowNanos) {
+        if (action == GattWatchdog.ACTION_RETRY) {
+            return;
+        }
+        if (action == GattWatchdog.ACTION_RECONNECT) {
+            // The reconnect journaled everything queued; the replay is compacted per pin
+            // and can't be matched up with what was submitted
+            result.failed += outstandingCount;
+            removeFirst(outstandingCount);
+        } else {
+            int i = indexOf(instr);
+            if (i >= 0) {
+                result.failed += i + 1;
+                removeFirst(i + 1);
+            }
+        }
+        fill(nowNanos);
+    }
+
+    /* Stop and count what is still outstanding as unanswered */
+    public Result finish(long nowNanos) {
+        submitting = false;
+        result.elapsedNanos = nowNanos - startNanos;
+        result.unanswered += outstandingCount;
+        removeFirst(outstandingCount);
+        return result;
+    }
+
+    private void fill(long nowNanos) {
+        while (submitting && outstandingCount < config.window
+                && nowNanos - startNanos < config.durationMs * 1000000) {
+            int instr = nextInstr();
+            if (!target.submit(instr)) {
+                result.dropped++;
+                // Retried on the next completion or timeout, if any
+                if (outstandingCount == 0) {
+                    submitting = false;
+                }
+                return;
+            }
+            result.submitted++;
+            outstanding[outstandingCount] = instr;
+            submittedAt[outstandingCount] = nowNanos;
+            outstandingCount++;
+        }
+    }
+
+    private int nextInstr() {
+        boolean read;
+        switch (config.workload) {
+            case WORKLOAD_READ_SWEEP:
+                read = true;
+                break;
+            case WORKLOAD_MIXED:
+                read = (opIndex & 1) != 0;
+                break;
+            default:
+                read = false;
+                break;
+        }
+        opIndex++;
+        if (read) {
+            int pin = config.inputPins[nextInput];
+            nextInput = (nextInput + 1) % config.inputPins.length;
+            return GpioPin.createGpioInstr(pin, 2, 0);
+        }
+        int i = nextOutput;
+        nextOutput = (nextOutput + 1) % config.outputPins.length;
+        outputLevels[i] = !outputLevels[i];
+        return GpioPin.createGpioInstr(config.outputPins[i], 1, outputLevels[i] ? 1 : 0);
+    }
+
+    private int indexOf(int instr) {
+        for (int i = 0; i < outstandingCount; i++) {
+            if (outstanding[i] == instr) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeFirst(int n) {
+        System.arraycopy(outstanding, n, outstanding, 0, outstandingCount - n);
+        System.arraycopy(submittedAt, n, submittedAt, 0, outstandingCount - n);
+        outstandingCount -= n;
+    }
+}
@@ -0,0 +1,136 @@
+package io.runtime.mynewtblecontroller;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size binary event records in a preallocated ring, cheap enough to leave on in
+ * production. Recording stores an event id, a timestamp and three int arguments without
+ * allocating, formatting or locking; the oldest records are overwritten once the ring is
+ * full. Records are only turned into text by {@link #dump()}, through a Decoder.
+ *
+ * Any number of threads may record concurrently. Each record is a slot of SLOT_LONGS longs:
+ *   0: header, (sequence + 1) << 16 | event, 0 while the slot is being written
+ *   1: System.nanoTime() at recording
+ *   2: arg a << 32 | arg b
+ *   3: arg c
+ * A writer claims a sequence number, clears the header, stores the fields and then the
+ * header. A reader takes a record only if the header holds its sequence number both before
+ * and after reading the fields, so records overwritten while dumping are skipped rather
+ * than torn.
+ */
+public class TraceRing {
+    private static final int SLOT_LONGS = 4;
+
+    /* Turns a record into text */
+    public interface Decoder {
+        void decode(StringBuilder sb, int event, int a, int b, int c);
+    }
+
+    private final AtomicLongArray slots;
+    private final AtomicLong next = new AtomicLong();
+    private final int mask;
+    private final Decoder decoder;
+
+    /**
+     * @param capacity Number of records kept, rounded up to a power of two
+     * @param decoder Decodes records for dump()
+     */
+    public TraceRing(int capacity, Decoder decoder) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new AtomicLongArray(size * SLOT_LONGS);
+        mask = size - 1;
+        this.decoder = decoder;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /* Number of records ever written, including those overwritten since */
+    public long getRecordCount() {
+        return next.get();
+    }
+
+    public void record(int event) {
+        record(event, 0, 0, 0);
+    }
+
+    public void record(int event, int a) {
+        record(event, a, 0, 0);
+    }
+
+    public void record(int event, int a, int b) {
+        record(event, a, b, 0);
+    }
+
+    /**
+     * Record an event.
+     *
+     * @param event The event id, 0-0xffff
+     * @param a First argument
+     * @param b Second argument
+     * @param c Third argument
+     */
+    public void record(int event, int a, int b, int c) {
+        final long seq = next.getAndIncrement();
+        final int base = (int) (seq & mask) * SLOT_LONGS;
+        // Invalidate first, readers must not pair the old header with the new fields
+        slots.set(base, 0);
+        slots.lazySet(base + 1, System.nanoTime());
+        slots.lazySet(base + 2, ((long) a << 32) | (b & 0xffffffffL));
+        slots.lazySet(base + 3, c);
+        slots.lazySet(base, ((seq + 1) << 16) | (event & 0xffff));
+    }
+
+    /* Forget all records */
+    public void clear() {
+        // Records claimed before this but written after it are still dumped
+        for (int i = 0; i < slots.length(); i += SLOT_LONGS) {
+            slots.set(i, 0);
+        }
+    }
+
+    /**
+     * Decode the records in the ring, oldest first, one per line with its time relative to
+     * the newest record.
+     *
+     * @return The records as text, empty if there are none
+     */
+    public String dump() {
+        final long end = next.get();
+        final long start = Math.max(0, end - getCapacity());
+        final int count = (int) (end - start);
+        // Copy out first, so that the records are consistent with each other
+        final int[] events = new int[count];
+        final long[] times = new long[count];
+        final long[] args = new long[count];
+        final int[] argC = new int[count];
+        final boolean[] valid = new boolean[count];
+        long newest = 0;
+        for (long seq = start; seq < end; seq++) {
+            final int i = (int) (seq - start);
+            final int base = (int) (seq & mask) * SLOT_LONGS;
+            final long header = slots.get(base);
+            times[i] = slots.get(base + 1);
+            args[i] = slots.get(base + 2);
+            argC[i] = (int) slots.get(base + 3);
+            valid[i] = header >>> 16 == seq + 1 && slots.get(base) == header;
+            if (valid[i]) {
+                events[i] = (int) (header & 0xffff);
+                newest = times[i];
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder(count * 48);
+        for (int i = 0; i < count; i++) {
+            if (!valid[i]) {
+                continue;
+            }
+            sb.append(String.format("%10.3fms  ", (times[i] - newest) / 1e6));
+            decoder.decode(sb, events[i], (int) (args[i] >> 32), (int) args[i], argC[i]);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
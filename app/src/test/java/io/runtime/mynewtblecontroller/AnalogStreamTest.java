@@ -0,0 +1,162 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streaming analog channels from the simulated peripheral through GpioEventHandler into the
+ * sample rings, and downsampling them for display, on a synthetic clock.
+ */
+public class AnalogStreamTest {
+    private final SimulatedGpioPeripheral peripheral = new SimulatedGpioPeripheral();
+    private final PinStateRegion pinState = PinStateRegion.createInMemory();
+    private final AnalogChannels analog = new AnalogChannels();
+    private int samplesMessages;
+    private int otherMessages;
+    private final GpioEventHandler events = new GpioEventHandler(pinState, analog,
+            new GpioEventHandler.Output() {
+                @Override
+                public void dispatchPinUpdate(int what, int arg1, int arg2) {
+                    if (what == GpioEventHandler.MSG_ANALOG_SAMPLES) {
+                        samplesMessages++;
+                    } else if (what != GpioEventHandler.MSG_ANALOG_CONFIGURED) {
+                        otherMessages++;
+                    }
+                }
+
+                @Override
+                public void readPin(int instr) {
+                    fail("Analog instructions are not read back");
+                }
+
+                @Override
+                public void opComplete() {
+                }
+            });
+    private long now = 1000000000L;
+
+    public AnalogStreamTest() {
+        peripheral.setListener(new SimulatedGpioPeripheral.Listener() {
+            @Override
+            public void onNotification(byte[] value) {
+                events.onChanged(value);
+            }
+        });
+    }
+
+    /* Write an instruction to the peripheral and report the write, as the link would */
+    private void write(int instr) {
+        int echoed = peripheral.write(instr);
+        assertEquals(instr, echoed);
+        events.onWrite(GpioEventHandler.GATT_SUCCESS,
+                new byte[] { (byte) instr, (byte) (instr >>> 8) });
+    }
+
+    /* Let the board flush its samples every tick for a while */
+    private void run(long ms) {
+        for (long t = 0; t < ms; t += SimulatedGpioPeripheral.ANALOG_TICK_MS) {
+            now += SimulatedGpioPeripheral.ANALOG_TICK_MS * 1000000L;
+            peripheral.sampleAnalog(now);
+        }
+    }
+
+    @Test
+    public void packing_roundTrips() throws Exception {
+        short[] samples = {0, 0xfff, 0x123, 0xabc, 0x800};
+        for (int count = 1; count <= samples.length; count++) {
+            byte[] value = AnalogNotification.encode(17, 0xfffe, samples, 0, count);
+            assertEquals(AnalogNotification.length(count), value.length);
+            assertTrue(AnalogNotification.isAnalog(value));
+            assertFalse(GpioDeltaNotification.isDelta(value));
+            assertFalse(DeviceTimestamp.inNotification(value));
+            assertEquals(17, AnalogNotification.getChannel(value));
+            assertEquals(0xfffe, AnalogNotification.getSequence(value));
+            assertEquals(count, AnalogNotification.getSampleCount(value));
+            for (int i = 0; i < count; i++) {
+                assertEquals(samples[i], AnalogNotification.getSample(value, i));
+            }
+        }
+        // 20 samples in 34 bytes
+        assertEquals(34, AnalogNotification.length(20));
+        assertFalse(AnalogNotification.isAnalog(new byte[] { (byte) 0xad, 1, 0, 0, 0 }));
+        assertFalse(AnalogNotification.isAnalog(new byte[] { 0x21, 0x05 }));
+    }
+
+    @Test
+    public void oneKhz_isStreamedWithoutLoss() throws Exception {
+        int instr = GpioPin.createAnalogInstr(40, 6);
+        assertTrue(GpioPin.isValidInstr(instr));
+        write(instr);
+        write(GpioPin.createAnalogInstr(41, 3));
+        assertEquals(1000, analog.get(40).getRateHz());
+        assertTrue(peripheral.isAnalog(40));
+
+        run(1000);
+        AnalogChannels.Channel channel = analog.get(40);
+        // One sample on the first tick, then 20 a tick
+        assertEquals(981, channel.getWritten());
+        assertEquals(0, channel.getDropped());
+        for (int i = 0; i < channel.getWritten(); i++) {
+            assertEquals(SimulatedGpioPeripheral.analogSample(40, i), channel.getSample(i));
+        }
+        assertEquals(99, analog.get(41).getWritten());
+        // A notification a tick per channel
+        assertEquals(100, samplesMessages);
+        assertEquals(0, otherMessages);
+        assertEquals(0, pinState.getPinState(40));
+
+        // Stopped
+        write(GpioPin.createAnalogInstr(40, 0));
+        run(100);
+        assertEquals(981, channel.getWritten());
+        assertEquals(0, channel.getRateHz());
+    }
+
+    @Test
+    public void lostNotifications_areCounted() throws Exception {
+        write(GpioPin.createAnalogInstr(3, 6));
+        run(100);
+        AnalogChannels.Channel channel = analog.get(3);
+        long before = channel.getWritten();
+        // The link drops a tick's worth of notifications
+        peripheral.setListener(null);
+        run(SimulatedGpioPeripheral.ANALOG_TICK_MS);
+        peripheral.setListener(new SimulatedGpioPeripheral.Listener() {
+            @Override
+            public void onNotification(byte[] value) {
+                events.onChanged(value);
+            }
+        });
+        run(100);
+        assertEquals(20, channel.getDropped());
+        assertEquals(before + 100, channel.getWritten());
+    }
+
+    @Test
+    public void trace_downsamplesIncrementally() throws Exception {
+        write(GpioPin.createAnalogInstr(0, 6));
+        AnalogTrace trace = new AnalogTrace(analog.get(0));
+        // 10 samples to a column, 50 columns
+        trace.setWindow(50, 10);
+        assertEquals(0, trace.update());
+
+        run(100);
+        assertEquals(8, trace.update());
+        assertEquals(8, trace.getColumnCount());
+        // The sawtooth of pin 0 rises by 8 a sample
+        assertEquals(0, trace.getMin(0));
+        assertEquals(72, trace.getMax(0));
+        assertEquals(80, trace.getMin(1));
+        assertEquals(0, trace.update());
+
+        // Scrolls once full, the oldest columns dropping out
+        run(1000);
+        assertEquals(100, trace.update());
+        assertEquals(50, trace.getColumnCount());
+        // Of 1081 samples, the newest complete column holds 1070 to 1079
+        assertEquals(1081, analog.get(0).getWritten());
+        assertEquals(SimulatedGpioPeripheral.analogSample(0, 1070), trace.getMin(49));
+        assertEquals(SimulatedGpioPeripheral.analogSample(0, 1079), trace.getMax(49));
+    }
+}
@@ -0,0 +1,174 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The bulk transport over a local socket pair standing in for the L2CAP channel: framing of
+ * samples and instructions, credit flow control and the end of the channel.
+ */
+public class BulkChannelTest {
+    private final Socket appSocket;
+    private final Socket boardSocket;
+
+    /* Collects what a channel receives */
+    private static class Received implements BulkChannel.Listener {
+        final List<Integer> samples = new ArrayList<Integer>();
+        final List<Integer> instrs = new ArrayList<Integer>();
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile IOException error;
+        int lastTimestamp = -1;
+        /* Held by the test to stall the reader */
+        final Object gate = new Object();
+
+        @Override
+        public void onSamples(int port, int timestampMicros, int intervalMicros, int[] levels,
+                              int count) {
+            synchronized (gate) {
+                assertEquals(1, port);
+                assertEquals(100, intervalMicros);
+                assertTrue(timestampMicros > lastTimestamp);
+                lastTimestamp = timestampMicros;
+                synchronized (this) {
+                    for (int i = 0; i < count; i++) {
+                        samples.add(levels[i]);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onInstructions(int[] instrs, int count) {
+            for (int i = 0; i < count; i++) {
+                this.instrs.add(instrs[i]);
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void onClosed(IOException e) {
+            error = e;
+            closed.countDown();
+        }
+
+        synchronized void awaitSamples(int n) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (samples.size() < n && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+        }
+
+        synchronized void awaitInstrs(int n) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (instrs.size() < n && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+        }
+    }
+
+    public BulkChannelTest() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        appSocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        boardSocket = server.accept();
+        server.close();
+    }
+
+    private BulkChannel open(Socket socket, int window, Received received) throws IOException {
+        BulkChannel channel = new BulkChannel(socket.getInputStream(), socket.getOutputStream(),
+                window, received);
+        channel.start();
+        return channel;
+    }
+
+    @Test
+    public void samplesAndInstructions_roundTrip() throws Exception {
+        Received atApp = new Received();
+        Received atBoard = new Received();
+        BulkChannel app = open(appSocket, BulkChannel.DEFAULT_WINDOW, atApp);
+        BulkChannel board = open(boardSocket, BulkChannel.DEFAULT_WINDOW, atBoard);
+
+        // Several frames' worth, well past the window, with full 32-bit levels
+        int n = BulkChannel.MAX_SAMPLES_PER_FRAME * 20 + 7;
+        int[] levels = new int[n];
+        for (int i = 0; i < n; i++) {
+            levels[i] = i * 0x9e3779b9;
+        }
+        assertTrue(board.sendSamples(1, 0, 100, levels, 0, n, 5000));
+        int[] instrs = {GpioPin.createGpioInstr(3, GpioPin.DIR_OUTPUT, 1), 0xffff, 0};
+        assertTrue(app.sendInstructions(instrs, 5000));
+
+        atApp.awaitSamples(n);
+        atBoard.awaitInstrs(instrs.length);
+        assertEquals(n, atApp.samples.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(levels[i], (int) atApp.samples.get(i));
+        }
+        assertEquals(3, atBoard.instrs.size());
+        for (int i = 0; i < instrs.length; i++) {
+            assertEquals(instrs[i], (int) atBoard.instrs.get(i));
+        }
+        assertEquals(21, board.getFramesSent());
+        assertEquals(21, app.getFramesReceived());
+        // Within 1% of the 4 bytes a sample, a notification costs more than that in headers
+        assertTrue(app.getBytesReceived() < n * 4 * 101 / 100);
+        app.close();
+        board.close();
+    }
+
+    @Test
+    public void credits_bufferAtMostTheWindow() throws Exception {
+        Received atApp = new Received();
+        Received atBoard = new Received();
+        BulkChannel app = open(appSocket, 4, atApp);
+        BulkChannel board = open(boardSocket, 4, atBoard);
+        int[] one = {1};
+
+        // A stalled reader holds up the first frame, three more fit in the window
+        synchronized (atApp.gate) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(board.sendSamples(1, i * 100, 100, one, 0, 1, 1000));
+            }
+            assertEquals(0, board.getCredits());
+            assertFalse(board.sendSamples(1, 400, 100, one, 0, 1, 50));
+        }
+        // Credits come back once the app catches up
+        assertTrue(board.sendSamples(1, 400, 100, one, 0, 1, 5000));
+        atApp.awaitSamples(5);
+        assertEquals(5, atApp.samples.size());
+        app.close();
+        board.close();
+    }
+
+    @Test
+    public void close_reachesBothSides() throws Exception {
+        Received atApp = new Received();
+        Received atBoard = new Received();
+        BulkChannel app = open(appSocket, BulkChannel.DEFAULT_WINDOW, atApp);
+        BulkChannel board = open(boardSocket, BulkChannel.DEFAULT_WINDOW, atBoard);
+
+        app.close();
+        assertTrue(atApp.closed.await(5, TimeUnit.SECONDS));
+        assertNull(atApp.error);
+        assertTrue(app.isClosed());
+        // The board sees the end of the stream
+        assertTrue(atBoard.closed.await(5, TimeUnit.SECONDS));
+        assertNotNull(atBoard.error);
+        try {
+            board.sendInstructions(new int[]{1}, 100);
+            fail("Sent on a closed channel");
+        } catch (IOException expected) {
+            // Closed
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds ClockOffsetEstimator with round trips to a simulated peripheral whose clock is
+ * offset and skewed, on a synthetic host timeline.
+ */
+public class ClockOffsetEstimatorTest {
+    private static final long MS = 1000000L;
+
+    /* Round trips every 500 ms for the given time, with 5-15 ms each way and some queueing */
+    private static long feed(ClockOffsetEstimator clock, SimulatedGpioPeripheral device,
+                             Random random, long startNanos, long durationNanos) {
+        long t = startNanos;
+        for (; t < startNanos + durationNanos; t += 500 * MS) {
+            long up = 5 * MS + random.nextInt(10) * MS;
+            long down = 5 * MS + random.nextInt(10) * MS;
+            if (random.nextInt(4) == 0) {
+                down += 40 * MS;
+            }
+            int deviceMicros = (int) device.toDeviceMicros(t + up);
+            clock.addSample(t, deviceMicros, t + up + down);
+        }
+        return t;
+    }
+
+    @Test
+    public void offsetAndDrift_areRecovered() throws Exception {
+        SimulatedGpioPeripheral device = new SimulatedGpioPeripheral();
+        device.clockOffsetMicros = -123456789;
+        device.clockSkewPpm = 150;
+        ClockOffsetEstimator clock = new ClockOffsetEstimator();
+        Random random = new Random(1);
+        long start = 3600000 * MS;
+        long end = feed(clock, device, random, start, 600000 * MS);
+
+        assertEquals(150, clock.getDriftPpm(), 20);
+        assertTrue(clock.getUncertaintyNanos() <= 10 * MS);
+
+        // An edge shortly after the last sample lands within a few ms of when it happened
+        long edge = end + 200 * MS;
+        long mapped = clock.toHostNanos((int) device.toDeviceMicros(edge));
+        assertEquals(edge, mapped, 5.0 * MS);
+    }
+
+    @Test
+    public void drift_matters() throws Exception {
+        // Without the drift a 150 ppm skew is off by 45 ms five minutes after the samples
+        SimulatedGpioPeripheral device = new SimulatedGpioPeripheral();
+        device.clockSkewPpm = 150;
+        ClockOffsetEstimator clock = new ClockOffsetEstimator();
+        long end = feed(clock, device, new Random(2), 0, 600000 * MS);
+        long edge = end + 300000 * MS;
+        assertEquals(edge, clock.toHostNanos((int) device.toDeviceMicros(edge)), 5.0 * MS);
+        assertTrue(Math.abs(device.toDeviceMicros(edge) * 1000 - clock.getOffsetMicros() * 1000
+                - edge) > 40 * MS);
+    }
+
+    @Test
+    public void fewSamples_useFastestRoundTrip() throws Exception {
+        ClockOffsetEstimator clock = new ClockOffsetEstimator();
+        assertFalse(clock.hasEstimate());
+        assertEquals(0, clock.toHostNanos(1234));
+        // The device is 1 s ahead; the slow sample would put it 50 ms off
+        clock.addSample(0, 1000000 + 5000, 10 * MS);
+        clock.addSample(100 * MS, 1100000 + 5000, 200 * MS);
+        assertEquals(1000000, clock.getOffsetMicros(), 1);
+        assertEquals(0, clock.getDriftPpm(), 0);
+        assertEquals(5 * MS, clock.getUncertaintyNanos());
+        assertEquals(300 * MS, clock.toHostNanos(1300000), 1000.0);
+    }
+
+    @Test
+    public void wrappingTimestamps_areUnwrapped() throws Exception {
+        SimulatedGpioPeripheral device = new SimulatedGpioPeripheral();
+        // The 32 bit device clock wraps 10 s into the samples
+        device.clockOffsetMicros = 0xffffffffL - 10000000L;
+        ClockOffsetEstimator clock = new ClockOffsetEstimator();
+        long end = feed(clock, device, new Random(3), 0, 120000 * MS);
+        assertEquals(0, clock.getDriftPpm(), 20);
+        long edge = end + 100 * MS;
+        assertEquals(edge, clock.toHostNanos((int) device.toDeviceMicros(edge)), 5.0 * MS);
+
+        clock.reset();
+        assertFalse(clock.hasEstimate());
+    }
+
+    @Test
+    public void peripheral_timestampsReadsAndNotifications() throws Exception {
+        SimulatedGpioPeripheral device = new SimulatedGpioPeripheral();
+        device.deviceTimestamps = true;
+        device.clockOffsetMicros = 5000000;
+        final byte[][] notified = new byte[1][];
+        device.setListener(new SimulatedGpioPeripheral.Listener() {
+            @Override
+            public void onNotification(byte[] value) {
+                notified[0] = value;
+            }
+        });
+        device.write(GpioPin.createGpioInstr(3, 2, 0));
+
+        long sent = System.nanoTime();
+        byte[] read = device.readValue();
+        long received = System.nanoTime();
+        assertTrue(DeviceTimestamp.inReadValue(read));
+        assertEquals(0, GpioPin.decodeUint16(read, 0));
+        ClockOffsetEstimator clock = new ClockOffsetEstimator();
+        clock.addSample(sent, DeviceTimestamp.get(read), received);
+
+        long before = System.nanoTime();
+        device.setInputLevel(3, true);
+        long after = System.nanoTime();
+        assertTrue(DeviceTimestamp.inNotification(notified[0]));
+        long edge = clock.toHostNanos(DeviceTimestamp.get(notified[0]));
+        assertTrue(edge >= before - (received - sent) - 1000);
+        assertTrue(edge <= after + (received - sent) + 1000);
+
+        device.deltaNotifications = true;
+        device.setInputLevel(3, false);
+        assertTrue(GpioDeltaNotification.isDelta(notified[0]));
+        assertTrue(DeviceTimestamp.inNotification(notified[0]));
+        assertEquals(1, GpioDeltaNotification.getBlockCount(notified[0]));
+    }
+}
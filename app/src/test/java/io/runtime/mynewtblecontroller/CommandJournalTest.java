@@ -0,0 +1,125 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Journals instructions as BluetoothLeService does while the link is down, in memory and
+ * in a temporary file.
+ */
+public class CommandJournalTest {
+    private static final String DEVICE = "00:11:22:33:44:55";
+
+    private static int out(int pin, boolean isHigh) {
+        return GpioPin.createGpioInstr(pin, 1, isHigh ? 1 : 0);
+    }
+
+    @Test
+    public void instructions_areCompactedPerPin() throws Exception {
+        CommandJournal journal = CommandJournal.createInMemory();
+        for (int i = 0; i < 1000; i++) {
+            journal.add(DEVICE, out(7, (i & 1) != 0));
+            journal.add(DEVICE, out(3, (i & 1) == 0));
+        }
+        int read = GpioPin.createGpioInstr(5, 2, 0);
+        journal.add(DEVICE, read);
+        assertEquals(3, journal.size());
+        assertArrayEquals(new int[] { out(3, false), read, out(7, true) },
+                journal.pending(DEVICE));
+        // Replaying leaves the journal as it is until the device confirms
+        assertEquals(3, journal.size());
+    }
+
+    @Test
+    public void portInstructions_expandToOutputPins() throws Exception {
+        PinStateRegion pinState = PinStateRegion.createInMemory();
+        pinState.update(33, true, true);
+        pinState.update(34, false, false);
+        CommandJournal journal = CommandJournal.createInMemory();
+        journal.add(DEVICE, out(35, false));
+
+        // Port 1: 33 is a high output, 34 an input, 35 journaled low, 36 unknown
+        int mask = (1 << 1) | (1 << 2) | (1 << 3) | (1 << 4);
+        journal.addPort(DEVICE, GpioPortInstr.OP_TOGGLE_MASK, 1, mask, pinState);
+        assertArrayEquals(new int[] { out(33, false), out(35, true) }, journal.pending(DEVICE));
+        journal.addPort(DEVICE, GpioPortInstr.OP_SET_MASK, 1, mask, pinState);
+        assertArrayEquals(new int[] { out(33, true), out(35, true) }, journal.pending(DEVICE));
+    }
+
+    @Test
+    public void confirmAndSupersede_removeEntries() throws Exception {
+        CommandJournal journal = CommandJournal.createInMemory();
+        journal.add(DEVICE, out(1, true));
+        journal.add(DEVICE, out(2, true));
+        // An echo of an older instruction does not confirm the newer one
+        journal.confirm(out(1, false));
+        assertEquals(2, journal.size());
+        journal.confirm(out(1, true));
+        journal.supersede(2);
+        assertEquals(0, journal.size());
+        assertEquals(0, journal.pending(DEVICE).length);
+    }
+
+    @Test
+    public void anotherDevice_discardsPending() throws Exception {
+        CommandJournal journal = CommandJournal.createInMemory();
+        journal.add(DEVICE, out(1, true));
+        assertEquals(0, journal.pending("66:77:88:99:AA:BB").length);
+        assertEquals("66:77:88:99:AA:BB", journal.getAddress());
+        assertEquals(0, journal.pending(DEVICE).length);
+    }
+
+    @Test
+    public void file_survivesReopenCompactionAndTornRecord() throws Exception {
+        File file = File.createTempFile("journal", null);
+        try {
+            CommandJournal journal = CommandJournal.open(file);
+            assertTrue(journal.isDurable());
+            // Enough records to be rewritten a few times
+            for (int i = 0; i < 5000; i++) {
+                journal.add(DEVICE, out(i % 10, (i / 10 & 1) != 0));
+            }
+            journal.confirm(out(9, true));
+            journal.close();
+            assertTrue(file.length() < 4 * 5000);
+
+            // A crash in the middle of appending a record
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(raf.length());
+            raf.write(new byte[] { 0, 0 });
+            raf.close();
+
+            journal = CommandJournal.open(file);
+            assertEquals(DEVICE, journal.getAddress());
+            int[] pending = journal.pending(DEVICE);
+            assertEquals(9, pending.length);
+            assertEquals(out(0, true), pending[0]);
+            assertEquals(out(8, true), pending[8]);
+            journal.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void foreignFile_startsEmpty() throws Exception {
+        File file = File.createTempFile("journal", null);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.writeInt(0x12345678);
+            raf.writeInt(42);
+            raf.close();
+            CommandJournal journal = CommandJournal.open(file);
+            assertEquals(0, journal.size());
+            journal.add(DEVICE, out(4, true));
+            journal.close();
+            assertEquals(1, CommandJournal.open(file).size());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Guessing the board the user opens next from usage history and scan RSSI, on a synthetic
+ * clock.
+ */
+public class ConnectPredictorTest {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final String DAILY = "C4:00:00:00:00:01";
+    private static final String OTHER = "C4:00:00:00:00:02";
+    private static final String NEW = "C4:00:00:00:00:03";
+
+    private final ConnectPredictor predictor = new ConnectPredictor();
+    private long nowMs = 1700000000000L;
+    private long nowNanos = 1000000000L;
+
+    /* Hear each board once more, 100 ms later */
+    private void scan(String address, int rssi) {
+        nowNanos += 100000000L;
+        predictor.onScanResult(address, rssi, nowNanos);
+    }
+
+    @Test
+    public void dailyBoard_isPredicted() throws Exception {
+        for (int day = 0; day < 5; day++) {
+            predictor.recordUse(DAILY, nowMs);
+            nowMs += DAY_MS;
+        }
+        predictor.recordUse(OTHER, nowMs - 20 * DAY_MS);
+        scan(DAILY, -60);
+        scan(OTHER, -50);
+        scan(NEW, -40);
+        // Heard once, could be a fluke
+        assertNull(predictor.predict(nowMs, nowNanos));
+        scan(DAILY, -62);
+        assertEquals(DAILY, predictor.predict(nowMs, nowNanos));
+
+        // Out of range
+        nowNanos += ConnectPredictor.STALE_NANOS + 1;
+        scan(OTHER, -50);
+        scan(OTHER, -50);
+        assertNull(predictor.predict(nowMs, nowNanos));
+    }
+
+    @Test
+    public void closeCall_isNotPredicted() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            predictor.recordUse(DAILY, nowMs);
+            predictor.recordUse(OTHER, nowMs);
+        }
+        scan(DAILY, -60);
+        scan(OTHER, -60);
+        scan(DAILY, -60);
+        scan(OTHER, -60);
+        assertNull(predictor.predict(nowMs, nowNanos));
+
+        // Used once, a long time ago
+        final ConnectPredictor rare = new ConnectPredictor();
+        rare.recordUse(DAILY, nowMs - 30 * DAY_MS);
+        rare.onScanResult(DAILY, -50, nowNanos);
+        rare.onScanResult(DAILY, -50, nowNanos);
+        assertNull(rare.predict(nowMs, nowNanos));
+
+        // Too far away
+        final ConnectPredictor far = new ConnectPredictor();
+        far.recordUse(DAILY, nowMs);
+        far.recordUse(DAILY, nowMs);
+        far.onScanResult(DAILY, -95, nowNanos);
+        far.onScanResult(DAILY, -95, nowNanos);
+        assertNull(far.predict(nowMs, nowNanos));
+        far.onScanResult(DAILY, -40, nowNanos);
+        far.onScanResult(DAILY, -40, nowNanos);
+        far.onScanResult(DAILY, -40, nowNanos);
+        assertEquals(DAILY, far.predict(nowMs, nowNanos));
+    }
+
+    @Test
+    public void history_roundTrips() throws Exception {
+        predictor.recordUse(DAILY, nowMs);
+        predictor.recordUse(DAILY, nowMs);
+        predictor.recordUse(OTHER, nowMs);
+        final ConnectPredictor restored = new ConnectPredictor();
+        restored.decode(predictor.encode() + "garbage\nC4 x 1\n");
+        restored.onScanResult(DAILY, -60, nowNanos);
+        restored.onScanResult(DAILY, -60, nowNanos);
+        restored.onScanResult(NEW, -60, nowNanos);
+        assertEquals(DAILY, restored.predict(nowMs, nowNanos));
+        restored.decode(null);
+        restored.onScanResult(DAILY, -60, nowNanos);
+        restored.onScanResult(DAILY, -60, nowNanos);
+        assertNull(restored.predict(nowMs, nowNanos));
+    }
+
+    @Test
+    public void history_forgetsLeastUsed() throws Exception {
+        predictor.recordUse(DAILY, nowMs);
+        predictor.recordUse(DAILY, nowMs);
+        for (int i = 0; i < ConnectPredictor.MAX_HISTORY; i++) {
+            predictor.recordUse(String.format("C4:00:00:00:01:%02X", i), nowMs);
+        }
+        predictor.onScanResult(DAILY, -60, nowNanos);
+        predictor.onScanResult(DAILY, -60, nowNanos);
+        assertEquals(DAILY, predictor.predict(nowMs, nowNanos));
+        assertEquals(ConnectPredictor.MAX_HISTORY, predictor.encode().split("\n").length);
+    }
+}
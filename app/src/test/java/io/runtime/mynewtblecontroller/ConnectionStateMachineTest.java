@@ -0,0 +1,71 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connection state transitions and stale callbacks. LinkSessionTest races them from many
+ * threads through the session the service drives them with.
+ */
+public class ConnectionStateMachineTest {
+    /* Stands in for a GattLink, counting how often it is closed */
+    private static class FakeLink {
+        final AtomicInteger closes = new AtomicInteger();
+
+        void close() {
+            closes.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void staleCallbacks_areIgnored() throws Exception {
+        ConnectionStateMachine<FakeLink> sm = new ConnectionStateMachine<FakeLink>();
+        int first = sm.newGeneration();
+        FakeLink a = new FakeLink();
+        assertNull(sm.install(first, a, "A").link);
+        assertTrue(sm.onStateChange(first, ConnectionStateMachine.STATE_CONNECTED));
+
+        int second = sm.newGeneration();
+        FakeLink b = new FakeLink();
+        assertSame(a, sm.install(second, b, "B").link);
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, sm.getState());
+
+        // The old link's disconnect must not touch the new connection
+        assertFalse(sm.onStateChange(first, ConnectionStateMachine.STATE_DISCONNECTED));
+        assertFalse(sm.isCurrent(first));
+        assertTrue(sm.isCurrent(second));
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, sm.getState());
+
+        assertSame(b, sm.close().link);
+        assertFalse(sm.onStateChange(second, ConnectionStateMachine.STATE_CONNECTED));
+        assertNull(sm.close().link);
+        assertEquals("B", sm.snapshot().address);
+    }
+
+    @Test
+    public void olderInstall_losesToNewer() throws Exception {
+        ConnectionStateMachine<FakeLink> sm = new ConnectionStateMachine<FakeLink>();
+        int older = sm.newGeneration();
+        int newer = sm.newGeneration();
+        FakeLink b = new FakeLink();
+        assertNotNull(sm.install(newer, b, "B"));
+        assertNull(sm.install(older, new FakeLink(), "A"));
+        assertSame(b, sm.getLink());
+    }
+
+    @Test
+    public void reconnect_failsOnceStateMoved() throws Exception {
+        ConnectionStateMachine<FakeLink> sm = new ConnectionStateMachine<FakeLink>();
+        int gen = sm.newGeneration();
+        sm.install(gen, new FakeLink(), "A");
+        sm.onStateChange(gen, ConnectionStateMachine.STATE_DISCONNECTED);
+        ConnectionStateMachine.Snapshot<FakeLink> seen = sm.snapshot();
+        sm.onStateChange(gen, ConnectionStateMachine.STATE_CONNECTED);
+        assertFalse(sm.reconnect(seen));
+        assertTrue(sm.reconnect(sm.snapshot()));
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, sm.getState());
+    }
+}
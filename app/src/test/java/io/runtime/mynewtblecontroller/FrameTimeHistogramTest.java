@@ -0,0 +1,52 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame time bucketing, percentiles and event correlation.
+ */
+public class FrameTimeHistogramTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void percentiles_followBuckets() throws Exception {
+        FrameTimeHistogram histogram = new FrameTimeHistogram();
+        for (int i = 0; i < 95; i++) {
+            histogram.record(16 * MS + MS / 2, 0);
+        }
+        for (int i = 0; i < 5; i++) {
+            histogram.record(50 * MS, 0);
+        }
+        assertEquals(100, histogram.getFrameCount());
+        assertEquals(17, histogram.getPercentileMs(0.5));
+        assertEquals(17, histogram.getPercentileMs(0.95));
+        assertEquals(51, histogram.getPercentileMs(0.99));
+        assertEquals(5, histogram.getJankCount());
+        assertEquals(50 * MS, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void longFrames_shareLastBucket() throws Exception {
+        FrameTimeHistogram histogram = new FrameTimeHistogram();
+        histogram.record(5000 * MS, 0);
+        assertEquals(1, histogram.getBucket(FrameTimeHistogram.MAX_MS));
+    }
+
+    @Test
+    public void eventRates_separateJankFrames() throws Exception {
+        FrameTimeHistogram histogram = new FrameTimeHistogram();
+        // 10 smooth frames with 1 event each, 1 slow frame during a storm of 20
+        for (int i = 0; i < 10; i++) {
+            histogram.record(FrameTimeHistogram.FRAME_NANOS, 1);
+        }
+        histogram.record(40 * MS, 20);
+        assertEquals(20 / 0.040, histogram.getJankEventRate(), 1);
+        assertEquals(1e9 / FrameTimeHistogram.FRAME_NANOS, histogram.getSmoothEventRate(), 1);
+
+        histogram.reset();
+        assertEquals(0, histogram.getFrameCount());
+        assertEquals(0, histogram.getPercentileMs(0.5));
+    }
+}
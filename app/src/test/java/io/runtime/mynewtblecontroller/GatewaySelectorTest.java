@@ -0,0 +1,334 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Gateway connections against a loopback stand-in gateway, which serves a
+ * SimulatedGpioPeripheral per connection: many boards on one selector thread, batched
+ * writes, notifications and the gateway going away.
+ */
+public class GatewaySelectorTest {
+    /* Speaks the gateway protocol, a thread and a simulated board per connection */
+    private static class LoopbackGateway implements Runnable {
+        final ServerSocket server;
+        final List<SimulatedGpioPeripheral> boards = new ArrayList<SimulatedGpioPeripheral>();
+        final List<Socket> sockets = new ArrayList<Socket>();
+
+        LoopbackGateway() throws IOException {
+            server = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+            new Thread(this, "LoopbackGateway").start();
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        }
+
+        synchronized SimulatedGpioPeripheral board(int index) throws InterruptedException {
+            while (boards.size() <= index) {
+                wait(100);
+            }
+            return boards.get(index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = server.accept();
+                    final SimulatedGpioPeripheral board = new SimulatedGpioPeripheral();
+                    synchronized (this) {
+                        boards.add(board);
+                        sockets.add(socket);
+                        notifyAll();
+                    }
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket, board);
+                        }
+                    }).start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        void serve(Socket socket, SimulatedGpioPeripheral board) {
+            try {
+                final DataInputStream in = new DataInputStream(socket.getInputStream());
+                final OutputStream out = socket.getOutputStream();
+                board.setListener(new SimulatedGpioPeripheral.Listener() {
+                    @Override
+                    public void onNotification(byte[] value) {
+                        send(out, GatewaySelector.TYPE_NOTIFY, -1, value);
+                    }
+                });
+                while (true) {
+                    final int type = in.readUnsignedByte();
+                    final byte[] value = new byte[in.readUnsignedByte() | in.readUnsignedByte() << 8];
+                    in.readFully(value);
+                    if (type == GatewaySelector.TYPE_WRITE) {
+                        final boolean ok = GpioPortInstr.isPortInstr(value)
+                                ? board.writePort(GpioPortInstr.getOp(value),
+                                        GpioPortInstr.getPort(value), GpioPortInstr.getMask(value))
+                                : board.write(GpioPin.decodeUint16(value, 0)) >= 0;
+                        send(out, GatewaySelector.TYPE_WRITE_RSP, ok ? 0 : 1, new byte[0]);
+                    } else if (type == GatewaySelector.TYPE_READ) {
+                        final byte[] read = board.readValue();
+                        send(out, GatewaySelector.TYPE_READ_RSP, read == null ? 1 : 0,
+                                read == null ? new byte[0] : read);
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        static void send(OutputStream out, int type, int status, byte[] value) {
+            final int length = value.length + (status >= 0 ? 1 : 0);
+            final byte[] frame = new byte[GatewaySelector.HEADER_LENGTH + length];
+            frame[0] = (byte) type;
+            frame[1] = (byte) length;
+            frame[2] = (byte) (length >> 8);
+            int p = GatewaySelector.HEADER_LENGTH;
+            if (status >= 0) {
+                frame[p++] = (byte) status;
+            }
+            System.arraycopy(value, 0, frame, p, value.length);
+            try {
+                synchronized (out) {
+                    out.write(frame);
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        synchronized void close() throws IOException {
+            server.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /* Records a connection's events */
+    private static class Events implements GatewaySelector.Listener {
+        boolean connected;
+        boolean closed;
+        IOException error;
+        final List<Integer> writeStatus = new ArrayList<Integer>();
+        final List<byte[]> reads = new ArrayList<byte[]>();
+        final List<byte[]> notifications = new ArrayList<byte[]>();
+        final List<String> threads = new ArrayList<String>();
+
+        @Override
+        public synchronized void onConnected(GatewaySelector.Connection connection) {
+            threads.add(Thread.currentThread().getName());
+            connected = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onClosed(GatewaySelector.Connection connection, IOException e) {
+            closed = true;
+            error = e;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onWriteResponse(GatewaySelector.Connection connection,
+                                                 int status) {
+            threads.add(Thread.currentThread().getName());
+            writeStatus.add(status);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onReadResponse(GatewaySelector.Connection connection, int status,
+                                                byte[] value) {
+            threads.add(Thread.currentThread().getName());
+            reads.add(value);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onNotification(GatewaySelector.Connection connection,
+                                                byte[] value) {
+            notifications.add(value);
+            notifyAll();
+        }
+
+        synchronized void await(int writes, int reads, int notifications)
+                throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while ((writeStatus.size() < writes || this.reads.size() < reads
+                    || this.notifications.size() < notifications)
+                    && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+        }
+
+        synchronized void awaitClosed() throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (!closed && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+        }
+    }
+
+    private static byte[] pinValue(int instr) {
+        return new byte[]{(byte) instr, (byte) (instr >> 8)};
+    }
+
+    @Test
+    public void manyBoards_shareOneSelectorThread() throws Exception {
+        LoopbackGateway gateway = new LoopbackGateway();
+        GatewaySelector selector = new GatewaySelector();
+        int n = 32;
+        List<Events> events = new ArrayList<Events>();
+        for (int i = 0; i < n; i++) {
+            Events e = new Events();
+            events.add(e);
+            GatewaySelector.Connection c = selector.connect(gateway.getAddress(), e);
+            // Board i drives pin i high, configures pin 100 as input and reads it
+            assertTrue(c.write(pinValue(GpioPin.createGpioInstr(i, GpioPin.DIR_OUTPUT, 1))));
+            assertTrue(c.write(pinValue(GpioPin.createGpioInstr(100, GpioPin.DIR_INPUT, 0))));
+            assertTrue(c.read());
+        }
+        for (int i = 0; i < n; i++) {
+            Events e = events.get(i);
+            e.await(2, 1, 0);
+            assertTrue(e.connected);
+            assertEquals(2, e.writeStatus.size());
+            assertEquals(GatewaySelector.STATUS_OK, (int) e.writeStatus.get(1));
+            assertEquals(0, GpioPin.decodeUint16(e.reads.get(0), 0));
+            for (String thread : e.threads) {
+                assertEquals("GatewaySelector", thread);
+            }
+        }
+        assertEquals(n, selector.getConnectionCount());
+
+        // Each connection reached its own board
+        int high = 0;
+        for (int i = 0; i < n; i++) {
+            SimulatedGpioPeripheral board = gateway.board(i);
+            for (int pin = 0; pin < n; pin++) {
+                high += board.isHigh(pin) ? 1 : 0;
+            }
+        }
+        assertEquals(n, high);
+        selector.shutdown();
+        gateway.close();
+    }
+
+    @Test
+    public void writes_areBatched() throws Exception {
+        LoopbackGateway gateway = new LoopbackGateway();
+        GatewaySelector selector = new GatewaySelector();
+        Events e = new Events();
+        GatewaySelector.Connection c = selector.connect(gateway.getAddress(), e);
+        // Queued while connecting, they go out together
+        for (int i = 0; i < 200; i++) {
+            assertTrue(c.write(pinValue(GpioPin.createGpioInstr(i % 64, GpioPin.DIR_OUTPUT,
+                    i & 1))));
+        }
+        e.await(200, 0, 0);
+        assertEquals(200, e.writeStatus.size());
+        assertEquals(200, c.getFramesSent());
+        assertTrue(c.getWriteCalls() < 10);
+        selector.shutdown();
+        gateway.close();
+    }
+
+    @Test
+    public void notifications_andGatewayGoingAway() throws Exception {
+        LoopbackGateway gateway = new LoopbackGateway();
+        GatewaySelector selector = new GatewaySelector();
+        Events e = new Events();
+        GatewaySelector.Connection c = selector.connect(gateway.getAddress(), e);
+        assertTrue(c.write(pinValue(GpioPin.createGpioInstr(5, GpioPin.DIR_INPUT, 0))));
+        e.await(1, 0, 0);
+        gateway.board(0).setInputLevel(5, true);
+        e.await(1, 0, 1);
+        assertEquals(1, e.notifications.size());
+        int record = GpioPin.decodeUint16(e.notifications.get(0), 0);
+        assertEquals(5, GpioPin.getPin(record));
+        assertTrue(GpioPin.isHigh(record));
+
+        gateway.close();
+        e.awaitClosed();
+        assertTrue(e.closed);
+        assertNotNull(e.error);
+        assertTrue(c.isClosed());
+        assertFalse(c.write(pinValue(0)));
+        assertEquals(0, selector.getConnectionCount());
+        selector.shutdown();
+    }
+
+    @Test
+    public void listenerThrowing_closesOnlyItsConnection() throws Exception {
+        LoopbackGateway gateway = new LoopbackGateway();
+        GatewaySelector selector = new GatewaySelector();
+        Events faulty = new Events() {
+            @Override
+            public synchronized void onWriteResponse(GatewaySelector.Connection connection,
+                                                     int status) {
+                throw new IllegalStateException("Listener bug");
+            }
+        };
+        Events e = new Events();
+        GatewaySelector.Connection bad = selector.connect(gateway.getAddress(), faulty);
+        GatewaySelector.Connection good = selector.connect(gateway.getAddress(), e);
+        assertTrue(bad.write(pinValue(GpioPin.createGpioInstr(1, GpioPin.DIR_OUTPUT, 1))));
+        faulty.awaitClosed();
+        assertTrue(faulty.closed);
+        assertTrue(faulty.error.getCause() instanceof IllegalStateException);
+
+        // A task throwing is dropped too
+        selector.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Task bug");
+            }
+        });
+        assertTrue(good.write(pinValue(GpioPin.createGpioInstr(2, GpioPin.DIR_OUTPUT, 1))));
+        e.await(1, 0, 0);
+        assertEquals(1, e.writeStatus.size());
+        assertEquals(1, selector.getConnectionCount());
+        selector.shutdown();
+        gateway.close();
+    }
+
+    @Test
+    public void shutdown_closesConnectionsNotYetRegistered() throws Exception {
+        LoopbackGateway gateway = new LoopbackGateway();
+        GatewaySelector selector = new GatewaySelector();
+        List<Events> events = new ArrayList<Events>();
+        for (int i = 0; i < 16; i++) {
+            Events e = new Events();
+            events.add(e);
+            selector.connect(gateway.getAddress(), e);
+        }
+        selector.shutdown();
+        for (Events e : events) {
+            e.awaitClosed();
+            assertTrue(e.closed);
+            assertNull(e.error);
+        }
+        assertEquals(0, selector.getConnectionCount());
+        gateway.close();
+    }
+}
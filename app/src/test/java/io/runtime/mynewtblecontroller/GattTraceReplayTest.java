@@ -0,0 +1,162 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * GATT trace recording and replay through GpioEventHandler. Traces captured in the field
+ * and dropped into src/test/resources/traces are replayed as benchmarks.
+ */
+public class GattTraceReplayTest {
+    private static final File TRACE_DIR = new File("src/test/resources/traces");
+
+    /* A short session: an output, an input read, a port write and two notifications */
+    private static byte[] recordSession() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTrace.Writer writer = new GattTrace.Writer(out);
+        writer.record(GattTrace.EV_CONNECTION_STATE, 0, new byte[] { 2 });
+        writer.record(GattTrace.EV_SERVICES_DISCOVERED, 0, null);
+
+        int output = GpioPin.createGpioInstr(3, 1, 1);
+        byte[] value = { (byte) output, (byte) (output >>> 8) };
+        writer.record(GattTrace.OP_WRITE, 0, value);
+        Thread.sleep(2);
+        writer.record(GattTrace.EV_WRITE, 0, value);
+
+        int input = GpioPin.createGpioInstr(7, 2, 0);
+        value = new byte[] { (byte) input, (byte) (input >>> 8) };
+        writer.record(GattTrace.OP_WRITE, 0, value);
+        writer.record(GattTrace.EV_WRITE, 0, value);
+        writer.record(GattTrace.OP_READ, 0, null);
+        writer.record(GattTrace.EV_READ, 0, new byte[] { 1, 0 });
+
+        value = GpioPortInstr.encode(GpioPortInstr.OP_CLEAR_MASK, 0, 1 << 3);
+        writer.record(GattTrace.OP_WRITE, 0, value);
+        writer.record(GattTrace.EV_WRITE, 0, value);
+
+        int notif = GpioPin.createGpioInstr(7, 2, 0);
+        writer.record(GattTrace.EV_CHANGED, 0, new byte[] { (byte) notif, (byte) (notif >>> 8) });
+        int[] changed = new int[GpioPortInstr.NUM_PORTS];
+        int[] levels = new int[GpioPortInstr.NUM_PORTS];
+        changed[1] = 0x3;
+        levels[1] = 0x1;
+        writer.record(GattTrace.EV_CHANGED, 0, GpioDeltaNotification.encode(changed, levels));
+        writer.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void reader_returnsRecordedEvents() throws Exception {
+        GattTrace.Reader reader = new GattTrace.Reader(new ByteArrayInputStream(recordSession()));
+        int records = 0;
+        long lastTime = 0;
+        while (reader.next()) {
+            assertTrue(reader.timeMicros >= lastTime);
+            lastTime = reader.timeMicros;
+            if (records == 0) {
+                assertEquals(GattTrace.EV_CONNECTION_STATE, reader.type);
+                assertArrayEquals(new byte[] { 2 }, reader.value);
+            }
+            records++;
+        }
+        assertEquals(12, records);
+        assertTrue(lastTime >= 2000);
+    }
+
+    @Test
+    public void replay_reproducesPinStateAndUiUpdates() throws Exception {
+        GattTraceReplay replay = GattTraceReplay.load(new ByteArrayInputStream(recordSession()));
+        GattTraceReplay.Result result = replay.run(GattTraceReplay.AS_FAST_AS_POSSIBLE);
+
+        assertEquals(8, result.events);
+        assertEquals(6, result.handledEvents);
+        assertEquals(4, result.recordedOps);
+        assertEquals(1, result.pinReads);
+        assertEquals(3, result.opCompletes);
+        assertEquals(5, result.uiUpdates);
+        assertEquals(1, result.uiUpdatesByMsg[GpioEventHandler.MSG_INSTR_WRITTEN]);
+        assertEquals(1, result.uiUpdatesByMsg[GpioEventHandler.MSG_DATA_READ]);
+        assertEquals(1, result.uiUpdatesByMsg[GpioEventHandler.MSG_PORT_WRITTEN]);
+        assertEquals(1, result.uiUpdatesByMsg[GpioEventHandler.MSG_NOTIFICATION]);
+        assertEquals(1, result.uiUpdatesByMsg[GpioEventHandler.MSG_PINS_CHANGED]);
+
+        PinStateRegion state = replay.getPinState();
+        // Pin 3 was driven high, then cleared by the port write
+        assertEquals(PinStateRegion.PIN_CONFIGURED | PinStateRegion.PIN_OUTPUT,
+                state.getPinState(3));
+        // Pin 7 read high, then notified low
+        assertEquals(PinStateRegion.PIN_CONFIGURED, state.getPinState(7));
+        assertEquals(PinStateRegion.PIN_CONFIGURED | PinStateRegion.PIN_HIGH,
+                state.getPinState(32));
+    }
+
+    @Test
+    public void replay_dropsShortValues() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTrace.Writer writer = new GattTrace.Writer(out);
+        writer.record(GattTrace.EV_WRITE, 0, new byte[] { 0x21 });
+        writer.record(GattTrace.EV_READ, 0, null);
+        writer.record(GattTrace.EV_CHANGED, 0, new byte[0]);
+        writer.close();
+        GattTraceReplay replay = GattTraceReplay.load(new ByteArrayInputStream(out.toByteArray()));
+        GattTraceReplay.Result result = replay.run(GattTraceReplay.AS_FAST_AS_POSSIBLE);
+
+        assertEquals(3, result.malformed);
+        assertEquals(0, result.uiUpdates);
+        assertEquals(0, result.pinReads);
+        // The write and the read still finish their operations
+        assertEquals(2, result.opCompletes);
+        for (int pin = 0; pin < PinStateRegion.MAX_PINS; pin++) {
+            assertEquals(0, replay.getPinState().getPinState(pin));
+        }
+    }
+
+    @Test
+    public void replay_countsAnalogUpdates() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattTrace.Writer writer = new GattTrace.Writer(out);
+        int instr = GpioPin.createAnalogInstr(40, 6);
+        byte[] value = { (byte) instr, (byte) (instr >>> 8) };
+        writer.record(GattTrace.OP_WRITE, 0, value);
+        writer.record(GattTrace.EV_WRITE, 0, value);
+        short[] samples = { 1, 2, 3 };
+        writer.record(GattTrace.EV_CHANGED, 0, AnalogNotification.encode(40, 0, samples, 0, 3));
+        writer.close();
+        GattTraceReplay replay = GattTraceReplay.load(new ByteArrayInputStream(out.toByteArray()));
+        GattTraceReplay.Result result = replay.run(GattTraceReplay.AS_FAST_AS_POSSIBLE);
+
+        assertEquals(2, result.uiUpdates);
+        assertEquals(1, result.uiUpdatesByMsg[GpioEventHandler.MSG_ANALOG_CONFIGURED]);
+        assertEquals(1, result.uiUpdatesByMsg[GpioEventHandler.MSG_ANALOG_SAMPLES]);
+    }
+
+    @Test
+    public void replay_atRecordedSpeedTakesRecordedTime() throws Exception {
+        GattTraceReplay replay = GattTraceReplay.load(new ByteArrayInputStream(recordSession()));
+        GattTraceReplay.Result result = replay.run(1);
+        assertTrue(result.wallNanos >= result.recordedMicros * 1000);
+    }
+
+    @Test
+    public void recordedTraces_replay() throws Exception {
+        File[] traces = TRACE_DIR.listFiles();
+        if (traces == null) {
+            return;
+        }
+        for (File trace : traces) {
+            if (!trace.getName().endsWith(".gtrace")) {
+                continue;
+            }
+            GattTraceReplay replay = GattTraceReplay.load(new FileInputStream(trace));
+            GattTraceReplay.Result result = replay.run(GattTraceReplay.AS_FAST_AS_POSSIBLE);
+            System.out.println(trace.getName() + ": " + result);
+            assertTrue(replay.size() > 0);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Deadlines and recovery escalation of the GATT operation watchdog.
+ */
+public class GattWatchdogTest {
+    @Test
+    public void completedOp_neverTimesOut() throws Exception {
+        GattWatchdog watchdog = new GattWatchdog();
+        watchdog.start(0);
+        assertEquals(GattWatchdog.ACTION_NONE, watchdog.check(watchdog.opTimeoutMs - 1));
+        watchdog.complete();
+        assertEquals(GattWatchdog.ACTION_NONE, watchdog.check(watchdog.opTimeoutMs * 10));
+        assertEquals(0, watchdog.getTimeoutCount());
+    }
+
+    @Test
+    public void lostCallback_retriesThenReconnects() throws Exception {
+        GattWatchdog watchdog = new GattWatchdog();
+        watchdog.opTimeoutMs = 100;
+        watchdog.maxRetries = 2;
+        watchdog.start(0);
+        assertEquals(GattWatchdog.ACTION_RETRY, watchdog.check(100));
+        assertEquals(GattWatchdog.ACTION_NONE, watchdog.check(150));
+        assertEquals(GattWatchdog.ACTION_RETRY, watchdog.check(200));
+        assertEquals(GattWatchdog.ACTION_RECONNECT, watchdog.check(300));
+        assertFalse(watchdog.isArmed());
+        assertEquals(3, watchdog.getTimeoutCount());
+        assertEquals(1, watchdog.getStallCount());
+    }
+
+    @Test
+    public void noReconnect_givesUp() throws Exception {
+        GattWatchdog watchdog = new GattWatchdog();
+        watchdog.maxRetries = 0;
+        watchdog.reconnectOnStall = false;
+        watchdog.start(0);
+        assertEquals(GattWatchdog.ACTION_GIVE_UP, watchdog.check(watchdog.opTimeoutMs));
+    }
+
+    @Test
+    public void newOp_resetsRetries() throws Exception {
+        GattWatchdog watchdog = new GattWatchdog();
+        watchdog.opTimeoutMs = 100;
+        watchdog.start(0);
+        assertEquals(GattWatchdog.ACTION_RETRY, watchdog.check(100));
+        watchdog.complete();
+        watchdog.start(150);
+        assertEquals(0, watchdog.getAttempts());
+        // The follow-up read of an input pin gets a fresh deadline
+        watchdog.restart(240);
+        assertEquals(GattWatchdog.ACTION_NONE, watchdog.check(300));
+        assertEquals(GattWatchdog.ACTION_RETRY, watchdog.check(340));
+    }
+}
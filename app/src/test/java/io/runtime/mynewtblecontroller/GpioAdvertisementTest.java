@@ -0,0 +1,104 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing the GPIO state field out of advertising data fixtures, and the per-board cache
+ * the scan screen shows.
+ */
+public class GpioAdvertisementTest {
+    /* Flags, the GPIO service UUID, then service data: sequence 7, port 0 = 0x000000a5 */
+    private static final byte[] SERVICE_DATA = {
+            0x02, 0x01, 0x06,
+            0x11, 0x07, 0x2b, 0x71, (byte) 0xa2, 0x59, (byte) 0xb4, 0x58, (byte) 0xc8, 0x12,
+            (byte) 0x99, (byte) 0x99, 0x43, (byte) 0x95, 0x12, 0x2f, 0x46, 0x59,
+            0x17, 0x21, 0x2b, 0x71, (byte) 0xa2, 0x59, (byte) 0xb4, 0x58, (byte) 0xc8, 0x12,
+            (byte) 0x99, (byte) 0x99, 0x43, (byte) 0x95, 0x12, 0x2f, 0x46, 0x59,
+            0x07, 0x00, (byte) 0xa5, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x00,
+    };
+
+    /* Name, then manufacturer data: sequence 1, port 1 = 0x80000001, port 3 = 0x00ff00ff */
+    private static final byte[] MANUFACTURER_DATA = {
+            0x05, 0x09, 'G', 'P', 'I', 'O',
+            0x10, (byte) 0xff, (byte) 0xff, (byte) 0xff, 'G', 'P',
+            0x01, 0x01, 0x01, 0x00, 0x00, (byte) 0x80, 0x03, (byte) 0xff, 0x00, (byte) 0xff, 0x00,
+    };
+
+    /* An iBeacon-like record from some other device */
+    private static final byte[] OTHER = {
+            0x02, 0x01, 0x06,
+            0x1a, (byte) 0xff, 0x4c, 0x00, 0x02, 0x15, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07,
+            0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x10, 0x00, 0x01, 0x00, 0x02,
+            (byte) 0xc5,
+    };
+
+    @Test
+    public void serviceData_isFound() throws Exception {
+        int field = GpioAdvertisement.find(SERVICE_DATA);
+        assertNotEquals(GpioAdvertisement.NOT_FOUND, field);
+        assertEquals(7, GpioAdvertisement.getSequence(SERVICE_DATA, field));
+        assertEquals(1, GpioAdvertisement.getPortCount(field));
+        assertEquals(0, GpioAdvertisement.getPort(SERVICE_DATA, field, 0));
+        assertEquals(0xa5, GpioAdvertisement.getLevels(SERVICE_DATA, field, 0));
+    }
+
+    @Test
+    public void manufacturerData_isFound() throws Exception {
+        int field = GpioAdvertisement.find(MANUFACTURER_DATA);
+        assertNotEquals(GpioAdvertisement.NOT_FOUND, field);
+        assertEquals(1, GpioAdvertisement.getSequence(MANUFACTURER_DATA, field));
+        assertEquals(2, GpioAdvertisement.getPortCount(field));
+        assertEquals(1, GpioAdvertisement.getPort(MANUFACTURER_DATA, field, 0));
+        assertEquals(0x80000001, GpioAdvertisement.getLevels(MANUFACTURER_DATA, field, 0));
+        assertEquals(3, GpioAdvertisement.getPort(MANUFACTURER_DATA, field, 1));
+        assertEquals(0x00ff00ff, GpioAdvertisement.getLevels(MANUFACTURER_DATA, field, 1));
+    }
+
+    @Test
+    public void otherAndMalformedRecords_areSkipped() throws Exception {
+        assertEquals(GpioAdvertisement.NOT_FOUND, GpioAdvertisement.find(OTHER));
+        assertEquals(GpioAdvertisement.NOT_FOUND, GpioAdvertisement.find(null));
+        assertEquals(GpioAdvertisement.NOT_FOUND, GpioAdvertisement.find(new byte[0]));
+        // Truncated in the middle of the service data
+        byte[] truncated = new byte[30];
+        System.arraycopy(SERVICE_DATA, 0, truncated, 0, truncated.length);
+        assertEquals(GpioAdvertisement.NOT_FOUND, GpioAdvertisement.find(truncated));
+        // A port entry cut short
+        byte[] shortField = MANUFACTURER_DATA.clone();
+        shortField[6] = 0x0f;
+        assertEquals(GpioAdvertisement.NOT_FOUND, GpioAdvertisement.find(shortField));
+    }
+
+    @Test
+    public void cache_tracksManyBoards() throws Exception {
+        AdvertisedStateCache cache = new AdvertisedStateCache(64);
+        for (int i = 0; i < 64; i++) {
+            assertTrue(cache.update("board" + i, MANUFACTURER_DATA, -60, i));
+        }
+        assertFalse(cache.update("phone", OTHER, -40, 100));
+        assertEquals(64, cache.size());
+
+        // The same state again changes nothing but when it was seen
+        assertFalse(cache.update("board5", MANUFACTURER_DATA, -70, 200));
+        AdvertisedStateCache.Entry entry = cache.get("board5");
+        assertEquals(-70, entry.rssi);
+        assertTrue(entry.hasPort(1));
+        assertFalse(entry.hasPort(0));
+        assertEquals(0x00ff00ff, entry.levels[3]);
+
+        // A new state replaces the ports
+        assertTrue(cache.update("board5", SERVICE_DATA, -70, 300));
+        assertTrue(entry.hasPort(0));
+        assertFalse(entry.hasPort(1));
+        assertEquals(0xa5, entry.levels[0]);
+
+        // A board beyond the capacity replaces the one heard from least recently
+        assertTrue(cache.update("board64", SERVICE_DATA, -60, 400));
+        assertEquals(64, cache.size());
+        assertNull(cache.get("board0"));
+        assertNotNull(cache.get("board1"));
+    }
+}
@@ -0,0 +1,90 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delta notification encoding, decoding into the pin state and generation by the
+ * simulated peripheral.
+ */
+public class GpioDeltaNotificationTest {
+    @Test
+    public void encodeDecode_roundTrips() throws Exception {
+        int[] changed = new int[GpioPortInstr.NUM_PORTS];
+        int[] levels = new int[GpioPortInstr.NUM_PORTS];
+        changed[0] = 0x0000000f;
+        levels[0] = 0x00000005;
+        changed[2] = 0x80000000;
+        levels[2] = 0x80000000;
+
+        byte[] value = GpioDeltaNotification.encode(changed, levels);
+        assertTrue(GpioDeltaNotification.isDelta(value));
+        assertEquals(2, GpioDeltaNotification.getBlockCount(value));
+        assertEquals(0, GpioDeltaNotification.getPort(value, 0));
+        assertEquals(0x0f, GpioDeltaNotification.getChanged(value, 0));
+        assertEquals(0x05, GpioDeltaNotification.getLevels(value, 0));
+        assertEquals(2, GpioDeltaNotification.getPort(value, 1));
+        assertEquals(0x80000000, GpioDeltaNotification.getChanged(value, 1));
+        assertEquals(0x80000000, GpioDeltaNotification.getLevels(value, 1));
+    }
+
+    @Test
+    public void singlePinRecord_isNotDelta() throws Exception {
+        assertFalse(GpioDeltaNotification.isDelta(new byte[] { 0x21, 0x05 }));
+        assertNull(GpioDeltaNotification.encode(new int[GpioPortInstr.NUM_PORTS],
+                new int[GpioPortInstr.NUM_PORTS]));
+    }
+
+    @Test
+    public void applyDelta_updatesOnlyChangedPins() throws Exception {
+        PinStateRegion state = PinStateRegion.createInMemory();
+        state.update(1, false, true);
+        state.update(2, false, true);
+        state.update(40, true, true);
+        int seq = state.getSequence();
+
+        int[] changed = new int[GpioPortInstr.NUM_PORTS];
+        int[] levels = new int[GpioPortInstr.NUM_PORTS];
+        changed[0] = (1 << 1) | (1 << 3);
+        levels[0] = 1 << 3;
+        state.applyDelta(GpioDeltaNotification.encode(changed, levels));
+
+        // One update for the whole notification
+        assertEquals(seq + 2, state.getSequence());
+        assertEquals(0, state.getPinState(1) & PinStateRegion.PIN_HIGH);
+        assertTrue((state.getPinState(2) & PinStateRegion.PIN_HIGH) != 0);
+        assertTrue((state.getPinState(3) & PinStateRegion.PIN_HIGH) != 0);
+        assertTrue((state.getPinState(40) & PinStateRegion.PIN_HIGH) != 0);
+    }
+
+    @Test
+    public void bankChange_isOneNotification() throws Exception {
+        final List<byte[]> notifications = new ArrayList<byte[]>();
+        SimulatedGpioPeripheral peripheral = new SimulatedGpioPeripheral();
+        peripheral.setListener(new SimulatedGpioPeripheral.Listener() {
+            @Override
+            public void onNotification(byte[] value) {
+                notifications.add(value);
+            }
+        });
+        for (int pin = 0; pin < 8; pin++) {
+            peripheral.write(GpioPin.createGpioInstr(pin, 2, 0));
+        }
+
+        peripheral.setInputLevels(0, 0xff, 0xa5);
+        assertEquals(4, notifications.size());
+
+        notifications.clear();
+        peripheral.deltaNotifications = true;
+        peripheral.setInputLevels(0, 0xff, 0x5a);
+        assertEquals(1, notifications.size());
+        byte[] value = notifications.get(0);
+        assertTrue(GpioDeltaNotification.isDelta(value));
+        assertEquals(0xff, GpioDeltaNotification.getChanged(value, 0));
+        assertEquals(0x5a, GpioDeltaNotification.getLevels(value, 0));
+    }
+}
@@ -0,0 +1,74 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Port instruction encoding and its effect on the simulated peripheral.
+ */
+public class GpioPortInstrTest {
+    @Test
+    public void encodeDecode_roundTrips() throws Exception {
+        byte[] value = GpioPortInstr.encode(GpioPortInstr.OP_TOGGLE_MASK, 3, 0x8000ff01);
+        assertEquals(GpioPortInstr.LENGTH, value.length);
+        assertTrue(GpioPortInstr.isPortInstr(value));
+        assertEquals(GpioPortInstr.OP_TOGGLE_MASK, GpioPortInstr.getOp(value));
+        assertEquals(3, GpioPortInstr.getPort(value));
+        assertEquals(0x8000ff01, GpioPortInstr.getMask(value));
+    }
+
+    @Test
+    public void pinInstruction_isNotPortInstr() throws Exception {
+        assertFalse(GpioPortInstr.isPortInstr(new byte[] { 0x11, 0x05 }));
+        assertFalse(GpioPortInstr.isPortInstr(new byte[] { 0, 0, 0, 0, 0, 0 }));
+    }
+
+    @Test
+    public void masksForPins_groupsByPort() throws Exception {
+        int[] masks = GpioPortInstr.masksForPins(new int[] { 0, 5, 31, 32, 70 });
+        assertEquals((1 << 0) | (1 << 5) | (1 << 31), masks[0]);
+        assertEquals(1, masks[1]);
+        assertEquals(1 << 6, masks[2]);
+        assertEquals(0, masks[3]);
+    }
+
+    @Test
+    public void sixteenRelays_switchInOneWrite() throws Exception {
+        SimulatedGpioPeripheral peripheral = new SimulatedGpioPeripheral();
+        int[] relays = new int[16];
+        for (int i = 0; i < relays.length; i++) {
+            relays[i] = 8 + i;
+            peripheral.write(GpioPin.createGpioInstr(relays[i], 1, 0));
+        }
+        // An input pin inside the mask must be left alone
+        peripheral.write(GpioPin.createGpioInstr(30, 2, 0));
+        peripheral.setInputLevel(30, false);
+
+        int[] masks = GpioPortInstr.masksForPins(relays);
+        assertTrue(peripheral.writePort(GpioPortInstr.OP_SET_MASK, 0, masks[0] | (1 << 30)));
+        assertEquals(1, peripheral.getPortWriteCount());
+        for (int pin : relays) {
+            assertTrue(peripheral.isHigh(pin));
+        }
+        assertFalse(peripheral.isHigh(30));
+
+        assertTrue(peripheral.writePort(GpioPortInstr.OP_TOGGLE_MASK, 0, masks[0] & 0x5555));
+        for (int pin : relays) {
+            assertEquals((GpioPortInstr.getBit(pin) & 0x5555) == 0, peripheral.isHigh(pin));
+        }
+
+        assertTrue(peripheral.writePort(GpioPortInstr.OP_CLEAR_MASK, 0, masks[0]));
+        for (int pin : relays) {
+            assertFalse(peripheral.isHigh(pin));
+        }
+        assertEquals(3, peripheral.getPortWriteCount());
+    }
+
+    @Test
+    public void invalidOp_isRejected() throws Exception {
+        SimulatedGpioPeripheral peripheral = new SimulatedGpioPeripheral();
+        assertFalse(peripheral.writePort(0, 0, 1));
+        assertFalse(peripheral.writePort(GpioPortInstr.OP_SET_MASK, GpioPortInstr.NUM_PORTS, 1));
+    }
+}
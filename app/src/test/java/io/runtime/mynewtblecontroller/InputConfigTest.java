@@ -0,0 +1,131 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Edge filtering and debounce of input pins: the instruction encoding in GpioPin and how the
+ * simulated peripheral cuts notifications at the source, on a synthetic clock.
+ */
+public class InputConfigTest {
+    private static final long MS = 1000000L;
+
+    private final SimulatedGpioPeripheral device = new SimulatedGpioPeripheral();
+    private final List<Integer> records = new ArrayList<Integer>();
+
+    public InputConfigTest() {
+        device.setListener(new SimulatedGpioPeripheral.Listener() {
+            @Override
+            public void onNotification(byte[] value) {
+                records.add(GpioPin.decodeUint16(value, 0));
+            }
+        });
+    }
+
+    /* A contact bouncing for 10 ms at 1 ms steps on its way to the final level, returns
+     * when it settled */
+    private long bounce(int pin, boolean finalLevel, long start) {
+        int port = GpioPortInstr.getPort(pin);
+        int bit = GpioPortInstr.getBit(pin);
+        for (int i = 0; i <= 10; i++) {
+            boolean high = (i & 1) == 0 ? finalLevel : !finalLevel;
+            device.setInputLevels(port, bit, high ? bit : 0, start + i * MS);
+        }
+        return start + 10 * MS;
+    }
+
+    @Test
+    public void instruction_encodesEdgesAndDebounce() throws Exception {
+        int instr = GpioPin.createInputInstr(12, GpioPin.EDGE_FALLING, 2);
+        assertTrue(GpioPin.isValidInstr(instr));
+        assertFalse(GpioPin.isOutput(instr));
+        assertEquals(12, GpioPin.getPin(instr));
+        assertEquals(GpioPin.EDGE_FALLING, GpioPin.getEdges(instr));
+        assertEquals(20, GpioPin.DEBOUNCE_MS[GpioPin.getDebounce(instr)]);
+
+        // Round trips through GpioPin, as saved in a pin profile
+        GpioPin pin = new GpioPin(instr);
+        assertEquals(GpioPin.EDGE_FALLING, pin.edges);
+        assertEquals(2, pin.debounce);
+        assertEquals(instr, GpioPin.createGpioInstr(pin));
+
+        // Plain inputs keep the old encoding and notify on both edges
+        int plain = GpioPin.createGpioInstr(new GpioPin(12, false, false));
+        assertEquals(GpioPin.DIR_INPUT, GpioPin.getDir(plain));
+        assertEquals(GpioPin.EDGE_BOTH, GpioPin.getEdges(plain));
+        assertEquals(0, GpioPin.getDebounce(plain));
+    }
+
+    @Test
+    public void edgeFilter_dropsUnwantedEdges() throws Exception {
+        device.write(GpioPin.createInputInstr(3, GpioPin.EDGE_RISING, 0));
+        for (int i = 0; i < 10; i++) {
+            device.setInputLevel(3, (i & 1) == 0);
+        }
+        assertEquals(5, records.size());
+        for (int record : records) {
+            assertTrue(GpioPin.isHigh(record));
+        }
+        // The level is still tracked for reads
+        assertEquals(0, device.read());
+
+        device.write(GpioPin.createInputInstr(3, GpioPin.EDGE_NONE, 0));
+        device.setInputLevel(3, true);
+        assertEquals(5, device.getNotificationCount());
+    }
+
+    @Test
+    public void debounce_notifiesOnceSettled() throws Exception {
+        device.write(GpioPin.createInputInstr(40, GpioPin.EDGE_BOTH, 1));
+        long last = bounce(40, true, 1000 * MS);
+        assertEquals(0, records.size());
+        // Not yet stable for 5 ms
+        device.settle(last + 4 * MS);
+        assertEquals(0, records.size());
+        device.settle(last + 5 * MS);
+        assertEquals(1, records.size());
+        assertTrue(GpioPin.isHigh(records.get(0)));
+        assertEquals(40, GpioPin.getPin(records.get(0)));
+
+        // A glitch shorter than the window goes unnoticed
+        device.setInputLevel(40, false);
+        device.setInputLevel(40, true);
+        device.settle(System.nanoTime() + 10 * MS);
+        assertEquals(1, records.size());
+    }
+
+    @Test
+    public void bouncingContact_costsOneNotificationPerPress() throws Exception {
+        // Released, the pin is pulled high
+        SimulatedGpioPeripheral raw = new SimulatedGpioPeripheral();
+        raw.setInputLevel(7, true);
+        raw.setListener(new SimulatedGpioPeripheral.Listener() {
+            @Override
+            public void onNotification(byte[] value) {
+            }
+        });
+        device.setInputLevel(7, true);
+        raw.write(GpioPin.createGpioInstr(7, GpioPin.DIR_INPUT, 0));
+        device.write(GpioPin.createInputInstr(7, GpioPin.EDGE_FALLING, 2));
+        device.deltaNotifications = true;
+        long t = 0;
+        for (int press = 0; press < 20; press++) {
+            // Pressing pulls the pin low, releasing lets it go high
+            t = bounce(7, false, t + 100 * MS);
+            device.settle(t + 20 * MS);
+            t = bounce(7, true, t + 100 * MS);
+            device.settle(t + 20 * MS);
+            int bit = GpioPortInstr.getBit(7);
+            // Without the configuration every bounce is an edge
+            for (int i = 0; i < 20; i++) {
+                raw.setInputLevels(0, bit, (i & 1) == 0 ? 0 : bit);
+            }
+        }
+        assertEquals(20, device.getNotificationCount());
+        assertEquals(400, raw.getNotificationCount());
+    }
+}
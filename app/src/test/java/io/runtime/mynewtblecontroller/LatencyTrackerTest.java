@@ -0,0 +1,76 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyTrackerTest {
+    private static final long MS = 1000000L;
+
+    private static byte[] pinRecord(int pin, boolean isHigh, int deviceMicros) {
+        int record = GpioPin.createGpioInstr(pin, 2, isHigh ? 1 : 0);
+        return DeviceTimestamp.append(new byte[] { (byte) record, (byte) (record >>> 8) },
+                deviceMicros);
+    }
+
+    @Test
+    public void edgeToAppAndPixel_perPin() throws Exception {
+        LatencyTracker latency = new LatencyTracker();
+        latency.onNotification(pinRecord(5, true, 0), 1000 * MS, 1012 * MS);
+        latency.onNotification(pinRecord(7, true, 0), 1001 * MS, 1020 * MS);
+
+        // Only pin 5 has been applied when the first frame starts
+        latency.markApplied(5);
+        latency.onFrame(1030 * MS);
+        latency.markApplied(7);
+        latency.onFrame(1047 * MS);
+
+        LatencyTracker.Histogram app5 = latency.get(LatencyTracker.EDGE_TO_APP, 5);
+        assertEquals(1, app5.getCount());
+        assertEquals(13, app5.getPercentileMs(0.5));
+        // Shown a frame after the frame that draws it
+        LatencyTracker.Histogram pixel5 = latency.get(LatencyTracker.EDGE_TO_PIXEL, 5);
+        assertEquals(1, pixel5.getCount());
+        assertEquals(46, pixel5.getMaxNanos() / MS);
+        LatencyTracker.Histogram pixel7 = latency.get(LatencyTracker.EDGE_TO_PIXEL, 7);
+        assertEquals(62, pixel7.getMaxNanos() / MS);
+
+        assertEquals(2, latency.getAll(LatencyTracker.EDGE_TO_APP).getCount());
+        assertEquals(2, latency.getAll(LatencyTracker.EDGE_TO_PIXEL).getCount());
+        assertNull(latency.get(LatencyTracker.EDGE_TO_APP, 6));
+    }
+
+    @Test
+    public void deltaNotification_recordsEachChangedPin() throws Exception {
+        LatencyTracker latency = new LatencyTracker();
+        int[] changed = new int[GpioPortInstr.NUM_PORTS];
+        int[] levels = new int[GpioPortInstr.NUM_PORTS];
+        changed[1] = 0x5;
+        levels[1] = 0x1;
+        byte[] value = DeviceTimestamp.append(GpioDeltaNotification.encode(changed, levels), 42);
+        assertTrue(GpioDeltaNotification.isDelta(value));
+        assertEquals(42, DeviceTimestamp.get(value));
+
+        latency.onNotification(value, 0, 8 * MS);
+        latency.markAppliedPort(1, 0x5);
+        latency.onFrame(10 * MS);
+        assertEquals(1, latency.get(LatencyTracker.EDGE_TO_APP, 32).getCount());
+        assertEquals(1, latency.get(LatencyTracker.EDGE_TO_PIXEL, 34).getCount());
+        assertNull(latency.get(LatencyTracker.EDGE_TO_APP, 33));
+    }
+
+    @Test
+    public void unappliedEdges_goStale() throws Exception {
+        LatencyTracker latency = new LatencyTracker();
+        latency.onNotification(pinRecord(1, true, 0), 0, MS);
+        latency.onFrame(2000 * MS);
+        // Applying it late no longer counts
+        latency.markApplied(1);
+        latency.onFrame(2016 * MS);
+        assertNull(latency.get(LatencyTracker.EDGE_TO_PIXEL, 1));
+        assertEquals(0, latency.getAll(LatencyTracker.EDGE_TO_PIXEL).getCount());
+
+        latency.reset();
+        assertEquals(0, latency.getAll(LatencyTracker.EDGE_TO_APP).getCount());
+    }
+}
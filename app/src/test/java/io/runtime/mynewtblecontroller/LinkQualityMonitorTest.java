@@ -0,0 +1,81 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * PHY selection from RSSI and failed operations, walking a board away from the phone and
+ * back on a synthetic clock.
+ */
+public class LinkQualityMonitorTest {
+    private final LinkQualityMonitor monitor = new LinkQualityMonitor();
+    private long now = 1000;
+
+    /* Sample the RSSI a few times, 2 s apart, and apply whatever PHY is requested */
+    private int walk(int rssi, int samples) {
+        int requested = 0;
+        for (int i = 0; i < samples; i++) {
+            now += 2000;
+            monitor.onRssi(rssi);
+            int phy = monitor.evaluate(now);
+            if (phy != 0) {
+                requested = phy;
+                monitor.onPhyUpdate(phy, phy);
+            }
+        }
+        return requested;
+    }
+
+    @Test
+    public void strongLink_movesTo2M() throws Exception {
+        monitor.onRssi(-45);
+        monitor.onRssi(-45);
+        // Not enough samples yet
+        assertEquals(0, monitor.evaluate(now));
+        assertEquals(LinkQualityMonitor.PHY_LE_2M, walk(-45, 1));
+        assertEquals(LinkQualityMonitor.PHY_LE_2M, monitor.getPhy());
+        assertEquals(1, monitor.getPhyChanges());
+    }
+
+    @Test
+    public void hysteresis_keepsThePhyNearAThreshold() throws Exception {
+        walk(-50, 5);
+        assertEquals(LinkQualityMonitor.PHY_LE_2M, monitor.getPhy());
+        // Between strongRssi and fadingRssi, 2M stays
+        assertEquals(0, walk(-65, 20));
+        // Below fadingRssi, it falls back to 1M, and does not come back at -65
+        assertEquals(LinkQualityMonitor.PHY_LE_1M, walk(-75, 20));
+        assertEquals(0, walk(-65, 20));
+        assertEquals(2, monitor.getPhyChanges());
+    }
+
+    @Test
+    public void fadingLink_movesToCodedAndBack() throws Exception {
+        walk(-50, 5);
+        assertEquals(LinkQualityMonitor.PHY_LE_CODED, walk(-95, 20));
+        // Above weakRssi but not past recoveredRssi, Coded stays
+        assertEquals(0, walk(-80, 20));
+        assertEquals(LinkQualityMonitor.PHY_LE_1M, walk(-70, 20));
+    }
+
+    @Test
+    public void failures_moveToCodedAndRequestsAreSpaced() throws Exception {
+        walk(-65, 5);
+        assertEquals(LinkQualityMonitor.PHY_LE_1M, monitor.getPhy());
+        for (int i = 0; i < 4; i++) {
+            monitor.onOpResult(false);
+            monitor.onOpResult(true);
+        }
+        assertEquals(4, monitor.getFailures());
+        assertEquals(LinkQualityMonitor.PHY_LE_CODED, monitor.evaluate(now));
+        // Refused: the stack reports the PHY unchanged
+        monitor.onPhyUpdate(LinkQualityMonitor.PHY_LE_1M, LinkQualityMonitor.PHY_LE_1M);
+        for (int i = 0; i < 4; i++) {
+            monitor.onOpResult(false);
+        }
+        // Asked again only once holdMs has passed
+        assertEquals(0, monitor.evaluate(now + 1000));
+        assertEquals(LinkQualityMonitor.PHY_LE_CODED, monitor.evaluate(now + 5000));
+    }
+}
@@ -0,0 +1,321 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connecting, closing and writing through the session BluetoothLeService holds, including
+ * all of them racing with link callbacks from many threads.
+ */
+public class LinkSessionTest {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 20000;
+
+    /* Stands in for a GattLink, counting how often it is closed */
+    private static class FakeLink {
+        final int generation;
+        final AtomicInteger closes = new AtomicInteger();
+
+        FakeLink(int generation) {
+            this.generation = generation;
+        }
+    }
+
+    /* Stands in for the service, with one outstanding write at most */
+    private static class FakeHost implements LinkSession.Host<FakeLink> {
+        final List<FakeLink> links = Collections.synchronizedList(new ArrayList<FakeLink>());
+        LinkSession<FakeLink> session;
+        /* The outstanding write, guarded by the queue like in the service */
+        int outstanding = InstrQueue.EMPTY;
+        int deviceChanges;
+
+        @Override
+        public FakeLink createLink(String address, int generation) {
+            final FakeLink link = new FakeLink(generation);
+            links.add(link);
+            return link;
+        }
+
+        @Override
+        public boolean connectLink(FakeLink link) {
+            return true;
+        }
+
+        @Override
+        public boolean reconnectLink(FakeLink link) {
+            return true;
+        }
+
+        @Override
+        public void disconnectLink(FakeLink link) {
+        }
+
+        @Override
+        public void closeLink(FakeLink link) {
+            link.closes.incrementAndGet();
+        }
+
+        @Override
+        public synchronized void onDeviceChanged(String address) {
+            deviceChanges++;
+        }
+
+        @Override
+        public void resetOps(String address) {
+            if (address != null && outstanding != InstrQueue.EMPTY) {
+                session.journalEntry(address, outstanding, 0);
+            }
+            outstanding = InstrQueue.EMPTY;
+        }
+    }
+
+    private final ConnectionStateMachine<FakeLink> connection =
+            new ConnectionStateMachine<FakeLink>();
+    private final CommandJournal journal = CommandJournal.createInMemory();
+    private final InstrQueue queue = new InstrQueue(16);
+    private final FakeHost host = new FakeHost();
+    private final LinkSession<FakeLink> session = new LinkSession<FakeLink>(connection,
+            journal, queue, PinStateRegion.createInMemory(), host);
+
+    public LinkSessionTest() {
+        host.session = session;
+    }
+
+    /* The link comes up and its services are discovered */
+    private void linkUp(String address) {
+        final ConnectionStateMachine.Snapshot<FakeLink> cur = connection.snapshot();
+        assertTrue(connection.onStateChange(cur.generation,
+                ConnectionStateMachine.STATE_CONNECTED));
+        session.replay(address);
+    }
+
+    /* The link drops without anyone asking */
+    private void linkDown() {
+        assertTrue(connection.onStateChange(connection.snapshot().generation,
+                ConnectionStateMachine.STATE_DISCONNECTED));
+        session.goOffline();
+    }
+
+    @Test
+    public void connect_reusesTheLinkToTheSameDevice() throws Exception {
+        assertEquals(LinkSession.CONNECT_OPENED, session.connect("A", false));
+        assertEquals(1, host.deviceChanges);
+        // Still connecting, e.g. a client opening a board while its link comes up
+        assertEquals(LinkSession.CONNECT_UNCHANGED, session.connect("A", false));
+        linkUp("A");
+        assertEquals(LinkSession.CONNECT_UNCHANGED, session.connect("A", false));
+        linkDown();
+        assertEquals(LinkSession.CONNECT_RESUMED, session.connect("A", false));
+        assertEquals(1, host.links.size());
+
+        assertEquals(LinkSession.CONNECT_OPENED, session.connect("B", true));
+        assertTrue(session.isSpeculative());
+        assertEquals(2, host.deviceChanges);
+        assertEquals(1, host.links.get(0).closes.get());
+    }
+
+    @Test
+    public void connect_reportsTheClientGettingTheLinkOnce() throws Exception {
+        // The scan screen guesses, the board opens, then resumes connect again
+        assertEquals(LinkSession.CONNECT_OPENED, session.connect("A", true));
+        assertEquals(LinkSession.CONNECT_UNCHANGED, session.connect("A", true));
+        assertEquals(LinkSession.CONNECT_ADOPTED, session.connect("A", false));
+        assertFalse(session.isSpeculative());
+        assertEquals(LinkSession.CONNECT_UNCHANGED, session.connect("A", false));
+        linkUp("A");
+        assertEquals(LinkSession.CONNECT_UNCHANGED, session.connect("A", false));
+
+        // A guessed link that dropped is taken over while it reconnects
+        assertEquals(LinkSession.CONNECT_OPENED, session.connect("B", true));
+        linkUp("B");
+        linkDown();
+        assertEquals(LinkSession.CONNECT_ADOPTED, session.connect("B", false));
+        linkUp("B");
+        linkDown();
+        assertEquals(LinkSession.CONNECT_RESUMED, session.connect("B", false));
+    }
+
+    @Test
+    public void writes_areJournaledWhileTheLinkIsDown() throws Exception {
+        final int high = GpioPin.createGpioInstr(3, 1, 1);
+        final int low = GpioPin.createGpioInstr(4, 1, 0);
+        // No device yet
+        assertEquals(LinkSession.WRITE_REFUSED, session.write(new int[] { high }));
+
+        session.connect("A", false);
+        assertEquals(LinkSession.WRITE_JOURNALED, session.write(new int[] { high }));
+        assertTrue(queue.isEmpty());
+        linkUp("A");
+        assertEquals(high, queue.poll());
+
+        // The outstanding write and the queue behind it go back to the journal
+        host.outstanding = high;
+        assertEquals(LinkSession.WRITE_QUEUED, session.write(new int[] { low }));
+        linkDown();
+        assertTrue(queue.isEmpty());
+        assertEquals(InstrQueue.EMPTY, host.outstanding);
+        assertEquals(LinkSession.CONNECT_RESUMED, session.connect("A", false));
+        linkUp("A");
+        assertEquals(high, queue.poll());
+        assertEquals(low, queue.poll());
+    }
+
+    @Test
+    public void writes_areRefusedOnceTheLinkIsEndedOnPurpose() throws Exception {
+        final int[] instrs = { GpioPin.createGpioInstr(3, 1, 1) };
+        session.connect("A", false);
+        linkUp("A");
+        assertTrue(session.disconnect());
+        linkDown();
+        assertEquals(LinkSession.WRITE_REFUSED, session.write(instrs));
+        assertEquals(LinkSession.WRITE_REFUSED,
+                session.writePort(GpioPortInstr.OP_SET_MASK, 0, 1 << 3));
+
+        session.connect("A", false);
+        assertEquals(LinkSession.WRITE_JOURNALED, session.write(instrs));
+        assertTrue(session.close());
+        assertFalse(session.close());
+        assertEquals(LinkSession.WRITE_REFUSED, session.write(instrs));
+        assertEquals(1, host.links.get(0).closes.get());
+    }
+
+    @Test
+    public void replacingTheDevice_dropsItsQueue() throws Exception {
+        session.connect("A", false);
+        linkUp("A");
+        host.outstanding = GpioPin.createGpioInstr(3, 1, 1);
+        session.writePort(GpioPortInstr.OP_SET_MASK, 0, 1 << 3);
+        session.connect("B", false);
+        assertTrue(queue.isEmpty());
+        assertEquals(InstrQueue.EMPTY, host.outstanding);
+        assertEquals(0, journal.size());
+        assertFalse(session.isLinkReady());
+    }
+
+    @Test
+    public void concurrentConnectCloseWriteAndCallbacks_keepTheSessionConsistent()
+            throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final String[] addresses = { "A", "B", "C" };
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    int lastVersion = -1;
+                    try {
+                        start.await();
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            ConnectionStateMachine.Snapshot<FakeLink> s = connection.snapshot();
+                            assertTrue("Version went backwards", s.version >= lastVersion);
+                            lastVersion = s.version;
+                            if (s.state != ConnectionStateMachine.STATE_DISCONNECTED) {
+                                assertNotNull("Connected without a link", s.link);
+                            }
+                            step(random, s);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+
+                private void step(Random random, ConnectionStateMachine.Snapshot<FakeLink> s) {
+                    final int pin = random.nextInt(PinStateRegion.MAX_PINS);
+                    switch (random.nextInt(9)) {
+                        case 0:
+                            session.connect(addresses[random.nextInt(addresses.length)],
+                                    random.nextBoolean());
+                            break;
+                        case 1:
+                            if (random.nextBoolean()) {
+                                session.close();
+                            } else {
+                                session.disconnect();
+                            }
+                            break;
+                        case 2:
+                            // Callback from the current or an older link
+                            final int gen = s.generation - random.nextInt(2);
+                            if (random.nextBoolean()) {
+                                if (connection.onStateChange(gen,
+                                        ConnectionStateMachine.STATE_CONNECTED)) {
+                                    session.replay(s.address);
+                                }
+                            } else if (connection.onStateChange(gen,
+                                    ConnectionStateMachine.STATE_DISCONNECTED)) {
+                                session.goOffline();
+                            }
+                            break;
+                        case 3:
+                            session.write(new int[] { GpioPin.createGpioInstr(pin, 1, 1) });
+                            break;
+                        case 4:
+                            session.writePort(GpioPortInstr.OP_TOGGLE_MASK, pin / 32,
+                                    1 << (pin % 32));
+                            break;
+                        case 5:
+                            synchronized (journal) {
+                                assertTrue("Queued while the link is not ready",
+                                        session.isLinkReady() || queue.isEmpty());
+                            }
+                            break;
+                        default:
+                            // Issue the next write, like drainInstrQueue()
+                            synchronized (queue) {
+                                if (host.outstanding != InstrQueue.EMPTY) {
+                                    host.outstanding = InstrQueue.EMPTY;
+                                    break;
+                                }
+                                final int entry = queue.poll();
+                                if (entry == InstrQueue.EMPTY) {
+                                    break;
+                                }
+                                if ((entry & LinkSession.PORT_INSTR_FLAG) != 0) {
+                                    assertNotEquals("Port instruction without its mask",
+                                            InstrQueue.EMPTY, queue.poll());
+                                } else {
+                                    host.outstanding = entry;
+                                }
+                            }
+                            break;
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        session.close();
+        assertFalse(host.links.isEmpty());
+        for (FakeLink link : host.links) {
+            assertEquals(1, link.closes.get());
+        }
+        assertEquals(ConnectionStateMachine.STATE_DISCONNECTED, connection.getState());
+        assertNull(connection.getLink());
+        assertTrue(queue.isEmpty());
+        assertFalse(session.isLinkReady());
+        assertEquals(LinkSession.WRITE_REFUSED,
+                session.write(new int[] { GpioPin.createGpioInstr(3, 1, 1) }));
+    }
+}
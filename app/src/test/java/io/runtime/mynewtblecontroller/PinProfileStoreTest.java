@@ -0,0 +1,56 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encoding pin profiles as stored in SharedPreferences, and decoding them back.
+ */
+public class PinProfileStoreTest {
+    @Test
+    public void profile_roundTrips() throws Exception {
+        List<GpioPin> pins = new ArrayList<GpioPin>();
+        pins.add(new GpioPin(3, true, true));
+        pins.add(new GpioPin(12, false, false));
+        GpioPin irq = new GpioPin(255, false, false);
+        irq.edges = GpioPin.EDGE_RISING;
+        irq.debounce = 2;
+        pins.add(irq);
+
+        String profile = PinProfileStore.encode(pins);
+        // 4 hex digits a pin, zero padded
+        assertEquals(12, profile.length());
+        assertEquals("0311", profile.substring(0, 4));
+
+        List<GpioPin> decoded = PinProfileStore.decode(profile);
+        assertEquals(pins.size(), decoded.size());
+        for (int i = 0; i < pins.size(); i++) {
+            GpioPin expected = pins.get(i);
+            GpioPin actual = decoded.get(i);
+            assertEquals(expected.pinNumber, actual.pinNumber);
+            assertEquals(expected.isOuput, actual.isOuput);
+            assertEquals(expected.isHigh, actual.isHigh);
+            assertEquals(expected.edges, actual.edges);
+            assertEquals(expected.debounce, actual.debounce);
+            assertEquals(GpioPin.createGpioInstr(expected), GpioPin.createGpioInstr(actual));
+        }
+        assertTrue(PinProfileStore.decode(PinProfileStore.encode(new ArrayList<GpioPin>()))
+                .isEmpty());
+    }
+
+    @Test
+    public void malformedProfile_skipsBadInstructions() throws Exception {
+        assertTrue(PinProfileStore.decode(null).isEmpty());
+        assertTrue(PinProfileStore.decode("").isEmpty());
+        // Not hex, an unknown direction, then a good pin and a truncated one
+        List<GpioPin> pins = PinProfileStore.decode("zz110370" + "0510" + "05");
+        assertEquals(1, pins.size());
+        assertEquals(5, pins.get(0).pinNumber);
+        assertTrue(pins.get(0).isOuput);
+        assertFalse(pins.get(0).isHigh);
+    }
+}
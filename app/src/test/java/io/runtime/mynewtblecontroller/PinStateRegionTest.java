@@ -0,0 +1,92 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Snapshots of a file backed pin state region taken through a read-only mapping, as a
+ * remote client takes them.
+ */
+public class PinStateRegionTest {
+    private final File file;
+
+    public PinStateRegionTest() throws Exception {
+        file = File.createTempFile("pin_state", null);
+        file.deleteOnExit();
+    }
+
+    @Test
+    public void snapshot_seesUpdates() throws Exception {
+        PinStateRegion writer = PinStateRegion.create(file);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            PinStateRegion reader = PinStateRegion.map(in.getChannel());
+            byte[] pins = new byte[PinStateRegion.MAX_PINS];
+            assertEquals(0, reader.snapshot(pins));
+
+            writer.update(5, true, true);
+            writer.update(200, false, false);
+            int seq = reader.snapshot(pins);
+            assertEquals(4, seq);
+            assertEquals(writer.getSequence(), seq);
+            assertEquals(PinStateRegion.PIN_CONFIGURED | PinStateRegion.PIN_OUTPUT
+                    | PinStateRegion.PIN_HIGH, pins[5]);
+            assertEquals(PinStateRegion.PIN_CONFIGURED, pins[200]);
+            assertEquals(seq, writer.snapshot(pins));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void update_neverWaitsForReaders() throws Exception {
+        PinStateRegion writer = PinStateRegion.create(file);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            // A stuck client holding a lock on the sequence number
+            FileLock lock = in.getChannel().lock(8, 4, true);
+            writer.update(9, true, true);
+            writer.applyPort(GpioPortInstr.OP_CLEAR_MASK, 0, 1 << 9);
+            lock.release();
+            byte[] pins = new byte[PinStateRegion.MAX_PINS];
+            assertEquals(4, PinStateRegion.map(in.getChannel()).snapshot(pins));
+            assertEquals(PinStateRegion.PIN_CONFIGURED | PinStateRegion.PIN_OUTPUT, pins[9]);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void snapshot_givesUpOnDeadWriter() throws Exception {
+        PinStateRegion writer = PinStateRegion.create(file);
+        writer.update(7, true, true);
+        // A writer that died between its two sequence increments
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileInputStream in = new FileInputStream(file);
+        try {
+            MappedByteBuffer raw = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    PinStateRegion.SIZE);
+            raw.order(ByteOrder.LITTLE_ENDIAN);
+            raw.putInt(8, raw.getInt(8) + 1);
+
+            PinStateRegion reader = PinStateRegion.map(in.getChannel());
+            byte[] pins = new byte[PinStateRegion.MAX_PINS];
+            assertEquals(PinStateRegion.TORN, reader.snapshot(pins));
+            // Still the latest levels
+            assertEquals(PinStateRegion.PIN_CONFIGURED | PinStateRegion.PIN_OUTPUT
+                    | PinStateRegion.PIN_HIGH, pins[7]);
+        } finally {
+            in.close();
+            raf.close();
+        }
+    }
+}
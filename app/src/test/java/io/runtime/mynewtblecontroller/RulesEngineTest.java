@@ -0,0 +1,88 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing rules, evaluating input edges against the compiled table and measuring how fast
+ * the rules react on a synthetic clock.
+ */
+public class RulesEngineTest {
+    private final RulesEngine engine = new RulesEngine();
+    private final int[] out = new int[RulesEngine.MAX_RULES];
+
+    @Test
+    public void parse_roundTrips() throws Exception {
+        List<RulesEngine.Rule> rules = RulesEngine.parseRules(
+                "# interlocks\n5 rising -> 12 low\n\n  5 FALLING -> 13 follow  # lamp\n"
+                        + "200 both -> 7 invert\n");
+        assertEquals(3, rules.size());
+        assertEquals(5, rules.get(1).inputPin);
+        assertEquals(GpioPin.EDGE_FALLING, rules.get(1).edges);
+        assertEquals(RulesEngine.ACTION_FOLLOW, rules.get(1).action);
+        assertEquals("5 rising -> 12 low\n5 falling -> 13 follow\n200 both -> 7 invert\n",
+                RulesEngine.formatRules(rules));
+        assertEquals(rules.toString(),
+                RulesEngine.parseRules(RulesEngine.formatRules(rules)).toString());
+    }
+
+    @Test
+    public void parse_namesTheBadLine() throws Exception {
+        String[] bad = {"5 rising 12 low", "5 sideways -> 12 low", "5 rising -> 12 blink",
+                "x rising -> 12 low", "5 rising -> 5 low", "5 rising -> 999 low"};
+        for (String line : bad) {
+            try {
+                RulesEngine.parseRules("1 rising -> 2 high\n" + line);
+                fail(line);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2:"));
+            }
+        }
+    }
+
+    @Test
+    public void onInput_firesTheMatchingRules() throws Exception {
+        engine.setRules(RulesEngine.parseRules(
+                "5 rising -> 12 low\n5 falling -> 12 high\n5 both -> 13 follow\n"
+                        + "6 both -> 14 invert\n"));
+        assertEquals(2, engine.onInput(5, true, 0, out));
+        assertEquals(GpioPin.createGpioInstr(12, GpioPin.DIR_OUTPUT, 0), out[0]);
+        assertEquals(GpioPin.createGpioInstr(13, GpioPin.DIR_OUTPUT, 1), out[1]);
+        assertEquals(2, engine.onInput(5, false, 0, out));
+        assertEquals(GpioPin.createGpioInstr(12, GpioPin.DIR_OUTPUT, 1), out[0]);
+        assertEquals(GpioPin.createGpioInstr(13, GpioPin.DIR_OUTPUT, 0), out[1]);
+        assertEquals(1, engine.onInput(6, true, 0, out));
+        assertEquals(GpioPin.createGpioInstr(14, GpioPin.DIR_OUTPUT, 0), out[0]);
+        // Pins without rules, or out of range
+        assertEquals(0, engine.onInput(7, true, 0, out));
+        assertEquals(0, engine.onInput(-1, true, 0, out));
+        assertEquals(0, engine.onInput(RulesEngine.MAX_PINS, true, 0, out));
+        assertEquals(5, engine.getFiredCount());
+    }
+
+    @Test
+    public void reactionTimes_areMeasuredToTheWrite() throws Exception {
+        engine.setRules(RulesEngine.parseRules("5 rising -> 12 low\n"));
+        int instr = GpioPin.createGpioInstr(12, GpioPin.DIR_OUTPUT, 0);
+        long t0 = 1000000000L;
+        assertEquals(1, engine.onInput(5, true, t0, out));
+        engine.onQueued(t0, t0 + 200000);
+        // Writes of other instructions are not the rule's
+        engine.onWritten(GpioPin.createGpioInstr(3, GpioPin.DIR_OUTPUT, 1), t0 + 5000000);
+        assertEquals(0, engine.getReaction().getCount());
+        engine.onWritten(instr, t0 + 15000000);
+        assertEquals(1, engine.getProcessing().getCount());
+        assertEquals(1, engine.getReaction().getCount());
+        assertEquals(16, engine.getReaction().getPercentileMs(0.5));
+        // Acknowledged once only
+        engine.onWritten(instr, t0 + 30000000);
+        assertEquals(1, engine.getReaction().getCount());
+
+        engine.reset();
+        assertEquals(0, engine.getReaction().getCount());
+        assertEquals(0, engine.getFiredCount());
+    }
+}
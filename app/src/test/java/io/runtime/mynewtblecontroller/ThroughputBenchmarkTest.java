@@ -0,0 +1,169 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs ThroughputBenchmark against the simulated peripheral on a synthetic clock, with the
+ * service's instruction queue reduced to a FIFO that completes one instruction per step.
+ */
+public class ThroughputBenchmarkTest {
+    private static final long MS = 1000000L;
+
+    private final SimulatedGpioPeripheral device = new SimulatedGpioPeripheral();
+    private final ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+    private boolean connected = true;
+
+    private final ThroughputBenchmark.Target target = new ThroughputBenchmark.Target() {
+        @Override
+        public boolean submit(int instr) {
+            if (!connected) {
+                return false;
+            }
+            queue.add(instr);
+            return true;
+        }
+    };
+
+    /* Complete the oldest queued instruction as the service would, unless fail is set */
+    private void step(ThroughputBenchmark benchmark, long now, boolean fail) {
+        int instr = queue.poll();
+        if (fail) {
+            return;
+        }
+        device.write(instr);
+        if (GpioPin.isOutput(instr)) {
+            benchmark.onPinUpdate(GpioEventHandler.MSG_INSTR_WRITTEN, instr, -1, now);
+        } else {
+            benchmark.onPinUpdate(GpioEventHandler.MSG_DATA_READ, instr, device.read(), now);
+        }
+    }
+
+    @Test
+    public void toggleStorm_sustainedRate() throws Exception {
+        ThroughputBenchmark.Config config = new ThroughputBenchmark.Config();
+        config.outputPins = new int[] { 1, 2, 3 };
+        config.durationMs = 1000;
+        ThroughputBenchmark benchmark = new ThroughputBenchmark(config, target);
+        benchmark.start(0);
+        assertEquals(config.window, queue.size());
+
+        // One instruction every 10 ms
+        long now = 0;
+        while (!benchmark.isDone(now)) {
+            now += 10 * MS;
+            step(benchmark, now, false);
+        }
+        ThroughputBenchmark.Result result = benchmark.finish(now);
+        assertEquals(0, result.failed);
+        assertEquals(0, result.dropped);
+        assertEquals(result.submitted, result.completed);
+        assertTrue(result.completed >= 100);
+        assertEquals(100, result.getOpsPerSecond(), 5);
+        // Each waits behind the rest of the window
+        assertEquals(config.window * 10 + 1, result.latency.getPercentileMs(0.5));
+        assertTrue(device.isOutput(1) && device.isOutput(3));
+    }
+
+    @Test
+    public void mixed_countsFailuresAndTimeouts() throws Exception {
+        ThroughputBenchmark.Config config = new ThroughputBenchmark.Config();
+        config.workload = ThroughputBenchmark.WORKLOAD_MIXED;
+        config.outputPins = new int[] { 4 };
+        config.inputPins = new int[] { 8, 9 };
+        config.window = 2;
+        ThroughputBenchmark benchmark = new ThroughputBenchmark(config, target);
+        benchmark.start(0);
+        int first = queue.peek();
+        assertTrue(GpioPin.isOutput(first));
+
+        // The first write fails without an update, the second completes and skips over it
+        step(benchmark, MS, true);
+        step(benchmark, 2 * MS, false);
+        assertEquals(2, benchmark.getOutstandingCount());
+
+        // The service gives up on the next one
+        int timedOut = queue.poll();
+        benchmark.onOpTimeout(timedOut, GattWatchdog.ACTION_GIVE_UP, 3 * MS);
+        // Then reconnects twice, dropping the window each time; the second time the
+        // connection is gone and the refill is refused
+        benchmark.onOpTimeout(-1, GattWatchdog.ACTION_RECONNECT, 4 * MS);
+        queue.clear();
+        connected = false;
+        benchmark.onOpTimeout(-1, GattWatchdog.ACTION_RECONNECT, 5 * MS);
+        assertEquals(0, benchmark.getOutstandingCount());
+
+        ThroughputBenchmark.Result result = benchmark.finish(5 * MS);
+        assertEquals(1, result.completed);
+        assertEquals(1 + 1 + 2 + 2, result.failed);
+        assertEquals(1, result.dropped);
+        assertTrue(benchmark.isDone(5 * MS));
+    }
+
+    @Test
+    public void unansweredOps_areCountedAtTheDeadline() throws Exception {
+        ThroughputBenchmark.Config config = new ThroughputBenchmark.Config();
+        config.workload = ThroughputBenchmark.WORKLOAD_READ_SWEEP;
+        config.inputPins = new int[] { 5 };
+        config.durationMs = 100;
+        config.drainTimeoutMs = 50;
+        ThroughputBenchmark benchmark = new ThroughputBenchmark(config, target);
+        benchmark.start(0);
+        assertFalse(benchmark.isDone(120 * MS));
+        assertTrue(benchmark.isDone(150 * MS));
+        ThroughputBenchmark.Result result = benchmark.finish(150 * MS);
+        assertEquals(config.window, result.unanswered);
+        assertEquals(0, result.completed);
+    }
+
+    @Test
+    public void json_hasResultsAndEscapedLinkParameters() throws Exception {
+        ThroughputBenchmark.Config config = new ThroughputBenchmark.Config();
+        config.outputPins = new int[] { 1 };
+        config.window = 1;
+        ThroughputBenchmark benchmark = new ThroughputBenchmark(config, target);
+        benchmark.start(0);
+        step(benchmark, 7 * MS, false);
+        ThroughputBenchmark.Result result = benchmark.finish(10 * MS);
+        result.link.put("model", "Phone \"X\"");
+        String json = result.toJson();
+        assertTrue(json.contains("\"workload\": \"toggle_storm\""));
+        assertTrue(json.contains("\"completed\": 1,"));
+        assertTrue(json.contains("\"p50\": 8"));
+        assertTrue(json.contains("\"model\": \"Phone \\\"X\\\"\""));
+    }
+
+    @Test
+    public void parsePins_listsAndRanges() throws Exception {
+        assertArrayEquals(new int[] { 1, 2, 16, 17, 18, 40 },
+                ThroughputBenchmark.parsePins(" 1,2, 16-18 ,,40"));
+        assertEquals(0, ThroughputBenchmark.parsePins("").length);
+        try {
+            ThroughputBenchmark.parsePins("3-x");
+            fail("Malformed range");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            ThroughputBenchmark.parsePins("250-260");
+            fail("Pins out of range");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void missingPins_areRejected() throws Exception {
+        ThroughputBenchmark.Config config = new ThroughputBenchmark.Config();
+        config.workload = ThroughputBenchmark.WORKLOAD_READ_SWEEP;
+        try {
+            new ThroughputBenchmark(config, target);
+            fail("Read sweep without input pins");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
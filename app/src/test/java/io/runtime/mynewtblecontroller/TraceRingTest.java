@@ -0,0 +1,92 @@
+package io.runtime.mynewtblecontroller;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records into TraceRing from one and from many threads and checks what dump() decodes.
+ */
+public class TraceRingTest {
+    private static final TraceRing.Decoder DECODER = new TraceRing.Decoder() {
+        @Override
+        public void decode(StringBuilder sb, int event, int a, int b, int c) {
+            sb.append("e").append(event).append(' ').append(a).append(' ').append(b)
+                    .append(' ').append(c);
+        }
+    };
+
+    @Test
+    public void records_decodeOldestFirst() throws Exception {
+        TraceRing ring = new TraceRing(8, DECODER);
+        ring.record(1);
+        ring.record(2, -1, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        String[] lines = ring.dump().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith("e1 0 0 0"));
+        assertTrue(lines[1].endsWith("e2 -1 " + Integer.MIN_VALUE + " " + Integer.MAX_VALUE));
+        assertTrue(lines[1].trim().startsWith("0.000ms"));
+    }
+
+    @Test
+    public void full_overwritesOldest() throws Exception {
+        TraceRing ring = new TraceRing(5, DECODER);
+        assertEquals(8, ring.getCapacity());
+        for (int i = 0; i < 20; i++) {
+            ring.record(3, i);
+        }
+        assertEquals(20, ring.getRecordCount());
+        String[] lines = ring.dump().split("\n");
+        assertEquals(8, lines.length);
+        assertTrue(lines[0].endsWith("e3 12 0 0"));
+        assertTrue(lines[7].endsWith("e3 19 0 0"));
+
+        ring.clear();
+        assertEquals("", ring.dump());
+    }
+
+    @Test
+    public void concurrentWriters_neverTearRecords() throws Exception {
+        final TraceRing ring = new TraceRing(64, DECODER);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t + 1;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 200000; i++) {
+                        // All arguments agree, a torn record would mix writers
+                        ring.record(id, id, id, id);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        start.countDown();
+        for (int n = 0; n < 50; n++) {
+            for (String line : ring.dump().split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] f = line.trim().split("\\s+");
+                String event = f[1].substring(1);
+                assertEquals(line, event, f[2]);
+                assertEquals(line, event, f[3]);
+                assertEquals(line, event, f[4]);
+            }
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(800000, ring.getRecordCount());
+        assertEquals(64, ring.dump().split("\n").length);
+    }
+}